@@ -54,8 +54,12 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -168,17 +172,13 @@ public class SmartDexingStep implements Step {
           // Concatenate the jars into a blob and compress it.
           StepRunner stepRunner = new DefaultStepRunner(context);
           Step concatStep = new ConcatStep(filesystem, secondaryDexJars, secondaryBlobOutput);
-          Step xzStep;
-
-          if (xzCompressionLevel.isPresent()) {
-            xzStep = new XzStep(
-                filesystem,
-                secondaryBlobOutput,
-                secondaryCompressedBlobOutput,
-                xzCompressionLevel.get().intValue());
-          } else {
-            xzStep = new XzStep(filesystem, secondaryBlobOutput, secondaryCompressedBlobOutput);
-          }
+          // The dx steps are all done by now, so their threads can compress the blob in blocks.
+          Step xzStep = new XzStep(
+              filesystem,
+              secondaryBlobOutput,
+              secondaryCompressedBlobOutput,
+              xzCompressionLevel.or(XzStep.DEFAULT_COMPRESSION_LEVEL).intValue(),
+              executorService);
           stepRunner.runStepForBuildTarget(concatStep, Optional.<BuildTarget>absent());
           stepRunner.runStepForBuildTarget(xzStep, Optional.<BuildTarget>absent());
         }
@@ -271,12 +271,28 @@ public class SmartDexingStep implements Step {
               xzCompressionLevel));
     }
 
-    ImmutableList.Builder<Step> steps = ImmutableList.builder();
+    // The executor's threads take whichever dx command is next as they free up, so queue the
+    // largest first: otherwise a large one queued last runs on alone once the rest are done.
+    final Map<DxPseudoRule, Long> inputSizes = new HashMap<>();
     for (DxPseudoRule pseudoRule : pseudoRules.build()) {
       if (!pseudoRule.checkIsCached()) {
-        steps.addAll(pseudoRule.buildInternal());
+        inputSizes.put(pseudoRule, pseudoRule.getInputSize());
       }
     }
+    List<DxPseudoRule> uncached = new ArrayList<>(inputSizes.keySet());
+    Collections.sort(
+        uncached,
+        new Comparator<DxPseudoRule>() {
+          @Override
+          public int compare(DxPseudoRule a, DxPseudoRule b) {
+            return Long.compare(inputSizes.get(b), inputSizes.get(a));
+          }
+        });
+
+    ImmutableList.Builder<Step> steps = ImmutableList.builder();
+    for (DxPseudoRule pseudoRule : uncached) {
+      steps.addAll(pseudoRule.buildInternal());
+    }
 
     return steps.build();
   }
@@ -342,6 +358,23 @@ public class SmartDexingStep implements Step {
       return hasher.hash().toString();
     }
 
+    /**
+     * @return the total size of the inputs, as an estimate of how long dexing them will take.
+     */
+    long getInputSize() throws IOException {
+      long size = 0;
+      for (Path src : srcs) {
+        if (filesystem.isDirectory(src)) {
+          for (Path file : filesystem.getFilesUnderPath(src)) {
+            size += filesystem.getFileSize(file);
+          }
+        } else if (filesystem.exists(src)) {
+          size += filesystem.getFileSize(src);
+        }
+      }
+      return size;
+    }
+
     public boolean checkIsCached() throws IOException {
       newInputsHash = hashInputs();
 
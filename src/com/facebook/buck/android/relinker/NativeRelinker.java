@@ -203,7 +203,7 @@ public class NativeRelinker {
     // rule.
     for (BuildRule rule : sortedRules.reverse()) {
       ImmutableSet.Builder<BuildRule> transitiveDependents = ImmutableSet.builder();
-      for (BuildRule dependent : graph.getIncomingNodesFor(rule)) {
+      for (BuildRule dependent : graph.getIncomingNodesView(rule)) {
         transitiveDependents.addAll(allDependentsMap.get(dependent));
         if (linkableRules.contains(dependent)) {
           transitiveDependents.add(dependent);
@@ -39,4 +39,5 @@ interface AbstractNetworkCacheArgs {
   String getErrorTextTemplate();
   Optional<Long> getMaxStoreSizeBytes();
   Optional<String> getThriftEndpointPath();
+  Optional<Integer> getMaxStoreBatchSize();
 }
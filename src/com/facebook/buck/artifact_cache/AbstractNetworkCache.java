@@ -25,6 +25,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpService;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -34,7 +35,10 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 
 public abstract class AbstractNetworkCache implements ArtifactCache {
@@ -72,6 +76,11 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       LazyPath output,
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException;
 
+  /**
+   * Uploads the artifact.
+   *
+   * @throws IOException if the artifact could not be stored, including when the cache rejected it.
+   */
   protected abstract void storeImpl(ArtifactInfo info,
       final Path file,
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder)
@@ -105,6 +114,87 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Fetches several artifacts at once, telling {@code listener} about each of them as soon as it
+   * has been fetched.  By default they are fetched one at a time; subclasses whose protocol
+   * supports it can override this to fetch them all with a single request.
+   *
+   * @throws IOException if the artifacts not yet passed to {@code listener} could not be fetched.
+   */
+  protected void multiFetchImpl(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      ImmutableMap<RuleKey, HttpArtifactCacheEvent.Finished.Builder> eventBuilders,
+      MultiFetchListener listener)
+      throws IOException {
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      RuleKey ruleKey = entry.getKey();
+      CacheResult result;
+      try {
+        result = fetchImpl(ruleKey, entry.getValue(), eventBuilders.get(ruleKey));
+      } catch (IOException e) {
+        result = fetchFailure(e, ruleKey, eventBuilders.get(ruleKey));
+      }
+      listener.onResult(ruleKey, result);
+    }
+  }
+
+  /**
+   * Fetches the artifacts for all of the given rule keys, writing each of them to its own output.
+   *
+   * @return the result of the fetch for each rule key.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      final MultiFetchListener listener) {
+    ImmutableMap.Builder<RuleKey, HttpArtifactCacheEvent.Finished.Builder> eventBuilders =
+        ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      HttpArtifactCacheEvent.Started startedEvent = HttpArtifactCacheEvent.newFetchStartedEvent(
+          ImmutableSet.of(ruleKey));
+      buckEventBus.post(startedEvent);
+      eventBuilders.put(
+          ruleKey,
+          HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent)
+              .setRuleKeys(Lists.newArrayList(ruleKey)));
+    }
+    final ImmutableMap<RuleKey, HttpArtifactCacheEvent.Finished.Builder> builders =
+        eventBuilders.build();
+
+    final Map<RuleKey, CacheResult> results = new LinkedHashMap<>();
+    MultiFetchListener finishingListener = new MultiFetchListener() {
+      @Override
+      public void onResult(RuleKey ruleKey, CacheResult result) {
+        results.put(ruleKey, result);
+        buckEventBus.post(
+            builders.get(ruleKey)
+                .setFetchResult(result)
+                .build());
+        listener.onResult(ruleKey, result);
+      }
+    };
+    try {
+      multiFetchImpl(outputs, builders, finishingListener);
+    } catch (IOException e) {
+      for (RuleKey ruleKey : outputs.keySet()) {
+        if (!results.containsKey(ruleKey)) {
+          finishingListener.onResult(ruleKey, fetchFailure(e, ruleKey, builders.get(ruleKey)));
+        }
+      }
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
+  private CacheResult fetchFailure(
+      IOException e,
+      RuleKey ruleKey,
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder) {
+    String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+    reportFailure(e, "fetch(%s): %s", ruleKey, msg);
+    eventBuilder.setErrorMessage(msg);
+    return CacheResult.error(name, msg);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       final ArtifactInfo info,
@@ -123,14 +213,14 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       tmp = getPathForArtifact(output);
     } catch (IOException e) {
       LOG.error(e, "Failed to store artifact in temp file: " + output.getPath().toString());
-      return Futures.immediateFuture(null);
+      return Futures.immediateFailedFuture(e);
     }
 
     // HTTP Store operations are asynchronous.
     return httpWriteExecutorService.submit(
-        new Runnable() {
+        new Callable<Void>() {
           @Override
-          public void run() {
+          public Void call() throws IOException {
             HttpArtifactCacheEvent.Started startedEvent =
                 HttpArtifactCacheEvent.newStoreStartedEvent(scheduled);
             buckEventBus.post(startedEvent);
@@ -162,16 +252,19 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
                       .setWasUploadSuccessful(false)
                       .setErrorMessage(e.toString())
                       .build());
+              // Fail the store, so that callers relying on the artifact being in the cache know
+              // that it is not.
+              throw e;
+            } finally {
+              try {
+                projectFilesystem.deleteFileAtPathIfExists(tmp);
+              } catch (IOException e) {
+                LOG.warn(e, "Failed to delete file %s", tmp);
+              }
             }
-            try {
-              projectFilesystem.deleteFileAtPathIfExists(tmp);
-            } catch (IOException e) {
-              LOG.warn(e, "Failed to delete file %s", tmp);
-            }
+            return null;
           }
-        },
-        /* result */ null
-    );
+        });
   }
 
   @Override
@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
 public interface ArtifactCache extends AutoCloseable {
@@ -34,10 +35,25 @@ public interface ArtifactCache extends AutoCloseable {
    */
   CacheResult fetch(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch the cached artifacts for several rule keys at once, saving each of them to its own
+   * output.  Caches whose protocol supports it fetch them all with a single request; the others
+   * fetch them one at a time.
+   *
+   * @param outputs the path to store the artifact to, for each rule key to fetch.
+   * @param listener told the result for each rule key as soon as it is known, which may be well
+   *     before the rest of the artifacts have been fetched.
+   * @return the result of the fetch, for each rule key.
+   */
+  ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      MultiFetchListener listener);
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
-   * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
-   * execution.
+   * using ruleKey as the lookup key.  Errors are not thrown: the returned future fails instead,
+   * so that callers which rely on the artifact being in the cache can tell that it is not.
+   * Callers which don't may ignore the failure, as the cache reports it itself.
    * Store may be performed synchronously or asynchronously.
    * <p>
    * This is a noop if {@link #isStoreSupported()} returns {@code false}.
@@ -45,7 +61,8 @@ public interface ArtifactCache extends AutoCloseable {
    * @param info information to store with the artifact
    * @param output path to read artifact from. If its borrowable, you may freely move the file into
    *               cache without obtaining a copy of the file.
-   * @return {@link ListenableFuture} that completes once the store has finished.
+   * @return {@link ListenableFuture} that completes once the store has finished, and fails if the
+   *     artifact could not be stored.
    */
   ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -78,4 +95,18 @@ public interface ArtifactCache extends AutoCloseable {
 
   @Override
   void close();
+
+  /**
+   * Receives the results of a {@link ArtifactCache#multiFetch}.  It is called exactly once for
+   * each rule key, on the thread doing the fetch, once that rule key's artifact is in its output.
+   */
+  interface MultiFetchListener {
+    MultiFetchListener NOOP = new MultiFetchListener() {
+      @Override
+      public void onResult(RuleKey ruleKey, CacheResult result) {
+      }
+    };
+
+    void onResult(RuleKey ruleKey, CacheResult result);
+  }
 }
@@ -70,6 +70,8 @@ public class ArtifactCacheBuckConfig {
       HTTP_CACHE_ERROR_MESSAGE_NAME,
       HTTP_MAX_STORE_SIZE);
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
+  private static final String HTTP_MAX_STORE_BATCH_SIZE = "http_max_store_batch_size";
+  private static final String SPECULATIVE_FETCH_DELAY_MILLIS = "speculative_fetch_delay_millis";
 
   // List of names of cache-* sections that contain the fields above. This is used to emulate
   // dicts, essentially.
@@ -103,6 +105,17 @@ public class ArtifactCacheBuckConfig {
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
 
+  private static final String CHUNKED_CACHING_ENABLED_FIELD_NAME = "chunked_cache_enabled";
+  private static final String CHUNKED_CACHING_MIN_SIZE_FIELD_NAME = "chunked_cache_minimum_size";
+  private static final long CHUNKED_CACHING_MIN_SIZE_DEFAULT = 1024 * 1024L;
+  private static final String CHUNKED_CACHING_LOCAL_MAX_SIZE_FIELD_NAME =
+      "chunked_cache_local_max_size";
+  private static final long CHUNKED_CACHING_LOCAL_MAX_SIZE_DEFAULT = 2 * 1024 * 1024 * 1024L;
+  private static final String CHUNKED_CACHING_REUPLOAD_AGE_SECONDS_FIELD_NAME =
+      "chunked_cache_reupload_age_seconds";
+  private static final long CHUNKED_CACHING_REUPLOAD_AGE_SECONDS_DEFAULT =
+      TimeUnit.DAYS.toSeconds(1);
+
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
   private static final String DEFAULT_REPOSITORY = "";
@@ -155,6 +168,21 @@ public class ArtifactCacheBuckConfig {
           .or(DEFAULT_HTTP_MAX_FETCH_RETRIES);
   }
 
+  /**
+   * @return the maximum number of artifacts to upload to an HTTP cache with a single request.
+   */
+  public int getHttpMaxStoreBatchSize() {
+    return buckConfig.getInteger(CACHE_SECTION_NAME, HTTP_MAX_STORE_BATCH_SIZE).or(1);
+  }
+
+  /**
+   * @return how long to wait for the first cache to answer a fetch before speculatively fetching
+   *     from the other caches as well, or absent to always try caches one after the other.
+   */
+  public Optional<Long> getSpeculativeFetchDelayMillis() {
+    return buckConfig.getLong(CACHE_SECTION_NAME, SPECULATIVE_FETCH_DELAY_MILLIS);
+  }
+
   public boolean hasAtLeastOneWriteableCache() {
     return FluentIterable.from(getHttpCaches()).anyMatch(
         new Predicate<HttpCacheEntry>() {
@@ -209,6 +237,8 @@ public class ArtifactCacheBuckConfig {
         .setCacheDir(getCacheDir())
         .setCacheReadMode(getDirCacheReadMode())
         .setMaxSizeBytes(getCacheDirMaxSizeBytes())
+        .setEvictionIndexEnabled(
+            buckConfig.getBooleanValue(CACHE_SECTION_NAME, "dir_eviction_index", false))
         .build();
   }
 
@@ -275,6 +305,43 @@ public class ArtifactCacheBuckConfig {
             });
   }
 
+  public boolean getChunkedCachingEnabled() {
+    return buckConfig.getBooleanValue(
+        CACHE_SECTION_NAME,
+        CHUNKED_CACHING_ENABLED_FIELD_NAME,
+        false);
+  }
+
+  public long getChunkedCachingMinimumSize() {
+    return buckConfig.getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_MIN_SIZE_FIELD_NAME)
+        .transform(
+            new Function<String, Long>() {
+              @Override
+              public Long apply(String input) {
+                return SizeUnit.parseBytes(input);
+              }
+            })
+        .or(CHUNKED_CACHING_MIN_SIZE_DEFAULT);
+  }
+
+  public long getChunkedCachingLocalMaximumSize() {
+    return buckConfig.getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_LOCAL_MAX_SIZE_FIELD_NAME)
+        .transform(
+            new Function<String, Long>() {
+              @Override
+              public Long apply(String input) {
+                return SizeUnit.parseBytes(input);
+              }
+            })
+        .or(CHUNKED_CACHING_LOCAL_MAX_SIZE_DEFAULT);
+  }
+
+  public long getChunkedCachingReuploadAgeMillis() {
+    return TimeUnit.SECONDS.toMillis(
+        buckConfig.getLong(CACHE_SECTION_NAME, CHUNKED_CACHING_REUPLOAD_AGE_SECONDS_FIELD_NAME)
+            .or(CHUNKED_CACHING_REUPLOAD_AGE_SECONDS_DEFAULT));
+  }
+
   private CacheReadMode getDirCacheReadMode() {
     return getCacheReadMode(CACHE_SECTION_NAME, "dir_mode", DEFAULT_DIR_CACHE_MODE);
   }
@@ -407,6 +474,11 @@ public class ArtifactCacheBuckConfig {
     public abstract Path getCacheDir();
     public abstract Optional<Long> getMaxSizeBytes();
     public abstract CacheReadMode getCacheReadMode();
+
+    @Value.Default
+    public boolean isEvictionIndexEnabled() {
+      return false;
+    }
   }
 
   @Value.Immutable
@@ -17,8 +17,10 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.NetworkEvent.BytesReceivedEvent;
+import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpLoadBalancer;
 import com.facebook.buck.slb.HttpService;
 import com.facebook.buck.slb.LoadBalancedService;
@@ -28,6 +30,7 @@ import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -80,6 +83,23 @@ public class ArtifactCaches {
   private ArtifactCaches() {
   }
 
+  /**
+   * Implements {@link ArtifactCache#multiFetch} for caches which have no way of fetching several
+   * artifacts in one request, by fetching each of them in turn.
+   */
+  public static ImmutableMap<RuleKey, CacheResult> fetchEach(
+      ArtifactCache cache,
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      ArtifactCache.MultiFetchListener listener) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      CacheResult result = cache.fetch(entry.getKey(), entry.getValue());
+      listener.onResult(entry.getKey(), result);
+      results.put(entry.getKey(), result);
+    }
+    return results.build();
+  }
+
   private static Request.Builder addHeadersToBuilder(
       Request.Builder builder, ImmutableMap<String, String> headers) {
     ImmutableSet<Map.Entry<String, String>> entries = headers.entrySet();
@@ -140,9 +160,9 @@ public class ArtifactCaches {
   }
 
   private static ArtifactCache newInstanceInternal(
-      ArtifactCacheBuckConfig buckConfig,
+      final ArtifactCacheBuckConfig buckConfig,
       BuckEventBus buckEventBus,
-      ProjectFilesystem projectFilesystem,
+      final ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService) throws InterruptedException {
     ImmutableSet<ArtifactCacheBuckConfig.ArtifactCacheMode> modes =
@@ -151,6 +171,7 @@ public class ArtifactCaches {
       return new NoopArtifactCache();
     }
     ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
+    ImmutableList.Builder<ArtifactCache> remoteBuilder = ImmutableList.builder();
     for (ArtifactCacheBuckConfig.ArtifactCacheMode mode : modes) {
       switch (mode) {
         case dir:
@@ -168,6 +189,7 @@ public class ArtifactCaches {
               wifiSsid,
               httpWriteExecutorService,
               builder,
+              remoteBuilder,
               HTTP_PROTOCOL);
           break;
 
@@ -179,6 +201,7 @@ public class ArtifactCaches {
               wifiSsid,
               httpWriteExecutorService,
               builder,
+              remoteBuilder,
               THRIFT_PROTOCOL);
           break;
       }
@@ -190,7 +213,10 @@ public class ArtifactCaches {
       // Don't bother wrapping a single artifact cache in MultiArtifactCache.
       result = artifactCaches.get(0);
     } else {
-      result = new MultiArtifactCache(artifactCaches);
+      result = new MultiArtifactCache(
+          artifactCaches,
+          buckConfig.getSpeculativeFetchDelayMillis(),
+          (int) buckConfig.getThreadPoolSize());
     }
 
     // Always support reading two-level cache stores (in case we performed any in the past).
@@ -202,6 +228,33 @@ public class ArtifactCaches {
         buckConfig.getTwoLevelCachingMinimumSize(),
         buckConfig.getTwoLevelCachingMaximumSize());
 
+    // Likewise, always support reading artifacts which were stored in chunks.  Chunks bypass the
+    // two-level decorator, which would turn every chunk into two requests, and the dir cache, whose
+    // part the local chunk store plays.
+    ImmutableList<ArtifactCache> remoteCaches = remoteBuilder.build();
+    ArtifactCache chunkCache;
+    if (remoteCaches.isEmpty()) {
+      chunkCache = new NoopArtifactCache();
+    } else if (remoteCaches.size() == 1) {
+      chunkCache = remoteCaches.get(0);
+    } else {
+      chunkCache = new MultiArtifactCache(remoteCaches);
+    }
+    result = new ChunkedArtifactCacheDecorator(
+        result,
+        chunkCache,
+        projectFilesystem,
+        buckEventBus,
+        new Supplier<DirArtifactCache>() {
+          @Override
+          public DirArtifactCache get() {
+            return createArtifactChunkStore(buckConfig, projectFilesystem);
+          }
+        },
+        buckConfig.getChunkedCachingEnabled(),
+        buckConfig.getChunkedCachingMinimumSize(),
+        buckConfig.getChunkedCachingReuploadAgeMillis());
+
     return result;
   }
 
@@ -212,6 +265,7 @@ public class ArtifactCaches {
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService,
       ImmutableList.Builder<ArtifactCache> builder,
+      ImmutableList.Builder<ArtifactCache> remoteBuilder,
       NetworkCacheFactory factory) {
     for (HttpCacheEntry cacheEntry : buckConfig.getHttpCaches()) {
       if (!cacheEntry.isWifiUsableForDistributedCache(wifiSsid)) {
@@ -219,14 +273,16 @@ public class ArtifactCaches {
         continue;
       }
 
-      builder.add(createHttpArtifactCache(
-              cacheEntry,
-              buckConfig.getHostToReportToRemoteCacheServer(),
-              buckEventBus,
-              projectFilesystem,
-              httpWriteExecutorService,
-              buckConfig,
-              factory));
+      ArtifactCache cache = createHttpArtifactCache(
+          cacheEntry,
+          buckConfig.getHostToReportToRemoteCacheServer(),
+          buckEventBus,
+          projectFilesystem,
+          httpWriteExecutorService,
+          buckConfig,
+          factory);
+      builder.add(cache);
+      remoteBuilder.add(cache);
     }
   }
 
@@ -241,7 +297,8 @@ public class ArtifactCaches {
           projectFilesystem,
           cacheDir,
           dirCacheConfig.getCacheReadMode().isDoStore(),
-          dirCacheConfig.getMaxSizeBytes());
+          dirCacheConfig.getMaxSizeBytes(),
+          dirCacheConfig.isEvictionIndexEnabled());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -258,6 +315,25 @@ public class ArtifactCaches {
     }
   }
 
+  private static DirArtifactCache createArtifactChunkStore(
+      ArtifactCacheBuckConfig buckConfig,
+      ProjectFilesystem projectFilesystem) {
+    Path chunksDir = projectFilesystem.getBuckPaths().getArtifactChunksDir();
+    try {
+      return new DirArtifactCache(
+          "chunks",
+          projectFilesystem,
+          chunksDir,
+          /* doStore */ true,
+          Optional.of(buckConfig.getChunkedCachingLocalMaximumSize()),
+          /* useEvictionIndex */ true);
+    } catch (IOException e) {
+      throw new HumanReadableException(
+          "Failure initializing artifact chunk directory: %s",
+          chunksDir);
+    }
+  }
+
   private static ArtifactCache createHttpArtifactCache(
       HttpCacheEntry cacheDescription,
       final String hostToReportToRemote,
@@ -382,6 +458,7 @@ public class ArtifactCaches {
             .setBuckEventBus(buckEventBus)
             .setHttpWriteExecutorService(httpWriteExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
+            .setMaxStoreBatchSize(config.getHttpMaxStoreBatchSize())
             .build());
   }
 
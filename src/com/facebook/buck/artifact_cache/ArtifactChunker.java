@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+
+/**
+ * Splits the contents of an artifact zip into content-defined chunks, so that artifacts which
+ * differ in only a few of their files share most of their chunks.
+ * <p>
+ * The uncompressed contents of all of the zip's members are treated as one stream, which is cut
+ * wherever a rolling hash of the last few bytes matches a fixed pattern.  Since the cut points
+ * depend only on nearby content, inserting or changing a file only changes the chunks around it.
+ * Small files are packed together into chunks, and every file large enough to fill a chunk on its
+ * own starts a new one, so that it is chunked the same way whichever files precede it.
+ */
+class ArtifactChunker {
+
+  @VisibleForTesting
+  static final int MIN_CHUNK_SIZE = 16 * 1024;
+  @VisibleForTesting
+  static final int MAX_CHUNK_SIZE = 256 * 1024;
+  // Cut when the top 16 bits of the hash are zero, for chunks of about 64KB past the minimum.
+  private static final long BOUNDARY_MASK = -1L << (64 - 16);
+
+  // Every client must cut in the same places, so this must never change.
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x6275636bL);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  /**
+   * Receives each chunk as it is cut.
+   */
+  interface ChunkConsumer {
+    /**
+     * @param data buffer holding the chunk's contents, which is reused once this returns.
+     */
+    void accept(HashCode hash, byte[] data, int length) throws IOException;
+  }
+
+  private final ChunkConsumer consumer;
+  private final ImmutableList.Builder<ArtifactManifest.Chunk> chunks;
+  private final byte[] buffer;
+  private int length;
+  private long hash;
+
+  private ArtifactChunker(ChunkConsumer consumer) {
+    this.consumer = consumer;
+    this.chunks = ImmutableList.builder();
+    this.buffer = new byte[MAX_CHUNK_SIZE];
+  }
+
+  /**
+   * Splits {@code zip} into chunks, passing each of them to {@code consumer}.
+   *
+   * @return the manifest which can be used to put the zip back together from its chunks.
+   */
+  static ArtifactManifest split(Path zip, ChunkConsumer consumer) throws IOException {
+    ArtifactChunker chunker = new ArtifactChunker(consumer);
+    ImmutableList.Builder<ArtifactManifest.Member> members = ImmutableList.builder();
+    byte[] readBuffer = new byte[64 * 1024];
+    try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+      for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+        if (entry.getSize() >= MIN_CHUNK_SIZE) {
+          chunker.cut();
+        }
+        long size = 0;
+        if (!entry.isDirectory()) {
+          try (InputStream input = zipFile.getInputStream(entry)) {
+            int read;
+            while ((read = input.read(readBuffer)) != -1) {
+              chunker.update(readBuffer, read);
+              size += read;
+            }
+          }
+        }
+        members.add(
+            new ArtifactManifest.Member(
+                entry.getName(),
+                entry.getExternalAttributes(),
+                entry.getMethod() == ZipEntry.STORED,
+                size,
+                entry.getCrc()));
+      }
+    }
+    chunker.cut();
+    return new ArtifactManifest(members.build(), chunker.chunks.build());
+  }
+
+  private void update(byte[] data, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      buffer[length++] = data[i];
+      hash = (hash << 1) + GEAR[data[i] & 0xff];
+      if (length == MAX_CHUNK_SIZE ||
+          (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+        cut();
+      }
+    }
+  }
+
+  private void cut() throws IOException {
+    if (length == 0) {
+      return;
+    }
+    HashCode chunkHash = Hashing.sha1().hashBytes(buffer, 0, length);
+    consumer.accept(chunkHash, buffer, length);
+    chunks.add(new ArtifactManifest.Chunk(chunkHash, length));
+    length = 0;
+    hash = 0;
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+/**
+ * Describes an artifact zip in terms of the chunks {@link ArtifactChunker} split it into: the
+ * zip's members, and the chunks which their contents, concatenated in order, are made of.
+ */
+class ArtifactManifest {
+
+  private static final int MAGIC = 0x43484b01;
+  private static final int HASH_SIZE_BYTES = 20;
+
+  /**
+   * Supplies the contents of chunks when putting an artifact back together.
+   */
+  interface ChunkSource {
+    InputStream openChunk(HashCode hash) throws IOException;
+  }
+
+  private final ImmutableList<Member> members;
+  private final ImmutableList<Chunk> chunks;
+
+  ArtifactManifest(ImmutableList<Member> members, ImmutableList<Chunk> chunks) {
+    this.members = members;
+    this.chunks = chunks;
+  }
+
+  public ImmutableList<Member> getMembers() {
+    return members;
+  }
+
+  public ImmutableList<Chunk> getChunks() {
+    return chunks;
+  }
+
+  public void write(OutputStream output) throws IOException {
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(members.size());
+    for (Member member : members) {
+      out.writeUTF(member.name);
+      out.writeLong(member.externalAttributes);
+      out.writeBoolean(member.stored);
+      out.writeLong(member.size);
+      out.writeLong(member.crc);
+    }
+    out.writeInt(chunks.size());
+    for (Chunk chunk : chunks) {
+      out.write(chunk.hash.asBytes());
+      out.writeInt(chunk.length);
+    }
+    out.flush();
+  }
+
+  public static ArtifactManifest read(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an artifact manifest.");
+    }
+    int memberCount = in.readInt();
+    ImmutableList.Builder<Member> members = ImmutableList.builder();
+    for (int i = 0; i < memberCount; i++) {
+      members.add(
+          new Member(in.readUTF(), in.readLong(), in.readBoolean(), in.readLong(), in.readLong()));
+    }
+    int chunkCount = in.readInt();
+    ImmutableList.Builder<Chunk> chunks = ImmutableList.builder();
+    byte[] hash = new byte[HASH_SIZE_BYTES];
+    for (int i = 0; i < chunkCount; i++) {
+      in.readFully(hash);
+      chunks.add(new Chunk(HashCode.fromBytes(hash), in.readInt()));
+    }
+    return new ArtifactManifest(members.build(), chunks.build());
+  }
+
+  /**
+   * Writes the zip described by this manifest to {@code zip}, reading its contents from
+   * {@code source}.
+   */
+  public void assemble(ChunkSource source, Path zip) throws IOException {
+    try (InputStream data = new ChunksInputStream(chunks.iterator(), source);
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(zip)) {
+      for (Member member : members) {
+        CustomZipEntry entry = new CustomZipEntry(member.name);
+        entry.setFakeTime();
+        entry.setExternalAttributes(member.externalAttributes);
+        if (member.stored) {
+          entry.setCompressionLevel(Deflater.NO_COMPRESSION);
+          entry.setSize(member.size);
+          entry.setCompressedSize(member.size);
+          entry.setCrc(member.crc);
+        }
+        out.putNextEntry(entry);
+        if (ByteStreams.copy(ByteStreams.limit(data, member.size), out) != member.size) {
+          throw new IOException(
+              String.format("Chunks ended before the contents of %s.", member.name));
+        }
+        out.closeEntry();
+      }
+    }
+  }
+
+  static class Member {
+    private final String name;
+    private final long externalAttributes;
+    private final boolean stored;
+    private final long size;
+    private final long crc;
+
+    Member(String name, long externalAttributes, boolean stored, long size, long crc) {
+      this.name = name;
+      this.externalAttributes = externalAttributes;
+      this.stored = stored;
+      this.size = size;
+      this.crc = crc;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+
+  static class Chunk {
+    private final HashCode hash;
+    private final int length;
+
+    Chunk(HashCode hash, int length) {
+      this.hash = hash;
+      this.length = length;
+    }
+
+    public HashCode getHash() {
+      return hash;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (%d bytes)", hash, length);
+    }
+  }
+
+  /**
+   * The contents of a sequence of chunks, each of which is only opened once it is reached.
+   */
+  private static class ChunksInputStream extends InputStream {
+    private final Iterator<Chunk> chunks;
+    private final ChunkSource source;
+    @Nullable
+    private InputStream current;
+
+    ChunksInputStream(Iterator<Chunk> chunks, ChunkSource source) {
+      this.chunks = chunks;
+      this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        if (current == null) {
+          if (!chunks.hasNext()) {
+            return -1;
+          }
+          current = source.openChunk(chunks.next().hash);
+        }
+        int read = current.read(b, off, len);
+        if (read != -1) {
+          return read;
+        }
+        current.close();
+        current = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+    }
+  }
+}
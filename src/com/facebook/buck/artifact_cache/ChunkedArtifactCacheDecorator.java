@@ -0,0 +1,489 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Stores artifacts as a manifest plus content-defined chunks, so that when an artifact only
+ * differs from earlier ones in a few of its files, only the chunks holding those files need to be
+ * uploaded or downloaded.  The data is stored using the following scheme:
+ *   rulekey -> (metadata, manifest)
+ *   chunk hash -> deflated chunk
+ * Manifests go to the delegate like any other artifact, but chunks only go to the remote caches:
+ * the local chunk store already plays the part of the dir cache for them.  Every chunk this client
+ * has fetched, or has seen the remote caches accept, is kept in the local chunk store.  Chunks
+ * found there are not fetched again.  They are not stored again either, unless they were last seen
+ * in the remote caches so long ago that those may have evicted them since, which would leave every
+ * manifest referring to them unusable.
+ * <p>
+ * See {@link ArtifactChunker} for how artifacts are split into chunks.
+ */
+public class ChunkedArtifactCacheDecorator implements ArtifactCache {
+
+  @VisibleForTesting
+  static final String METADATA_KEY = "CHUNKED_CACHE_MANIFEST";
+  private static final String MANIFEST_VERSION = "1";
+  // Keeps chunk keys apart from rule keys and from two-level cache content hashes.
+  private static final String CHUNK_KEY_SUFFIX = "cdc0";
+  private static final String COUNTER_CATEGORY = "buck_chunked_cache_stats";
+  @VisibleForTesting
+  static final int MAX_CHUNK_FETCH_BATCH_SIZE = 32;
+
+  private static final Logger LOG = Logger.get(ChunkedArtifactCacheDecorator.class);
+
+  private final ArtifactCache delegate;
+  private final ArtifactCache chunkCache;
+  private final ProjectFilesystem projectFilesystem;
+  private final Supplier<DirArtifactCache> localChunksSupplier;
+  private final boolean performChunkedStores;
+  private final long minimumChunkedArtifactSize;
+  private final long chunkReuploadAgeMillis;
+
+  private final IntegerCounter chunksFetched;
+  private final IntegerCounter chunksFoundLocally;
+  private final IntegerCounter chunksStored;
+
+  @Nullable
+  private DirArtifactCache localChunks;
+
+  /**
+   * @param chunkCache the remote caches, which chunks are stored in and fetched from.  They are
+   *     usually also part of the delegate, which is responsible for closing them.
+   * @param localChunksSupplier creates the local chunk store, which is only done once an artifact
+   *     is stored or fetched in chunks.
+   * @param chunkReuploadAgeMillis how long after a chunk was last fetched from or stored in the
+   *     remote caches it is stored again, rather than assumed to still be there.
+   */
+  public ChunkedArtifactCacheDecorator(
+      ArtifactCache delegate,
+      ArtifactCache chunkCache,
+      ProjectFilesystem projectFilesystem,
+      BuckEventBus buckEventBus,
+      Supplier<DirArtifactCache> localChunksSupplier,
+      boolean performChunkedStores,
+      long minimumChunkedArtifactSize,
+      long chunkReuploadAgeMillis) {
+    this.delegate = delegate;
+    this.chunkCache = chunkCache;
+    this.projectFilesystem = projectFilesystem;
+    this.localChunksSupplier = localChunksSupplier;
+    this.performChunkedStores = performChunkedStores;
+    this.minimumChunkedArtifactSize = minimumChunkedArtifactSize;
+    this.chunkReuploadAgeMillis = chunkReuploadAgeMillis;
+
+    chunksFetched = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "chunks_fetched",
+        ImmutableMap.<String, String>of());
+    chunksFoundLocally = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "chunks_found_locally",
+        ImmutableMap.<String, String>of());
+    chunksStored = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "chunks_stored",
+        ImmutableMap.<String, String>of());
+    buckEventBus.post(new CounterRegistry.AsyncCounterRegistrationEvent(
+        ImmutableSet.<Counter>of(chunksFetched, chunksFoundLocally, chunksStored)));
+  }
+
+  @Override
+  public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    return assembleIfChunked(ruleKey, output, delegate.fetch(ruleKey, output));
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      final ImmutableMap<RuleKey, LazyPath> outputs,
+      final MultiFetchListener listener) {
+    final ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    delegate.multiFetch(
+        outputs,
+        new MultiFetchListener() {
+          @Override
+          public void onResult(RuleKey ruleKey, CacheResult fetchResult) {
+            CacheResult result = assembleIfChunked(ruleKey, outputs.get(ruleKey), fetchResult);
+            results.put(ruleKey, result);
+            listener.onResult(ruleKey, result);
+          }
+        });
+    return results.build();
+  }
+
+  /**
+   * If the fetched artifact is a manifest, replaces it with the artifact assembled from its chunks.
+   */
+  private CacheResult assembleIfChunked(
+      RuleKey ruleKey,
+      LazyPath output,
+      CacheResult fetchResult) {
+    if (!fetchResult.getType().isSuccess() ||
+        !fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+      return fetchResult;
+    }
+
+    Path temp = null;
+    try {
+      Path file = output.get();
+      ArtifactManifest manifest;
+      try (InputStream input = projectFilesystem.newFileInputStream(file)) {
+        manifest = ArtifactManifest.read(input);
+      }
+      if (!fetchMissingChunks(ruleKey, manifest)) {
+        return CacheResult.miss();
+      }
+      temp = projectFilesystem.createTempFile(
+          file.getParent(),
+          file.getFileName().toString(),
+          ".tmp");
+      manifest.assemble(
+          new ArtifactManifest.ChunkSource() {
+            @Override
+            public InputStream openChunk(HashCode hash) throws IOException {
+              return readLocalChunk(hash);
+            }
+          },
+          projectFilesystem.resolve(temp));
+      projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to assemble chunked artifact for %s.", ruleKey);
+      return CacheResult.error(
+          fetchResult.cacheSource().or("chunked"),
+          String.format("%s: %s", e.getClass(), e.getMessage()));
+    } finally {
+      deleteQuietly(temp);
+    }
+    return fetchResult;
+  }
+
+  /**
+   * Fetches all of the chunks of the manifest which are not yet in the local chunk store, in
+   * batches so that caches supporting multi-fetch need only a few requests for them.
+   *
+   * @return whether all of the chunks were found.
+   */
+  private boolean fetchMissingChunks(RuleKey ruleKey, ArtifactManifest manifest)
+      throws IOException {
+    Set<HashCode> missing = new LinkedHashSet<>();
+    for (ArtifactManifest.Chunk chunk : manifest.getChunks()) {
+      HashCode hash = chunk.getHash();
+      if (missing.contains(hash)) {
+        continue;
+      }
+      if (getLocalChunks().contains(getChunkKey(hash))) {
+        chunksFoundLocally.inc();
+        continue;
+      }
+      missing.add(hash);
+    }
+
+    for (List<HashCode> batch : Iterables.partition(missing, MAX_CHUNK_FETCH_BATCH_SIZE)) {
+      if (!fetchChunks(ruleKey, batch)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fetches the given chunks with a single multi-fetch and moves them into the local chunk store.
+   *
+   * @return whether all of the chunks were found.
+   */
+  private boolean fetchChunks(RuleKey ruleKey, List<HashCode> hashes) throws IOException {
+    Map<HashCode, Path> tempFiles = new HashMap<>();
+    try {
+      ImmutableMap.Builder<RuleKey, LazyPath> outputs = ImmutableMap.builder();
+      for (HashCode hash : hashes) {
+        Path temp = createTempFile("chunk");
+        tempFiles.put(hash, temp);
+        outputs.put(getChunkKey(hash), LazyPath.ofInstance(temp));
+      }
+      ImmutableMap<RuleKey, CacheResult> results =
+          chunkCache.multiFetch(outputs.build(), MultiFetchListener.NOOP);
+
+      for (HashCode hash : hashes) {
+        RuleKey chunkKey = getChunkKey(hash);
+        Path temp = tempFiles.get(hash);
+        CacheResult result = results.get(chunkKey);
+        if (result == null || !result.getType().isSuccess()) {
+          LOG.info("Chunk %s of %s is missing from the cache.", hash, ruleKey);
+          return false;
+        }
+        HashCode actualHash;
+        try (InputStream input =
+                 new InflaterInputStream(projectFilesystem.newFileInputStream(temp))) {
+          actualHash = Hashing.sha1().hashBytes(ByteStreams.toByteArray(input));
+        }
+        if (!actualHash.equals(hash)) {
+          LOG.warn("Chunk %s of %s has the wrong contents.", hash, ruleKey);
+          return false;
+        }
+        chunksFetched.inc();
+        getLocalChunks().store(
+            ArtifactInfo.builder().addRuleKeys(chunkKey).build(),
+            BorrowablePath.borrowablePath(temp));
+      }
+    } finally {
+      deleteQuietly(tempFiles.values());
+    }
+    return true;
+  }
+
+  private InputStream readLocalChunk(HashCode hash) throws IOException {
+    Path temp = createTempFile("chunk");
+    try {
+      if (!getLocalChunks().fetch(getChunkKey(hash), LazyPath.ofInstance(temp))
+          .getType().isSuccess()) {
+        throw new IOException(String.format("Chunk %s is missing from the local store.", hash));
+      }
+      // Chunks are small, so hold the whole thing rather than keeping the file around.
+      return new InflaterInputStream(
+          new ByteArrayInputStream(Files.readAllBytes(projectFilesystem.resolve(temp))));
+    } finally {
+      deleteQuietly(temp);
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    if (!performChunkedStores || !chunkCache.isStoreSupported()) {
+      return delegate.store(info, output);
+    }
+    try {
+      if (projectFilesystem.getFileSize(output.getPath()) < minimumChunkedArtifactSize) {
+        return delegate.store(info, output);
+      }
+      return storeChunked(info, output.getPath());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to split %s into chunks, storing it whole.", output.getPath());
+      return delegate.store(info, output);
+    }
+  }
+
+  private ListenableFuture<Void> storeChunked(final ArtifactInfo info, Path output)
+      throws IOException {
+    final List<Path> tempFiles = new ArrayList<>();
+    final List<ListenableFuture<Void>> chunkStores = new ArrayList<>();
+    try {
+      final Set<HashCode> seen = new HashSet<>();
+      ArtifactManifest manifest = ArtifactChunker.split(
+          projectFilesystem.resolve(output),
+          new ArtifactChunker.ChunkConsumer() {
+            @Override
+            public void accept(HashCode hash, byte[] data, int length) throws IOException {
+              final RuleKey chunkKey = getChunkKey(hash);
+              if (!seen.add(hash) || isRecentlyStored(chunkKey)) {
+                return;
+              }
+              final Path temp = createTempFile("chunk");
+              tempFiles.add(temp);
+              writeChunk(temp, data, length);
+              final ArtifactInfo chunkInfo = ArtifactInfo.builder().addRuleKeys(chunkKey).build();
+              chunkStores.add(
+                  Futures.transformAsync(
+                      chunkCache.store(chunkInfo, BorrowablePath.notBorrowablePath(temp)),
+                      new AsyncFunction<Void, Void>() {
+                        @Override
+                        public ListenableFuture<Void> apply(Void input) {
+                          // Only once the upload succeeded may later stores skip the chunk.
+                          chunksStored.inc();
+                          ListenableFuture<Void> localStore = getLocalChunks().store(
+                              chunkInfo,
+                              BorrowablePath.notBorrowablePath(temp));
+                          // A chunk stored again is already in the local store.
+                          getLocalChunks().touch(chunkKey);
+                          return localStore;
+                        }
+                      }));
+            }
+          });
+
+      final Path manifestPath = createTempFile("manifest");
+      tempFiles.add(manifestPath);
+      try (OutputStream out = projectFilesystem.newFileOutputStream(manifestPath)) {
+        manifest.write(out);
+      }
+      LOG.verbose(
+          "Stored %d of the %d chunks of %s.",
+          chunkStores.size(),
+          manifest.getChunks().size(),
+          info.getRuleKeys());
+
+      // Only store the manifest once all of its chunks are in place, so that nobody fetches it
+      // before they can be fetched too.  If any of them failed, the manifest is not stored at all.
+      ListenableFuture<Void> result = Futures.transformAsync(
+          MultiArtifactCache.whenAllStored(chunkStores),
+          new AsyncFunction<Void, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Void input) {
+              return delegate.store(
+                  ArtifactInfo.builder()
+                      .from(info)
+                      .setMetadata(
+                          ImmutableMap.<String, String>builder()
+                              .putAll(info.getMetadata())
+                              .put(METADATA_KEY, MANIFEST_VERSION)
+                              .build())
+                      .build(),
+                  BorrowablePath.borrowablePath(manifestPath));
+            }
+          });
+      result.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              deleteQuietly(tempFiles);
+            }
+          },
+          MoreExecutors.directExecutor());
+      return result;
+    } catch (IOException | RuntimeException e) {
+      // Chunks already handed to the cache may still be being uploaded from their temp files.
+      final ImmutableList<Path> toDelete = ImmutableList.copyOf(tempFiles);
+      MultiArtifactCache.whenAllStored(chunkStores).addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              deleteQuietly(toDelete);
+            }
+          },
+          MoreExecutors.directExecutor());
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether the chunk was fetched from or stored in the remote caches recently enough
+   *     that it need not be stored again.
+   */
+  private boolean isRecentlyStored(RuleKey chunkKey) {
+    Optional<Long> lastStored = getLocalChunks().getLastStoredTime(chunkKey);
+    return lastStored.isPresent() &&
+        System.currentTimeMillis() - lastStored.get() < chunkReuploadAgeMillis;
+  }
+
+  private void writeChunk(Path path, byte[] data, int length) throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (OutputStream out =
+             new DeflaterOutputStream(projectFilesystem.newFileOutputStream(path), deflater)) {
+      out.write(data, 0, length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  @VisibleForTesting
+  static RuleKey getChunkKey(HashCode hash) {
+    return new RuleKey(hash.toString() + CHUNK_KEY_SUFFIX);
+  }
+
+  private synchronized DirArtifactCache getLocalChunks() {
+    if (localChunks == null) {
+      localChunks = localChunksSupplier.get();
+    }
+    return localChunks;
+  }
+
+  private Path createTempFile(String prefix) throws IOException {
+    Path scratchDir = projectFilesystem.getBuckPaths().getScratchDir();
+    projectFilesystem.mkdirs(scratchDir);
+    // Caches may read the file from another thread, so hand them an absolute path.
+    return projectFilesystem.resolve(
+        projectFilesystem.createTempFile(scratchDir, prefix, ".tmp"));
+  }
+
+  private void deleteQuietly(Iterable<Path> paths) {
+    for (Path path : paths) {
+      deleteQuietly(path);
+    }
+  }
+
+  private void deleteQuietly(@Nullable Path path) {
+    if (path == null) {
+      return;
+    }
+    try {
+      projectFilesystem.deleteFileAtPathIfExists(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to delete temp file %s.", path);
+    }
+  }
+
+  @VisibleForTesting
+  ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public boolean isStoreSupported() {
+    return delegate.isStoreSupported();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+    synchronized (this) {
+      if (localChunks != null) {
+        localChunks.close();
+      }
+    }
+  }
+}
@@ -20,6 +20,7 @@ import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.collect.ArrayIterable;
@@ -30,6 +31,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -46,9 +48,15 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DirArtifactCache implements ArtifactCache {
 
@@ -59,6 +67,9 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
+  private static final String INDEX_FILE_NAME = "index.log";
+  private static final long EVICTION_SHUTDOWN_TIMEOUT_SECONDS = 60;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -66,6 +77,9 @@ public class DirArtifactCache implements ArtifactCache {
   private final Optional<Long> maxCacheSizeBytes;
   private final boolean doStore;
   private long bytesSinceLastDeleteOldFiles;
+  private final Optional<DirArtifactCacheIndex> index;
+  private final Optional<ExecutorService> evictionExecutor;
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
 
   public DirArtifactCache(
       String name,
@@ -74,6 +88,22 @@ public class DirArtifactCache implements ArtifactCache {
       boolean doStore,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, doStore, maxCacheSizeBytes, /* useEvictionIndex */ false);
+  }
+
+  /**
+   * @param useEvictionIndex if {@code true} and the cache has a maximum size, keep an index of
+   *     stored artifacts and evict the least recently used ones in the background as soon as the
+   *     cache grows beyond its maximum size, instead of scanning the whole cache directory.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      boolean useEvictionIndex)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -81,6 +111,51 @@ public class DirArtifactCache implements ArtifactCache {
     this.doStore = doStore;
     this.bytesSinceLastDeleteOldFiles = 0L;
     filesystem.mkdirs(cacheDir);
+    if (useEvictionIndex && maxCacheSizeBytes.isPresent()) {
+      this.index = Optional.of(loadOrCreateIndex());
+      this.evictionExecutor = Optional.of(
+          Executors.newSingleThreadExecutor(
+              new CommandThreadFactory(DirArtifactCache.class.getSimpleName() + "-eviction")));
+    } else {
+      this.index = Optional.absent();
+      this.evictionExecutor = Optional.absent();
+    }
+  }
+
+  private DirArtifactCacheIndex loadOrCreateIndex() throws IOException {
+    Path indexPath = filesystem.resolve(cacheDir).resolve(INDEX_FILE_NAME);
+    if (Files.exists(indexPath)) {
+      try {
+        return DirArtifactCacheIndex.load(indexPath);
+      } catch (IOException e) {
+        LOG.warn(e, "Rebuilding unreadable artifact cache index %s.", indexPath);
+      }
+    }
+
+    // Seed the index from whatever is already in the cache, which only needs to happen once.
+    File[] files = getAllFilesInCache();
+    MoreFiles.sortFilesByAccessTime(files);
+    LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+    // Files are sorted most recently accessed first, but the index wants the reverse.
+    for (File file : Lists.reverse(ImmutableList.copyOf(files))) {
+      String fileName = file.getName();
+      // Skip the index itself, along with its lock and temporary files, and any artifacts which are
+      // still being written.
+      if (fileName.startsWith(INDEX_FILE_NAME) || fileName.endsWith(TMP_EXTENSION)) {
+        continue;
+      }
+      String entryName = fileName.endsWith(METADATA_EXTENSION) ?
+          fileName.substring(0, fileName.length() - METADATA_EXTENSION.length()) :
+          fileName;
+      Long size = sizes.remove(entryName);
+      sizes.put(entryName, (size == null ? 0 : size) + file.length());
+    }
+    ImmutableList.Builder<DirArtifactCacheIndex.Entry> entries = ImmutableList.builder();
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      entries.add(new DirArtifactCacheIndex.Entry(entry.getKey(), entry.getValue()));
+    }
+    LOG.info("Creating artifact cache index %s with %d entries.", indexPath, sizes.size());
+    return DirArtifactCacheIndex.create(indexPath, entries.build());
   }
 
   @Override
@@ -92,7 +167,7 @@ public class DirArtifactCache implements ArtifactCache {
       try (DataInputStream in =
                new DataInputStream(
                    filesystem.newFileInputStream(
-                       getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+                       getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
         int sz = in.readInt();
         for (int i = 0; i < sz; i++) {
           String key = in.readUTF();
@@ -107,6 +182,14 @@ public class DirArtifactCache implements ArtifactCache {
       filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.<String>absent()), output.get());
 
       result = CacheResult.hit(name, metadata.build(), filesystem.getFileSize(output.get()));
+      if (index.isPresent()) {
+        try {
+          index.get().recordHit(ruleKey.toString());
+        } catch (IOException e) {
+          // The artifact was still fetched; it may just be evicted sooner than it should be.
+          LOG.warn(e, "Failed to write artifact cache index.");
+        }
+      }
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -126,6 +209,13 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      MultiFetchListener listener) {
+    return ArtifactCaches.fetchEach(this, outputs, listener);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -139,7 +229,7 @@ public class DirArtifactCache implements ArtifactCache {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.absent();
       for (RuleKey ruleKey : info.getRuleKeys()) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.<String>absent());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
           continue;
@@ -148,7 +238,7 @@ public class DirArtifactCache implements ArtifactCache {
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
         if (!output.canBorrow()) {
-          storeArtifactOutput(output.getPath(), artifactPath);
+          storeArtifactOutput(output.getPath(), artifactPath, /* mayLink */ false);
         } else {
           // This branch means that we are apparently the only users of the `output`, so instead
           // of making a safe transfer of the output to the dir cache (copy+move), we can just
@@ -157,7 +247,11 @@ public class DirArtifactCache implements ArtifactCache {
             borrowedAndStoredArtifactPath = Optional.of(artifactPath);
             filesystem.move(output.getPath(), artifactPath, StandardCopyOption.REPLACE_EXISTING);
           } else {
-            storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
+            // Stored artifacts are never modified in place, so the other rule keys can share it.
+            storeArtifactOutput(
+                borrowedAndStoredArtifactPath.get(),
+                artifactPath,
+                /* mayLink */ true);
           }
         }
         bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
@@ -179,6 +273,12 @@ public class DirArtifactCache implements ArtifactCache {
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
+
+        if (index.isPresent()) {
+          index.get().recordStore(
+              ruleKey.toString(),
+              filesystem.getFileSize(artifactPath) + filesystem.getFileSize(metadataPath));
+        }
       }
 
     } catch (IOException e) {
@@ -189,7 +289,11 @@ public class DirArtifactCache implements ArtifactCache {
           output);
     }
 
-    if (maxCacheSizeBytes.isPresent() &&
+    if (index.isPresent()) {
+      if (index.get().getTotalSizeBytes() > maxCacheSizeBytes.get()) {
+        scheduleEviction();
+      }
+    } else if (maxCacheSizeBytes.isPresent() &&
         bytesSinceLastDeleteOldFiles >
             (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
       bytesSinceLastDeleteOldFiles = 0L;
@@ -199,6 +303,42 @@ public class DirArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(null);
   }
 
+  /**
+   * @return whether an artifact is stored under {@code ruleKey}, without fetching it.
+   */
+  boolean contains(RuleKey ruleKey) {
+    return filesystem.exists(getPathForRuleKey(ruleKey, Optional.<String>absent())) &&
+        filesystem.exists(getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)));
+  }
+
+  /**
+   * @return when the artifact stored under {@code ruleKey} was stored, or last passed to
+   *     {@link #touch}, if it is stored at all.
+   */
+  Optional<Long> getLastStoredTime(RuleKey ruleKey) {
+    try {
+      return Optional.of(
+          filesystem.getLastModifiedTime(
+              getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))));
+    } catch (IOException e) {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Records the artifact stored under {@code ruleKey} as stored now, as far as
+   * {@link #getLastStoredTime} is concerned.
+   */
+  void touch(RuleKey ruleKey) {
+    try {
+      filesystem.setLastModifiedTime(
+          getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)),
+          FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to touch artifact %s.", ruleKey);
+    }
+  }
+
   private Path getPathToTempFolder() throws IOException {
     return cacheDir.resolve("tmp");
   }
@@ -211,23 +351,31 @@ public class DirArtifactCache implements ArtifactCache {
     return tmp;
   }
 
-  private ImmutableList<String> subfolders(RuleKey ruleKey) {
-    if (ruleKey.toString().length() < 4) {
+  private ImmutableList<String> subfolders(String name) {
+    if (name.length() < 4) {
       return ImmutableList.of();
     }
-    String first = ruleKey.toString().substring(0, 2);
-    String second = ruleKey.toString().substring(2, 4);
+    String first = name.substring(0, 2);
+    String second = name.substring(2, 4);
     return ImmutableList.of(first, second);
   }
 
   @VisibleForTesting
   Path getPathForRuleKey(RuleKey ruleKey, Optional<String> extension) {
-    return getParentDirForRuleKey(ruleKey).resolve(ruleKey.toString() + extension.or(""));
+    return getPathForName(ruleKey.toString() + extension.or(""));
+  }
+
+  private Path getPathForName(String name) {
+    return getParentDirForName(name).resolve(name);
   }
 
   @VisibleForTesting
   Path getParentDirForRuleKey(RuleKey ruleKey) {
-    ImmutableList<String> folders = subfolders(ruleKey);
+    return getParentDirForName(ruleKey.toString());
+  }
+
+  private Path getParentDirForName(String name) {
+    ImmutableList<String> folders = subfolders(name);
     Path result = cacheDir;
     for (String f : folders) {
       result = result.resolve(f);
@@ -235,13 +383,22 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
-  private void storeArtifactOutput(Path output, Path artifactPath) throws IOException {
+  /**
+   * @param mayLink whether {@code output} may be hard-linked rather than copied, which is only safe
+   *     if nothing will modify it in place afterwards.
+   */
+  private void storeArtifactOutput(
+      Path output,
+      Path artifactPath,
+      boolean mayLink) throws IOException {
     // Write to a temporary file and move the file to its final location atomically to protect
     // against partial artifacts (whether due to buck interruption or filesystem failure) posing
     // as valid artifacts during subsequent buck runs.
     Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
     try {
-      filesystem.copyFile(output, tmp);
+      if (!mayLink || !tryLink(output, tmp)) {
+        filesystem.copyFile(output, tmp);
+      }
       filesystem.move(tmp, artifactPath);
       bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
     } finally {
@@ -249,6 +406,18 @@ public class DirArtifactCache implements ArtifactCache {
     }
   }
 
+  private boolean tryLink(Path existing, Path link) {
+    Path absoluteLink = filesystem.resolve(link);
+    try {
+      Files.delete(absoluteLink);
+      Files.createLink(absoluteLink, filesystem.resolve(existing));
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.verbose(e, "Could not link %s to %s, copying instead.", link, existing);
+      return false;
+    }
+  }
+
   /**
    * @return {@code true}: storing artifacts is always supported by this class.
    */
@@ -259,12 +428,68 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
+    if (index.isPresent()) {
+      evictionExecutor.get().shutdown();
+      try {
+        if (!evictionExecutor.get().awaitTermination(
+                EVICTION_SHUTDOWN_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS)) {
+          LOG.warn("Timed out waiting for artifact cache eviction to finish.");
+        }
+        index.get().flush();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to write artifact cache index.");
+      }
+      return;
+    }
     // Do a cache clean up on exit only if cache was written to.
     if (bytesSinceLastDeleteOldFiles > 0) {
       deleteOldFiles();
     }
   }
 
+  private void scheduleEviction() {
+    if (!evictionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    evictionExecutor.get().submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            evictionScheduled.set(false);
+            evictLeastRecentlyUsed();
+          }
+        });
+  }
+
+  /**
+   * Deletes the least recently used artifacts recorded in the index until the cache is back down
+   * to its trimmed size.
+   */
+  @VisibleForTesting
+  void evictLeastRecentlyUsed() {
+    long targetSizeBytes = (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO);
+    try {
+      ImmutableList<DirArtifactCacheIndex.Entry> evicted = index.get().evict(targetSizeBytes);
+      for (DirArtifactCacheIndex.Entry entry : evicted) {
+        Path artifactPath = getPathForName(entry.getName());
+        try {
+          filesystem.deleteFileAtPathIfExists(artifactPath);
+          filesystem.deleteFileAtPathIfExists(
+              artifactPath.resolveSibling(entry.getName() + METADATA_EXTENSION));
+        } catch (IOException e) {
+          // If the file is now in use, we no longer want to delete it.
+          continue;
+        }
+      }
+      LOG.debug("Evicted %d artifacts from %s.", evicted.size(), cacheDir);
+    } catch (IOException e) {
+      LOG.error(e, "Failed to evict old artifacts from cache");
+    }
+  }
+
   /**
    * Deletes files that haven't been accessed recently from the directory cache.
    */
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An append-only log of the artifacts stored in a {@link DirArtifactCache}, recording their size
+ * and when they were last stored or fetched.
+ * <p>
+ * Replaying the log yields the cache's entries in least recently used order, so that evicting
+ * entries to bring the cache under its size limit only touches the entries being evicted, rather
+ * than requiring a walk of the whole cache directory.  Records are appended in whole-record writes
+ * so that several processes may share one cache directory; each process only sees the others'
+ * records the next time it loads the log, which is good enough for choosing what to evict.
+ * <p>
+ * Appending and rewriting the log are done holding a lock on a file next to it, so that records
+ * appended by one process can't be lost while another is compacting the log.
+ */
+class DirArtifactCacheIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  // "DCI" followed by the format version.
+  private static final int MAGIC = 0x44434901;
+
+  private static final byte RECORD_STORE = 1;
+  private static final byte RECORD_HIT = 2;
+  private static final byte RECORD_EVICT = 3;
+
+  // Pending records are written out once they reach this size, when the index is flushed or when
+  // entries are evicted.
+  private static final int FLUSH_THRESHOLD_BYTES = 64 * 1024;
+  // The log is rewritten when it has accumulated this many records per live entry.
+  private static final int COMPACTION_RATIO = 4;
+
+  // File locks are held by the whole JVM, so indexes in the same process also have to take
+  // turns to acquire them.
+  private static final ConcurrentMap<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+  private final Path indexPath;
+  private final Path lockPath;
+  // Ordered from least to most recently used.
+  private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+  private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+  private final DataOutputStream pendingRecordsOut = new DataOutputStream(pendingRecords);
+  private long totalSizeBytes = 0;
+  private long recordCount = 0;
+
+  private DirArtifactCacheIndex(Path indexPath) {
+    this.indexPath = indexPath;
+    this.lockPath = indexPath.resolveSibling(indexPath.getFileName() + ".lock");
+  }
+
+  /**
+   * Loads the index at {@code indexPath}.
+   *
+   * @throws IOException if there is no usable index there, in which case one should be created
+   *     with {@link #create(Path, Iterable)}.
+   */
+  static DirArtifactCacheIndex load(Path indexPath) throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(indexPath);
+    try (InputStream inputStream = Files.newInputStream(indexPath)) {
+      index.replay(new DataInputStream(new BufferedInputStream(inputStream)));
+    }
+    return index;
+  }
+
+  /**
+   * Creates a new index at {@code indexPath}, seeded with the given entries which should be
+   * ordered from least to most recently used.
+   */
+  static DirArtifactCacheIndex create(Path indexPath, Iterable<Entry> entries) throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(indexPath);
+    for (Entry entry : entries) {
+      index.put(entry.getName(), entry.getSizeBytes());
+    }
+    synchronized (index.getProcessLock()) {
+      try (FileChannel lockChannel = index.openLockFile();
+           FileLock lock = lockChannel.lock()) {
+        index.rewrite(index.entrySizes);
+      }
+    }
+    index.recordCount = index.entrySizes.size();
+    return index;
+  }
+
+  private void replay(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Artifact cache index has an unexpected format.");
+    }
+    while (true) {
+      byte type;
+      try {
+        type = in.readByte();
+      } catch (EOFException e) {
+        return;
+      }
+      try {
+        String name = in.readUTF();
+        switch (type) {
+          case RECORD_STORE:
+            put(name, in.readLong());
+            break;
+          case RECORD_HIT:
+            entrySizes.get(name);
+            break;
+          case RECORD_EVICT:
+            remove(name);
+            break;
+          default:
+            throw new IOException("Unknown artifact cache index record type " + type);
+        }
+        recordCount++;
+      } catch (EOFException e) {
+        // A process died while appending a record; everything before it is still good.
+        LOG.debug("Ignoring truncated record at the end of %s.", indexPath);
+        return;
+      }
+    }
+  }
+
+  private void put(String name, long sizeBytes) {
+    Long previousSize = entrySizes.put(name, sizeBytes);
+    totalSizeBytes += sizeBytes - (previousSize == null ? 0 : previousSize);
+  }
+
+  private boolean remove(String name) {
+    Long size = entrySizes.remove(name);
+    if (size == null) {
+      return false;
+    }
+    totalSizeBytes -= size;
+    return true;
+  }
+
+  public synchronized void recordStore(String name, long sizeBytes) throws IOException {
+    put(name, sizeBytes);
+    appendRecord(RECORD_STORE, name);
+    pendingRecordsOut.writeLong(sizeBytes);
+    maybeFlush();
+  }
+
+  public synchronized void recordHit(String name) throws IOException {
+    if (entrySizes.get(name) == null) {
+      return;
+    }
+    appendRecord(RECORD_HIT, name);
+    maybeFlush();
+  }
+
+  /**
+   * Removes and returns the least recently used entries until the total size of the remaining
+   * entries is no more than {@code targetSizeBytes}.  The caller is responsible for deleting the
+   * evicted artifacts.
+   */
+  public synchronized ImmutableList<Entry> evict(long targetSizeBytes) throws IOException {
+    ImmutableList.Builder<Entry> evicted = ImmutableList.builder();
+    Iterator<Map.Entry<String, Long>> iterator = entrySizes.entrySet().iterator();
+    while (totalSizeBytes > targetSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      iterator.remove();
+      totalSizeBytes -= entry.getValue();
+      evicted.add(new Entry(entry.getKey(), entry.getValue()));
+      appendRecord(RECORD_EVICT, entry.getKey());
+    }
+    flush();
+    return evicted.build();
+  }
+
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  @VisibleForTesting
+  synchronized ImmutableList<String> getEntriesLeastRecentlyUsedFirst() {
+    return ImmutableList.copyOf(entrySizes.keySet());
+  }
+
+  private void appendRecord(byte type, String name) throws IOException {
+    pendingRecordsOut.writeByte(type);
+    pendingRecordsOut.writeUTF(name);
+    recordCount++;
+  }
+
+  private void maybeFlush() throws IOException {
+    if (pendingRecords.size() >= FLUSH_THRESHOLD_BYTES) {
+      flush();
+    }
+  }
+
+  /**
+   * Appends all pending records to the log on disk, compacting it if it has grown too large.
+   */
+  public synchronized void flush() throws IOException {
+    boolean needsCompaction = recordCount > COMPACTION_RATIO * Math.max(entrySizes.size(), 1024);
+    if (pendingRecords.size() == 0 && !needsCompaction) {
+      return;
+    }
+    synchronized (getProcessLock()) {
+      try (FileChannel lockChannel = openLockFile();
+           FileLock lock = lockChannel.lock()) {
+        if (pendingRecords.size() > 0 && !appendPendingRecords()) {
+          return;
+        }
+        if (needsCompaction) {
+          compact();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether the records were appended, rather than the log having to be started afresh.
+   */
+  private boolean appendPendingRecords() throws IOException {
+    // Append all pending records with a single write, so that records from several processes
+    // sharing the cache are never interleaved.
+    try (FileChannel channel =
+             FileChannel.open(indexPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      ByteBuffer buffer = ByteBuffer.wrap(pendingRecords.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (NoSuchFileException e) {
+      // Somebody removed the cache directory from under us; start a new log.
+      pendingRecords.reset();
+      rewrite(entrySizes);
+      recordCount = entrySizes.size();
+      return false;
+    }
+    pendingRecords.reset();
+    return true;
+  }
+
+  private Object getProcessLock() {
+    Path key = indexPath.toAbsolutePath().normalize();
+    Object newLock = new Object();
+    Object existingLock = PROCESS_LOCKS.putIfAbsent(key, newLock);
+    return existingLock == null ? newLock : existingLock;
+  }
+
+  private FileChannel openLockFile() throws IOException {
+    Files.createDirectories(indexPath.getParent());
+    return FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Replaces the log with one holding a single record for each live entry.  The log is re-read
+   * first, so that entries recorded by other processes since we loaded it are kept.  Must be
+   * called holding the lock on the log, so that no records are appended while it is rewritten.
+   */
+  private void compact() throws IOException {
+    DirArtifactCacheIndex current = load(indexPath);
+    rewrite(current.entrySizes);
+    entrySizes.clear();
+    entrySizes.putAll(current.entrySizes);
+    totalSizeBytes = current.totalSizeBytes;
+    recordCount = entrySizes.size();
+    LOG.debug("Compacted %s to %d entries.", indexPath, recordCount);
+  }
+
+  private void rewrite(Map<String, Long> entries) throws IOException {
+    Path tempPath = Files.createTempFile(
+        indexPath.getParent(),
+        indexPath.getFileName().toString(),
+        ".tmp");
+    try {
+      try (OutputStream outputStream = Files.newOutputStream(tempPath);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream))) {
+        out.writeInt(MAGIC);
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+          out.writeByte(RECORD_STORE);
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+      }
+      Files.move(
+          tempPath,
+          indexPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  static class Entry {
+    private final String name;
+    private final long sizeBytes;
+
+    Entry(String name, long sizeBytes) {
+      this.name = name;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (%d bytes)", name, sizeBytes);
+    }
+  }
+}
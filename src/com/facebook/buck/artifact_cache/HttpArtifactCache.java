@@ -22,15 +22,25 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpResponse;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nullable;
 
 import okhttp3.MediaType;
 import okhttp3.Request;
@@ -49,8 +59,22 @@ public class HttpArtifactCache extends AbstractNetworkCache {
    */
   private static final Logger LOG = Logger.get(HttpArtifactCache.class);
 
+  private static final String MULTI_FETCH_PATH = "/artifacts/multifetch";
+  private static final String MULTI_STORE_PATH = "/artifacts/multistore";
+
+  private final int maxStoreBatchSize;
+  private final Object storeBatchLock = new Object();
+  private final Queue<PendingStore> pendingStores = new ConcurrentLinkedQueue<>();
+  // Guarded by storeBatchLock.
+  private boolean uploadInProgress = false;
+
+  // Cleared if the server turns out not to know about the batched endpoints.
+  private volatile boolean multiFetchSupported = true;
+  private volatile boolean multiStoreSupported = true;
+
   public HttpArtifactCache(NetworkCacheArgs args) {
     super(args);
+    this.maxStoreBatchSize = args.getMaxStoreBatchSize().or(1);
   }
 
   @Override
@@ -82,50 +106,124 @@ public class HttpArtifactCache extends AbstractNetworkCache {
           return CacheResult.error(name, msg);
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        projectFilesystem.createParentDirs(file);
-        Path temp = projectFilesystem.createTempFile(
-            file.getParent(),
-            file.getFileName().toString(),
-            ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
-          fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
-              input,
-              tempFileOutputStream);
-        }
+        return readFetchedArtifact(ruleKey, output, input, response.requestUrl(), eventBuilder);
+      }
+    }
+  }
 
-        eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
-        eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+  private CacheResult readFetchedArtifact(
+      RuleKey ruleKey,
+      LazyPath output,
+      DataInputStream input,
+      String requestUrl,
+      Finished.Builder eventBuilder) throws IOException {
+    // Setup a temporary file, which sits next to the destination, to write to and
+    // make sure all parent dirs exist.
+    Path file = output.get();
+    projectFilesystem.createParentDirs(file);
+    Path temp = projectFilesystem.createTempFile(
+        file.getParent(),
+        file.getFileName().toString(),
+        ".tmp");
 
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
-        }
+    FetchResponseReadResult fetchedData;
+    try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+      fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
+          input,
+          tempFileOutputStream);
+    }
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          projectFilesystem.deleteFileAtPath(temp);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
-        }
+    eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
+    eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailure("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      eventBuilder.setErrorMessage(msg);
+      return CacheResult.error(name, msg);
+    }
+
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailure("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      projectFilesystem.deleteFileAtPath(temp);
+      eventBuilder.setErrorMessage(msg);
+      return CacheResult.error(name, msg);
+    }
+
+    // Finally, move the temp file into it's final place.
+    projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
 
-        // Finally, move the temp file into it's final place.
-        projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    LOG.info("fetch(%s, %s): cache hit", requestUrl, ruleKey);
+    return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
+  }
 
-        LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
+  @Override
+  protected void multiFetchImpl(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      ImmutableMap<RuleKey, Finished.Builder> eventBuilders,
+      MultiFetchListener listener) throws IOException {
+    if (!multiFetchSupported || outputs.size() < 2) {
+      super.multiFetchImpl(outputs, eventBuilders, listener);
+      return;
+    }
+
+    Request.Builder requestBuilder =
+        new Request.Builder()
+            .post(
+                RequestBody.create(
+                    OCTET_STREAM_CONTENT_TYPE,
+                    HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(
+                        ImmutableSet.copyOf(outputs.keySet()))));
+    try (HttpResponse response = fetchCall(MULTI_FETCH_PATH, requestBuilder)) {
+      try (DataInputStream input =
+               new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+
+        if (isUnsupportedEndpoint(response.code())) {
+          LOG.info(
+              "multiFetch(%s): endpoint not supported, fetching artifacts one at a time",
+              response.requestUrl());
+          multiFetchSupported = false;
+        } else if (response.code() != HttpURLConnection.HTTP_OK) {
+          String msg = String.format("unexpected response: %d", response.code());
+          reportFailure("multiFetch(%s, %s): %s", response.requestUrl(), outputs.keySet(), msg);
+          for (RuleKey ruleKey : outputs.keySet()) {
+            eventBuilders.get(ruleKey).setErrorMessage(msg);
+            listener.onResult(ruleKey, CacheResult.error(name, msg));
+          }
+          return;
+        } else {
+          // The server answers for each key in the order they were requested in, streaming each
+          // artifact as soon as it has it, so we can write them out, and hand them over, as they
+          // arrive.
+          for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+            RuleKey ruleKey = entry.getKey();
+            Optional<DataInputStream> artifact =
+                HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input);
+            if (!artifact.isPresent()) {
+              LOG.info("multiFetch(%s, %s): cache miss", response.requestUrl(), ruleKey);
+              listener.onResult(ruleKey, CacheResult.miss());
+              continue;
+            }
+            CacheResult result;
+            try (DataInputStream artifactInput = artifact.get()) {
+              result = readFetchedArtifact(
+                  ruleKey,
+                  entry.getValue(),
+                  artifactInput,
+                  response.requestUrl(),
+                  eventBuilders.get(ruleKey));
+            }
+            listener.onResult(ruleKey, result);
+          }
+          return;
+        }
       }
     }
+    super.multiFetchImpl(outputs, eventBuilders, listener);
   }
 
   @Override
@@ -134,18 +232,179 @@ public class HttpArtifactCache extends AbstractNetworkCache {
       final Path file,
       final Finished.Builder eventBuilder)
       throws IOException {
+    if (maxStoreBatchSize <= 1 || !multiStoreSupported) {
+      storeSingle(new PendingStore(info, file, eventBuilder));
+      return;
+    }
+
+    PendingStore pendingStore = new PendingStore(info, file, eventBuilder);
+    pendingStores.add(pendingStore);
+    // Only one batch is uploaded at a time, so that writers which arrive during an upload queue
+    // their artifacts up for the next one.  The lock is only held while taking a batch off the
+    // queue and while marking it as done, never while the request is in flight.
+    while (true) {
+      ImmutableList<PendingStore> batch;
+      synchronized (storeBatchLock) {
+        while (uploadInProgress && !pendingStore.done) {
+          try {
+            storeBatchLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to store artifact.");
+          }
+        }
+        if (pendingStore.done) {
+          break;
+        }
+        ImmutableList.Builder<PendingStore> builder = ImmutableList.builder();
+        PendingStore next;
+        for (int i = 0; i < maxStoreBatchSize && (next = pendingStores.poll()) != null; i++) {
+          builder.add(next);
+        }
+        batch = builder.build();
+        uploadInProgress = true;
+      }
+      try {
+        storeBatch(batch);
+      } finally {
+        synchronized (storeBatchLock) {
+          for (PendingStore stored : batch) {
+            stored.done = true;
+          }
+          uploadInProgress = false;
+          storeBatchLock.notifyAll();
+        }
+      }
+    }
+    if (pendingStore.failure != null) {
+      throw pendingStore.failure;
+    }
+  }
+
+  private void storeBatch(ImmutableList<PendingStore> batch) {
+    try {
+      if (batch.size() == 1 || !multiStoreSupported || !storeMultiple(batch)) {
+        for (PendingStore pendingStore : batch) {
+          try {
+            storeSingle(pendingStore);
+          } catch (IOException e) {
+            pendingStore.failure = e;
+          }
+        }
+      }
+    } catch (IOException e) {
+      for (PendingStore pendingStore : batch) {
+        pendingStore.failure = e;
+      }
+    }
+  }
+
+  /**
+   * Uploads all of the given artifacts with a single request.
+   *
+   * @return false if the server doesn't support this, in which case nothing was stored.
+   */
+  private boolean storeMultiple(final ImmutableList<PendingStore> batch) throws IOException {
+    ImmutableList.Builder<HttpArtifactCacheBinaryProtocol.StoreRequest> storeRequests =
+        ImmutableList.builder();
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (PendingStore pendingStore : batch) {
+      HttpArtifactCacheBinaryProtocol.StoreRequest storeRequest =
+          createStoreRequest(pendingStore.info, pendingStore.file);
+      pendingStore.eventBuilder.setRequestSizeBytes(storeRequest.getContentLength());
+      storeRequests.add(storeRequest);
+      ruleKeys.addAll(pendingStore.info.getRuleKeys());
+    }
+    final HttpArtifactCacheBinaryProtocol.MultiStoreRequest multiStoreRequest =
+        new HttpArtifactCacheBinaryProtocol.MultiStoreRequest(storeRequests.build());
+
+    Request.Builder builder = new Request.Builder();
+    builder.put(
+        new RequestBody() {
+          @Override
+          public MediaType contentType() {
+            return OCTET_STREAM_CONTENT_TYPE;
+          }
+
+          @Override
+          public long contentLength() throws IOException {
+            return multiStoreRequest.getContentLength();
+          }
+
+          @Override
+          public void writeTo(BufferedSink bufferedSink) throws IOException {
+            ImmutableList<StoreWriteResult> writeResults =
+                multiStoreRequest.write(bufferedSink.outputStream());
+            for (int i = 0; i < writeResults.size(); i++) {
+              Finished.Builder eventBuilder = batch.get(i).eventBuilder;
+              eventBuilder.setArtifactSizeBytes(writeResults.get(i).getArtifactSizeBytes());
+              eventBuilder.setArtifactContentHash(
+                  writeResults.get(i).getArtifactContentHashCode().toString());
+            }
+          }
+        });
+
+    try (HttpResponse response = multiStoreCall(builder);
+         DataInputStream input =
+             new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+      if (isUnsupportedEndpoint(response.code())) {
+        LOG.info(
+            "multiStore(%s): endpoint not supported, storing artifacts one at a time",
+            response.requestUrl());
+        multiStoreSupported = false;
+        return false;
+      }
+
+      ImmutableList<Boolean> stored = ImmutableList.of();
+      if (response.code() == HttpURLConnection.HTTP_ACCEPTED) {
+        stored = HttpArtifactCacheBinaryProtocol.readMultiStoreResponse(input);
+      }
+      if (stored.size() != batch.size()) {
+        LOG.warn(
+            "multiStore(%s, %s): unexpected response: %d",
+            response.requestUrl(),
+            ruleKeys.build(),
+            response.code());
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        PendingStore pendingStore = batch.get(i);
+        boolean wasStored = i < stored.size() && stored.get(i);
+        pendingStore.eventBuilder.setWasUploadSuccessful(wasStored);
+        if (!wasStored) {
+          pendingStore.failure = new IOException(
+              i < stored.size() ?
+                  String.format("multiStore(%s): artifact was rejected", response.requestUrl()) :
+                  String.format(
+                      "multiStore(%s): unexpected response: %d",
+                      response.requestUrl(),
+                      response.code()));
+        }
+      }
+      return true;
+    }
+  }
+
+  private HttpArtifactCacheBinaryProtocol.StoreRequest createStoreRequest(
+      ArtifactInfo info,
+      final Path file) throws IOException {
+    return new HttpArtifactCacheBinaryProtocol.StoreRequest(
+        info,
+        new ByteSource() {
+          @Override
+          public InputStream openStream() throws IOException {
+            return projectFilesystem.newFileInputStream(file);
+          }
+        });
+  }
+
+  private void storeSingle(PendingStore pendingStore) throws IOException {
+    ArtifactInfo info = pendingStore.info;
+    final Finished.Builder eventBuilder = pendingStore.eventBuilder;
 
     // Build the request, hitting the multi-key endpoint.
     Request.Builder builder = new Request.Builder();
     final HttpArtifactCacheBinaryProtocol.StoreRequest storeRequest =
-        new HttpArtifactCacheBinaryProtocol.StoreRequest(
-            info,
-            new ByteSource() {
-              @Override
-              public InputStream openStream() throws IOException {
-                return projectFilesystem.newFileInputStream(file);
-              }
-            });
+        createStoreRequest(info, pendingStore.file);
 
     eventBuilder.setRequestSizeBytes(storeRequest.getContentLength());
 
@@ -174,15 +433,14 @@ public class HttpArtifactCache extends AbstractNetworkCache {
     // Dispatch the store operation and verify it succeeded.
     try (HttpResponse response = storeCall(builder)) {
       final boolean requestFailed = response.code() != HttpURLConnection.HTTP_ACCEPTED;
+      eventBuilder.setWasUploadSuccessful(!requestFailed);
       if (requestFailed) {
-        reportFailure(
-            "store(%s, %s): unexpected response: %d",
-            response.requestUrl(),
-            info.getRuleKeys(),
-            response.code());
+        throw new IOException(
+            String.format(
+                "store(%s): unexpected response: %d",
+                response.requestUrl(),
+                response.code()));
       }
-
-      eventBuilder.setWasUploadSuccessful(!requestFailed);
     }
   }
 
@@ -195,4 +453,38 @@ public class HttpArtifactCache extends AbstractNetworkCache {
   protected HttpResponse storeCall(Request.Builder requestBuilder) throws IOException {
     return storeClient.makeRequest("/artifacts/key", requestBuilder);
   }
+
+  @VisibleForTesting
+  int getPendingStoreCount() {
+    return pendingStores.size();
+  }
+
+  @VisibleForTesting
+  protected HttpResponse multiStoreCall(Request.Builder requestBuilder) throws IOException {
+    return storeClient.makeRequest(MULTI_STORE_PATH, requestBuilder);
+  }
+
+  private static boolean isUnsupportedEndpoint(int code) {
+    return code == HttpURLConnection.HTTP_NOT_FOUND ||
+        code == HttpURLConnection.HTTP_BAD_METHOD ||
+        code == HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+  }
+
+  private static class PendingStore {
+    private final ArtifactInfo info;
+    private final Path file;
+    private final Finished.Builder eventBuilder;
+
+    // Guarded by storeBatchLock.
+    private boolean done = false;
+    // Written by the uploading writer before it sets done, and only read once done is set.
+    @Nullable
+    private IOException failure = null;
+
+    PendingStore(ArtifactInfo info, Path file, Finished.Builder eventBuilder) {
+      this.info = info;
+      this.file = file;
+      this.eventBuilder = eventBuilder;
+    }
+  }
 }
@@ -22,6 +22,8 @@ import com.facebook.buck.util.hash.HasherOutputStream;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -37,9 +39,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,6 +55,10 @@ public class HttpArtifactCacheBinaryProtocol {
   // 64MB should be enough for everyone.
   private static final long MAX_METADATA_HEADER_SIZE = 64 * 1024 * 1024;
 
+  // Per-key status bytes in a multi-fetch response.
+  private static final byte MULTI_FETCH_MISS = 0;
+  private static final byte MULTI_FETCH_HIT = 1;
+
   private HttpArtifactCacheBinaryProtocol() {
     // Utility class, don't instantiate.
   }
@@ -86,6 +94,115 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * Reads the rule keys of a multi-fetch request, which are in the same format as the keys header
+   * of a store request.
+   */
+  public static ImmutableList<RuleKey> readMultiFetchRequest(
+      DataInputStream input) throws IOException {
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    int ruleKeysCount = input.readInt();
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
+  public static byte[] createMultiFetchRequest(ImmutableSet<RuleKey> ruleKeys) throws IOException {
+    return createKeysHeader(ruleKeys);
+  }
+
+  /**
+   * Writes the answer for the next key of a multi-fetch request when the artifact was not found.
+   */
+  public static void writeMultiFetchMiss(DataOutputStream output) throws IOException {
+    output.writeByte(MULTI_FETCH_MISS);
+  }
+
+  /**
+   * Writes the answer for the next key of a multi-fetch request as a length-prefixed frame holding
+   * a regular fetch response.
+   */
+  public static void writeMultiFetchHit(
+      DataOutputStream output,
+      FetchResponse fetchResponse) throws IOException {
+    output.writeByte(MULTI_FETCH_HIT);
+    output.writeLong(fetchResponse.getContentLength());
+    fetchResponse.writeTo(output);
+  }
+
+  /**
+   * Reads the answer for the next key of a multi-fetch response.
+   *
+   * @return absent for a miss, or a stream holding exactly the fetch response for a hit, which
+   *     should be read with {@link #readFetchResponse(DataInputStream, OutputStream)} before moving
+   *     on to the next key.
+   */
+  public static Optional<DataInputStream> readMultiFetchResponseEntry(
+      DataInputStream input) throws IOException {
+    byte status = input.readByte();
+    switch (status) {
+      case MULTI_FETCH_MISS:
+        return Optional.absent();
+      case MULTI_FETCH_HIT:
+        return Optional.of(readFrame(input));
+      default:
+        throw new IOException(String.format("Unexpected multi-fetch status %d.", status));
+    }
+  }
+
+  /**
+   * Reads the number of artifacts in a multi-store request.  Each of them should then be read by
+   * passing the result of {@link #readMultiStoreRequestEntry(DataInputStream)} to
+   * {@link #readStoreRequest(DataInputStream, OutputStream)}.
+   */
+  public static int readMultiStoreRequestCount(DataInputStream input) throws IOException {
+    return input.readInt();
+  }
+
+  public static DataInputStream readMultiStoreRequestEntry(
+      DataInputStream input) throws IOException {
+    return readFrame(input);
+  }
+
+  /**
+   * Writes whether each of the artifacts of a multi-store request was stored.
+   */
+  public static void writeMultiStoreResponse(
+      DataOutputStream output,
+      List<Boolean> stored) throws IOException {
+    output.writeInt(stored.size());
+    for (boolean wasStored : stored) {
+      output.writeBoolean(wasStored);
+    }
+  }
+
+  public static ImmutableList<Boolean> readMultiStoreResponse(
+      DataInputStream input) throws IOException {
+    ImmutableList.Builder<Boolean> stored = ImmutableList.builder();
+    int count = input.readInt();
+    for (int i = 0; i < count; i++) {
+      stored.add(input.readBoolean());
+    }
+    return stored.build();
+  }
+
+  private static DataInputStream readFrame(DataInputStream input) throws IOException {
+    long frameSize = input.readLong();
+    if (frameSize < 0) {
+      throw new IOException(String.format("Invalid frame size %d.", frameSize));
+    }
+    // Readers of a frame close it when they're done, which mustn't close the enclosing stream.
+    return new DataInputStream(
+        ByteStreams.limit(
+            new FilterInputStream(input) {
+              @Override
+              public void close() {
+              }
+            },
+            frameSize));
+  }
+
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
@@ -230,18 +347,55 @@ public class HttpArtifactCacheBinaryProtocol {
     }
 
     public StoreWriteResult write(OutputStream requestSink) throws IOException {
+      try (DataOutputStream dataOutputStream = new DataOutputStream(requestSink)) {
+        return writeTo(dataOutputStream);
+      }
+    }
+
+    private StoreWriteResult writeTo(DataOutputStream dataOutputStream) throws IOException {
       StoreWriteResult.Builder result = StoreWriteResult.builder();
+      dataOutputStream.write(rawKeys);
+      dataOutputStream.writeInt(rawMetadata.length);
+      dataOutputStream.write(rawMetadata);
+      Hasher hasher = HASH_FUNCTION.newHasher();
+      try (InputStream is = new HasherInputStream(hasher, payloadSource.openBufferedStream())) {
+        result.setArtifactSizeBytes(ByteStreams.copy(is, dataOutputStream));
+        result.setArtifactContentHashCode(hasher.hash());
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * Several store requests sent together, each as a length-prefixed frame.
+   */
+  public static class MultiStoreRequest {
+    private final ImmutableList<StoreRequest> storeRequests;
+    private final long contentLength;
+
+    public MultiStoreRequest(ImmutableList<StoreRequest> storeRequests) {
+      this.storeRequests = storeRequests;
+      long contentLength = Integer.SIZE / Byte.SIZE;
+      for (StoreRequest storeRequest : storeRequests) {
+        contentLength += Long.SIZE / Byte.SIZE + storeRequest.getContentLength();
+      }
+      this.contentLength = contentLength;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    public ImmutableList<StoreWriteResult> write(OutputStream requestSink) throws IOException {
+      ImmutableList.Builder<StoreWriteResult> results = ImmutableList.builder();
       try (DataOutputStream dataOutputStream = new DataOutputStream(requestSink)) {
-        dataOutputStream.write(rawKeys);
-        dataOutputStream.writeInt(rawMetadata.length);
-        dataOutputStream.write(rawMetadata);
-        Hasher hasher = HASH_FUNCTION.newHasher();
-        try (InputStream is = new HasherInputStream(hasher, payloadSource.openBufferedStream())) {
-          result.setArtifactSizeBytes(ByteStreams.copy(is, dataOutputStream));
-          result.setArtifactContentHashCode(hasher.hash());
+        dataOutputStream.writeInt(storeRequests.size());
+        for (StoreRequest storeRequest : storeRequests) {
+          dataOutputStream.writeLong(storeRequest.getContentLength());
+          results.add(storeRequest.writeTo(dataOutputStream));
         }
       }
-      return result.build();
+      return results.build();
     }
   }
 
@@ -271,9 +425,15 @@ public class HttpArtifactCacheBinaryProtocol {
 
     public void write(OutputStream responseSink) throws IOException {
       try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
-        dataOutputStream.writeInt(rawMetadata.length);
-        dataOutputStream.write(rawMetadata);
-        ByteStreams.copy(payloadSource.openStream(), responseSink);
+        writeTo(dataOutputStream);
+      }
+    }
+
+    private void writeTo(DataOutputStream dataOutputStream) throws IOException {
+      dataOutputStream.writeInt(rawMetadata.length);
+      dataOutputStream.write(rawMetadata);
+      try (InputStream payload = payloadSource.openStream()) {
+        ByteStreams.copy(payload, dataOutputStream);
       }
     }
   }
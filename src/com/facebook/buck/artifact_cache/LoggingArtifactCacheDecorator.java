@@ -20,9 +20,11 @@ import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 
+
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
  * and finish of each event.
@@ -54,6 +56,13 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache {
     return fetchResult;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      MultiFetchListener listener) {
+    return ArtifactCaches.fetchEach(this, outputs, listener);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -18,17 +18,37 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -37,9 +57,13 @@ import java.util.List;
  */
 public class MultiArtifactCache implements ArtifactCache {
 
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
+
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final ImmutableList<ArtifactCache> writableArtifactCaches;
   private final boolean isStoreSupported;
+  private final Optional<Long> speculativeFetchDelayMillis;
+  private final Optional<ListeningExecutorService> fetchExecutor;
   private static final Predicate<ArtifactCache> WRITABLE_CACHES_ONLY =
       new Predicate<ArtifactCache>() {
         @Override
@@ -49,10 +73,33 @@ public class MultiArtifactCache implements ArtifactCache {
       };
 
   public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches) {
+    this(artifactCaches, Optional.<Long>absent(), /* maxSpeculativeFetchThreads */ 0);
+  }
+
+  /**
+   * @param speculativeFetchDelayMillis if present, how long to wait for the first cache to answer
+   *     a fetch before racing it against the remaining caches.
+   * @param maxSpeculativeFetchThreads how many threads speculative fetches may use between them.
+   *     Each fetch uses up to two, so fetches beyond half of this wait for a thread.
+   */
+  public MultiArtifactCache(
+      ImmutableList<ArtifactCache> artifactCaches,
+      Optional<Long> speculativeFetchDelayMillis,
+      int maxSpeculativeFetchThreads) {
     this.artifactCaches = artifactCaches;
     this.writableArtifactCaches = ImmutableList.copyOf(
         Iterables.filter(artifactCaches, WRITABLE_CACHES_ONLY));
     this.isStoreSupported = this.writableArtifactCaches.size() > 0;
+    this.speculativeFetchDelayMillis = artifactCaches.size() > 1 ?
+        speculativeFetchDelayMillis :
+        Optional.<Long>absent();
+    this.fetchExecutor = this.speculativeFetchDelayMillis.isPresent() ?
+        Optional.of(
+            MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(
+                    Math.max(2, maxSpeculativeFetchThreads),
+                    new CommandThreadFactory(MultiArtifactCache.class.getSimpleName())))) :
+        Optional.<ListeningExecutorService>absent();
   }
 
   /**
@@ -62,37 +109,299 @@ public class MultiArtifactCache implements ArtifactCache {
    */
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    if (speculativeFetchDelayMillis.isPresent()) {
+      return speculativeFetch(ruleKey, output);
+    }
+    return fetchFrom(0, ruleKey, output);
+  }
+
+  /**
+   * Tries each cache from {@code firstCacheIndex} onwards in order, stopping at the first hit and
+   * propagating the artifact to the caches tried before it.
+   */
+  private CacheResult fetchFrom(int firstCacheIndex, RuleKey ruleKey, LazyPath output) {
     CacheResult cacheResult = CacheResult.miss();
-    for (ArtifactCache artifactCache : artifactCaches) {
-      cacheResult = artifactCache.fetch(ruleKey, output);
+    for (int i = firstCacheIndex; i < artifactCaches.size(); i++) {
+      cacheResult = artifactCaches.get(i).fetch(ruleKey, output);
       if (cacheResult.getType().isSuccess()) {
         // Success; terminate search for a cached artifact, and propagate artifact to caches
         // earlier in the search order so that subsequent searches terminate earlier.
-        for (ArtifactCache priorArtifactCache : artifactCaches) {
-          if (priorArtifactCache.equals(artifactCache)) {
-            break;
-          }
-          // since cache fetch finished, it should be fine to get the path
-          BorrowablePath outputPath;
-          // allow borrowing the path if no other caches are expected to use it
-          if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
-            outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
-          } else {
-            outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
-          }
-          priorArtifactCache.store(
-              ArtifactInfo.builder()
-                  .addRuleKeys(ruleKey)
-                  .setMetadata(cacheResult.getMetadata())
-                  .build(),
-              outputPath);
-        }
+        backfill(firstCacheIndex, i, ruleKey, output, cacheResult);
         return cacheResult;
       }
     }
     return cacheResult;
   }
 
+  /**
+   * Fetches the artifacts from each cache in turn, asking each one for only those artifacts which
+   * the caches before it did not have, and propagating the artifacts it had to the caches before
+   * it.  Hits are passed on to {@code listener} as soon as any cache has them, but misses only
+   * once the last cache missed too.  Unlike single fetches, these are not raced against the
+   * secondary caches.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      final MultiFetchListener listener) {
+    final Map<RuleKey, CacheResult> results = new HashMap<>();
+    final Map<RuleKey, LazyPath> remaining = new LinkedHashMap<>(outputs);
+    for (int i = 0; i < artifactCaches.size() && !remaining.isEmpty(); i++) {
+      final int cacheIndex = i;
+      final boolean isLastCache = i == artifactCaches.size() - 1;
+      artifactCaches.get(i).multiFetch(
+          ImmutableMap.copyOf(remaining),
+          new MultiFetchListener() {
+            @Override
+            public void onResult(RuleKey ruleKey, CacheResult cacheResult) {
+              results.put(ruleKey, cacheResult);
+              if (cacheResult.getType().isSuccess()) {
+                backfill(0, cacheIndex, ruleKey, remaining.remove(ruleKey), cacheResult);
+                listener.onResult(ruleKey, cacheResult);
+              } else if (isLastCache) {
+                listener.onResult(ruleKey, cacheResult);
+              }
+            }
+          });
+    }
+
+    ImmutableMap.Builder<RuleKey, CacheResult> orderedResults = ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      CacheResult cacheResult = results.get(ruleKey);
+      if (cacheResult == null) {
+        cacheResult = CacheResult.miss();
+        listener.onResult(ruleKey, cacheResult);
+      }
+      orderedResults.put(ruleKey, cacheResult);
+    }
+    return orderedResults.build();
+  }
+
+  private void backfill(
+      int fromIndex,
+      int toIndex,
+      RuleKey ruleKey,
+      LazyPath output,
+      CacheResult cacheResult) {
+    for (int i = fromIndex; i < toIndex; i++) {
+      ArtifactCache priorArtifactCache = artifactCaches.get(i);
+      // since cache fetch finished, it should be fine to get the path
+      BorrowablePath outputPath;
+      // allow borrowing the path if no other caches are expected to use it
+      if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
+        outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
+      } else {
+        outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
+      }
+      priorArtifactCache.store(
+          ArtifactInfo.builder()
+              .addRuleKeys(ruleKey)
+              .setMetadata(cacheResult.getMetadata())
+              .build(),
+          outputPath);
+    }
+  }
+
+  /**
+   * Fetches from the first cache, and if it has not answered within the speculative fetch delay,
+   * races it against the remaining caches.  Each contender writes to a file of its own next to
+   * {@code output}; the first hit is moved into place and the other contender is cancelled.
+   */
+  private CacheResult speculativeFetch(final RuleKey ruleKey, LazyPath output) {
+    Contender primaryFetch = new Contender(new SiblingPath(output, ".primary")) {
+      @Override
+      protected CacheResult fetch(LazyPath contenderOutput) {
+        return artifactCaches.get(0).fetch(ruleKey, contenderOutput);
+      }
+    };
+    ListenableFuture<CacheResult> primary = fetchExecutor.get().submit(primaryFetch);
+
+    try {
+      CacheResult primaryResult;
+      try {
+        primaryResult = primary.get(speculativeFetchDelayMillis.get(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        return raceAgainstSecondaryCaches(ruleKey, output, primaryFetch, primary);
+      }
+      if (primaryResult.getType().isSuccess()) {
+        return moveWinner(primaryResult, primaryFetch.getOutput(), output);
+      }
+      CacheResult cacheResult = fetchFrom(1, ruleKey, output);
+      if (cacheResult.getType().isSuccess()) {
+        backfill(0, 1, ruleKey, output, cacheResult);
+      }
+      return cacheResult;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CacheResult.miss();
+    } catch (ExecutionException e) {
+      LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
+      return CacheResult.error("multi", String.valueOf(e.getCause()));
+    } finally {
+      // A no-op if the primary fetch has finished and its output has been moved into place.
+      primary.cancel(true);
+      primaryFetch.abandon();
+    }
+  }
+
+  private CacheResult raceAgainstSecondaryCaches(
+      final RuleKey ruleKey,
+      LazyPath output,
+      Contender primaryFetch,
+      ListenableFuture<CacheResult> primary) throws InterruptedException {
+    LOG.verbose("Speculatively fetching %s from secondary caches.", ruleKey);
+    Contender secondaryFetch = new Contender(new SiblingPath(output, ".secondary")) {
+      @Override
+      protected CacheResult fetch(LazyPath contenderOutput) {
+        return fetchFrom(1, ruleKey, contenderOutput);
+      }
+    };
+    ListenableFuture<CacheResult> secondary = fetchExecutor.get().submit(secondaryFetch);
+
+    final BlockingQueue<ListenableFuture<CacheResult>> completed = new LinkedBlockingQueue<>();
+    for (final ListenableFuture<CacheResult> contender : ImmutableList.of(primary, secondary)) {
+      contender.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              completed.add(contender);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    try {
+      CacheResult cacheResult = CacheResult.miss();
+      for (int i = 0; i < 2; i++) {
+        ListenableFuture<CacheResult> finished = completed.take();
+        try {
+          cacheResult = finished.get();
+        } catch (ExecutionException e) {
+          // Treat a failed contender like a miss, and wait for the other one.
+          LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
+          cacheResult = CacheResult.error("multi", String.valueOf(e.getCause()));
+          continue;
+        }
+        if (!cacheResult.getType().isSuccess()) {
+          continue;
+        }
+        if (finished == primary) {
+          return moveWinner(cacheResult, primaryFetch.getOutput(), output);
+        }
+        cacheResult = moveWinner(cacheResult, secondaryFetch.getOutput(), output);
+        if (cacheResult.getType().isSuccess()) {
+          backfill(0, 1, ruleKey, output, cacheResult);
+        }
+        return cacheResult;
+      }
+      return cacheResult;
+    } finally {
+      // The caller does the same for the primary fetch once we return.
+      secondary.cancel(true);
+      secondaryFetch.abandon();
+    }
+  }
+
+  private static CacheResult moveWinner(CacheResult cacheResult, LazyPath from, LazyPath to) {
+    try {
+      Files.move(from.get(), to.get(), StandardCopyOption.REPLACE_EXISTING);
+      return cacheResult;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to move fetched artifact %s to %s", from, to);
+      return CacheResult.error("multi", String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+  }
+
+  /**
+   * One side of a speculative fetch, which writes to a file of its own.  Cancelling the future
+   * running it doesn't stop the fetch from writing that file, so the file is deleted by whichever
+   * happens last: the fetch finishing, or the speculative fetch giving up on it.  Misses and
+   * failures delete their file straight away.
+   */
+  private abstract static class Contender implements Callable<CacheResult> {
+    private final SiblingPath output;
+    // Guarded by this.
+    private boolean finished = false;
+    // Guarded by this.
+    private boolean abandoned = false;
+
+    public Contender(SiblingPath output) {
+      this.output = output;
+    }
+
+    protected abstract CacheResult fetch(LazyPath contenderOutput);
+
+    public LazyPath getOutput() {
+      return output;
+    }
+
+    @Override
+    public CacheResult call() {
+      CacheResult result = null;
+      try {
+        result = fetch(output);
+        return result;
+      } finally {
+        boolean delete = result == null || !result.getType().isSuccess();
+        synchronized (this) {
+          finished = true;
+          delete |= abandoned;
+        }
+        if (delete) {
+          output.deleteIfCreated();
+        }
+      }
+    }
+
+    /**
+     * Gives up on this contender's file, which must already have been moved if it is to be kept.
+     */
+    public void abandon() {
+      boolean delete;
+      synchronized (this) {
+        abandoned = true;
+        delete = finished;
+      }
+      if (delete) {
+        output.deleteIfCreated();
+      }
+    }
+  }
+
+  /**
+   * A file next to the (lazily created) output of a fetch, to which one contender of a speculative
+   * fetch writes.
+   */
+  private static class SiblingPath extends LazyPath {
+    private final LazyPath path;
+    private final String suffix;
+    private volatile boolean created = false;
+
+    public SiblingPath(LazyPath path, String suffix) {
+      this.path = path;
+      this.suffix = suffix;
+    }
+
+    @Override
+    protected Path create() throws IOException {
+      Path base = path.get();
+      created = true;
+      return base.resolveSibling(base.getFileName() + suffix);
+    }
+
+    public void deleteIfCreated() {
+      // Avoid forcing the creation of the output just to find out there is nothing to delete.
+      if (!created) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(get());
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to delete %s", this);
+      }
+    }
+  }
+
   /**
    * Store the artifact to all encapsulated ArtifactCaches.
    */
@@ -106,19 +415,36 @@ public class MultiArtifactCache implements ArtifactCache {
 
     for (ArtifactCache artifactCache : writableArtifactCaches) {
       // allow borrowing the path if no other caches are expected to use it
+      BorrowablePath cacheOutput;
       if (output.canBorrow() &&
           artifactCache.equals(writableArtifactCaches.get(writableArtifactCaches.size() - 1))) {
-        output = BorrowablePath.borrowablePath(output.getPath());
+        cacheOutput = BorrowablePath.borrowablePath(output.getPath());
       } else {
-        output = BorrowablePath.notBorrowablePath(output.getPath());
+        cacheOutput = BorrowablePath.notBorrowablePath(output.getPath());
       }
-      storeFutures.add(artifactCache.store(info, output));
+      storeFutures.add(artifactCache.store(info, cacheOutput));
     }
 
     // Aggregate future to ensure all store operations have completed.
-    return Futures.transform(
-        Futures.allAsList(storeFutures),
-        Functions.<Void>constant(null));
+    return whenAllStored(storeFutures);
+  }
+
+  /**
+   * @return a future which completes once all of the given stores have, failing if any of them
+   *     failed.  Unlike {@link Futures#allAsList}, it does not fail while other stores may still
+   *     be reading the files they were given, which callers usually delete once it completes.
+   */
+  static ListenableFuture<Void> whenAllStored(final List<ListenableFuture<Void>> storeFutures) {
+    return Futures.transformAsync(
+        Futures.successfulAsList(storeFutures),
+        new AsyncFunction<List<Void>, Void>() {
+          @Override
+          public ListenableFuture<Void> apply(List<Void> input) {
+            return Futures.transform(
+                Futures.allAsList(storeFutures),
+                Functions.<Void>constant(null));
+          }
+        });
   }
 
   /** @return {@code true} if there is at least one ArtifactCache that supports storing. */
@@ -129,6 +455,9 @@ public class MultiArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
+    if (fetchExecutor.isPresent()) {
+      fetchExecutor.get().shutdownNow();
+    }
     Optional<RuntimeException> throwable = Optional.absent();
     for (ArtifactCache artifactCache : artifactCaches) {
       try {
@@ -187,18 +187,18 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
 
       try (ThriftArtifactCacheProtocol.Response response =
           ThriftArtifactCacheProtocol.parseResponse(PROTOCOL, httpResponse.getBody())) {
+        eventBuilder.setArtifactContentHash(storeRequest.getMetadata().artifactPayloadCrc32);
+        eventBuilder.setArtifactSizeBytes(artifactSizeBytes);
+        eventBuilder.setWasUploadSuccessful(response.getThriftData().isWasSuccessful());
+
         if (!response.getThriftData().isWasSuccessful()) {
-          reportFailure(
+          throw new IOException(String.format(
               "Failed to store artifact with thriftErrorMessage=[%s] " +
                   "url=[%s] artifactSizeBytes=[%d]",
               response.getThriftData().getErrorMessage(),
               httpResponse.requestUrl(),
-              artifactSizeBytes);
+              artifactSizeBytes));
         }
-
-        eventBuilder.setArtifactContentHash(storeRequest.getMetadata().artifactPayloadCrc32);
-        eventBuilder.setArtifactSizeBytes(artifactSizeBytes);
-        eventBuilder.setWasUploadSuccessful(response.getThriftData().isWasSuccessful());
       }
     }
   }
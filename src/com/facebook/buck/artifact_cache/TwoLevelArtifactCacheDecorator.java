@@ -30,6 +30,7 @@ import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.AsyncFunction;
@@ -124,7 +125,31 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache {
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
-    CacheResult fetchResult = delegate.fetch(ruleKey, output);
+    return fetchSecondLevel(delegate.fetch(ruleKey, output), output);
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      final ImmutableMap<RuleKey, LazyPath> outputs,
+      final MultiFetchListener listener) {
+    final ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    delegate.multiFetch(
+        outputs,
+        new MultiFetchListener() {
+          @Override
+          public void onResult(RuleKey ruleKey, CacheResult fetchResult) {
+            CacheResult result = fetchSecondLevel(fetchResult, outputs.get(ruleKey));
+            results.put(ruleKey, result);
+            listener.onResult(ruleKey, result);
+          }
+        });
+    return results.build();
+  }
+
+  /**
+   * If the first level fetch found a two-level entry, fetches the artifact it points at.
+   */
+  private CacheResult fetchSecondLevel(CacheResult fetchResult, LazyPath output) {
     if (!fetchResult.getType().isSuccess() ||
         !fetchResult.getMetadata().containsKey(METADATA_KEY)) {
       return fetchResult;
@@ -200,17 +225,17 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache {
                     .build();
 
             return Futures.transform(
-                Futures.allAsList(
-                    delegate.store(
-                        ArtifactInfo.builder()
-                            .setRuleKeys(info.getRuleKeys())
-                            .setMetadata(metadataWithCacheKey)
-                            .build(),
-                        BorrowablePath.notBorrowablePath(emptyFilePath)),
-                    delegate.store(
-                        ArtifactInfo.builder().addRuleKeys(new RuleKey(hashCode)).build(),
-                        output)
-                ),
+                MultiArtifactCache.whenAllStored(
+                    ImmutableList.of(
+                        delegate.store(
+                            ArtifactInfo.builder()
+                                .setRuleKeys(info.getRuleKeys())
+                                .setMetadata(metadataWithCacheKey)
+                                .build(),
+                            BorrowablePath.notBorrowablePath(emptyFilePath)),
+                        delegate.store(
+                            ArtifactInfo.builder().addRuleKeys(new RuleKey(hashCode)).build(),
+                            output))),
                 Functions.constant(true));
           }
         }
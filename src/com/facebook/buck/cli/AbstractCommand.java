@@ -132,6 +132,22 @@ public abstract class AbstractCommand implements Command {
     return builder.build();
   }
 
+  /**
+   * @return the arguments which override the configuration of this command, for passing on to
+   *     other buck processes which must see the same configuration.
+   */
+  protected ImmutableList<String> getConfigOverrideArguments() {
+    ImmutableList.Builder<String> arguments = ImmutableList.builder();
+    for (Map.Entry<String, String> entry : configOverrides.entrySet()) {
+      String value = entry.getValue();
+      arguments.add("--config", entry.getKey() + "=" + (value == null ? "" : value));
+    }
+    if (noCache) {
+      arguments.add(NO_CACHE_LONG_ARG);
+    }
+    return arguments.build();
+  }
+
   @Override
   public LogConfigSetup getLogConfig() {
     return LogConfigSetup.DEFAULT_SETUP;
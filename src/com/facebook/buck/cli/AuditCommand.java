@@ -33,6 +33,7 @@ public class AuditCommand extends AbstractContainerCommand {
       @SubCommand(name = "alias", impl = AuditAliasCommand.class),
       @SubCommand(name = "classpath", impl = AuditClasspathCommand.class),
       @SubCommand(name = "dependencies", impl = AuditDependenciesCommand.class),
+      @SubCommand(name = "heap", impl = AuditHeapCommand.class),
       @SubCommand(name = "input", impl = AuditInputCommand.class),
       @SubCommand(name = "owner", impl = AuditOwnerCommand.class),
       @SubCommand(name = "rules", impl = AuditRulesCommand.class),
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.json.BuildFileParseException;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetException;
+import com.facebook.buck.model.InternPool;
+import com.facebook.buck.parser.BuildTargetParser;
+import com.facebook.buck.parser.BuildTargetPatternParser;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.util.MoreExceptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reports how much heap the parser's target nodes take up, and how much of what they hold is
+ * shared between nodes, so that the memory cost per target can be tracked over time.
+ */
+public class AuditHeapCommand extends AbstractCommand {
+
+  @Option(name = "--json",
+      usage = "Output in JSON format")
+  private boolean generateJsonOutput;
+
+  @Option(name = "--gc",
+      usage = "Run a full garbage collection before measuring the heap, so that only what is " +
+          "still reachable is counted. This pauses the daemon while it runs.")
+  private boolean collectGarbage;
+
+  @Argument
+  private List<String> arguments = Lists.newArrayList();
+
+  @Override
+  public int runWithoutHelp(final CommandRunnerParams params)
+      throws IOException, InterruptedException {
+    ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
+    for (String argument :
+        getCommandLineBuildTargetNormalizer(params.getBuckConfig()).normalizeAll(arguments)) {
+      targets.add(
+          BuildTargetParser.INSTANCE.parse(
+              argument,
+              BuildTargetPatternParser.fullyQualified(),
+              params.getCell().getCellRoots()));
+    }
+    if (targets.build().isEmpty()) {
+      params.getBuckEventBus().post(ConsoleEvent.severe(
+          "Please specify at least one build target."));
+      return 1;
+    }
+
+    TargetGraph graph;
+    try (CommandThreadManager pool = new CommandThreadManager(
+        "Audit",
+        getConcurrencyLimit(params.getBuckConfig()))) {
+      graph = params.getParser().buildTargetGraph(
+          params.getBuckEventBus(),
+          params.getCell(),
+          getEnableParserProfiling(),
+          pool.getExecutor(),
+          targets.build());
+    } catch (BuildFileParseException | BuildTargetException e) {
+      params.getBuckEventBus().post(ConsoleEvent.severe(
+          MoreExceptions.getHumanReadableOrLocalizedMessage(e)));
+      return 1;
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.putAll(measureGraph(graph));
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    if (collectGarbage) {
+      // Collect first, so that the heap in use is (mostly) what the daemon is holding on to.
+      memory.gc();
+    }
+    report.put("heap_collected_first", collectGarbage);
+    long heapUsedBytes = memory.getHeapMemoryUsage().getUsed();
+    int cachedTargetNodes = params.getParser().getCachedTargetNodeCount();
+    report.put("cached_target_nodes", (long) cachedTargetNodes);
+    report.put("heap_used_bytes", heapUsedBytes);
+    report.put("heap_used_bytes_per_cached_target_node",
+        heapUsedBytes / Math.max(cachedTargetNodes, 1));
+    for (Map.Entry<String, InternPool.Stats> entry : InternPool.getStats().entrySet()) {
+      report.put("intern_pool_" + entry.getKey() + "_lookups", entry.getValue().getLookups());
+      report.put("intern_pool_" + entry.getKey() + "_hits", entry.getValue().getHits());
+    }
+
+    if (generateJsonOutput) {
+      params.getObjectMapper().writeValue(params.getConsole().getStdOut(), report);
+    } else {
+      PrintStream stdOut = params.getConsole().getStdOut();
+      for (Map.Entry<String, Object> entry : report.entrySet()) {
+        stdOut.printf("%s: %s%n", entry.getKey(), entry.getValue());
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Counts the build targets, paths and sets of them held by the nodes of {@code graph}, along
+   * with how many distinct instances they come to.  The closer the two are, the less the nodes
+   * are sharing.
+   */
+  @VisibleForTesting
+  static Map<String, Long> measureGraph(TargetGraph graph) {
+    Set<Object> buildTargets = Sets.newIdentityHashSet();
+    Set<Object> paths = Sets.newIdentityHashSet();
+    Set<Object> sets = Sets.newIdentityHashSet();
+    long buildTargetReferences = 0;
+    long pathReferences = 0;
+    long setReferences = 0;
+    long edges = 0;
+
+    for (TargetNode<?> node : graph.getNodes()) {
+      edges += graph.getOutgoingNodesView(node).size();
+
+      buildTargets.add(node.getBuildTarget());
+      buildTargetReferences++;
+      for (ImmutableSet<BuildTarget> deps :
+          ImmutableList.of(node.getDeclaredDeps(), node.getExtraDeps())) {
+        sets.add(deps);
+        setReferences++;
+        buildTargets.addAll(deps);
+        buildTargetReferences += deps.size();
+      }
+
+      sets.add(node.getInputs());
+      sets.add(node.getVisibilityPatterns());
+      setReferences += 2;
+      for (Path input : node.getInputs()) {
+        paths.add(input);
+        pathReferences++;
+      }
+    }
+
+    Map<String, Long> counts = new LinkedHashMap<>();
+    counts.put("target_nodes", (long) graph.getNodes().size());
+    counts.put("edges", edges);
+    counts.put("build_target_references", buildTargetReferences);
+    counts.put("distinct_build_target_instances", (long) buildTargets.size());
+    counts.put("path_references", pathReferences);
+    counts.put("distinct_path_instances", (long) paths.size());
+    counts.put("set_references", setReferences);
+    counts.put("distinct_set_instances", (long) sets.size());
+    return counts;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public String getShortDescription() {
+    return "reports the heap footprint of the parsed target nodes";
+  }
+
+}
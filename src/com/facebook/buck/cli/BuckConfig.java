@@ -20,6 +20,7 @@ import static java.lang.Integer.parseInt;
 
 import com.facebook.buck.config.Config;
 import com.facebook.buck.config.CellConfig;
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.jvm.java.DefaultJavaPackageFinder;
@@ -493,6 +494,14 @@ public class BuckConfig {
     return getBooleanValue("daemon", "flush_events_before_exit", false);
   }
 
+  /**
+   * @return whether file content hashes should be persisted in buck-out, so that files which have
+   *     not changed are not re-hashed when a new daemon (or a non-daemon command) starts up.
+   */
+  public boolean isPersistentFileHashIndexEnabled() {
+    return getBooleanValue("project", "persistent_file_hash_index", false);
+  }
+
   public ImmutableSet<String> getListenerJars() {
     return ImmutableSet.copyOf(getListWithoutComments("extensions", "listeners"));
   }
@@ -598,6 +607,14 @@ public class BuckConfig {
     return SampleRate.of(0.25f);
   }
 
+  /**
+   * @return whether a cached action graph should be updated in place, rather than rebuilt from
+   *     scratch, when the target graph changes between commands.
+   */
+  public boolean isIncrementalActionGraphEnabled() {
+    return getBooleanValue("cache", "incremental_action_graph", false);
+  }
+
   public Optional<ImmutableSet<PatternAndMessage>> getUnexpectedFlavorsMessages() {
     ImmutableMap<String, String> entries = config.get("unknown_flavors_messages");
     if (!entries.isEmpty()) {
@@ -699,6 +716,28 @@ public class BuckConfig {
     return value.split(separator);
   }
 
+  /**
+   * @return how the build event bus hands events to its listeners.
+   */
+  public BuckEventBus.DispatchMode getEventBusDispatchMode() {
+    return getEnum("event_bus", "dispatch_mode", BuckEventBus.DispatchMode.class)
+        .or(BuckEventBus.DispatchMode.SINGLE_THREAD);
+  }
+
+  /**
+   * @return the number of events which may be waiting for each listener before posting blocks (or
+   *     queued progress events are dropped), when events are dispatched per listener.
+   */
+  public int getEventBusListenerQueueSize() {
+    return getInteger("event_bus", "listener_queue_size")
+        .or(BuckEventBus.DEFAULT_LISTENER_QUEUE_SIZE);
+  }
+
+  public BuckEventBus.OverflowPolicy getEventBusOverflowPolicy() {
+    return getEnum("event_bus", "overflow_policy", BuckEventBus.OverflowPolicy.class)
+        .or(BuckEventBus.OverflowPolicy.BLOCK);
+  }
+
   /**
    * @return the mode with which to run the build engine.
    */
@@ -729,6 +768,14 @@ public class BuckConfig {
     return getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum number of artifact cache lookups the build engine may start ahead of
+   *     processing the rules they're for, or zero to disable prefetching.
+   */
+  public int getBuildArtifactCachePrefetchLimit() {
+    return getInteger("build", "artifact_cache_prefetch_limit").or(0);
+  }
+
   /**
    * @return the maximum size of files input based rule keys will be willing to hash.
    */
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.graph.CompactDirectedGraph;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.json.BuildFileParseException;
@@ -25,6 +27,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.FilesystemBackedBuildFileTree;
 import com.facebook.buck.model.HasBuildTarget;
+import com.facebook.buck.query.CachingQueryEvaluator;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryEnvironment;
 import com.facebook.buck.query.QueryException;
@@ -49,37 +52,62 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The environment of a Buck query that can evaluate queries to produce a result.
  *
  * The query language is documented at docs/command/query.soy
+ *
+ * Independent operands of a query may be evaluated concurrently, so the environment must be safe
+ * to use from several threads at once. The target graph only ever grows while a query runs.
  */
 public class BuckQueryEnvironment implements QueryEnvironment {
 
   private static final Logger LOG = Logger.get(BuckQueryEnvironment.class);
 
   private final CommandRunnerParams params;
-  private Map<Cell, BuildFileTree> buildFileTrees =  new HashMap<>();
-  private TargetGraph graph = TargetGraph.EMPTY;
+  private final ConcurrentMap<Cell, BuildFileTree> buildFileTrees = new ConcurrentHashMap<>();
+  private volatile TargetGraph graph = TargetGraph.EMPTY;
 
   @VisibleForTesting
   protected TargetPatternEvaluator targetPatternEvaluator;
 
-  private Map<BuildTarget, QueryTarget> buildTargetToQueryTarget = new HashMap<>();
+  private final ConcurrentMap<BuildTarget, QueryTarget> buildTargetToQueryTarget =
+      new ConcurrentHashMap<>();
 
   private boolean enableProfiling;
 
+  // Memoizes subexpressions across every query evaluated in this environment.
+  private final CachingQueryEvaluator queryEvaluator;
+  private int reportedEvaluationTimes = 0;
+
   public BuckQueryEnvironment(
       CommandRunnerParams params,
       boolean enableProfiling) {
+    // Queries are evaluated on a pool of the configured size, which also parses build files, so
+    // leave one of its threads free of operands.
+    this(params, enableProfiling, Math.max(0, params.getBuckConfig().getNumThreads() - 1));
+  }
+
+  /**
+   * @param maxConcurrentOperands the number of operands which may be evaluated on the executor
+   *     given to {@link #evaluateQuery} at the same time. This must be less than the number of
+   *     threads the executor has.
+   */
+  public BuckQueryEnvironment(
+      CommandRunnerParams params,
+      boolean enableProfiling,
+      int maxConcurrentOperands) {
     this.params = params;
     this.enableProfiling = enableProfiling;
+    this.queryEvaluator = new CachingQueryEvaluator(maxConcurrentOperands);
     this.buildFileTrees.put(
         params.getCell(),
         new FilesystemBackedBuildFileTree(
@@ -96,8 +124,9 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     return graph;
   }
 
-  public void preloadTargetPatterns(Iterable<String> patterns, ListeningExecutorService executor)
-      throws QueryException, InterruptedException {
+  public synchronized void preloadTargetPatterns(
+      Iterable<String> patterns,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
     try {
       targetPatternEvaluator.preloadTargetPatterns(patterns, executor);
     } catch (IOException e) {
@@ -118,7 +147,26 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     Set<String> targetLiterals = new HashSet<>();
     expr.collectTargetPatterns(targetLiterals);
     preloadTargetPatterns(targetLiterals, executor);
-    return expr.eval(this, executor);
+    try {
+      return queryEvaluator.eval(expr, this, executor);
+    } finally {
+      reportEvaluationTimes();
+    }
+  }
+
+  private void reportEvaluationTimes() {
+    ImmutableList<Map.Entry<QueryExpression, Long>> evaluationMillis =
+        queryEvaluator.getEvaluationMillis().entrySet().asList();
+    // Expressions evaluated by earlier queries were reported then.
+    for (Map.Entry<QueryExpression, Long> entry :
+        evaluationMillis.subList(reportedEvaluationTimes, evaluationMillis.size())) {
+      LOG.debug("Evaluated %s in %dms", entry.getKey(), entry.getValue());
+      if (enableProfiling) {
+        params.getBuckEventBus().post(
+            ConsoleEvent.info("%dms %s", entry.getValue(), entry.getKey()));
+      }
+    }
+    reportedEvaluationTimes = evaluationMillis.size();
   }
 
   public Set<QueryTarget> evaluateQuery(String query, ListeningExecutorService executor)
@@ -127,7 +175,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   }
 
   @Override
-  public ImmutableSet<QueryTarget> getTargetsMatchingPattern(
+  public synchronized ImmutableSet<QueryTarget> getTargetsMatchingPattern(
       String pattern,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     try {
@@ -143,6 +191,11 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   TargetNode<?> getNode(QueryTarget target)
       throws QueryException, InterruptedException {
     Preconditions.checkState(target instanceof QueryBuildTarget);
+    // Nodes already in the graph need not be looked up in the parser.
+    Optional<TargetNode<?>> node = graph.getOptional(((QueryBuildTarget) target).getBuildTarget());
+    if (node.isPresent() && graph.getCompactGraph().getId(node.get()) != -1) {
+      return node.get();
+    }
     ListeningExecutorService executor = null;
     try {
       executor = com.google.common.util.concurrent.MoreExecutors.listeningDecorator(
@@ -163,12 +216,13 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   }
 
   private QueryTarget getOrCreateQueryBuildTarget(BuildTarget buildTarget) {
-    if (buildTargetToQueryTarget.containsKey(buildTarget)) {
-      return buildTargetToQueryTarget.get(buildTarget);
+    QueryTarget queryTarget = buildTargetToQueryTarget.get(buildTarget);
+    if (queryTarget != null) {
+      return queryTarget;
     }
-    QueryBuildTarget queryBuildTarget = QueryBuildTarget.of(buildTarget);
-    buildTargetToQueryTarget.put(buildTarget, queryBuildTarget);
-    return queryBuildTarget;
+    queryTarget = QueryBuildTarget.of(buildTarget);
+    QueryTarget existing = buildTargetToQueryTarget.putIfAbsent(buildTarget, queryTarget);
+    return existing != null ? existing : queryTarget;
   }
 
   public ImmutableSet<QueryTarget> getTargetsFromBuildTargetsContainer(
@@ -204,7 +258,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       TargetNode<?> node = getNode(target);
-      result.addAll(getTargetsFromBuildTargetsContainer(graph.getOutgoingNodesFor(node)));
+      result.addAll(getTargetsFromBuildTargetsContainer(graph.getOutgoingNodesView(node)));
     }
     return result;
   }
@@ -215,7 +269,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       TargetNode<?> node = getNode(target);
-      result.addAll(getTargetsFromBuildTargetsContainer(graph.getIncomingNodesFor(node)));
+      result.addAll(getTargetsFromBuildTargetsContainer(graph.getIncomingNodesView(node)));
     }
     return result;
   }
@@ -223,20 +277,31 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   @Override
   public ImmutableSet<QueryTarget> getTransitiveClosure(Set<QueryTarget> targets)
       throws QueryException, InterruptedException {
+    // The graph may be replaced by a larger one while we walk it, so stick with one snapshot.
+    CompactDirectedGraph<TargetNode<?>> compactGraph = graph.getCompactGraph();
     Set<TargetNode<?>> nodes = new LinkedHashSet<>();
+    BitSet roots = new BitSet(compactGraph.getNodeCount());
     for (QueryTarget target : targets) {
-      nodes.add(getNode(target));
+      TargetNode<?> node = getNode(target);
+      int id = compactGraph.getId(node);
+      if (id == -1) {
+        nodes.add(node);
+      } else {
+        roots.set(id);
+      }
     }
-    // Reusing the existing getSubgraph() for simplicity. It builds the graph when we only need the
-    // nodes. The impact of creating the edges in terms of time and space should be minimal.
-    return getTargetsFromBuildTargetsContainer(graph.getSubgraph(nodes).getNodes());
+    BitSet closure = compactGraph.getReachableNodes(roots);
+    for (int id = closure.nextSetBit(0); id >= 0; id = closure.nextSetBit(id + 1)) {
+      nodes.add(compactGraph.getNode(id));
+    }
+    return getTargetsFromBuildTargetsContainer(nodes);
   }
 
   private void buildGraphForBuildTargets(
       Set<BuildTarget> targets,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     try {
-      graph = params.getParser().buildTargetGraph(
+      graph = params.getParser().buildTargetGraphReusingCachedGraph(
           params.getBuckEventBus(),
           params.getCell(),
           enableProfiling,
@@ -248,27 +313,28 @@ public class BuckQueryEnvironment implements QueryEnvironment {
   }
 
   @Override
-  public void buildTransitiveClosure(
+  public synchronized void buildTransitiveClosure(
       Set<QueryTarget> targets,
       int maxDepth,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     // Filter QueryTargets that are build targets and not yet present in the build target graph.
-    Set<BuildTarget> graphTargets = getTargetsFromNodes(graph.getNodes());
+    CompactDirectedGraph<TargetNode<?>> compactGraph = graph.getCompactGraph();
     Set<BuildTarget> newBuildTargets = new HashSet<>();
     for (QueryTarget target : targets) {
       if (target instanceof QueryBuildTarget) {
         BuildTarget buildTarget = ((QueryBuildTarget) target).getBuildTarget();
-        if (!graphTargets.contains(buildTarget)) {
+        Optional<TargetNode<?>> node = graph.getOptional(buildTarget);
+        if (!node.isPresent() || compactGraph.getId(node.get()) == -1) {
           newBuildTargets.add(buildTarget);
         }
       }
     }
     if (!newBuildTargets.isEmpty()) {
-      buildGraphForBuildTargets(Sets.union(newBuildTargets, graphTargets), executor);
+      buildGraphForBuildTargets(
+          Sets.union(newBuildTargets, getTargetsFromNodes(graph.getNodes())),
+          executor);
       for (BuildTarget buildTarget : getTargetsFromNodes(graph.getNodes())) {
-        if (!buildTargetToQueryTarget.containsKey(buildTarget)) {
-          buildTargetToQueryTarget.put(buildTarget, QueryBuildTarget.of(buildTarget));
-        }
+        getOrCreateQueryBuildTarget(buildTarget);
       }
     }
   }
@@ -295,7 +361,7 @@ public class BuckQueryEnvironment implements QueryEnvironment {
 
       if (!buildFileTrees.containsKey(cell)) {
         LOG.info("Creating a new filesystem-backed build file tree for %s", cell.getRoot());
-        buildFileTrees.put(
+        buildFileTrees.putIfAbsent(
             cell,
             new FilesystemBackedBuildFileTree(
                 cell.getFilesystem(),
@@ -21,12 +21,15 @@ import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.distributed.DistBuildConfig;
+import com.facebook.buck.distributed.DistBuildGraph;
 import com.facebook.buck.distributed.DistBuildService;
 import com.facebook.buck.distributed.DistributedBuild;
 import com.facebook.buck.distributed.DistributedBuildFileHashes;
 import com.facebook.buck.distributed.DistributedBuildState;
 import com.facebook.buck.distributed.DistributedBuildTargetGraphCodec;
 import com.facebook.buck.distributed.DistributedBuildTypeCoercerFactory;
+import com.facebook.buck.distributed.LocalDistBuildCoordinator;
+import com.facebook.buck.distributed.ProcessDistBuildWorker;
 import com.facebook.buck.distributed.thrift.BuildJobState;
 import com.facebook.buck.distributed.thrift.FrontendRequest;
 import com.facebook.buck.distributed.thrift.FrontendResponse;
@@ -34,6 +37,8 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.json.BuildFileParseException;
+import com.facebook.buck.jvm.java.JavaBuckConfig;
+import com.facebook.buck.log.LogConfigSetup;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.HasBuildTarget;
@@ -47,10 +52,13 @@ import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.ActionGraphAndResolver;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildEvent;
+import com.facebook.buck.rules.BuildInfo;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
+import com.facebook.buck.rules.DefaultOnDiskBuildInfo;
+import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
@@ -70,15 +78,23 @@ import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.MoreExceptions;
+import com.facebook.buck.util.ProcessExecutor;
+import com.facebook.buck.util.ProcessExecutorParams;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.JarContentsCache;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.environment.Platform;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -87,6 +103,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TProtocol;
@@ -97,10 +114,15 @@ import org.apache.thrift.transport.TZlibTransport;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -121,6 +143,10 @@ public class BuildCommand extends AbstractCommand {
   private static final String SHOW_RULEKEY_LONG_ARG = "--show-rulekey";
   private static final String DISTRIBUTED_LONG_ARG = "--distributed";
   private static final String DISTRIBUTED_STATE_DUMP_LONG_ARG = "--distributed-state-dump";
+  private static final String DISTRIBUTED_WORKER_LONG_ARG = "--distributed-worker";
+  private static final String BUCK_CLASSPATH_ENV_VAR = "BUCK_CLASSPATH";
+  private static final String CLASS_LOADER_BOOTSTRAPPER_CLASS_NAME =
+      "com.facebook.buck.cli.bootstrapper.ClassLoaderBootstrapper";
 
   @Option(
       name = KEEP_GOING_LONG_ARG,
@@ -194,6 +220,13 @@ public class BuildCommand extends AbstractCommand {
       hidden = true)
   private String distributedBuildStateFile = null;
 
+  @Option(
+      name = DISTRIBUTED_WORKER_LONG_ARG,
+      usage = "Run as a worker of a local distributed build, building the rules named on each " +
+          "line of stdin. (experimental)",
+      hidden = true)
+  private boolean runAsDistributedBuildWorker = false;
+
   @Argument
   private List<String> arguments = Lists.newArrayList();
 
@@ -279,7 +312,8 @@ public class BuildCommand extends AbstractCommand {
       Clock clock,
       Optional<AdbOptions> adbOptions,
       Optional<TargetDeviceOptions> targetDeviceOptions,
-      Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors) {
+      Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors,
+      JarContentsCache jarContentsCache) {
     if (console.getVerbosity() == Verbosity.ALL) {
       console.getStdErr().printf("Creating a build with %d threads.\n", buckConfig.getNumThreads());
     }
@@ -304,7 +338,10 @@ public class BuildCommand extends AbstractCommand {
         getConcurrencyLimit(buckConfig),
         adbOptions,
         targetDeviceOptions,
-        executors);
+        executors,
+        new JavaBuckConfig(buckConfig).isJarContentsCacheEnabled() ?
+            Optional.of(jarContentsCache) :
+            Optional.<JarContentsCache>absent());
   }
 
   @Nullable private Build lastBuild;
@@ -387,6 +424,17 @@ public class BuildCommand extends AbstractCommand {
       final WeightedListeningExecutorService executorService)
       throws IOException, InterruptedException, ActionGraphCreationException {
     ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    DistBuildConfig config = new DistBuildConfig(params.getBuckConfig());
+
+    if (runAsDistributedBuildWorker) {
+      return runDistributedBuildWorker(params, executorService);
+    }
+    if (config.getLocalWorkerCount() > 0) {
+      return executeDistributedBuildOnLocalWorkers(
+          params,
+          executorService,
+          config.getLocalWorkerCount());
+    }
 
     if (distributedBuildStateFile != null) {
       Path stateDumpPath = Paths.get(distributedBuildStateFile);
@@ -401,41 +449,11 @@ public class BuildCommand extends AbstractCommand {
       TProtocol protocol = new TTupleProtocol(transport);
 
       try {
-        DistributedBuildTypeCoercerFactory typeCoercerFactory =
-            new DistributedBuildTypeCoercerFactory(params.getObjectMapper());
-        ParserTargetNodeFactory parserTargetNodeFactory =
-            DefaultParserTargetNodeFactory.createForDistributedBuild(
-                params.getBuckEventBus(),
-                new ConstructorArgMarshaller(typeCoercerFactory),
-                typeCoercerFactory);
-        DistributedBuildTargetGraphCodec targetGraphCodec = new DistributedBuildTargetGraphCodec(
-            params.getConsole(),
-            params.getClock(),
-            params.getCell().getFilesystem(),
-            params.getCell(),
-            params.getObjectMapper(),
-            parserTargetNodeFactory,
-            new Function<TargetNode<?>, Map<String, Object>>() {
-              @Nullable
-              @Override
-              public Map<String, Object> apply(TargetNode<?> input) {
-                try {
-                  return params.getParser().getRawTargetNode(
-                      params.getBuckEventBus(),
-                      params.getCell().getCell(input.getBuildTarget()),
-                      /* enableProfiling */ false,
-                      executorService,
-                      input);
-                } catch (BuildFileParseException | InterruptedException e) {
-                  throw new RuntimeException(e);
-                }
-              }
-            });
-
         if (loading) {
           DistributedBuildState state = DistributedBuildState.load(protocol);
           BuckConfig rootCellBuckConfig = state.createBuckConfig(filesystem);
-          TargetGraph targetGraph = state.createTargetGraph(targetGraphCodec);
+          TargetGraph targetGraph = state.createTargetGraph(
+              createDistributedBuildTargetGraphCodec(params, executorService));
           params.getBuckEventBus().post(
               ConsoleEvent.info(
                   "Done loading state. Aliases %s, TargetNodes %s",
@@ -447,19 +465,12 @@ public class BuildCommand extends AbstractCommand {
           ActionGraphAndResolver actionGraphAndResolver = createActionGraphAndResolver(
               params,
               targetGraphAndBuildTargets);
-          BuckConfig buckConfig = params.getBuckConfig();
-          DistributedBuildFileHashes distributedBuildFileHashes = new DistributedBuildFileHashes(
-              actionGraphAndResolver.getActionGraph(),
-              new SourcePathResolver(actionGraphAndResolver.getResolver()),
-              params.getFileHashCache(),
+          dumpDistributedBuildState(
+              params,
               executorService,
-              params.getBuckConfig().getKeySeed());
-          BuildJobState jobState = DistributedBuildState.dump(
-              buckConfig,
-              distributedBuildFileHashes,
-              targetGraphCodec,
-              targetGraphAndBuildTargets.getTargetGraph());
-          jobState.write(protocol);
+              targetGraphAndBuildTargets,
+              actionGraphAndResolver,
+              protocol);
           transport.flush();
         }
       } catch (TException e) {
@@ -469,7 +480,6 @@ public class BuildCommand extends AbstractCommand {
       }
     }
 
-    DistBuildConfig config = new DistBuildConfig(params.getBuckConfig());
     ClientSideSlb slb = config.getFrontendConfig().createHttpClientSideSlb(
         params.getClock(),
         params.getBuckEventBus());
@@ -484,6 +494,292 @@ public class BuildCommand extends AbstractCommand {
     }
   }
 
+  /**
+   * Runs the build on worker processes on this machine, which share its build outputs and caches,
+   * and then builds the targets here, where the workers have left them all built.
+   */
+  private int executeDistributedBuildOnLocalWorkers(
+      final CommandRunnerParams params,
+      WeightedListeningExecutorService executorService,
+      int workerCount)
+      throws IOException, InterruptedException, ActionGraphCreationException {
+    ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    TargetGraphAndBuildTargets targetGraphAndBuildTargets =
+        createTargetGraph(params, executorService);
+    ActionGraphAndResolver actionGraphAndResolver = createActionGraphAndResolver(
+        params,
+        targetGraphAndBuildTargets);
+
+    Path stateDumpPath = filesystem.createTempFile("dist-build-state", ".bin");
+    TTransport transport =
+        new TZlibTransport(new TIOStreamTransport(filesystem.newFileOutputStream(stateDumpPath)));
+    try {
+      dumpDistributedBuildState(
+          params,
+          executorService,
+          targetGraphAndBuildTargets,
+          actionGraphAndResolver,
+          new TTupleProtocol(transport));
+      transport.flush();
+    } catch (TException e) {
+      throw new RuntimeException(e);
+    } finally {
+      transport.close();
+    }
+
+    // Only the rules not built here already with their current rule keys are handed out.
+    final DefaultRuleKeyBuilderFactory ruleKeyBuilderFactory = new DefaultRuleKeyBuilderFactory(
+        params.getBuckConfig().getKeySeed(),
+        params.getFileHashCache(),
+        new SourcePathResolver(actionGraphAndResolver.getResolver()));
+    ImmutableList.Builder<BuildRule> topLevelRules = ImmutableList.builder();
+    for (BuildTarget target : buildTargets) {
+      topLevelRules.add(actionGraphAndResolver.getResolver().getRule(target));
+    }
+    DistBuildGraph graph = DistBuildGraph.create(
+        topLevelRules.build(),
+        new Predicate<BuildRule>() {
+          @Override
+          public boolean apply(BuildRule rule) {
+            Optional<RuleKey> builtRuleKey = new DefaultOnDiskBuildInfo(
+                rule.getBuildTarget(),
+                rule.getProjectFilesystem(),
+                params.getObjectMapper())
+                .getRuleKey(BuildInfo.METADATA_KEY_FOR_RULE_KEY);
+            return builtRuleKey.isPresent() &&
+                builtRuleKey.get().equals(ruleKeyBuilderFactory.build(rule));
+          }
+        });
+
+    // The workers are started the same way as this buck was, so that they run exactly the same
+    // version of it, and not whichever buck happens to be on the PATH.
+    Map<String, String> workerEnvironment = new HashMap<>(params.getEnvironment());
+    String buckClasspath = System.getenv(BUCK_CLASSPATH_ENV_VAR);
+    if (buckClasspath != null) {
+      workerEnvironment.put(BUCK_CLASSPATH_ENV_VAR, buckClasspath);
+    }
+    final ProcessExecutorParams workerParams = ProcessExecutorParams.builder()
+        .setCommand(
+            ImmutableList.<String>builder()
+                .addAll(getCommandToRunThisBuck())
+                .add(
+                    "build",
+                    DISTRIBUTED_LONG_ARG,
+                    DISTRIBUTED_WORKER_LONG_ARG,
+                    DISTRIBUTED_STATE_DUMP_LONG_ARG,
+                    filesystem.resolve(stateDumpPath).toString())
+                // Without this buck's overrides, the workers would compute different rule keys,
+                // and everything they built would be built again here.
+                .addAll(getConfigOverrideArguments())
+                .build())
+        .setDirectory(filesystem.getRootPath().toFile())
+        .setEnvironment(workerEnvironment)
+        .build();
+    // The workers share the build outputs in buck-out, but each gets its own directory for its
+    // logs, temporary files and file hash index.  Only this process keeps the index of the
+    // directory cache, so the workers only read from it.
+    final Path workersBuckOut = filesystem.getBuckPaths().getBuckOut().resolve("dist-workers");
+    Function<Integer, ProcessExecutorParams> workerParamsForIndex =
+        new Function<Integer, ProcessExecutorParams>() {
+          @Override
+          public ProcessExecutorParams apply(Integer index) {
+            return workerParams.withCommand(
+                ImmutableList.<String>builder()
+                    .addAll(workerParams.getCommand())
+                    .add(
+                        "--config",
+                        "project.private_buck_out=" + workersBuckOut.resolve(index.toString()),
+                        "--config",
+                        "cache.dir_mode=readonly",
+                        "--config",
+                        "cache.dir_eviction_index=false")
+                    .build());
+          }
+        };
+
+    ListeningExecutorService coordinatorExecutor = MoreExecutors.listeningDecorator(
+        MostExecutors.newMultiThreadExecutor("dist-build-coordinator", workerCount + 1));
+    int exitCode;
+    try (LocalDistBuildCoordinator coordinator = new LocalDistBuildCoordinator(
+        graph,
+        workerCount,
+        ProcessDistBuildWorker.factory(
+            new ProcessExecutor(params.getConsole()),
+            workerParamsForIndex),
+        coordinatorExecutor,
+        params.getClock())) {
+      exitCode = new DistributedBuild(new DistBuildService(coordinator, params.getBuckEventBus()))
+          .executeAndPrintFailuresToEventBus();
+    } finally {
+      coordinatorExecutor.shutdownNow();
+      filesystem.deleteFileAtPathIfExists(stateDumpPath);
+      // The local build only finds the workers' rule keys matching, which doesn't invalidate the
+      // hashes of the outputs they rewrote.
+      invalidateRecordedOutputHashes(
+          params,
+          actionGraphAndResolver.getResolver(),
+          graph.getTargets());
+    }
+    if (exitCode != 0) {
+      return exitCode;
+    }
+    return executeLocalBuild(params, actionGraphAndResolver, executorService);
+  }
+
+  private static void invalidateRecordedOutputHashes(
+      CommandRunnerParams params,
+      BuildRuleResolver resolver,
+      Iterable<BuildTarget> targets) {
+    FileHashCache fileHashCache = params.getFileHashCache();
+    for (BuildTarget target : targets) {
+      ProjectFilesystem ruleFilesystem = resolver.getRule(target).getProjectFilesystem();
+      Optional<ImmutableList<String>> recordedPaths =
+          new DefaultOnDiskBuildInfo(target, ruleFilesystem, params.getObjectMapper())
+              .getValues(BuildInfo.METADATA_KEY_FOR_RECORDED_PATHS);
+      for (String path : recordedPaths.or(ImmutableList.<String>of())) {
+        fileHashCache.invalidate(ruleFilesystem.resolve(path));
+      }
+    }
+  }
+
+  /**
+   * @return the java command, JVM arguments and classpath this buck was started with, followed by
+   *     its main class, ready for the arguments of a buck command.
+   */
+  private static ImmutableList<String> getCommandToRunThisBuck() {
+    RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    ImmutableList.Builder<String> command = ImmutableList.builder();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    for (String argument : runtime.getInputArguments()) {
+      // The daemon's own settings, and a debugger port only one process can listen on.
+      if (!argument.startsWith("-Dbuck.buckd_launch_time_nanos=") &&
+          !argument.startsWith("-Dcom.martiansoftware.nailgun.") &&
+          !argument.startsWith("-agentlib:jdwp")) {
+        command.add(argument);
+      }
+    }
+    command.add("-classpath", runtime.getClassPath());
+    command.add(CLASS_LOADER_BOOTSTRAPPER_CLASS_NAME, Main.class.getName());
+    return command.build();
+  }
+
+  /**
+   * Loads the build from the dumped build state, then builds the rules named on each line of
+   * stdin in turn, as handed out by a {@link LocalDistBuildCoordinator}.
+   */
+  private int runDistributedBuildWorker(
+      CommandRunnerParams params,
+      WeightedListeningExecutorService executorService)
+      throws IOException, InterruptedException, ActionGraphCreationException {
+    if (distributedBuildStateFile == null) {
+      throw new HumanReadableException(
+          "%s needs the build state to be given with %s.",
+          DISTRIBUTED_WORKER_LONG_ARG,
+          DISTRIBUTED_STATE_DUMP_LONG_ARG);
+    }
+    ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    TargetGraph targetGraph;
+    TTransport transport = new TZlibTransport(
+        new TIOStreamTransport(
+            filesystem.newFileInputStream(Paths.get(distributedBuildStateFile))));
+    try {
+      targetGraph = DistributedBuildState.load(new TTupleProtocol(transport))
+          .createTargetGraph(createDistributedBuildTargetGraphCodec(params, executorService));
+    } catch (TException e) {
+      throw new RuntimeException(e);
+    } finally {
+      transport.close();
+    }
+
+    ActionGraphAndResolver actionGraphAndResolver = createActionGraphAndResolver(
+        params,
+        TargetGraphAndBuildTargets.of(targetGraph, ImmutableSet.<BuildTarget>of()));
+    Map<String, BuildTarget> actionGraphTargets = new HashMap<>();
+    for (BuildRule rule : actionGraphAndResolver.getActionGraph().getNodes()) {
+      actionGraphTargets.put(rule.getBuildTarget().getFullyQualifiedName(), rule.getBuildTarget());
+    }
+
+    BufferedReader jobs =
+        new BufferedReader(new InputStreamReader(params.getStdIn(), Charsets.UTF_8));
+    int exitCode = 0;
+    String job;
+    while ((job = jobs.readLine()) != null) {
+      ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
+      for (String name : Splitter.on(' ').omitEmptyStrings().split(job)) {
+        BuildTarget target = actionGraphTargets.get(name);
+        if (target == null) {
+          throw new HumanReadableException(
+              "%s is not part of the distributed build.",
+              name);
+        }
+        targets.add(target);
+      }
+      buildTargets = targets.build();
+      int jobExitCode = executeLocalBuild(params, actionGraphAndResolver, executorService);
+      if (jobExitCode != 0) {
+        exitCode = jobExitCode;
+      }
+      params.getConsole().getStdOut().println(ProcessDistBuildWorker.JOB_DONE_PREFIX + jobExitCode);
+      params.getConsole().getStdOut().flush();
+    }
+    return exitCode;
+  }
+
+  private DistributedBuildTargetGraphCodec createDistributedBuildTargetGraphCodec(
+      final CommandRunnerParams params,
+      final WeightedListeningExecutorService executorService) {
+    DistributedBuildTypeCoercerFactory typeCoercerFactory =
+        new DistributedBuildTypeCoercerFactory(params.getObjectMapper());
+    ParserTargetNodeFactory parserTargetNodeFactory =
+        DefaultParserTargetNodeFactory.createForDistributedBuild(
+            params.getBuckEventBus(),
+            new ConstructorArgMarshaller(typeCoercerFactory),
+            typeCoercerFactory);
+    return new DistributedBuildTargetGraphCodec(
+        params.getConsole(),
+        params.getClock(),
+        params.getCell().getFilesystem(),
+        params.getCell(),
+        params.getObjectMapper(),
+        parserTargetNodeFactory,
+        new Function<TargetNode<?>, Map<String, Object>>() {
+          @Nullable
+          @Override
+          public Map<String, Object> apply(TargetNode<?> input) {
+            try {
+              return params.getParser().getRawTargetNode(
+                  params.getBuckEventBus(),
+                  params.getCell().getCell(input.getBuildTarget()),
+                  /* enableProfiling */ false,
+                  executorService,
+                  input);
+            } catch (BuildFileParseException | InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
+
+  private void dumpDistributedBuildState(
+      CommandRunnerParams params,
+      WeightedListeningExecutorService executorService,
+      TargetGraphAndBuildTargets targetGraphAndBuildTargets,
+      ActionGraphAndResolver actionGraphAndResolver,
+      TProtocol protocol) throws IOException, InterruptedException, TException {
+    DistributedBuildFileHashes distributedBuildFileHashes = new DistributedBuildFileHashes(
+        actionGraphAndResolver.getActionGraph(),
+        new SourcePathResolver(actionGraphAndResolver.getResolver()),
+        params.getFileHashCache(),
+        executorService,
+        params.getBuckConfig().getKeySeed());
+    BuildJobState jobState = DistributedBuildState.dump(
+        params.getBuckConfig(),
+        distributedBuildFileHashes,
+        createDistributedBuildTargetGraphCodec(params, executorService),
+        targetGraphAndBuildTargets.getTargetGraph());
+    jobState.write(protocol);
+  }
+
   private void showOutputs(
       CommandRunnerParams params,
       ActionGraphAndResolver actionGraphAndResolver) {
@@ -560,6 +856,7 @@ public class BuildCommand extends AbstractCommand {
             BuildIdSampler.apply(
                 params.getBuckConfig().getActionGraphCacheCheckSampleRate(),
                 params.getBuckEventBus().getBuildId()),
+            params.getBuckConfig().isIncrementalActionGraphEnabled(),
             targetGraphAndBuildTargets.getTargetGraph(),
             params.getBuckConfig().getKeySeed()));
 
@@ -613,10 +910,12 @@ public class BuildCommand extends AbstractCommand {
             params.getBuckConfig().getBuildDepFiles(),
             params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
             params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+            params.getBuckConfig().getBuildArtifactCachePrefetchLimit(),
             params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
             params.getObjectMapper(),
             actionGraphAndResolver.getResolver(),
-            params.getBuckConfig().getKeySeed()),
+            params.getBuckConfig().getKeySeed(),
+            params.getDependencyFileRuleKeyIndex()),
         artifactCache,
         params.getConsole(),
         params.getBuckEventBus(),
@@ -627,7 +926,8 @@ public class BuildCommand extends AbstractCommand {
         params.getClock(),
         Optional.<AdbOptions>absent(),
         Optional.<TargetDeviceOptions>absent(),
-        params.getExecutors())) {
+        params.getExecutors(),
+        params.getJarContentsCache())) {
       lastBuild = build;
       return build.executeAndPrintFailuresToEventBus(
           buildTargets,
@@ -643,6 +943,24 @@ public class BuildCommand extends AbstractCommand {
     return false;
   }
 
+  @Override
+  public LogConfigSetup getLogConfig() {
+    // The workers of a local distributed build log into their own buck-out, as each of them
+    // would otherwise rotate and write the same log files.
+    Optional<String> privateBuckOut = getConfigOverrides()
+        .getForCell(Optional.<String>absent())
+        .getValue("project", "private_buck_out");
+    if (!privateBuckOut.isPresent()) {
+      return super.getLogConfig();
+    }
+    Path logDir = Paths.get(privateBuckOut.get(), "log");
+    return LogConfigSetup.builder()
+        .from(super.getLogConfig())
+        .setLogDir(logDir)
+        .setOfflineLogDir(logDir.resolve("offline"))
+        .build();
+  }
+
   Build getBuild() {
     Preconditions.checkNotNull(lastBuild);
     return lastBuild;
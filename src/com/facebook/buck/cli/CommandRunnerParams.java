@@ -24,11 +24,14 @@ import com.facebook.buck.jvm.core.JavaPackageFinder;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.DependencyFileRuleKeyIndex;
+import com.facebook.buck.rules.TargetHashCache;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ProcessManager;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.environment.BuildEnvironmentDescription;
 import com.facebook.buck.util.environment.Platform;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -64,6 +67,9 @@ class CommandRunnerParams {
   private final Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors;
   private final BuildEnvironmentDescription buildEnvironmentDescription;
   private final ActionGraphCache actionGraphCache;
+  private final JarContentsCache jarContentsCache;
+  private final Optional<DependencyFileRuleKeyIndex> depFileRuleKeyIndex;
+  private final Optional<TargetHashCache> targetHashCache;
 
   public CommandRunnerParams(
       Console console,
@@ -84,7 +90,10 @@ class CommandRunnerParams {
       FileHashCache fileHashCache,
       Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors,
       BuildEnvironmentDescription buildEnvironmentDescription,
-      ActionGraphCache actionGraphCache) {
+      ActionGraphCache actionGraphCache,
+      JarContentsCache jarContentsCache,
+      Optional<DependencyFileRuleKeyIndex> depFileRuleKeyIndex,
+      Optional<TargetHashCache> targetHashCache) {
     this.console = console;
     this.stdIn = stdIn;
     this.cell = cell;
@@ -104,6 +113,9 @@ class CommandRunnerParams {
     this.executors = executors;
     this.buildEnvironmentDescription = buildEnvironmentDescription;
     this.actionGraphCache = actionGraphCache;
+    this.jarContentsCache = jarContentsCache;
+    this.depFileRuleKeyIndex = depFileRuleKeyIndex;
+    this.targetHashCache = targetHashCache;
   }
 
   public Console getConsole() {
@@ -182,4 +194,16 @@ class CommandRunnerParams {
     return actionGraphCache;
   }
 
+  public JarContentsCache getJarContentsCache() {
+    return jarContentsCache;
+  }
+
+  public Optional<DependencyFileRuleKeyIndex> getDependencyFileRuleKeyIndex() {
+    return depFileRuleKeyIndex;
+  }
+
+  public Optional<TargetHashCache> getTargetHashCache() {
+    return targetHashCache;
+  }
+
 }
@@ -109,10 +109,12 @@ public class FetchCommand extends BuildCommand {
               params.getBuckConfig().getBuildDepFiles(),
               params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
               params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+              params.getBuckConfig().getBuildArtifactCachePrefetchLimit(),
               params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
               params.getObjectMapper(),
               actionGraphAndResolver.getResolver(),
-              params.getBuckConfig().getKeySeed()),
+              params.getBuckConfig().getKeySeed(),
+              params.getDependencyFileRuleKeyIndex()),
           params.getArtifactCache(),
           params.getConsole(),
           params.getBuckEventBus(),
@@ -123,7 +125,8 @@ public class FetchCommand extends BuildCommand {
           params.getClock(),
           Optional.<AdbOptions>absent(),
           Optional.<TargetDeviceOptions>absent(),
-          params.getExecutors())) {
+          params.getExecutors(),
+          params.getJarContentsCache())) {
         exitCode = build.executeAndPrintFailuresToEventBus(
             buildTargets,
             isKeepGoing(),
@@ -135,10 +135,12 @@ final class JavaBuildGraphProcessor {
           params.getBuckConfig().getBuildDepFiles(),
           params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
           params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+          params.getBuckConfig().getBuildArtifactCachePrefetchLimit(),
           params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
           params.getObjectMapper(),
           buildRuleResolver,
-          params.getBuckConfig().getKeySeed());
+          params.getBuckConfig().getKeySeed(),
+          params.getDependencyFileRuleKeyIndex());
 
       // Create a BuildEngine because we store symbol information as build artifacts.
       BuckEventBus eventBus = params.getBuckEventBus();
@@ -30,8 +30,10 @@ import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.config.Config;
 import com.facebook.buck.config.Configs;
+import com.facebook.buck.counters.Counter;
 import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.counters.CounterRegistryImpl;
+import com.facebook.buck.counters.ListenerQueueCounter;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
@@ -68,8 +70,10 @@ import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
+import com.facebook.buck.rules.DependencyFileRuleKeyIndex;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
 import com.facebook.buck.rules.KnownBuildRuleTypesFactory;
+import com.facebook.buck.rules.TargetHashCache;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.step.ExecutionContext;
@@ -96,10 +100,13 @@ import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessManager;
 import com.facebook.buck.util.PropertyFinder;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.WatchmanSubscription;
 import com.facebook.buck.util.WatchmanWatcher;
 import com.facebook.buck.util.WatchmanWatcherException;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.JarContentsCache;
+import com.facebook.buck.util.cache.PersistentFileHashIndex;
 import com.facebook.buck.util.shutdown.NonReentrantSystemExit;
 import com.facebook.buck.util.cache.StackedFileHashCache;
 import com.facebook.buck.util.cache.WatchedFileHashCache;
@@ -263,12 +270,20 @@ public final class Main {
 
     private final Cell cell;
     private final Parser parser;
+    private final Optional<PersistentFileHashIndex> persistentHashIndex;
     private final DefaultFileHashCache hashCache;
     private final FileHashCache buckOutHashCache;
     private final EventBus fileEventBus;
     private final Optional<WebServer> webServer;
     private final UUID watchmanQueryUUID;
     private final ActionGraphCache actionGraphCache;
+    private final JarContentsCache jarContentsCache;
+    private final DependencyFileRuleKeyIndex depFileRuleKeyIndex;
+    private final TargetHashCache targetHashCache;
+    // Guarded by this.
+    private boolean subscribedToWatchman;
+    // Guarded by this.
+    private Optional<WatchmanSubscription> watchmanSubscription = Optional.absent();
 
     public Daemon(
         Cell cell,
@@ -276,7 +291,13 @@ public final class Main {
         Optional<WebServer> webServerToReuse)
         throws IOException, InterruptedException {
       this.cell = cell;
-      this.hashCache = new WatchedFileHashCache(cell.getFilesystem());
+      this.persistentHashIndex = loadPersistentFileHashIndex(cell);
+      if (persistentHashIndex.isPresent()) {
+        this.hashCache =
+            new WatchedFileHashCache(cell.getFilesystem(), persistentHashIndex.get());
+      } else {
+        this.hashCache = new WatchedFileHashCache(cell.getFilesystem());
+      }
       this.buckOutHashCache =
           DefaultFileHashCache.createBuckOutFileHashCache(
               new ProjectFilesystem(
@@ -286,6 +307,9 @@ public final class Main {
       this.fileEventBus = new EventBus("file-change-events");
 
       actionGraphCache = new ActionGraphCache();
+      jarContentsCache = new JarContentsCache(hashCache);
+      depFileRuleKeyIndex = new DependencyFileRuleKeyIndex(cell.getFilesystem());
+      targetHashCache = new TargetHashCache(cell.getFilesystem());
 
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory(objectMapper);
       this.parser = new Parser(
@@ -295,6 +319,8 @@ public final class Main {
       fileEventBus.register(parser);
       fileEventBus.register(actionGraphCache);
       fileEventBus.register(hashCache);
+      fileEventBus.register(depFileRuleKeyIndex);
+      fileEventBus.register(targetHashCache);
 
       if (webServerToReuse.isPresent()) {
         webServer = webServerToReuse;
@@ -371,10 +397,58 @@ public final class Main {
       return hashCache;
     }
 
+    private JarContentsCache getJarContentsCache() {
+      return jarContentsCache;
+    }
+
+    private DependencyFileRuleKeyIndex getDependencyFileRuleKeyIndex() {
+      return depFileRuleKeyIndex;
+    }
+
+    private TargetHashCache getTargetHashCache() {
+      return targetHashCache;
+    }
+
     private FileHashCache getBuckOutHashCache() {
       return buckOutHashCache;
     }
 
+    /**
+     * @return the daemon's subscription to file changes with Watchman, subscribing the first time
+     *     this is called if configured to, or absent if not subscribed.
+     */
+    private synchronized Optional<WatchmanSubscription> getWatchmanSubscription(
+        String watchRoot,
+        ImmutableSet<PathOrGlobMatcher> ignorePaths,
+        Watchman watchman,
+        Console console,
+        Clock clock) throws InterruptedException {
+      if (!subscribedToWatchman) {
+        subscribedToWatchman = true;
+        if (new ParserConfig(cell.getBuckConfig()).getEnableWatchmanSubscription()) {
+          watchmanSubscription = WatchmanSubscription.subscribe(
+              watchRoot,
+              fileEventBus,
+              ignorePaths,
+              watchman,
+              watchmanQueryUUID,
+              console,
+              clock);
+        }
+      }
+      return watchmanSubscription;
+    }
+
+    private synchronized void closeWatchmanSubscription() throws IOException {
+      if (watchmanSubscription.isPresent()) {
+        watchmanSubscription.get().close();
+      }
+    }
+
+    private Optional<PersistentFileHashIndex> getPersistentHashIndex() {
+      return persistentHashIndex;
+    }
+
     private void watchClient(final NGContext context) {
       context.addClientListener(new NGClientListener() {
         @Override
@@ -450,6 +524,8 @@ public final class Main {
     @Override
     public void close() throws IOException {
       shutdownWebServer();
+      closeWatchmanSubscription();
+      savePersistentFileHashIndex(persistentHashIndex);
     }
 
     private void shutdownWebServer() {
@@ -501,6 +577,7 @@ public final class Main {
         if (shouldReuseWebServer(cell)) {
           webServer = daemon.getWebServer();
           LOG.info("Reusing web server");
+          daemon.closeWatchmanSubscription();
         } else {
           daemon.close();
         }
@@ -806,7 +883,7 @@ public final class Main {
                    clientEnvironment,
                    console,
                    clock)) {
-        final boolean isDaemon = context.isPresent() && (watchman != Watchman.NULL_WATCHMAN);
+        final boolean isDaemon = isDaemon(context, watchman);
 
         if (!isDaemon && shouldCleanUpTrash) {
           // Clean up the trash on a background thread if this was a
@@ -839,11 +916,21 @@ public final class Main {
 
         FileHashCache cellHashCache;
         FileHashCache buckOutHashCache;
+        Optional<PersistentFileHashIndex> persistentHashIndex;
         if (isDaemon) {
           cellHashCache = getFileHashCacheFromDaemon(rootCell);
           buckOutHashCache = getBuckOutFileHashCacheFromDaemon(rootCell);
+          persistentHashIndex = getPersistentFileHashIndexFromDaemon(rootCell);
         } else {
-          cellHashCache = DefaultFileHashCache.createDefaultFileHashCache(rootCell.getFilesystem());
+          persistentHashIndex = loadPersistentFileHashIndex(rootCell);
+          if (persistentHashIndex.isPresent()) {
+            cellHashCache = DefaultFileHashCache.createPersistentFileHashCache(
+                rootCell.getFilesystem(),
+                persistentHashIndex.get());
+          } else {
+            cellHashCache =
+                DefaultFileHashCache.createDefaultFileHashCache(rootCell.getFilesystem());
+          }
           buckOutHashCache =
               DefaultFileHashCache.createBuckOutFileHashCache(
                   new ProjectFilesystem(
@@ -912,6 +999,10 @@ public final class Main {
                     "Project",
                     buckConfig.getNumThreads())));
 
+        // Changes reported by the daemon's Watchman subscription are held back until this command
+        // finishes.
+        Optional<WatchmanSubscription> watchmanSubscription = Optional.absent();
+
         // The order of resources in the try-with-resources block is important: the BuckEventBus
         // must be the last resource, so that it is closed first and can deliver its queued events
         // to the other resources before they are closed.
@@ -937,7 +1028,12 @@ public final class Main {
              TempDirectoryCreator tempDirectoryCreator =
                  new TempDirectoryCreator(testTempDirOverride);
              AsyncCloseable asyncCloseable = new AsyncCloseable(diskIoExecutorService);
-             BuckEventBus buildEventBus = new BuckEventBus(clock, buildId);
+             BuckEventBus buildEventBus = new BuckEventBus(
+                 clock,
+                 buildId,
+                 buckConfig.getEventBusDispatchMode(),
+                 buckConfig.getEventBusListenerQueueSize(),
+                 buckConfig.getEventBusOverflowPolicy());
              // NOTE: This will only run during the lifetime of the process and will flush on close.
              CounterRegistry counterRegistry = new CounterRegistryImpl(
                  counterAggregatorExecutor,
@@ -983,6 +1079,13 @@ public final class Main {
               rootCell.getKnownBuildRuleTypes(),
               clientEnvironment,
               counterRegistry);
+          counterRegistry.registerCounters(
+              ImmutableList.<Counter>of(
+                  new ListenerQueueCounter(
+                      "buck_event_bus",
+                      "listener",
+                      ImmutableMap.<String, String>of(),
+                      buildEventBus)));
 
           VersionControlBuckConfig vcBuckConfig = new VersionControlBuckConfig(buckConfig);
 
@@ -1016,15 +1119,28 @@ public final class Main {
           if (isDaemon && watchman != Watchman.NULL_WATCHMAN) {
             try {
               Daemon daemon = getDaemon(rootCell, objectMapper);
-              WatchmanWatcher watchmanWatcher = new WatchmanWatcher(
-                  watchman.getWatchRoot().or(canonicalRootPath.toString()),
-                  daemon.getFileEventBus(),
+              String watchRoot = watchman.getWatchRoot().or(canonicalRootPath.toString());
+              ImmutableSet<PathOrGlobMatcher> ignorePaths =
                   ImmutableSet.<PathOrGlobMatcher>builder()
                       .addAll(filesystem.getIgnorePaths())
                       .addAll(DEFAULT_IGNORE_GLOBS)
-                      .build(),
+                      .build();
+              watchmanSubscription = daemon.getWatchmanSubscription(
+                  watchRoot,
+                  ignorePaths,
+                  watchman,
+                  console,
+                  clock);
+              if (watchmanSubscription.isPresent()) {
+                watchmanSubscription.get().holdChanges();
+              }
+              WatchmanWatcher watchmanWatcher = new WatchmanWatcher(
+                  watchRoot,
+                  daemon.getFileEventBus(),
+                  ignorePaths,
                   watchman,
-                  daemon.getWatchmanQueryUUID());
+                  daemon.getWatchmanQueryUUID(),
+                  watchmanSubscription);
               parser = getParserFromDaemon(
                   context,
                   rootCell,
@@ -1048,6 +1164,12 @@ public final class Main {
           }
 
           ActionGraphCache actionGraphCache = getActionGraphCacheFromDaemon(context, rootCell);
+          JarContentsCache jarContentsCache =
+              getJarContentsCacheFromDaemon(context, rootCell, fileHashCache);
+          Optional<DependencyFileRuleKeyIndex> depFileRuleKeyIndex =
+              getDependencyFileRuleKeyIndexFromDaemon(isDaemon, rootCell);
+          Optional<TargetHashCache> targetHashCache =
+              getTargetHashCacheFromDaemon(isDaemon, rootCell);
 
           // Because the Parser is potentially constructed before the CounterRegistry,
           // we need to manually register its counters after it's created.
@@ -1061,6 +1183,9 @@ public final class Main {
           if (context.isPresent()) {
             counterRegistry.registerCounters(actionGraphCache.getCounters());
           }
+          if (watchmanSubscription.isPresent()) {
+            counterRegistry.registerCounters(watchmanSubscription.get().getCounters());
+          }
 
           JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootCell.getFilesystem());
 
@@ -1110,7 +1235,10 @@ public final class Main {
                   fileHashCache,
                   executors,
                   buildEnvironmentDescription,
-                  actionGraphCache));
+                  actionGraphCache,
+                  jarContentsCache,
+                  depFileRuleKeyIndex,
+                  targetHashCache));
           // Wait for HTTP writes to complete.
           closeHttpExecutorService(
               cacheBuckConfig, Optional.of(buildEventBus), httpWriteExecutorService);
@@ -1127,6 +1255,9 @@ public final class Main {
           flushEventListeners(console, buildId, eventListeners);
           throw t;
         } finally {
+          if (watchmanSubscription.isPresent()) {
+            watchmanSubscription.get().releaseChanges();
+          }
           if (commandSemaphoreAcquired) {
             commandSemaphoreNgClient = Optional.absent();
             BgProcessKiller.disarm();
@@ -1144,6 +1275,9 @@ public final class Main {
           for (ExecutionContext.ExecutorPool p : executors.keySet()) {
             closeExecutorService(p.toString(), executors.get(p), EXECUTOR_SERVICES_TIMEOUT_SECONDS);
           }
+          // Persist any newly computed file hashes, so that the next daemon (or non-daemon
+          // command) can skip re-hashing files which haven't changed.
+          savePersistentFileHashIndex(persistentHashIndex);
         }
         if (context.isPresent() && !rootCell.getBuckConfig().getFlushEventsBeforeExit()) {
           context.get().in.close(); // Avoid client exit triggering client disconnection handling.
@@ -1319,6 +1453,34 @@ public final class Main {
     return daemon.getBuckOutHashCache();
   }
 
+  private Optional<PersistentFileHashIndex> getPersistentFileHashIndexFromDaemon(Cell cell)
+      throws IOException, InterruptedException {
+    Daemon daemon = getDaemon(cell, objectMapper);
+    return daemon.getPersistentHashIndex();
+  }
+
+  private static Optional<PersistentFileHashIndex> loadPersistentFileHashIndex(Cell cell) {
+    if (!cell.getBuckConfig().isPersistentFileHashIndexEnabled()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        PersistentFileHashIndex.load(
+            cell.getFilesystem(),
+            cell.getFilesystem().getBuckPaths().getFileHashIndex()));
+  }
+
+  private static void savePersistentFileHashIndex(
+      Optional<PersistentFileHashIndex> persistentHashIndex) {
+    if (!persistentHashIndex.isPresent()) {
+      return;
+    }
+    try {
+      persistentHashIndex.get().save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save the persistent file hash index.");
+    }
+  }
+
   private Optional<WebServer> getWebServerIfDaemon(
       Optional<NGContext> context,
       Cell cell)
@@ -1340,6 +1502,58 @@ public final class Main {
     return new ActionGraphCache();
   }
 
+  private JarContentsCache getJarContentsCacheFromDaemon(
+      Optional<NGContext> context,
+      Cell cell,
+      FileHashCache fileHashCache)
+      throws IOException, InterruptedException {
+    if (context.isPresent()) {
+      // The daemon's jars are keyed by content, so they stay valid across builds, but the hashes
+      // of the jars on the classpath have to come from this build's hash cache.
+      return getDaemon(cell, objectMapper).getJarContentsCache().withHashLoader(fileHashCache);
+    }
+    return new JarContentsCache(fileHashCache);
+  }
+
+  /**
+   * @return whether this command runs in a daemon which watches the file system, and so can keep
+   *     caches which rely on file change events to stay valid.
+   */
+  @VisibleForTesting
+  static boolean isDaemon(Optional<NGContext> context, Watchman watchman) {
+    return context.isPresent() && (watchman != Watchman.NULL_WATCHMAN);
+  }
+
+  /**
+   * @return the daemon's index of dep-file rule keys, which is only of use while file changes are
+   *     being watched.
+   */
+  @VisibleForTesting
+  Optional<DependencyFileRuleKeyIndex> getDependencyFileRuleKeyIndexFromDaemon(
+      boolean isDaemon,
+      Cell cell)
+      throws IOException, InterruptedException {
+    if (isDaemon) {
+      return Optional.of(getDaemon(cell, objectMapper).getDependencyFileRuleKeyIndex());
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * @return the daemon's cache of target hashes, which is only of use while file changes are being
+   *     watched.
+   */
+  @VisibleForTesting
+  Optional<TargetHashCache> getTargetHashCacheFromDaemon(
+      boolean isDaemon,
+      Cell cell)
+      throws IOException, InterruptedException {
+    if (isDaemon) {
+      return Optional.of(getDaemon(cell, objectMapper).getTargetHashCache());
+    }
+    return Optional.absent();
+  }
+
   private void loadListenersFromBuckConfig(
       ImmutableList.Builder<BuckEventListener> eventListeners,
       ProjectFilesystem projectFilesystem,
@@ -106,7 +106,7 @@ public class ReplCommand extends AbstractCommand {
         "\"); }";
 
     // Enable query functionality.
-    BuckQueryEnvironment queryEnv = new BuckQueryEnvironment(params, false);
+    BuckQueryEnvironment queryEnv = new BuckQueryEnvironment(params, false, 0);
     CommandThreadManager queryPool = new CommandThreadManager(
         "Query",
         new ConcurrencyLimit(1, Float.POSITIVE_INFINITY));
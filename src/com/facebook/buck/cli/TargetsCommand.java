@@ -662,7 +662,7 @@ public class TargetsCommand extends AbstractCommand {
           public ImmutableSet<TargetNode<?>> visit(TargetNode<?> targetNode) {
             builder.add(targetNode);
             return FluentIterable
-                .from(graph.getIncomingNodesFor(targetNode))
+                .from(graph.getIncomingNodesView(targetNode))
                 .append(extraEdges.get(targetNode))
                 .toSet();
           }
@@ -928,15 +928,20 @@ public class TargetsCommand extends AbstractCommand {
     FileHashLoader fileHashLoader = createOrGetFileHashLoader(params);
 
     // Hash each target's rule description and contents of any files.
-    ImmutableMap<BuildTarget, HashCode> buildTargetHashes =
+    TargetGraphHashing targetGraphHashing =
         new TargetGraphHashing(
             params.getBuckEventBus(),
             params.getCell(),
             targetGraphWithTests,
             fileHashLoader,
             targetGraphAndNodesWithTests.getTargetNodes())
-        .setNumThreads(params.getBuckConfig().getNumThreads())
-        .hashTargetGraph();
+        .setNumThreads(params.getBuckConfig().getNumThreads());
+    // The daemon's target hashes are only valid for file hashes from its file hash cache.
+    if (getTargetHashFileMode() == TargetHashFileMode.PATHS_AND_CONTENTS &&
+        params.getTargetHashCache().isPresent()) {
+      targetGraphHashing.setTargetHashCache(params.getTargetHashCache().get());
+    }
+    ImmutableMap<BuildTarget, HashCode> buildTargetHashes = targetGraphHashing.hashTargetGraph();
 
     ImmutableMap<BuildTarget, HashCode> finalHashes = rehashWithTestsIfNeeded(
         targetGraphWithTests,
@@ -462,6 +462,7 @@ public class TestCommand extends BuildCommand {
               BuildIdSampler.apply(
                   params.getBuckConfig().getActionGraphCacheCheckSampleRate(),
                   params.getBuckEventBus().getBuildId()),
+              params.getBuckConfig().isIncrementalActionGraphEnabled(),
               targetGraph,
               params.getBuckConfig().getKeySeed()));
       // Look up all of the test rules in the action graph.
@@ -487,10 +488,12 @@ public class TestCommand extends BuildCommand {
               params.getBuckConfig().getBuildDepFiles(),
               params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
               params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+              params.getBuckConfig().getBuildArtifactCachePrefetchLimit(),
               params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
               params.getObjectMapper(),
               actionGraphAndResolver.getResolver(),
-              params.getBuckConfig().getKeySeed());
+              params.getBuckConfig().getKeySeed(),
+              params.getDependencyFileRuleKeyIndex());
       try (Build build = createBuild(
           params.getBuckConfig(),
           actionGraphAndResolver.getActionGraph(),
@@ -507,7 +510,8 @@ public class TestCommand extends BuildCommand {
           params.getClock(),
           Optional.of(getAdbOptions(params.getBuckConfig())),
           Optional.of(getTargetDeviceOptions()),
-          params.getExecutors())) {
+          params.getExecutors(),
+          params.getJarContentsCache())) {
 
         // Build all of the test rules.
         int exitCode = build.executeAndPrintFailuresToEventBus(
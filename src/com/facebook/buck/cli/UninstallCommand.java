@@ -122,6 +122,7 @@ public class UninstallCommand extends AbstractCommand {
               BuildIdSampler.apply(
                   params.getBuckConfig().getActionGraphCacheCheckSampleRate(),
                   params.getBuckEventBus().getBuildId()),
+              params.getBuckConfig().isIncrementalActionGraphEnabled(),
               result.getTargetGraph(),
               params.getBuckConfig().getKeySeed())
           ).getResolver();
@@ -45,6 +45,7 @@ import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ExceptionWithHumanReadableMessage;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
@@ -124,7 +125,8 @@ public class Build implements Closeable {
       ConcurrencyLimit concurrencyLimit,
       Optional<AdbOptions> adbOptions,
       Optional<TargetDeviceOptions> targetDeviceOptions,
-      Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors) {
+      Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors,
+      Optional<JarContentsCache> jarContentsCache) {
     this.actionGraph = actionGraph;
     this.ruleResolver = ruleResolver;
     this.executionContext = ExecutionContext.builder()
@@ -144,6 +146,7 @@ public class Build implements Closeable {
         .setAdbOptions(adbOptions)
         .setTargetDeviceOptions(targetDeviceOptions)
         .setExecutors(executors)
+        .setJarContentsCache(jarContentsCache)
         .build();
     this.artifactCache = artifactCache;
     this.buildEngine = buildEngine;
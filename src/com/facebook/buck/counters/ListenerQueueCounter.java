@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.counters;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Reports how well each of an event bus's listeners is keeping up: how many events are waiting for
+ * it, the most there have ever been, and, since the last flush, how many progress events were
+ * dropped and how long posters were blocked.
+ * <p>
+ * The event bus can't use counters itself, so this reads the state of its listener queues when
+ * flushed, and so also covers listeners registered after it was.
+ */
+public class ListenerQueueCounter extends Counter {
+
+  private final BuckEventBus eventBus;
+  // Guarded by this.
+  private final Map<BuckEventBus.ListenerQueueStats, QueueState> lastFlushed = new HashMap<>();
+
+  public ListenerQueueCounter(
+      String category,
+      String name,
+      ImmutableMap<String, String> tags,
+      BuckEventBus eventBus) {
+    super(category, name, tags);
+    this.eventBus = eventBus;
+  }
+
+  @Override
+  public Optional<CounterSnapshot> flush() {
+    // Listeners of the same class share their values.
+    Map<String, Long> values = new TreeMap<>();
+    boolean changed = false;
+    synchronized (this) {
+      for (BuckEventBus.ListenerQueueStats stats : eventBus.getListenerQueueStats()) {
+        QueueState current = new QueueState(stats);
+        QueueState last = lastFlushed.get(stats);
+        if (last == null) {
+          last = new QueueState();
+        }
+        lastFlushed.put(stats, current);
+        changed |= current.queueDepth > 0 || !current.equals(last);
+
+        String prefix = getName() + "_" + stats.getName();
+        addValue(values, prefix + "_queue_depth", current.queueDepth, false);
+        addValue(values, prefix + "_max_queue_depth", current.maxQueueDepth, false);
+        addValue(
+            values,
+            prefix + "_dropped_events",
+            current.droppedEventCount - last.droppedEventCount,
+            true);
+        addValue(
+            values,
+            prefix + "_blocked_micros",
+            current.blockedMicros - last.blockedMicros,
+            true);
+      }
+    }
+    if (!changed) {
+      return Optional.absent();
+    }
+    return Optional.of(CounterSnapshot.builderForCounter(this).putAllValues(values).build());
+  }
+
+  private static void addValue(Map<String, Long> values, String key, long value, boolean sum) {
+    Long previous = values.get(key);
+    if (previous == null) {
+      values.put(key, value);
+    } else {
+      values.put(key, sum ? previous + value : Math.max(previous, value));
+    }
+  }
+
+  private static class QueueState {
+    private final long queueDepth;
+    private final long maxQueueDepth;
+    private final long droppedEventCount;
+    private final long blockedMicros;
+
+    QueueState() {
+      this.queueDepth = 0;
+      this.maxQueueDepth = 0;
+      this.droppedEventCount = 0;
+      this.blockedMicros = 0;
+    }
+
+    QueueState(BuckEventBus.ListenerQueueStats stats) {
+      this.queueDepth = stats.getQueueDepth();
+      this.maxQueueDepth = stats.getMaxQueueDepth();
+      this.droppedEventCount = stats.getDroppedEventCount();
+      this.blockedMicros = stats.getBlockedMicros();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof QueueState)) {
+        return false;
+      }
+      QueueState other = (QueueState) o;
+      return queueDepth == other.queueDepth &&
+          maxQueueDepth == other.maxQueueDepth &&
+          droppedEventCount == other.droppedEventCount &&
+          blockedMicros == other.blockedMicros;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(queueDepth, maxQueueDepth, droppedEventCount, blockedMicros);
+    }
+  }
+}
@@ -28,17 +28,18 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.logging.Level;
 
@@ -61,110 +62,121 @@ public class Depfiles {
       ADD_PREREQ
   }
 
-  private static final String WHITESPACE_CHARS = " \n\r\t";
-  private static final String ESCAPED_TARGET_CHARS = ": #";
-  private static final String ESCAPED_PREREQ_CHARS = " #";
-
   /**
    * Parses the input as a .d Makefile as emitted by {@code gcc -MD}
    * and returns the (target, [dep, dep2, ...]) inside.
    */
   public static Depfile parseDepfile(Readable readable) throws IOException {
+    return parseDepfile(CharStreams.toString(readable).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parses the given UTF-8 encoded .d Makefile as emitted by {@code gcc -MD} and returns the
+   * (target, [dep, dep2, ...]) inside.
+   * <p>
+   * All the characters with special meaning are ASCII, so the input is parsed a byte at a time
+   * without being decoded first. Runs of ordinary bytes are taken in one go, and a path with
+   * nothing escaped in it is decoded straight out of the input.
+   */
+  public static Depfile parseDepfile(byte[] bytes) throws IOException {
     String target = null;
     ImmutableList.Builder<String> prereqsBuilder = ImmutableList.builder();
     State state = State.LOOKING_FOR_TARGET;
-    StringBuilder identifierBuilder = new StringBuilder();
-
-    CharBuffer buffer = CharBuffer.allocate(4096);
+    Identifier identifier = new Identifier(bytes);
     int numBackslashes = 0;
 
-    while (readable.read(buffer) != -1) {
-      buffer.flip();
-
-      while (buffer.hasRemaining()) {
-        char c = buffer.get();
-        Action action = Action.NONE;
-        boolean isBackslash = c == '\\';
-        boolean isCarriageReturn = c == '\r';
-        boolean isNewline = c == '\n';
-        boolean isWhitespace = WHITESPACE_CHARS.indexOf(c) != -1;
-        boolean inIdentifier = identifierBuilder.length() > 0;
-        boolean isEscaped;
-        if (state == State.LOOKING_FOR_TARGET) {
-          isEscaped = ESCAPED_TARGET_CHARS.indexOf(c) != -1;
-        } else {
-          isEscaped = ESCAPED_PREREQ_CHARS.indexOf(c) != -1;
+    int i = 0;
+    while (i < bytes.length) {
+      byte c = bytes[i];
+
+      if (numBackslashes == 0 && isOrdinary(c, state)) {
+        int runEnd = i + 1;
+        while (runEnd < bytes.length && isOrdinary(bytes[runEnd], state)) {
+          runEnd++;
         }
+        identifier.appendRange(i, runEnd);
+        i = runEnd;
+        continue;
+      }
 
-        if (isBackslash) {
-          // We need to count the number of backslashes in case the
-          // first non-backslash is an escaped character.
-          numBackslashes++;
-        } else if (numBackslashes > 0 && isEscaped) {
-          // Consume one backslash to escape the special char.
-          numBackslashes--;
-          if (inIdentifier) {
-            action = Action.APPEND_TO_IDENTIFIER;
+      Action action = Action.NONE;
+      boolean isBackslash = c == '\\';
+      boolean isCarriageReturn = c == '\r';
+      boolean isNewline = c == '\n';
+      boolean isWhitespace = isWhitespace(c);
+      boolean inIdentifier = !identifier.isEmpty();
+      boolean isEscaped;
+      if (state == State.LOOKING_FOR_TARGET) {
+        isEscaped = c == ':' || c == ' ' || c == '#';
+      } else {
+        isEscaped = c == ' ' || c == '#';
+      }
+
+      if (isBackslash) {
+        // We need to count the number of backslashes in case the
+        // first non-backslash is an escaped character.
+        numBackslashes++;
+      } else if (numBackslashes > 0 && isEscaped) {
+        // Consume one backslash to escape the special char.
+        numBackslashes--;
+        if (inIdentifier) {
+          action = Action.APPEND_TO_IDENTIFIER;
+        }
+      } else if (isWhitespace) {
+        if (numBackslashes == 0) {
+          if (state == State.FOUND_TARGET && inIdentifier) {
+            action = Action.ADD_PREREQ;
           }
-        } else if (isWhitespace) {
-          if (numBackslashes == 0) {
-            if (state == State.FOUND_TARGET && inIdentifier) {
-              action = Action.ADD_PREREQ;
-            }
-            if (state == State.FOUND_TARGET && (isNewline || isCarriageReturn)) {
-              state = State.LOOKING_FOR_TARGET;
-            }
-          } else if (isNewline) {
-            // Consume one backslash to escape \n or \r\n.
-            numBackslashes--;
-          } else if (!isCarriageReturn) {
-            action = Action.APPEND_TO_IDENTIFIER;
+          if (state == State.FOUND_TARGET && (isNewline || isCarriageReturn)) {
+            state = State.LOOKING_FOR_TARGET;
           }
-        } else if (c == ':' && state == State.LOOKING_FOR_TARGET) {
-          state = State.FOUND_TARGET;
-          action = Action.SET_TARGET;
-        } else {
+        } else if (isNewline) {
+          // Consume one backslash to escape \n or \r\n.
+          numBackslashes--;
+        } else if (!isCarriageReturn) {
           action = Action.APPEND_TO_IDENTIFIER;
         }
+      } else if (c == ':' && state == State.LOOKING_FOR_TARGET) {
+        state = State.FOUND_TARGET;
+        action = Action.SET_TARGET;
+      } else {
+        action = Action.APPEND_TO_IDENTIFIER;
+      }
 
-        if (!isBackslash && numBackslashes > 0 && !isCarriageReturn) {
-          int numBackslashesToAppend;
-          if (isEscaped || isWhitespace) {
-            // Backslashes escape themselves before an escaped character or whitespace.
-            numBackslashesToAppend = numBackslashes / 2;
-          } else {
-            // Backslashes are literal before a non-escaped character.
-            numBackslashesToAppend = numBackslashes;
-          }
-
-          for (int i = 0; i < numBackslashesToAppend; i++) {
-            identifierBuilder.append('\\');
-          }
-          numBackslashes = 0;
+      if (!isBackslash && numBackslashes > 0 && !isCarriageReturn) {
+        int numBackslashesToAppend;
+        if (isEscaped || isWhitespace) {
+          // Backslashes escape themselves before an escaped character or whitespace.
+          numBackslashesToAppend = numBackslashes / 2;
+        } else {
+          // Backslashes are literal before a non-escaped character.
+          numBackslashesToAppend = numBackslashes;
         }
 
-        switch (action) {
-          case NONE:
-            break;
-          case APPEND_TO_IDENTIFIER:
-            identifierBuilder.append(c);
-            break;
-          case SET_TARGET:
-            if (target != null) {
-              throw new HumanReadableException(
-                  "Depfile parser cannot handle .d file with multiple targets");
-            }
-            target = identifierBuilder.toString();
-            identifierBuilder.setLength(0);
-            break;
-          case ADD_PREREQ:
-            prereqsBuilder.add(identifierBuilder.toString());
-            identifierBuilder.setLength(0);
-            break;
+        for (int j = 0; j < numBackslashesToAppend; j++) {
+          identifier.append((byte) '\\');
         }
+        numBackslashes = 0;
       }
 
-      buffer.clear();
+      switch (action) {
+        case NONE:
+          break;
+        case APPEND_TO_IDENTIFIER:
+          identifier.append(c);
+          break;
+        case SET_TARGET:
+          if (target != null) {
+            throw new HumanReadableException(
+                "Depfile parser cannot handle .d file with multiple targets");
+          }
+          target = identifier.take();
+          break;
+        case ADD_PREREQ:
+          prereqsBuilder.add(identifier.take());
+          break;
+      }
+      i++;
     }
 
     ImmutableList<String> prereqs = prereqsBuilder.build();
@@ -175,6 +187,86 @@ public class Depfiles {
     }
   }
 
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  /**
+   * @return whether the byte is always just part of the current path, when not preceded by
+   *     backslashes.
+   */
+  private static boolean isOrdinary(byte c, State state) {
+    return c != '\\' && !isWhitespace(c) && !(c == ':' && state == State.LOOKING_FOR_TARGET);
+  }
+
+  /**
+   * The path being parsed: whatever had to be copied out of the input because of escapes,
+   * followed by a range of the input which has not been copied yet.
+   */
+  private static class Identifier {
+    private final byte[] input;
+    private byte[] copied = new byte[256];
+    private int copiedLength = 0;
+    private int rangeStart = 0;
+    private int rangeEnd = 0;
+
+    Identifier(byte[] input) {
+      this.input = input;
+    }
+
+    boolean isEmpty() {
+      return copiedLength == 0 && rangeStart == rangeEnd;
+    }
+
+    void appendRange(int start, int end) {
+      if (rangeStart == rangeEnd) {
+        rangeStart = start;
+        rangeEnd = end;
+      } else if (rangeEnd == start) {
+        rangeEnd = end;
+      } else {
+        copyRange();
+        rangeStart = start;
+        rangeEnd = end;
+      }
+    }
+
+    void append(byte c) {
+      copyRange();
+      ensureCapacity(copiedLength + 1);
+      copied[copiedLength++] = c;
+    }
+
+    String take() {
+      String result;
+      if (copiedLength == 0) {
+        result = new String(input, rangeStart, rangeEnd - rangeStart, StandardCharsets.UTF_8);
+      } else {
+        copyRange();
+        result = new String(copied, 0, copiedLength, StandardCharsets.UTF_8);
+      }
+      copiedLength = 0;
+      rangeStart = rangeEnd = 0;
+      return result;
+    }
+
+    private void copyRange() {
+      int length = rangeEnd - rangeStart;
+      if (length > 0) {
+        ensureCapacity(copiedLength + length);
+        System.arraycopy(input, rangeStart, copied, copiedLength, length);
+        copiedLength += length;
+      }
+      rangeStart = rangeEnd = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > copied.length) {
+        copied = Arrays.copyOf(copied, Math.max(capacity, copied.length * 2));
+      }
+    }
+  }
+
   public static int parseAndWriteBuckCompatibleDepfile(
       ExecutionContext context,
       ProjectFilesystem filesystem,
@@ -194,15 +286,17 @@ public class Depfiles {
     Logger.get(Depfiles.class).debug("Processing dependency file %s as Makefile", sourceDepFile);
     ImmutableMap<String, Object> params = ImmutableMap.<String, Object>of(
         "input", inputPath, "output", outputPath);
-    try (InputStream input = filesystem.newFileInputStream(sourceDepFile);
-         BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-         OutputStream output = filesystem.newFileOutputStream(destDepFile);
+    byte[] depFileContents;
+    try (InputStream input = filesystem.newFileInputStream(sourceDepFile)) {
+      depFileContents = ByteStreams.toByteArray(input);
+    }
+    try (OutputStream output = filesystem.newFileOutputStream(destDepFile);
          BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output));
          SimplePerfEvent.Scope perfEvent = SimplePerfEvent.scope(
              context.getBuckEventBus(),
              PerfEventId.of("depfile-parse"),
              params)) {
-      ImmutableList<String> prereqs = Depfiles.parseDepfile(reader).getPrereqs();
+      ImmutableList<String> prereqs = Depfiles.parseDepfile(depFileContents).getPrereqs();
 
       // Additional files passed in via command-line flags (e.g. `-fsanitize-blacklist=<file>`)
       // appear first in the dep file, followed by the input source file.  So, just skip over
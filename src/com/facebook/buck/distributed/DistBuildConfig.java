@@ -30,6 +30,8 @@ public class DistBuildConfig {
   private static final String FRONTEND_REQUEST_TIMEOUT_MILLIS = "thrift_over_http_timeout_millis";
   private static final long DEFAULT_DEFAULT_REQUEST_TIMEOUT_MILLIS = 3000;
 
+  private static final String LOCAL_WORKERS = "local_workers";
+
   private final SlbBuckConfig frontendConfig;
   private final BuckConfig buckConfig;
 
@@ -47,6 +49,14 @@ public class DistBuildConfig {
         .or(DEFAULT_DEFAULT_REQUEST_TIMEOUT_MILLIS);
   }
 
+  /**
+   * @return the number of local worker processes to run distributed builds on, or zero to hand
+   *     them to the frontend instead.
+   */
+  public int getLocalWorkerCount() {
+    return buckConfig.getLong(CACHE_SECTION_NAME, LOCAL_WORKERS).or(0L).intValue();
+  }
+
   public OkHttpClient createOkHttpClient() {
     return new OkHttpClient.Builder()
         .connectTimeout(getFrontendRequestTimeoutMillis(), TimeUnit.MILLISECONDS)
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRule;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rules a distributed build has to build: those reachable from the rules being built through
+ * rules which are not built already. Each rule has a priority, the length of the longest chain of
+ * rules to be built which depend on it, so that rules on the critical path can be built first.
+ */
+public class DistBuildGraph {
+
+  private final ImmutableSet<BuildTarget> targets;
+  private final ImmutableSetMultimap<BuildTarget, BuildTarget> deps;
+  private final ImmutableSetMultimap<BuildTarget, BuildTarget> dependents;
+  private final ImmutableMap<BuildTarget, Integer> priorities;
+
+  private DistBuildGraph(
+      ImmutableSet<BuildTarget> targets,
+      ImmutableSetMultimap<BuildTarget, BuildTarget> deps,
+      ImmutableMap<BuildTarget, Integer> priorities) {
+    this.targets = targets;
+    this.deps = deps;
+    this.dependents = deps.inverse();
+    this.priorities = priorities;
+  }
+
+  /**
+   * @param isBuilt whether a rule is already built, in which case neither it nor its dependencies
+   *     need to be built.
+   */
+  public static DistBuildGraph create(
+      Iterable<? extends BuildRule> topLevelRules,
+      Predicate<BuildRule> isBuilt) {
+    Set<BuildTarget> toBuild = new LinkedHashSet<>();
+    Set<BuildTarget> built = new HashSet<>();
+    ImmutableSetMultimap.Builder<BuildTarget, BuildTarget> deps = ImmutableSetMultimap.builder();
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    for (BuildRule rule : topLevelRules) {
+      if (needsBuilding(rule, isBuilt, toBuild, built)) {
+        toVisit.push(rule);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      BuildRule rule = toVisit.pop();
+      for (BuildRule dep : rule.getDeps()) {
+        boolean unvisited = !toBuild.contains(dep.getBuildTarget());
+        if (!needsBuilding(dep, isBuilt, toBuild, built)) {
+          continue;
+        }
+        deps.put(rule.getBuildTarget(), dep.getBuildTarget());
+        if (unvisited) {
+          toVisit.push(dep);
+        }
+      }
+    }
+    ImmutableSetMultimap<BuildTarget, BuildTarget> builtDeps = deps.build();
+    return new DistBuildGraph(
+        ImmutableSet.copyOf(toBuild),
+        builtDeps,
+        getPriorities(toBuild, builtDeps));
+  }
+
+  private static boolean needsBuilding(
+      BuildRule rule,
+      Predicate<BuildRule> isBuilt,
+      Set<BuildTarget> toBuild,
+      Set<BuildTarget> built) {
+    BuildTarget target = rule.getBuildTarget();
+    if (toBuild.contains(target)) {
+      return true;
+    }
+    if (built.contains(target)) {
+      return false;
+    }
+    if (isBuilt.apply(rule)) {
+      built.add(target);
+      return false;
+    }
+    toBuild.add(target);
+    return true;
+  }
+
+  /**
+   * Walks the graph from the rules nothing depends on down, in topological order, so that each
+   * rule's priority is known once all of its dependents have been visited.
+   */
+  private static ImmutableMap<BuildTarget, Integer> getPriorities(
+      Set<BuildTarget> targets,
+      ImmutableSetMultimap<BuildTarget, BuildTarget> deps) {
+    Map<BuildTarget, Integer> remainingDependents = new HashMap<>();
+    for (BuildTarget dep : deps.values()) {
+      Integer count = remainingDependents.get(dep);
+      remainingDependents.put(dep, count == null ? 1 : count + 1);
+    }
+    Map<BuildTarget, Integer> priorities = new HashMap<>();
+    Deque<BuildTarget> toVisit = new ArrayDeque<>();
+    for (BuildTarget target : targets) {
+      if (!remainingDependents.containsKey(target)) {
+        priorities.put(target, 1);
+        toVisit.add(target);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      BuildTarget target = toVisit.remove();
+      int priority = priorities.get(target);
+      for (BuildTarget dep : deps.get(target)) {
+        Integer depPriority = priorities.get(dep);
+        if (depPriority == null || depPriority < priority + 1) {
+          priorities.put(dep, priority + 1);
+        }
+        int remaining = remainingDependents.get(dep) - 1;
+        remainingDependents.put(dep, remaining);
+        if (remaining == 0) {
+          toVisit.add(dep);
+        }
+      }
+    }
+    Preconditions.checkState(priorities.size() == targets.size(), "Rule graph has a cycle.");
+    return ImmutableMap.copyOf(priorities);
+  }
+
+  /**
+   * @return the rules to be built.
+   */
+  public ImmutableSet<BuildTarget> getTargets() {
+    return targets;
+  }
+
+  /**
+   * @return the dependencies of {@code target} which are to be built.
+   */
+  public ImmutableSet<BuildTarget> getDeps(BuildTarget target) {
+    return deps.get(target);
+  }
+
+  /**
+   * @return the rules to be built which depend on {@code target}.
+   */
+  public ImmutableSet<BuildTarget> getDependents(BuildTarget target) {
+    return dependents.get(target);
+  }
+
+  /**
+   * @return the number of rules in the longest chain of rules to be built which starts at
+   *     {@code target} and follows its dependents.
+   */
+  public int getPriority(BuildTarget target) {
+    return Preconditions.checkNotNull(priorities.get(target));
+  }
+
+  public int size() {
+    return targets.size();
+  }
+}
@@ -57,7 +57,12 @@ public class DistBuildService {
     this.eventBus = eventBus;
   }
 
-  public void submitJob() throws IOException {
+  /**
+   * Starts the build and polls for its status until it is done.
+   *
+   * @return the finished build job.
+   */
+  public BuildJob submitJob() throws IOException {
 
     // Tell server to start build and get the build id.
     StartBuildRequest startTimeRequest = new StartBuildRequest();
@@ -114,6 +119,7 @@ public class DistBuildService {
 
     DistBuildStatus distBuildStatus = prepareStatusFromJob(job).setETAMillis(0).build();
     eventBus.post(new DistBuildStatusEvent(distBuildStatus));
+    return job;
   }
 
   private DistBuildStatus.Builder prepareStatusFromJob(BuildJob job) {
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.InputStreamConsumer;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Builds rules of a distributed build as the {@link LocalDistBuildCoordinator} hands them out,
+ * one job at a time.
+ */
+public interface DistBuildWorker extends Closeable {
+
+  /**
+   * Builds the given rules, all of whose dependencies have been built already.
+   *
+   * @return the exit code of the build, which is zero if all of the rules were built.
+   */
+  int build(ImmutableSet<BuildTarget> targets) throws IOException, InterruptedException;
+
+  interface Factory {
+    /**
+     * @param output receives each line the worker outputs while building.
+     */
+    DistBuildWorker create(int index, InputStreamConsumer.Handler output) throws IOException;
+  }
+}
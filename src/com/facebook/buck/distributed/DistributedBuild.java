@@ -16,6 +16,9 @@
 
 package com.facebook.buck.distributed;
 
+import com.facebook.buck.distributed.thrift.BuildJob;
+import com.facebook.buck.distributed.thrift.BuildStatus;
+
 import java.io.IOException;
 
 // TODO(ruibm): Currently this class only implements dummy behaviour to mock the distbuild.
@@ -28,7 +31,7 @@ public class DistributedBuild {
   }
 
   public int executeAndPrintFailuresToEventBus() throws IOException {
-    distBuildService.submitJob();
-    return 0;
+    BuildJob job = distBuildService.submitJob();
+    return job.getStatus().equals(BuildStatus.FINISHED_SUCCESSFULLY) ? 0 : 1;
   }
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.thrift.BuildId;
+import com.facebook.buck.distributed.thrift.BuildJob;
+import com.facebook.buck.distributed.thrift.BuildStatus;
+import com.facebook.buck.distributed.thrift.BuildStatusResponse;
+import com.facebook.buck.distributed.thrift.DebugInfo;
+import com.facebook.buck.distributed.thrift.FrontendRequest;
+import com.facebook.buck.distributed.thrift.FrontendResponse;
+import com.facebook.buck.distributed.thrift.LogRecord;
+import com.facebook.buck.distributed.thrift.StartBuildResponse;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.slb.ThriftService;
+import com.facebook.buck.slb.ThriftServiceException;
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.InputStreamConsumer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs a distributed build on a pool of local {@link DistBuildWorker}s, standing in for the
+ * frontend which would hand the build to remote machines. It answers the same requests the
+ * frontend does, so {@link DistBuildService} drives it as it would a remote build.
+ * <p>
+ * Rules are handed out to idle workers as soon as all of their dependencies have been built,
+ * those with the highest {@link DistBuildGraph#getPriority priority} first, so that the critical
+ * path of the build is never left waiting for a worker. Each job takes a share of the rules ready
+ * to be built, so that the other workers get some of them as they become idle. The output of the
+ * workers is passed back in the log book of the build job.
+ */
+public class LocalDistBuildCoordinator
+    implements ThriftService<FrontendRequest, FrontendResponse> {
+
+  private static final Logger LOG = Logger.get(LocalDistBuildCoordinator.class);
+
+  @VisibleForTesting
+  static final int MAX_LOG_RECORDS = 1000;
+
+  private final DistBuildGraph graph;
+  private final int workerCount;
+  private final DistBuildWorker.Factory workerFactory;
+  private final ListeningExecutorService executorService;
+  private final Clock clock;
+  private final BuildId buildId = new BuildId().setId(UUID.randomUUID().toString());
+
+  // Guarded by this.
+  private BuildStatus status = BuildStatus.UNKNOWN;
+  private final Deque<LogRecord> logBook = new ArrayDeque<>();
+  private final Map<Integer, DistBuildWorker> workers = new HashMap<>();
+  @Nullable
+  private ListenableFuture<?> build;
+
+  /**
+   * @param executorService runs the build and the jobs of the workers, so it needs at least one
+   *     thread more than there are workers.
+   */
+  public LocalDistBuildCoordinator(
+      DistBuildGraph graph,
+      int workerCount,
+      DistBuildWorker.Factory workerFactory,
+      ListeningExecutorService executorService,
+      Clock clock) {
+    this.graph = graph;
+    this.workerCount = workerCount;
+    this.workerFactory = workerFactory;
+    this.executorService = executorService;
+    this.clock = clock;
+  }
+
+  @Override
+  public void makeRequest(FrontendRequest request, FrontendResponse response)
+      throws IOException {
+    switch (request.getType()) {
+      case START_BUILD:
+        response.setStartBuild(new StartBuildResponse().setBuildJob(start()));
+        break;
+      case BUILD_STATUS:
+        if (!buildId.equals(request.getBuildStatus().getBuildId())) {
+          throw new ThriftServiceException(
+              String.format("Unknown build id %s.", request.getBuildStatus().getBuildId()));
+        }
+        response.setBuildStatus(new BuildStatusResponse().setBuildJob(getBuildJob()));
+        break;
+      // $CASES-OMITTED$
+      default:
+        throw new ThriftServiceException(
+            String.format("Local distributed builds do not support %s requests.",
+                request.getType()));
+    }
+    response.setType(request.getType());
+    synchronized (this) {
+      response.setWasSuccessful(status != BuildStatus.FAILED);
+      if (status == BuildStatus.FAILED) {
+        response.setErrorMessage("Distributed build failed.");
+      }
+    }
+  }
+
+  private synchronized BuildJob start() throws ThriftServiceException {
+    if (build != null) {
+      throw new ThriftServiceException("The build has been started already.");
+    }
+    status = BuildStatus.BUILDING;
+    build = executorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            boolean succeeded = false;
+            try {
+              succeeded = runBuild();
+            } catch (InterruptedException e) {
+              log("Distributed build was interrupted.");
+              Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+              LOG.error(e, "Distributed build failed.");
+              log("Distributed build failed: " + e.getMessage());
+            } finally {
+              setStatus(succeeded ? BuildStatus.FINISHED_SUCCESSFULLY : BuildStatus.FAILED);
+            }
+          }
+        });
+    return getBuildJob();
+  }
+
+  private boolean runBuild() throws InterruptedException {
+    final Map<BuildTarget, Integer> remainingDeps = new HashMap<>();
+    PriorityQueue<BuildTarget> ready = new PriorityQueue<>(
+        Math.max(1, graph.size()),
+        new Comparator<BuildTarget>() {
+          @Override
+          public int compare(BuildTarget a, BuildTarget b) {
+            int result = Integer.compare(graph.getPriority(b), graph.getPriority(a));
+            return result != 0 ? result : a.compareTo(b);
+          }
+        });
+    for (BuildTarget target : graph.getTargets()) {
+      int deps = graph.getDeps(target).size();
+      remainingDeps.put(target, deps);
+      if (deps == 0) {
+        ready.add(target);
+      }
+    }
+    log(String.format("Building %d rules on %d workers.", graph.size(), workerCount));
+
+    Deque<Integer> idleWorkers = new ArrayDeque<>();
+    for (int i = 0; i < Math.min(workerCount, graph.size()); i++) {
+      idleWorkers.add(i);
+    }
+    BlockingQueue<Job> finishedJobs = new LinkedBlockingQueue<>();
+    int runningJobs = 0;
+    int built = 0;
+    boolean failed = false;
+    while (true) {
+      while (!failed && !ready.isEmpty() && !idleWorkers.isEmpty()) {
+        int jobSize = IntMath.divide(ready.size(), workerCount, RoundingMode.CEILING);
+        ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
+        for (int i = 0; i < jobSize; i++) {
+          targets.add(ready.remove());
+        }
+        Job job = new Job(idleWorkers.remove(), targets.build());
+        submit(job, finishedJobs);
+        runningJobs++;
+      }
+      if (runningJobs == 0) {
+        break;
+      }
+
+      Job job = finishedJobs.take();
+      runningJobs--;
+      if (job.exitCode != 0) {
+        // Let the jobs still running finish, but start no more.
+        log(String.format(
+            "Worker %d failed to build %s with exit code %d.",
+            job.worker,
+            job.targets,
+            job.exitCode));
+        failed = true;
+        continue;
+      }
+      idleWorkers.add(job.worker);
+      built += job.targets.size();
+      log(String.format("Built %d of %d rules.", built, graph.size()));
+      for (BuildTarget target : job.targets) {
+        for (BuildTarget dependent : graph.getDependents(target)) {
+          int remaining = remainingDeps.get(dependent) - 1;
+          remainingDeps.put(dependent, remaining);
+          if (remaining == 0) {
+            ready.add(dependent);
+          }
+        }
+      }
+    }
+    return !failed && built == graph.size();
+  }
+
+  private void submit(final Job job, final BlockingQueue<Job> finishedJobs) {
+    executorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              job.exitCode = getWorker(job.worker).build(job.targets);
+            } catch (IOException e) {
+              LOG.warn(e, "Worker %d failed.", job.worker);
+              log(String.format("Worker %d failed: %s", job.worker, e.getMessage()));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } finally {
+              finishedJobs.add(job);
+            }
+          }
+        });
+  }
+
+  private DistBuildWorker getWorker(final int index) throws IOException {
+    synchronized (this) {
+      DistBuildWorker worker = workers.get(index);
+      if (worker != null) {
+        return worker;
+      }
+    }
+    DistBuildWorker worker = workerFactory.create(
+        index,
+        new InputStreamConsumer.Handler() {
+          @Override
+          public void handleLine(String line) {
+            log(String.format("[worker %d] %s", index, line));
+          }
+        });
+    synchronized (this) {
+      // Each worker runs one job at a time, so only its first job creates it.
+      workers.put(index, worker);
+    }
+    return worker;
+  }
+
+  private synchronized void setStatus(BuildStatus status) {
+    this.status = status;
+  }
+
+  private synchronized void log(String message) {
+    LOG.debug(message);
+    LogRecord record = new LogRecord();
+    record.setName(message);
+    record.setTimestampMillis(clock.currentTimeMillis());
+    logBook.add(record);
+    while (logBook.size() > MAX_LOG_RECORDS) {
+      logBook.remove();
+    }
+  }
+
+  private synchronized BuildJob getBuildJob() {
+    return new BuildJob()
+        .setBuildId(buildId)
+        .setStatus(status)
+        .setDebug(new DebugInfo().setLogBook(new ArrayList<>(logBook)));
+  }
+
+  @Override
+  public void close() throws IOException {
+    ImmutableList<DistBuildWorker> workersToClose;
+    synchronized (this) {
+      if (build != null) {
+        build.cancel(true);
+      }
+      workersToClose = ImmutableList.copyOf(workers.values());
+    }
+    IOException exception = null;
+    for (DistBuildWorker worker : workersToClose) {
+      try {
+        worker.close();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  private static class Job {
+    private final int worker;
+    private final ImmutableSet<BuildTarget> targets;
+    // Set by the thread running the job before it is handed back.
+    private int exitCode = 1;
+
+    Job(int worker, ImmutableSet<BuildTarget> targets) {
+      this.worker = worker;
+      this.targets = targets;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.InputStreamConsumer;
+import com.facebook.buck.util.ProcessExecutor;
+import com.facebook.buck.util.ProcessExecutorParams;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+/**
+ * A {@link DistBuildWorker} running in a process of its own, a local stand-in for a remote build
+ * machine.
+ * <p>
+ * The process is a {@code buck build --distributed-worker}, which loads the build from the dumped
+ * build state once and then builds the rules named on each line written to its stdin, printing
+ * {@link #JOB_DONE_PREFIX} followed by the exit code once each job is done. Everything else it
+ * prints is output of the build.
+ */
+public class ProcessDistBuildWorker implements DistBuildWorker {
+
+  private static final Logger LOG = Logger.get(ProcessDistBuildWorker.class);
+
+  public static final String JOB_DONE_PREFIX = "BUCK-DIST-WORKER-JOB-DONE ";
+
+  private final ProcessExecutor executor;
+  private final ProcessExecutor.LaunchedProcess process;
+  private final BufferedWriter stdin;
+  private final BufferedReader stdout;
+  private final InputStreamConsumer.Handler output;
+
+  private ProcessDistBuildWorker(
+      ProcessExecutor executor,
+      ProcessExecutorParams params,
+      InputStreamConsumer.Handler output) throws IOException {
+    this.executor = executor;
+    this.process = executor.launchProcess(
+        params.withRedirectErrorStream(Optional.of(true)));
+    this.stdin = new BufferedWriter(
+        new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8));
+    this.stdout = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+    this.output = output;
+  }
+
+  /**
+   * @param paramsForIndex how to start the worker with each index.
+   */
+  public static DistBuildWorker.Factory factory(
+      final ProcessExecutor executor,
+      final Function<Integer, ProcessExecutorParams> paramsForIndex) {
+    return new DistBuildWorker.Factory() {
+      @Override
+      public DistBuildWorker create(int index, InputStreamConsumer.Handler output)
+          throws IOException {
+        ProcessExecutorParams params = paramsForIndex.apply(index);
+        LOG.debug("Starting worker %d: %s", index, params.getCommand());
+        return new ProcessDistBuildWorker(executor, params, output);
+      }
+    };
+  }
+
+  @Override
+  public int build(ImmutableSet<BuildTarget> targets) throws IOException {
+    stdin.write(Joiner.on(' ').join(targets));
+    stdin.newLine();
+    stdin.flush();
+
+    String line;
+    while ((line = stdout.readLine()) != null) {
+      if (line.startsWith(JOB_DONE_PREFIX)) {
+        return Integer.parseInt(line.substring(JOB_DONE_PREFIX.length()).trim());
+      }
+      output.handleLine(line);
+    }
+    throw new IOException("Distributed build worker exited before finishing its job.");
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The worker exits once it reaches the end of its input.
+    try {
+      stdin.close();
+    } catch (IOException e) {
+      LOG.debug(e, "Worker exited already.");
+    }
+    try {
+      String line;
+      while ((line = stdout.readLine()) != null) {
+        output.handleLine(line);
+      }
+      int exitCode = executor.waitForLaunchedProcess(process);
+      LOG.debug("Worker exited with %d.", exitCode);
+    } catch (InterruptedException e) {
+      executor.destroyLaunchedProcess(process);
+      Thread.currentThread().interrupt();
+    } finally {
+      stdout.close();
+    }
+  }
+}
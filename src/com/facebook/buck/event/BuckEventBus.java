@@ -24,11 +24,15 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -40,6 +44,53 @@ public class BuckEventBus implements Closeable {
   private static final Logger LOG = Logger.get(BuckEventBus.class);
 
   public static final int DEFAULT_SHUTDOWN_TIMEOUT_MS = 15000;
+  public static final int DEFAULT_LISTENER_QUEUE_SIZE = 8192;
+
+  /**
+   * How events are handed to registered listeners.
+   */
+  public enum DispatchMode {
+    /** All listeners are called, one after the other, on a single event thread. */
+    SINGLE_THREAD,
+    /** Each listener gets its own bounded queue and a thread which drains it. */
+    PER_LISTENER,
+  }
+
+  /**
+   * What to do with an event posted while a listener's queue is full, when using
+   * {@link DispatchMode#PER_LISTENER}.
+   */
+  public enum OverflowPolicy {
+    /** Block the posting thread until there is space in the queue. */
+    BLOCK,
+    /**
+     * Make room for a progress event by dropping the oldest queued one of the same type.  All
+     * other events block as with {@link #BLOCK}.
+     */
+    DROP_COALESCE,
+  }
+
+  /**
+   * How well a listener is keeping up with the events posted to it, when using
+   * {@link DispatchMode#PER_LISTENER}.
+   */
+  public interface ListenerQueueStats {
+    String getName();
+
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    /**
+     * @return the number of progress events dropped in favour of newer ones.
+     */
+    long getDroppedEventCount();
+
+    /**
+     * @return the total time threads posting events have waited for space in the queue.
+     */
+    long getBlockedMicros();
+  }
 
   private static final Supplier<Long> DEFAULT_THREAD_ID_SUPPLIER = new Supplier<Long>() {
     @Override
@@ -54,19 +105,63 @@ public class BuckEventBus implements Closeable {
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
+  private final DispatchMode dispatchMode;
+  private final int listenerQueueSize;
+  private final OverflowPolicy overflowPolicy;
+  private final List<ListenerQueue> listenerQueues = new CopyOnWriteArrayList<>();
 
   public BuckEventBus(Clock clock, BuildId buildId) {
     this(clock, true, buildId, DEFAULT_SHUTDOWN_TIMEOUT_MS);
   }
 
+  public BuckEventBus(
+      Clock clock,
+      BuildId buildId,
+      DispatchMode dispatchMode,
+      int listenerQueueSize,
+      OverflowPolicy overflowPolicy) {
+    this(
+        clock,
+        true,
+        buildId,
+        DEFAULT_SHUTDOWN_TIMEOUT_MS,
+        dispatchMode,
+        listenerQueueSize,
+        overflowPolicy);
+  }
+
   @VisibleForTesting
   public BuckEventBus(
       Clock clock,
       boolean async,
       BuildId buildId,
       int shutdownTimeoutMillis) {
+    this(
+        clock,
+        async,
+        buildId,
+        shutdownTimeoutMillis,
+        DispatchMode.SINGLE_THREAD,
+        DEFAULT_LISTENER_QUEUE_SIZE,
+        OverflowPolicy.BLOCK);
+  }
+
+  @VisibleForTesting
+  BuckEventBus(
+      Clock clock,
+      boolean async,
+      BuildId buildId,
+      int shutdownTimeoutMillis,
+      DispatchMode dispatchMode,
+      int listenerQueueSize,
+      OverflowPolicy overflowPolicy) {
+    Preconditions.checkArgument(listenerQueueSize > 0, "Listener queues must not be empty.");
     this.clock = clock;
-    this.executorService = async ?
+    // Per-listener dispatch only makes sense asynchronously.
+    this.dispatchMode = async ? dispatchMode : DispatchMode.SINGLE_THREAD;
+    this.listenerQueueSize = listenerQueueSize;
+    this.overflowPolicy = overflowPolicy;
+    this.executorService = async && this.dispatchMode == DispatchMode.SINGLE_THREAD ?
         MostExecutors.newSingleThreadExecutor(
             new CommandThreadFactory(BuckEventBus.class.getSimpleName())) :
         MoreExecutors.newDirectExecutorService();
@@ -77,6 +172,21 @@ public class BuckEventBus implements Closeable {
   }
 
   private void dispatch(final BuckEvent event) {
+    if (dispatchMode == DispatchMode.PER_LISTENER) {
+      // A listener posting while the queues are full must not wait for itself, or for a listener
+      // which may in turn be waiting for it.
+      boolean mayBlock = true;
+      for (ListenerQueue listenerQueue : listenerQueues) {
+        if (listenerQueue.isDeliveryThread()) {
+          mayBlock = false;
+          break;
+        }
+      }
+      for (ListenerQueue listenerQueue : listenerQueues) {
+        listenerQueue.post(event, mayBlock);
+      }
+      return;
+    }
     executorService.submit(
         new Runnable() {
           @Override
@@ -110,15 +220,33 @@ public class BuckEventBus implements Closeable {
   }
 
   public void register(Object object) {
+    if (dispatchMode == DispatchMode.PER_LISTENER) {
+      listenerQueues.add(new ListenerQueue(object, listenerQueueSize, overflowPolicy));
+      return;
+    }
     eventBus.register(object);
   }
 
   @VisibleForTesting
   public void postWithoutConfiguring(BuckEvent event) {
     Preconditions.checkState(event.isConfigured());
+    if (dispatchMode == DispatchMode.PER_LISTENER) {
+      for (ListenerQueue listenerQueue : listenerQueues) {
+        listenerQueue.postSynchronously(event);
+      }
+      return;
+    }
     eventBus.post(event);
   }
 
+  /**
+   * @return the state of each listener's queue, or nothing unless using
+   *     {@link DispatchMode#PER_LISTENER}.
+   */
+  public ImmutableList<ListenerQueueStats> getListenerQueueStats() {
+    return ImmutableList.<ListenerQueueStats>copyOf(listenerQueues);
+  }
+
   @VisibleForTesting
   Clock getClock() {
     return clock;
@@ -148,6 +276,10 @@ public class BuckEventBus implements Closeable {
    */
   @Override
   public void close() throws IOException {
+    if (dispatchMode == DispatchMode.PER_LISTENER) {
+      closeListenerQueues();
+      return;
+    }
     executorService.shutdown();
     try {
       if (!executorService.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
@@ -163,6 +295,28 @@ public class BuckEventBus implements Closeable {
     }
   }
 
+  private void closeListenerQueues() {
+    long deadlineNanos =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+    List<ListenerQueue> stuckQueues = new ArrayList<>();
+    try {
+      for (ListenerQueue listenerQueue : listenerQueues) {
+        if (!listenerQueue.close(deadlineNanos)) {
+          stuckQueues.add(listenerQueue);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!stuckQueues.isEmpty()) {
+      LOG.warn(Joiner.on(System.lineSeparator()).join(
+          "The BuckEventBus failed to shut down within the standard timeout.",
+          "Your build might have succeeded, but some messages were probably lost.",
+          "These listeners had not caught up:",
+          Joiner.on(", ").join(stuckQueues)));
+    }
+  }
+
   /**
    * Timestamp event. A timestamped event cannot subsequently being posted and is useful only to
    * pass its timestamp on to another posted event.
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.event.external.events.ProgressEventInterface;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.google.common.eventbus.EventBus;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers events to a single listener from a bounded queue on a thread of its own, so that a slow
+ * listener only holds up its own events.
+ * <p>
+ * Events are always delivered in the order they were posted, although with
+ * {@link BuckEventBus.OverflowPolicy#DROP_COALESCE} some progress events may be left out.
+ */
+class ListenerQueue implements BuckEventBus.ListenerQueueStats {
+
+  private static final Logger LOG = Logger.get(ListenerQueue.class);
+
+  private final String name;
+  private final EventBus eventBus;
+  private final int capacity;
+  private final BuckEventBus.OverflowPolicy overflowPolicy;
+  private final Thread thread;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  // Guarded by lock.
+  private final ArrayDeque<BuckEvent> queue = new ArrayDeque<>();
+  // Guarded by lock.
+  private boolean closed = false;
+
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong droppedEventCount = new AtomicLong();
+  private final AtomicLong blockedMicros = new AtomicLong();
+
+  ListenerQueue(Object listener, int capacity, BuckEventBus.OverflowPolicy overflowPolicy) {
+    this.name = listener.getClass().getSimpleName();
+    this.eventBus = new EventBus("buck-build-events-" + name);
+    this.eventBus.register(listener);
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.thread = new CommandThreadFactory(BuckEventBus.class.getSimpleName() + "-" + name)
+        .newThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                drain();
+              }
+            });
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Queues an event for delivery.
+   * <p>
+   * When the queue is full, a progress event replaces the oldest queued event of the same type if
+   * the overflow policy allows it. Otherwise the calling thread waits for space, unless
+   * {@code mayBlock} is false: the listener threads of the bus must never wait for each other, or
+   * for themselves, so events they post are queued even when the queue is full.  A thread which is
+   * interrupted while waiting queues its event anyway, rather than losing it, and keeps its
+   * interrupt status.
+   */
+  public void post(BuckEvent event, boolean mayBlock) {
+    boolean interrupted = false;
+    lock.lock();
+    try {
+      while (queue.size() >= capacity) {
+        if (overflowPolicy == BuckEventBus.OverflowPolicy.DROP_COALESCE &&
+            event instanceof ProgressEventInterface) {
+          // The new event goes to the back of the queue, so nothing is delivered out of order. If
+          // there is no older event to drop, it is queued anyway: this can only overfill the queue
+          // by one event per progress event type.
+          if (removeQueuedEventOfType(event.getClass())) {
+            droppedEventCount.incrementAndGet();
+          }
+          break;
+        }
+        if (!mayBlock || interrupted) {
+          break;
+        }
+        long start = System.nanoTime();
+        try {
+          notFull.await();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } finally {
+          blockedMicros.addAndGet(
+              TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+      }
+      queue.add(event);
+      notEmpty.signal();
+      updateMaxQueueDepth(queue.size());
+    } finally {
+      lock.unlock();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Must be called with lock held.
+  private boolean removeQueuedEventOfType(Class<?> type) {
+    Iterator<BuckEvent> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getClass() == type) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Delivers the event on the calling thread, bypassing the queue.
+   */
+  public void postSynchronously(BuckEvent event) {
+    eventBus.post(event);
+  }
+
+  /**
+   * @return whether the calling thread is the one delivering this queue's events.
+   */
+  public boolean isDeliveryThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  private void updateMaxQueueDepth(int depth) {
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        BuckEvent next;
+        lock.lock();
+        try {
+          while (queue.isEmpty() && !closed) {
+            notEmpty.await();
+          }
+          next = queue.poll();
+          if (next == null) {
+            return;
+          }
+          notFull.signal();
+        } finally {
+          lock.unlock();
+        }
+        eventBus.post(next);
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Event delivery to %s was interrupted.", name);
+    }
+  }
+
+  /**
+   * Waits for all events posted so far to be delivered, giving up once {@code deadlineNanos} (as
+   * returned by {@link System#nanoTime()}) has passed.
+   *
+   * @return whether all events were delivered in time.
+   */
+  public boolean close(long deadlineNanos) throws InterruptedException {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    thread.join(Math.max(1, remainingMillis(deadlineNanos)));
+    LOG.debug(
+        "Listener %s: max queue depth %d, %d progress events dropped, blocked posters for %d us.",
+        name,
+        maxQueueDepth.get(),
+        droppedEventCount.get(),
+        blockedMicros.get());
+    if (thread.isAlive()) {
+      thread.interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private static long remainingMillis(long deadlineNanos) {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  @Override
+  public long getDroppedEventCount() {
+    return droppedEventCount.get();
+  }
+
+  @Override
+  public long getBlockedMicros() {
+    return blockedMicros.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (%d queued events)", name, getQueueDepth());
+  }
+}
@@ -50,6 +50,15 @@ public abstract class AbstractBottomUpTraversal<T, V> {
   }
 
   public final void traverse() {
+    if (graph instanceof DefaultTraversableGraph) {
+      CompactDirectedGraph<T> compactGraph =
+          ((DefaultTraversableGraph<T>) graph).getCompactGraph();
+      for (int node : compactGraph.getBottomUpOrder()) {
+        visit(compactGraph.getNode(node));
+      }
+      return;
+    }
+
     Iterables.addAll(nodesToExplore, graph.getNodesWithNoOutgoingEdges());
     while (!nodesToExplore.isEmpty()) {
       T node = nodesToExplore.remove();
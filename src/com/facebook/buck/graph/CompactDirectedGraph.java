@@ -0,0 +1,554 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable directed graph whose nodes are numbered densely from zero, in the order they were
+ * given, and whose edges are stored as arrays of node numbers in compressed sparse row form: the
+ * nodes {@code i} has edges to are {@code outgoingNodes[outgoingOffsets[i]]} up to, but not
+ * including, {@code outgoingNodes[outgoingOffsets[i + 1]]}, and likewise for incoming edges.
+ * <p>
+ * This takes an int per edge in each direction, rather than the several objects per edge of a
+ * multimap, and the algorithms here work on arrays indexed by node number rather than on hash maps
+ * keyed by node, so they allocate nothing per node or edge visited.
+ *
+ * @param <T> the type of object stored as nodes in this graph
+ */
+public final class CompactDirectedGraph<T> {
+
+  private final ImmutableSet<T> nodeSet;
+  private final ImmutableList<T> nodes;
+  // Open addressing table of node numbers plus one, with zero marking an empty slot.
+  private final int[] index;
+  private final int[] outgoingOffsets;
+  private final int[] outgoingNodes;
+  private final int[] incomingOffsets;
+  private final int[] incomingNodes;
+
+  private CompactDirectedGraph(
+      ImmutableSet<T> nodeSet,
+      int[] outgoingOffsets,
+      int[] outgoingNodes) {
+    this.nodeSet = nodeSet;
+    this.nodes = nodeSet.asList();
+    this.index = createIndex(nodes);
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingNodes = outgoingNodes;
+
+    // Transpose the outgoing edges with a counting sort, so that each node's incoming nodes are in
+    // ascending order.
+    int nodeCount = nodes.size();
+    this.incomingOffsets = new int[nodeCount + 1];
+    for (int sink : outgoingNodes) {
+      incomingOffsets[sink + 1]++;
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      incomingOffsets[i + 1] += incomingOffsets[i];
+    }
+    this.incomingNodes = new int[outgoingNodes.length];
+    int[] next = Arrays.copyOf(incomingOffsets, nodeCount);
+    for (int source = 0; source < nodeCount; source++) {
+      for (int i = outgoingOffsets[source]; i < outgoingOffsets[source + 1]; i++) {
+        incomingNodes[next[outgoingNodes[i]]++] = source;
+      }
+    }
+  }
+
+  public static <T> CompactDirectedGraph<T> copyOf(MutableDirectedGraph<T> graph) {
+    ImmutableSet<T> nodeSet = graph.createImmutableCopyOfNodes();
+    ImmutableList<T> nodes = nodeSet.asList();
+    int[] index = createIndex(nodes);
+
+    int[] outgoingOffsets = new int[nodes.size() + 1];
+    for (int i = 0; i < nodes.size(); i++) {
+      outgoingOffsets[i + 1] =
+          outgoingOffsets[i] + Iterables.size(graph.getOutgoingNodesFor(nodes.get(i)));
+    }
+    int[] outgoingNodes = new int[outgoingOffsets[nodes.size()]];
+    int edge = 0;
+    for (T node : nodes) {
+      for (T sink : graph.getOutgoingNodesFor(node)) {
+        outgoingNodes[edge++] = getId(nodes, index, sink);
+      }
+    }
+    return new CompactDirectedGraph<>(nodeSet, outgoingOffsets, outgoingNodes);
+  }
+
+  private static int[] createIndex(ImmutableList<?> nodes) {
+    // Keep the table at most half full.
+    int[] index = new int[Integer.highestOneBit(Math.max(1, nodes.size() - 1)) << 2];
+    for (int id = 0; id < nodes.size(); id++) {
+      int slot = slotFor(nodes.get(id), index.length);
+      while (index[slot] != 0) {
+        slot = (slot + 1) & (index.length - 1);
+      }
+      index[slot] = id + 1;
+    }
+    return index;
+  }
+
+  private static int slotFor(Object node, int tableSize) {
+    int hash = node.hashCode() * 0x9e3779b9;
+    return (hash ^ (hash >>> 16)) & (tableSize - 1);
+  }
+
+  private static int getId(ImmutableList<?> nodes, int[] index, @Nullable Object node) {
+    if (node == null) {
+      return -1;
+    }
+    for (int slot = slotFor(node, index.length);
+         index[slot] != 0;
+         slot = (slot + 1) & (index.length - 1)) {
+      int id = index[slot] - 1;
+      if (nodes.get(id).equals(node)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  public int getEdgeCount() {
+    return outgoingNodes.length;
+  }
+
+  /**
+   * @return the number of {@code node}, or -1 if it is not in the graph.
+   */
+  public int getId(@Nullable Object node) {
+    return getId(nodes, index, node);
+  }
+
+  public T getNode(int id) {
+    return nodes.get(id);
+  }
+
+  /** @return the nodes of the graph, in the order of their numbers. */
+  public ImmutableSet<T> getNodes() {
+    return nodeSet;
+  }
+
+  public int getOutDegree(int id) {
+    return outgoingOffsets[id + 1] - outgoingOffsets[id];
+  }
+
+  /**
+   * @return the number of the {@code i}th node {@code id} has an edge to.
+   */
+  public int getOutgoingNode(int id, int i) {
+    return outgoingNodes[outgoingOffsets[id] + i];
+  }
+
+  public int getInDegree(int id) {
+    return incomingOffsets[id + 1] - incomingOffsets[id];
+  }
+
+  /**
+   * @return the number of the {@code i}th node with an edge to {@code id}.
+   */
+  public int getIncomingNode(int id, int i) {
+    return incomingNodes[incomingOffsets[id] + i];
+  }
+
+  public ImmutableSet<T> getOutgoingNodesFor(T source) {
+    return ImmutableSet.copyOf(getOutgoingNodesView(source));
+  }
+
+  public ImmutableSet<T> getIncomingNodesFor(T sink) {
+    return ImmutableSet.copyOf(getIncomingNodesView(sink));
+  }
+
+  /**
+   * @return an unmodifiable view of the nodes {@code source} has edges to, which is backed by the
+   *     graph's edge array rather than holding a copy of them.
+   */
+  public Set<T> getOutgoingNodesView(T source) {
+    int id = getId(source);
+    if (id == -1) {
+      return ImmutableSet.of();
+    }
+    return new AdjacentNodes(outgoingNodes, outgoingOffsets[id], outgoingOffsets[id + 1]);
+  }
+
+  /**
+   * @return an unmodifiable view of the nodes with edges to {@code sink}, which is backed by the
+   *     graph's edge array rather than holding a copy of them.
+   */
+  public Set<T> getIncomingNodesView(T sink) {
+    int id = getId(sink);
+    if (id == -1) {
+      return ImmutableSet.of();
+    }
+    return new AdjacentNodes(incomingNodes, incomingOffsets[id], incomingOffsets[id + 1]);
+  }
+
+  public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int id = 0; id < nodes.size(); id++) {
+      if (getOutDegree(id) == 0) {
+        builder.add(nodes.get(id));
+      }
+    }
+    return builder.build();
+  }
+
+  public ImmutableSet<T> getNodesWithNoIncomingEdges() {
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int id = 0; id < nodes.size(); id++) {
+      if (getInDegree(id) == 0) {
+        builder.add(nodes.get(id));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Orders the nodes so that every node comes after all of the nodes it has edges to, visiting
+   * nodes breadth first from those with no outgoing edges. Nodes which are part of, or have edges
+   * into, a cycle can never be ordered so, and are left out.
+   *
+   * @return the numbers of the nodes, in order.
+   */
+  public int[] getBottomUpOrder() {
+    int nodeCount = nodes.size();
+    int[] remainingOutDegrees = new int[nodeCount];
+    int[] order = new int[nodeCount];
+    int size = 0;
+    for (int id = 0; id < nodeCount; id++) {
+      remainingOutDegrees[id] = getOutDegree(id);
+      if (remainingOutDegrees[id] == 0) {
+        order[size++] = id;
+      }
+    }
+    // The order doubles as the queue of nodes whose outgoing nodes have all been visited.
+    for (int head = 0; head < size; head++) {
+      int id = order[head];
+      for (int i = incomingOffsets[id]; i < incomingOffsets[id + 1]; i++) {
+        int source = incomingNodes[i];
+        if (--remainingOutDegrees[source] == 0) {
+          order[size++] = source;
+        }
+      }
+    }
+    return size == nodeCount ? order : Arrays.copyOf(order, size);
+  }
+
+  /**
+   * @return the nodes reachable from {@code roots}, including the roots themselves.
+   */
+  public BitSet getReachableNodes(BitSet roots) {
+    BitSet reachable = (BitSet) roots.clone();
+    // Each node is pushed at most once, when it is first reached.
+    int[] stack = new int[roots.cardinality()];
+    int stackSize = 0;
+    for (int id = roots.nextSetBit(0); id >= 0; id = roots.nextSetBit(id + 1)) {
+      stack[stackSize++] = id;
+    }
+    while (stackSize > 0) {
+      int id = stack[--stackSize];
+      for (int i = outgoingOffsets[id]; i < outgoingOffsets[id + 1]; i++) {
+        int sink = outgoingNodes[i];
+        if (!reachable.get(sink)) {
+          reachable.set(sink);
+          if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, Math.min(nodes.size(), stack.length * 2 + 1));
+          }
+          stack[stackSize++] = sink;
+        }
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * @return for each node, the length of the longest path from it to a node with no outgoing
+   *     edges, or -1 for nodes left out of {@link #getBottomUpOrder()}.
+   */
+  public int[] getHeights() {
+    int[] heights = new int[nodes.size()];
+    Arrays.fill(heights, -1);
+    for (int id : getBottomUpOrder()) {
+      int height = 0;
+      for (int i = outgoingOffsets[id]; i < outgoingOffsets[id + 1]; i++) {
+        height = Math.max(height, heights[outgoingNodes[i]] + 1);
+      }
+      heights[id] = height;
+    }
+    return heights;
+  }
+
+  /**
+   * Finds the strongly connected components of the graph using an iterative form of Tarjan's
+   * algorithm, in {@code O(|V| + |E|)}.
+   *
+   * @return for each node, the number of the component it is in. Components are numbered from
+   *     zero, in reverse topological order.
+   */
+  public int[] getStronglyConnectedComponents() {
+    int nodeCount = nodes.size();
+    int[] components = new int[nodeCount];
+    int[] indexes = new int[nodeCount];
+    Arrays.fill(indexes, -1);
+    int[] lowlinks = new int[nodeCount];
+    boolean[] onStack = new boolean[nodeCount];
+    int[] stack = new int[nodeCount];
+    int stackSize = 0;
+    // The nodes whose edges are being explored, and the next edge of each to explore.
+    int[] callStack = new int[nodeCount];
+    int[] nextEdges = new int[nodeCount];
+    int callStackSize = 0;
+    int nextIndex = 0;
+    int componentCount = 0;
+
+    for (int root = 0; root < nodeCount; root++) {
+      if (indexes[root] != -1) {
+        continue;
+      }
+      indexes[root] = lowlinks[root] = nextIndex++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+      nextEdges[root] = outgoingOffsets[root];
+      callStack[callStackSize++] = root;
+
+      while (callStackSize > 0) {
+        int node = callStack[callStackSize - 1];
+        if (nextEdges[node] < outgoingOffsets[node + 1]) {
+          int sink = outgoingNodes[nextEdges[node]++];
+          if (indexes[sink] == -1) {
+            indexes[sink] = lowlinks[sink] = nextIndex++;
+            stack[stackSize++] = sink;
+            onStack[sink] = true;
+            nextEdges[sink] = outgoingOffsets[sink];
+            callStack[callStackSize++] = sink;
+          } else if (onStack[sink]) {
+            lowlinks[node] = Math.min(lowlinks[node], indexes[sink]);
+          }
+          continue;
+        }
+
+        callStackSize--;
+        if (lowlinks[node] == indexes[node]) {
+          int member;
+          do {
+            member = stack[--stackSize];
+            onStack[member] = false;
+            components[member] = componentCount;
+          } while (member != node);
+          componentCount++;
+        }
+        if (callStackSize > 0) {
+          int caller = callStack[callStackSize - 1];
+          lowlinks[caller] = Math.min(lowlinks[caller], lowlinks[node]);
+        }
+      }
+    }
+    return components;
+  }
+
+  /**
+   * @return whether the graph has no cycles, including edges from a node to itself.
+   */
+  public boolean isAcyclic() {
+    for (int id = 0; id < nodes.size(); id++) {
+      if (hasEdge(id, id)) {
+        return false;
+      }
+    }
+    return getBottomUpOrder().length == nodes.size();
+  }
+
+  /**
+   * @return the strongly connected components of the graph, in reverse topological order.
+   */
+  public ImmutableList<ImmutableSet<T>> findStronglyConnectedComponents() {
+    int[] components = getStronglyConnectedComponents();
+    List<ImmutableSet.Builder<T>> builders = new ArrayList<>();
+    for (int id = 0; id < components.length; id++) {
+      while (builders.size() <= components[id]) {
+        builders.add(ImmutableSet.<T>builder());
+      }
+      builders.get(components[id]).add(nodes.get(id));
+    }
+    ImmutableList.Builder<ImmutableSet<T>> result = ImmutableList.builder();
+    for (ImmutableSet.Builder<T> builder : builders) {
+      result.add(builder.build());
+    }
+    return result.build();
+  }
+
+  /**
+   * @return the cycles in the graph: each strongly connected component of more than one node,
+   *     and each node with an edge to itself.
+   */
+  public ImmutableSet<ImmutableSet<T>> findCycles() {
+    ImmutableSet.Builder<ImmutableSet<T>> cycles = ImmutableSet.builder();
+    for (ImmutableSet<T> component : findStronglyConnectedComponents()) {
+      if (component.size() > 1) {
+        cycles.add(component);
+      }
+    }
+    // Tarjan's algorithm does not account for single-node cycles, so check for them separately.
+    for (int id = 0; id < nodes.size(); id++) {
+      if (hasEdge(id, id)) {
+        cycles.add(ImmutableSet.of(nodes.get(id)));
+      }
+    }
+    return cycles.build();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof CompactDirectedGraph)) {
+      return false;
+    }
+    CompactDirectedGraph<?> that = (CompactDirectedGraph<?>) other;
+    if (!this.nodeSet.equals(that.nodeSet) ||
+        this.outgoingNodes.length != that.outgoingNodes.length) {
+      return false;
+    }
+    // The graphs may number the same nodes differently, so translate that graph's numbers into
+    // this one's, then sort each node's outgoing nodes in both and compare them.
+    int[] thisIds = new int[that.nodes.size()];
+    for (int thatId = 0; thatId < thisIds.length; thatId++) {
+      thisIds[thatId] = getId(that.nodes.get(thatId));
+    }
+    int[] thisSinks = outgoingNodes.clone();
+    int[] thatSinks = new int[outgoingNodes.length];
+    for (int id = 0; id < nodes.size(); id++) {
+      int thatId = that.getId(nodes.get(id));
+      int start = outgoingOffsets[id];
+      int end = outgoingOffsets[id + 1];
+      if (that.getOutDegree(thatId) != end - start) {
+        return false;
+      }
+      int thatStart = that.outgoingOffsets[thatId];
+      for (int i = start; i < end; i++) {
+        thatSinks[i] = thisIds[that.outgoingNodes[thatStart + i - start]];
+      }
+      Arrays.sort(thisSinks, start, end);
+      Arrays.sort(thatSinks, start, end);
+    }
+    return Arrays.equals(thisSinks, thatSinks);
+  }
+
+  private boolean hasEdge(int source, int sink) {
+    for (int i = outgoingOffsets[source]; i < outgoingOffsets[source + 1]; i++) {
+      if (outgoingNodes[i] == sink) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = nodeSet.hashCode();
+    for (int id = 0; id < nodes.size(); id++) {
+      int sourceHashCode = nodes.get(id).hashCode();
+      for (int i = outgoingOffsets[id]; i < outgoingOffsets[id + 1]; i++) {
+        hashCode += 31 * sourceHashCode ^ nodes.get(outgoingNodes[i]).hashCode();
+      }
+    }
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("{");
+    for (int id = 0; id < nodes.size(); id++) {
+      if (id > 0) {
+        builder.append(", ");
+      }
+      builder.append(nodes.get(id)).append('=').append(getOutgoingNodesView(nodes.get(id)));
+    }
+    return builder.append('}').toString();
+  }
+
+  /**
+   * The nodes numbered {@code ids[start]} up to, but not including, {@code ids[end]}.  A node has
+   * no duplicate edges, so these are all distinct.
+   */
+  private final class AdjacentNodes extends AbstractSet<T> {
+    private final int[] ids;
+    private final int start;
+    private final int end;
+
+    AdjacentNodes(int[] ids, int start, int end) {
+      this.ids = ids;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+
+    @Override
+    public boolean contains(@Nullable Object node) {
+      int id = getId(node);
+      if (id == -1) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (ids[i] == id) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new UnmodifiableIterator<T>() {
+        private int next = start;
+
+        @Override
+        public boolean hasNext() {
+          return next < end;
+        }
+
+        @Override
+        public T next() {
+          if (next >= end) {
+            throw new NoSuchElementException();
+          }
+          return nodes.get(ids[next++]);
+        }
+      };
+    }
+  }
+}
@@ -17,52 +17,65 @@
 package com.facebook.buck.graph;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
 
-import java.util.Objects;
+import java.util.Set;
 
+/**
+ * An immutable {@link TraversableGraph}, stored as a {@link CompactDirectedGraph}. The traversals
+ * in this package work on the compact form directly.
+ */
 public class DefaultTraversableGraph<T> implements TraversableGraph<T> {
 
-  private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+  private final CompactDirectedGraph<T> graph;
   private final boolean isAcyclic;
 
   public DefaultTraversableGraph(MutableDirectedGraph<T> graph) {
-    this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
-    this.isAcyclic = graph.isAcyclic();
+    this.graph = CompactDirectedGraph.copyOf(graph);
+    this.isAcyclic = this.graph.isAcyclic();
   }
 
   public boolean isAcyclic() {
     return isAcyclic;
   }
 
+  /** @return the nodes and edges of this graph, numbered densely from zero. */
+  public CompactDirectedGraph<T> getCompactGraph() {
+    return graph;
+  }
+
   @Override
   public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+    return graph.getOutgoingNodesFor(source);
   }
 
   @Override
   public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+    return graph.getIncomingNodesFor(sink);
+  }
+
+  /** @see CompactDirectedGraph#getOutgoingNodesView(Object) */
+  public Set<T> getOutgoingNodesView(T source) {
+    return graph.getOutgoingNodesView(source);
+  }
+
+  /** @see CompactDirectedGraph#getIncomingNodesView(Object) */
+  public Set<T> getIncomingNodesView(T sink) {
+    return graph.getIncomingNodesView(sink);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return graph.getNodesWithNoOutgoingEdges();
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return graph.getNodesWithNoIncomingEdges();
   }
 
   /** @return an unmodifiable view of the nodes in this graph */
   public ImmutableSet<T> getNodes() {
-    return nodes;
+    return graph.getNodes();
   }
 
   @Override
@@ -72,13 +85,11 @@ public class DefaultTraversableGraph<T> implements TraversableGraph<T> {
     }
 
     DefaultTraversableGraph<?> that = (DefaultTraversableGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes) &&
-        Objects.equals(this.outgoingEdges, that.outgoingEdges) &&
-        Objects.equals(this.incomingEdges, that.incomingEdges);
+    return this.graph.equals(that.graph);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    return graph.hashCode();
   }
 }
@@ -18,6 +18,8 @@ package com.facebook.buck.graph;
 
 import com.google.common.collect.ImmutableSet;
 
+import java.util.Set;
+
 public interface DirectedAcyclicGraph<T> extends TraversableGraph<T> {
 
   @Override
@@ -26,6 +28,18 @@ public interface DirectedAcyclicGraph<T> extends TraversableGraph<T> {
   @Override
   public ImmutableSet<T> getIncomingNodesFor(T sink);
 
+  /**
+   * @return an unmodifiable view of the nodes {@code source} has edges to, which unlike
+   *     {@link #getOutgoingNodesFor(Object)} does not copy them.
+   */
+  public Set<T> getOutgoingNodesView(T source);
+
+  /**
+   * @return an unmodifiable view of the nodes with edges to {@code sink}, which unlike
+   *     {@link #getIncomingNodesFor(Object)} does not copy them.
+   */
+  public Set<T> getIncomingNodesView(T sink);
+
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges();
 
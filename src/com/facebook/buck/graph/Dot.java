@@ -50,7 +50,7 @@ public class Dot<T> {
       @Override
       public void visit(T node) {
         String source = nodeToName.apply(node);
-        for (T sink : graph.getOutgoingNodesFor(node)) {
+        for (T sink : graph.getOutgoingNodesView(node)) {
           String sinkName = nodeToName.apply(sink);
           try {
             output.append(String.format("  %s -> %s;\n", source, sinkName));
@@ -83,7 +83,7 @@ public class Dot<T> {
           return;
         }
         String source = nodeToName.apply(node);
-        for (T sink : Sets.filter(graph.getOutgoingNodesFor(node), Predicates.in(nodesToFilter))) {
+        for (T sink : Sets.filter(graph.getOutgoingNodesView(node), Predicates.in(nodesToFilter))) {
           String sinkName = nodeToName.apply(sink);
           builder.add(String.format("  %s -> %s;\n", source, sinkName));
         }
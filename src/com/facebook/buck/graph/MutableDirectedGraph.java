@@ -16,19 +16,15 @@
 
 package com.facebook.buck.graph;
 
-import com.google.common.base.Function;
-import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -152,41 +148,86 @@ public final class MutableDirectedGraph<T> implements TraversableGraph<T> {
   }
 
   public ImmutableSet<ImmutableSet<T>> findCycles() {
-    Set<Set<T>> cycles = Sets.filter(findStronglyConnectedComponents(), new Predicate<Set<T>>() {
-      @Override
-      public boolean apply(Set<T> stronglyConnectedComponent) {
-        return stronglyConnectedComponent.size() > 1;
+    ImmutableSet.Builder<ImmutableSet<T>> cycles = ImmutableSet.builder();
+    for (Set<T> component : findStronglyConnectedComponents()) {
+      if (component.size() > 1) {
+        cycles.add(ImmutableSet.copyOf(component));
       }
-    });
-    Iterable<ImmutableSet<T>> immutableCycles =
-        Iterables.transform(cycles, new Function<Set<T>, ImmutableSet<T>>() {
-      @Override
-      public ImmutableSet<T> apply(Set<T> cycle) {
-        return ImmutableSet.copyOf(cycle);
-      }
-    });
-
-    // Tarjan's algorithm (as pseudo-coded on Wikipedia) does not appear to account for single-node
-    // cycles. Therefore, we must check for them exclusively.
-    ImmutableSet.Builder<ImmutableSet<T>> builder = ImmutableSet.builder();
-    builder.addAll(immutableCycles);
+    }
+    // Tarjan's algorithm does not account for single-node cycles, so check for them separately.
     for (T node : nodes) {
       if (containsEdge(node, node)) {
-        builder.add(ImmutableSet.of(node));
+        cycles.add(ImmutableSet.of(node));
       }
     }
-    return builder.build();
+    return cycles.build();
   }
 
   /**
-   * For this graph, returns the set of strongly connected components using Tarjan's
-   * algorithm. Note this is {@code O(|V| + |E|)}.
+   * For this graph, returns the set of strongly connected components using an iterative form of
+   * Tarjan's algorithm, which walks the graph's own edge maps rather than a copy of them. Note this
+   * is {@code O(|V| + |E|)}.
    * @return an unmodifiable {@link Set} of sets, each of which is also an unmodifiable {@link Set}
    *     and represents a strongly connected component.
    */
   public Set<Set<T>> findStronglyConnectedComponents() {
-    Tarjan<T> tarjan = new Tarjan<T>(this);
-    return tarjan.findStronglyConnectedComponents();
+    Map<T, Integer> indexes = Maps.newHashMapWithExpectedSize(nodes.size());
+    Map<T, Integer> lowlinks = Maps.newHashMapWithExpectedSize(nodes.size());
+    Set<T> onStack = Sets.newHashSetWithExpectedSize(nodes.size());
+    Deque<T> stack = new ArrayDeque<>();
+    // The nodes whose edges are being explored, and the edges of each left to explore.
+    Deque<T> callStack = new ArrayDeque<>();
+    Deque<Iterator<T>> edgeIterators = new ArrayDeque<>();
+    ImmutableSet.Builder<Set<T>> components = ImmutableSet.builder();
+
+    for (T root : nodes) {
+      if (indexes.containsKey(root)) {
+        continue;
+      }
+      indexes.put(root, indexes.size());
+      lowlinks.put(root, indexes.get(root));
+      stack.push(root);
+      onStack.add(root);
+      callStack.push(root);
+      edgeIterators.push(outgoingEdges.get(root).iterator());
+
+      while (!callStack.isEmpty()) {
+        T node = callStack.peek();
+        Iterator<T> edges = edgeIterators.peek();
+        if (edges.hasNext()) {
+          T sink = edges.next();
+          if (!indexes.containsKey(sink)) {
+            indexes.put(sink, indexes.size());
+            lowlinks.put(sink, indexes.get(sink));
+            stack.push(sink);
+            onStack.add(sink);
+            callStack.push(sink);
+            edgeIterators.push(outgoingEdges.get(sink).iterator());
+          } else if (onStack.contains(sink)) {
+            lowlinks.put(node, Math.min(lowlinks.get(node), indexes.get(sink)));
+          }
+          continue;
+        }
+
+        callStack.pop();
+        edgeIterators.pop();
+        if (lowlinks.get(node).equals(indexes.get(node))) {
+          ImmutableSet.Builder<T> component = ImmutableSet.builder();
+          T member;
+          do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+          } while (!member.equals(node));
+          components.add(component.build());
+        }
+        if (!callStack.isEmpty()) {
+          T caller = callStack.peek();
+          lowlinks.put(caller, Math.min(lowlinks.get(caller), lowlinks.get(node)));
+        }
+      }
+    }
+    return components.build();
   }
 
   @Override
@@ -202,80 +243,4 @@ public final class MutableDirectedGraph<T> implements TraversableGraph<T> {
   ImmutableSet<T> createImmutableCopyOfNodes() {
     return ImmutableSet.copyOf(nodes);
   }
-
-  ImmutableSetMultimap<T, T> createImmutableCopyOfOutgoingEdges() {
-    return ImmutableSetMultimap.copyOf(outgoingEdges);
-  }
-
-  ImmutableSetMultimap<T, T> createImmutableCopyOfIncomingEdges() {
-    return ImmutableSetMultimap.copyOf(incomingEdges);
-  }
-
-  /**
-   * Implementation of
-   * http://en.wikipedia.org/wiki/Tarjan%E2%80%99s_strongly_connected_components_algorithm
-   * used to find cycles in the graph.
-   */
-  private static class Tarjan<S> {
-    private final MutableDirectedGraph<S> graph;
-    private final Map<S, Integer> indexes;
-    private final Map<S, Integer> lowlinks;
-    private final Deque<S> nodeStack;
-    private final Set<Set<S>> stronglyConnectedComponents;
-    private int index;
-
-    private Tarjan(MutableDirectedGraph<S> graph) {
-      this.graph = graph;
-      this.indexes = Maps.newHashMap();
-      this.lowlinks = Maps.newHashMap();
-      this.nodeStack = Lists.newLinkedList();
-      this.stronglyConnectedComponents = Sets.newHashSet();
-      this.index = 0;
-    }
-
-    public Set<Set<S>> findStronglyConnectedComponents() {
-      for (S node : graph.nodes) {
-        if (!indexes.containsKey(node)) {
-          doStrongConnect(node);
-        }
-      }
-      return Collections.unmodifiableSet(stronglyConnectedComponents);
-    }
-
-    private void doStrongConnect(final S node) {
-      // Set the depth index for node to the smallest unused index.
-      indexes.put(node, index);
-      lowlinks.put(node, index);
-      index++;
-      nodeStack.push(node);
-
-      // Consider successors of node.
-      for (S sink : graph.getOutgoingNodesFor(node)) {
-        if (!indexes.containsKey(sink)) {
-          doStrongConnect(sink);
-          int lowlink = Math.min(
-              Preconditions.checkNotNull(lowlinks.get(node)),
-              Preconditions.checkNotNull(lowlinks.get(sink)));
-          lowlinks.put(node, lowlink);
-        } else if (nodeStack.contains(sink)) {
-          // TODO(bolinfest): contains() is O(N), consider maintaining an index so it is O(1)?
-          int lowlink = Math.min(
-              Preconditions.checkNotNull(lowlinks.get(node)),
-              Preconditions.checkNotNull(indexes.get(sink)));
-          lowlinks.put(node, lowlink);
-        }
-      }
-
-      // If node is a root node, then pop the stack and generate a strongly connected component.
-      if (Preconditions.checkNotNull(lowlinks.get(node)).equals(indexes.get(node))) {
-        Set<S> stronglyConnectedComponent = Sets.newHashSet();
-        S componentElement;
-        do {
-          componentElement = nodeStack.pop();
-          stronglyConnectedComponent.add(componentElement);
-        } while (componentElement != node);
-        stronglyConnectedComponents.add(Collections.unmodifiableSet(stronglyConnectedComponent));
-      }
-    }
-  }
 }
@@ -24,6 +24,8 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -36,6 +38,9 @@ public class TopologicalSort {
   public static <T extends Comparable<?>> ImmutableList<T> sort(
       TraversableGraph<T> graph,
       final Predicate<T> inclusionPredicate) {
+    if (graph instanceof DefaultTraversableGraph) {
+      return sort(((DefaultTraversableGraph<T>) graph).getCompactGraph(), inclusionPredicate);
+    }
 
     // AtomicInteger is used to decrement the integer value in-place.
     Map<T, AtomicInteger> effectiveOutDegreesOfExplorableNodes = Maps.newHashMap();
@@ -82,4 +87,31 @@ public class TopologicalSort {
 
     return toReturn.build();
   }
+
+  /**
+   * The same sort on a {@link CompactDirectedGraph}: the level of a node, as found by the
+   * breadth-first search above, is the length of the longest path from it to a node with no
+   * outgoing edges.
+   */
+  private static <T extends Comparable<?>> ImmutableList<T> sort(
+      CompactDirectedGraph<T> graph,
+      Predicate<T> inclusionPredicate) {
+    int[] heights = graph.getHeights();
+    List<Set<T>> levels = new ArrayList<>();
+    for (int node = 0; node < heights.length; node++) {
+      if (heights[node] == -1 || !inclusionPredicate.apply(graph.getNode(node))) {
+        continue;
+      }
+      while (levels.size() <= heights[node]) {
+        levels.add(Sets.<T>newTreeSet());
+      }
+      levels.get(heights[node]).add(graph.getNode(node));
+    }
+
+    ImmutableList.Builder<T> toReturn = ImmutableList.builder();
+    for (Set<T> level : levels) {
+      toReturn.addAll(level);
+    }
+    return toReturn.build();
+  }
 }
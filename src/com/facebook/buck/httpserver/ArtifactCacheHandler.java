@@ -27,6 +27,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 
@@ -34,6 +35,7 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -49,6 +51,9 @@ import javax.servlet.http.HttpServletResponse;
 public class ArtifactCacheHandler extends AbstractHandler {
   private static final Logger LOG = Logger.get(ArtifactCacheHandler.class);
 
+  private static final String MULTI_FETCH_PATH = "/artifacts/multifetch";
+  private static final String MULTI_STORE_PATH = "/artifacts/multistore";
+
   private final ProjectFilesystem projectFilesystem;
   private Optional<ArtifactCache> artifactCache;
 
@@ -71,8 +76,13 @@ public class ArtifactCacheHandler extends AbstractHandler {
     try {
       int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
       String method = baseRequest.getMethod();
+      String path = baseRequest.getUri().getPath();
       if (method.equals("GET")) {
         status = handleGet(baseRequest, response);
+      } else if (method.equals("POST") && path.equals(MULTI_FETCH_PATH)) {
+        status = handleMultiFetch(baseRequest, response);
+      } else if (method.equals("PUT") && path.equals(MULTI_STORE_PATH)) {
+        status = handleMultiPut(baseRequest, response);
       } else if (method.equals("PUT")) {
         status = handlePut(baseRequest, response);
       }
@@ -104,29 +114,14 @@ public class ArtifactCacheHandler extends AbstractHandler {
 
     Path temp = null;
     try {
-      projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
-      temp = projectFilesystem.createTempFile(
-          projectFilesystem.getBuckPaths().getScratchDir(),
-          "outgoing_rulekey",
-          ".tmp");
-      CacheResult fetchResult = artifactCache.get().fetch(ruleKey, LazyPath.ofInstance(temp));
-      if (!fetchResult.getType().isSuccess()) {
+      temp = createTempFile("outgoing_rulekey");
+      Optional<HttpArtifactCacheBinaryProtocol.FetchResponse> fetchResponse =
+          fetch(ruleKey, temp);
+      if (!fetchResponse.isPresent()) {
         return HttpServletResponse.SC_NOT_FOUND;
       }
-
-      final Path tempFinal = temp;
-      HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
-          new HttpArtifactCacheBinaryProtocol.FetchResponse(
-              ImmutableSet.of(ruleKey),
-              fetchResult.getMetadata(),
-              new ByteSource() {
-                @Override
-                public InputStream openStream() throws IOException {
-                  return projectFilesystem.newFileInputStream(tempFinal);
-                }
-              });
-      fetchResponse.write(response.getOutputStream());
-      response.setContentLengthLong(fetchResponse.getContentLength());
+      fetchResponse.get().write(response.getOutputStream());
+      response.setContentLengthLong(fetchResponse.get().getContentLength());
       return HttpServletResponse.SC_OK;
     } finally {
       if (temp != null) {
@@ -135,6 +130,71 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  private int handleMultiFetch(
+      Request baseRequest,
+      HttpServletResponse response) throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(requestInputData);
+    }
+
+    // The length of the response isn't known up front, so commit to success and stream the
+    // artifacts out one at a time.
+    response.setStatus(HttpServletResponse.SC_OK);
+    try (DataOutputStream responseOutputData =
+             new DataOutputStream(response.getOutputStream())) {
+      for (RuleKey ruleKey : ruleKeys) {
+        Path temp = createTempFile("outgoing_rulekey");
+        try {
+          Optional<HttpArtifactCacheBinaryProtocol.FetchResponse> fetchResponse =
+              fetch(ruleKey, temp);
+          if (fetchResponse.isPresent()) {
+            HttpArtifactCacheBinaryProtocol.writeMultiFetchHit(
+                responseOutputData,
+                fetchResponse.get());
+          } else {
+            HttpArtifactCacheBinaryProtocol.writeMultiFetchMiss(responseOutputData);
+          }
+        } finally {
+          projectFilesystem.deleteFileAtPathIfExists(temp);
+        }
+      }
+    }
+    return HttpServletResponse.SC_OK;
+  }
+
+  private Optional<HttpArtifactCacheBinaryProtocol.FetchResponse> fetch(
+      RuleKey ruleKey,
+      final Path temp) throws IOException {
+    CacheResult fetchResult = artifactCache.get().fetch(ruleKey, LazyPath.ofInstance(temp));
+    if (!fetchResult.getType().isSuccess()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new HttpArtifactCacheBinaryProtocol.FetchResponse(
+            ImmutableSet.of(ruleKey),
+            fetchResult.getMetadata(),
+            new ByteSource() {
+              @Override
+              public InputStream openStream() throws IOException {
+                return projectFilesystem.newFileInputStream(temp);
+              }
+            }));
+  }
+
+  private Path createTempFile(String prefix) throws IOException {
+    projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
+    return projectFilesystem.createTempFile(
+        projectFilesystem.getBuckPaths().getScratchDir(),
+        prefix,
+        ".tmp");
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
@@ -143,37 +203,73 @@ public class ArtifactCacheHandler extends AbstractHandler {
 
     Path temp = null;
     try {
-      projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
-      temp = projectFilesystem.createTempFile(
-          projectFilesystem.getBuckPaths().getScratchDir(),
-          "incoming_upload",
-          ".tmp");
-
-      StoreResponseReadResult storeRequest;
-      try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream());
-           OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
-        storeRequest = HttpArtifactCacheBinaryProtocol.readStoreRequest(
-            requestInputData,
-            tempFileOutputStream);
+      temp = createTempFile("incoming_upload");
+      boolean stored;
+      try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+        stored = store(requestInputData, temp);
       }
-
-      if (!storeRequest.getActualHashCode().equals(storeRequest.getExpectedHashCode())) {
+      if (!stored) {
         response.getWriter().write("Checksum mismatch.");
         return HttpServletResponse.SC_NOT_ACCEPTABLE;
       }
-
-      artifactCache.get().store(
-          ArtifactInfo.builder()
-              .setRuleKeys(storeRequest.getRuleKeys())
-              .setMetadata(storeRequest.getMetadata())
-              .build(),
-          BorrowablePath.notBorrowablePath(temp));
       return HttpServletResponse.SC_ACCEPTED;
     } finally {
       if (temp != null) {
         projectFilesystem.deleteFileAtPathIfExists(temp);
       }
     }
+  }
+
+  private int handleMultiPut(Request baseRequest, HttpServletResponse response) throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList.Builder<Boolean> stored = ImmutableList.builder();
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      int count = HttpArtifactCacheBinaryProtocol.readMultiStoreRequestCount(requestInputData);
+      for (int i = 0; i < count; i++) {
+        Path temp = createTempFile("incoming_upload");
+        try (DataInputStream storeRequestData =
+                 HttpArtifactCacheBinaryProtocol.readMultiStoreRequestEntry(requestInputData)) {
+          stored.add(store(storeRequestData, temp));
+        } finally {
+          projectFilesystem.deleteFileAtPathIfExists(temp);
+        }
+      }
+    }
+
+    try (DataOutputStream responseOutputData =
+             new DataOutputStream(response.getOutputStream())) {
+      HttpArtifactCacheBinaryProtocol.writeMultiStoreResponse(responseOutputData, stored.build());
+    }
+    return HttpServletResponse.SC_ACCEPTED;
+  }
+
+  /**
+   * Reads a single store request, storing the artifact in the cache if its checksum is correct.
+   *
+   * @return whether the artifact was stored.
+   */
+  private boolean store(DataInputStream requestInputData, Path temp) throws IOException {
+    StoreResponseReadResult storeRequest;
+    try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+      storeRequest = HttpArtifactCacheBinaryProtocol.readStoreRequest(
+          requestInputData,
+          tempFileOutputStream);
+    }
+
+    if (!storeRequest.getActualHashCode().equals(storeRequest.getExpectedHashCode())) {
+      return false;
+    }
 
+    artifactCache.get().store(
+        ArtifactInfo.builder()
+            .setRuleKeys(storeRequest.getRuleKeys())
+            .setMetadata(storeRequest.getMetadata())
+            .build(),
+        BorrowablePath.notBorrowablePath(temp));
+    return true;
   }
 }
@@ -51,6 +51,14 @@ abstract class AbstractBuckPaths {
     return getBuckOut().resolve(".currentversion");
   }
 
+  /**
+   * The index of file content hashes which is persisted between runs of Buck.
+   */
+  @Value.Derived
+  public Path getFileHashIndex() {
+    return getBuckOut().resolve(".filehashes");
+  }
+
   @Value.Derived
   public Path getGenDir() {
     return getConfiguredBuckOut().resolve("gen");
@@ -86,6 +94,22 @@ abstract class AbstractBuckPaths {
     return getBuckOut().resolve("cache");
   }
 
+  /**
+   * Where parse results are kept between runs of Buck, when enabled.
+   */
+  @Value.Derived
+  public Path getParseCacheDir() {
+    return getBuckOut().resolve("parse");
+  }
+
+  /**
+   * Where the chunks of artifacts stored in the cache in chunks are kept locally.
+   */
+  @Value.Derived
+  public Path getArtifactChunksDir() {
+    return getBuckOut().resolve("chunks");
+  }
+
   @Value.Derived
   public Path getTmpDir() {
     return getBuckOut().resolve("tmp");
@@ -21,6 +21,7 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.zip.CustomZipEntry;
 import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
@@ -42,6 +43,7 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
 import java.io.BufferedInputStream;
@@ -120,6 +122,11 @@ public class ProjectFilesystem {
     DIRECTORY_AND_CONTENTS,
   }
 
+  // Extensions of files which are (almost always) compressed already.
+  private static final ImmutableSet<String> ALREADY_COMPRESSED_EXTENSIONS = ImmutableSet.of(
+      "7z", "aar", "apk", "bz2", "gif", "gz", "jar", "jpeg", "jpg", "mp3", "mp4", "ogg", "png",
+      "tgz", "war", "webp", "xz", "zip");
+
   // A non-exhaustive list of characters that might indicate that we're about to deal with a glob.
   private static final Pattern GLOB_CHARS = Pattern.compile("[\\*\\?\\{\\[]");
 
@@ -258,6 +265,14 @@ public class ProjectFilesystem {
 
   private static BuckPaths getConfiguredBuckPaths(Path rootPath, Config config) {
     BuckPaths buckPaths = getDefaultBuckPaths(rootPath);
+    // Keeps this process's logs, temporary files and indexes apart from those of other processes
+    // building in the same buck-out at the same time, while the build outputs are still shared.
+    Optional<String> privateBuckOut = config.getValue("project", "private_buck_out");
+    if (privateBuckOut.isPresent()) {
+      buckPaths =
+          BuckPaths.of(rootPath.getFileSystem().getPath(privateBuckOut.get()))
+              .withConfiguredBuckOut(buckPaths.getBuckOut());
+    }
     Optional<String> configuredBuckOut = config.getValue("project", "buck_out");
     if (configuredBuckOut.isPresent()) {
       buckPaths =
@@ -1047,6 +1062,23 @@ public class ProjectFilesystem {
 
         entry.setExternalAttributes(getFileAttributesForZipEntry(path));
 
+        // Deflating data which is already compressed costs a lot of time and saves almost no
+        // space, so store it as is.  Stored entries need their CRC and size up front.
+        if (!isDirectory && isAlreadyCompressed(path)) {
+          final Path file = path;
+          entry.setCompressionLevel(ZipCompressionLevel.MIN_COMPRESSION_LEVEL.getValue());
+          long size = getFileSize(file);
+          entry.setSize(size);
+          entry.setCompressedSize(size);
+          entry.setCrc(
+              new ByteSource() {
+                @Override
+                public InputStream openStream() throws IOException {
+                  return newFileInputStream(file);
+                }
+              }.hash(Hashing.crc32()).padToLong());
+        }
+
         zip.putNextEntry(entry);
         if (!isDirectory) {
           try (InputStream input = newFileInputStream(path)) {
@@ -1070,6 +1102,10 @@ public class ProjectFilesystem {
     }
   }
 
+  private static boolean isAlreadyCompressed(Path path) {
+    return ALREADY_COMPRESSED_EXTENSIONS.contains(MorePaths.getFileExtension(path).toLowerCase());
+  }
+
   public Manifest getJarManifest(Path path) throws IOException {
     Path absolutePath = resolve(path);
     try (JarFile jarFile = new JarFile(absolutePath.toFile())) {
@@ -1153,6 +1189,24 @@ public class ProjectFilesystem {
     return false;
   }
 
+  /**
+   * @param path a normalized path, relative to the project root.
+   * @return whether changes to {@code path} are reported by the file watcher: it must be inside the
+   *     project and not under any of the {@link #getIgnorePaths()}, which unlike the paths checked
+   *     by {@link #isIgnored} include buck-out.
+   */
+  public boolean isWatched(Path path) {
+    if (path.startsWith("..")) {
+      return false;
+    }
+    for (PathOrGlobMatcher ignored : blackListedDirectories) {
+      if (ignored.matches(path)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Returns a relative path whose parent directory is guaranteed to exist. The path will be under
    * {@code buck-out}, so it is safe to write to.
@@ -364,6 +364,17 @@ public class Watchman implements AutoCloseable {
     return watchmanClient;
   }
 
+  /**
+   * Opens another connection to Watchman, for uses such as subscriptions which need a connection
+   * of their own, and which the caller must close.
+   */
+  public Optional<WatchmanClient> connect(Console console, Clock clock) {
+    if (!socketPath.isPresent()) {
+      return Optional.absent();
+    }
+    return localSocketWatchmanConnector(console, clock).apply(socketPath.get());
+  }
+
   @Override
   public void close() throws IOException {
     if (watchmanClient.isPresent()) {
@@ -30,6 +30,12 @@ public interface WatchmanClient extends AutoCloseable {
       long timeoutNanos,
       Object... query) throws IOException, InterruptedException;
 
+  /**
+   * Waits for the next message Watchman sends without being asked, such as a notification for a
+   * subscription made with this client. Must not be called while a query is outstanding.
+   */
+  Map<String, ? extends Object> receive() throws IOException, InterruptedException;
+
   @Override
   public void close() throws IOException;
 }
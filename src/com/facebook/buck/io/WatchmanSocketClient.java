@@ -103,6 +103,17 @@ class WatchmanSocketClient implements WatchmanClient, AutoCloseable {
     }
   }
 
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> receive() throws IOException {
+    Object message = bserDeserializer.deserializeBserValue(watchmanSocket.getInputStream());
+    LOG.verbose("Got message: %s", message);
+    if (!(message instanceof Map<?, ?>)) {
+      throw new IOException(String.format("Unrecognized Watchman message: %s", message));
+    }
+    return (Map<String, Object>) message;
+  }
+
   @Override
   public void close() throws IOException {
     LOG.debug("Closing Watchman socket.");
@@ -52,4 +52,9 @@ abstract class AbstractProjectBuildFileParserOptions {
   }
 
   abstract Optional<Long> getWatchmanQueryTimeoutMs();
+
+  /**
+   * Where to keep parse results between runs, if at all.
+   */
+  abstract Optional<Path> getParseCacheDir();
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.bser.BserDeserializer;
+import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk cache of the rules parsed from build files, so that a build file which has not changed
+ * since it was last parsed, even by a different buck process, need not be run through buck.py.
+ * <p>
+ * Entries are keyed by the build file and by everything which is passed to the parser (its
+ * configuration, environment and generated buck.py). An entry is only used if none of the files
+ * the build file included have changed contents, and no file has been added to or removed from
+ * the build file's package, since that could change the result of a {@code glob()}.
+ * <p>
+ * Entries which have not been used for {@link #MAX_ENTRY_AGE_MS} are deleted, so that entries
+ * for removed build files or old configurations do not accumulate.
+ */
+class ParseResultCache {
+  private static final Logger LOG = Logger.get(ParseResultCache.class);
+
+  private static final String INCLUDES_META_RULE = "__includes";
+  private static final String INCLUDE_HASHES_KEY = "include_hashes";
+  private static final String PACKAGE_LISTING_KEY = "package_listing";
+  private static final String VALUES_KEY = "values";
+  private static final String LAST_EVICTION_FILE = "last_eviction";
+  private static final long MAX_ENTRY_AGE_MS = TimeUnit.DAYS.toMillis(7);
+  private static final long EVICTION_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+  private final Path cacheDir;
+  private final Path projectRoot;
+  private final String buildFileName;
+  private final ImmutableSet<PathOrGlobMatcher> ignorePaths;
+  private final Supplier<HashCode> parserKey;
+  private final BserDeserializer bserDeserializer;
+  private final BserSerializer bserSerializer;
+  // Build files share most of their includes, so only hash each of them once.
+  private final Map<Path, String> includeHashes;
+  // Listings computed by a lookup which missed, for the store which follows the parse.
+  private final Map<Path, String> packageListings;
+  private boolean evictionChecked;
+
+  /**
+   * @param parserKey hash of all the inputs to the parser which are not build files, or files
+   *     included by build files.
+   */
+  ParseResultCache(
+      Path cacheDir,
+      Path projectRoot,
+      String buildFileName,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Supplier<HashCode> parserKey) {
+    this.cacheDir = cacheDir;
+    this.projectRoot = projectRoot;
+    this.buildFileName = buildFileName;
+    this.ignorePaths = ignorePaths;
+    this.parserKey = parserKey;
+    this.bserDeserializer = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+    this.bserSerializer = new BserSerializer();
+    this.includeHashes = new HashMap<>();
+    this.packageListings = new ConcurrentHashMap<>();
+    this.evictionChecked = false;
+  }
+
+  /**
+   * @return the rules and meta rules previously parsed from {@code buildFile}, if none of the
+   *     inputs to that parse have changed since.
+   */
+  @SuppressWarnings("unchecked")
+  public Optional<List<Map<String, Object>>> lookup(Path buildFile) {
+    Path entryPath = getEntryPath(buildFile);
+    if (!Files.isRegularFile(entryPath)) {
+      return Optional.absent();
+    }
+    try {
+      Object deserialized;
+      try (InputStream input = new BufferedInputStream(Files.newInputStream(entryPath))) {
+        deserialized = bserDeserializer.deserializeBserValue(input);
+      }
+      if (!(deserialized instanceof Map)) {
+        throw new IOException("Parse cache entry is not a map.");
+      }
+      Map<?, ?> entry = (Map<?, ?>) deserialized;
+      Map<?, ?> recordedHashes = (Map<?, ?>) getField(entry, INCLUDE_HASHES_KEY, Map.class);
+      String packageListing = (String) getField(entry, PACKAGE_LISTING_KEY, String.class);
+      List<?> values = (List<?>) getField(entry, VALUES_KEY, List.class);
+      for (Object value : values) {
+        if (!(value instanceof Map)) {
+          throw new IOException("Parse cache entry has a value which is not a map.");
+        }
+      }
+
+      for (Map.Entry<?, ?> recorded : recordedHashes.entrySet()) {
+        if (!(recorded.getKey() instanceof String) || !(recorded.getValue() instanceof String)) {
+          throw new IOException("Parse cache entry has a malformed include hash.");
+        }
+        Path include = projectRoot.resolve((String) recorded.getKey());
+        if (!Files.isRegularFile(include) ||
+            !hashInclude(include).equals(recorded.getValue())) {
+          LOG.verbose("Parse cache entry for %s is stale: %s changed.", buildFile, include);
+          return Optional.absent();
+        }
+      }
+      String currentListing = hashPackageListing(buildFile);
+      if (!currentListing.equals(packageListing)) {
+        LOG.verbose("Parse cache entry for %s is stale: package contents changed.", buildFile);
+        packageListings.put(buildFile, currentListing);
+        return Optional.absent();
+      }
+      // Entries are evicted by age, so record that this one is still in use.
+      Files.setLastModifiedTime(entryPath, FileTime.fromMillis(System.currentTimeMillis()));
+      return Optional.of((List<Map<String, Object>>) values);
+    } catch (IOException e) {
+      LOG.debug(e, "Ignoring unreadable parse cache entry %s.", entryPath);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Records the rules and meta rules parsed from {@code buildFile}.  Failures are logged rather
+   * than thrown, since the parse itself succeeded.
+   */
+  public void store(Path buildFile, List<Map<String, Object>> rulesAndMetaRules) {
+    Path entryPath = getEntryPath(buildFile);
+    // Prefer the listing taken before the parse: if the package changes while it is being parsed,
+    // the entry is then stale rather than wrongly up to date.
+    String packageListing = packageListings.remove(buildFile);
+    try {
+      evictStaleEntriesIfDue();
+      if (packageListing == null) {
+        packageListing = hashPackageListing(buildFile);
+      }
+      Map<String, String> hashes = new HashMap<>();
+      for (Path include : getIncludes(rulesAndMetaRules)) {
+        hashes.put(include.toString(), hashInclude(projectRoot.resolve(include)));
+      }
+
+      Files.createDirectories(entryPath.getParent());
+      Path tempPath = Files.createTempFile(
+          entryPath.getParent(),
+          entryPath.getFileName().toString(),
+          ".tmp");
+      try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+        bserSerializer.serializeToStream(
+            ImmutableMap.of(
+                INCLUDE_HASHES_KEY, hashes,
+                PACKAGE_LISTING_KEY, packageListing,
+                VALUES_KEY, rulesAndMetaRules),
+            output);
+      }
+      Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Failed to store parse cache entry for %s.", buildFile);
+    }
+  }
+
+  /**
+   * Deletes entries which have not been stored or used for {@link #MAX_ENTRY_AGE_MS}.  Walking
+   * the whole cache is only worth it every so often, so a marker file records when it was last
+   * done, across processes.
+   */
+  private synchronized void evictStaleEntriesIfDue() throws IOException {
+    if (evictionChecked) {
+      return;
+    }
+    evictionChecked = true;
+    long now = System.currentTimeMillis();
+    Path marker = cacheDir.resolve(LAST_EVICTION_FILE);
+    if (!Files.isDirectory(cacheDir)) {
+      return;
+    }
+    if (Files.isRegularFile(marker) &&
+        now - Files.getLastModifiedTime(marker).toMillis() < EVICTION_INTERVAL_MS) {
+      return;
+    }
+    Files.write(marker, new byte[0]);
+    final long oldest = now - MAX_ENTRY_AGE_MS;
+    Files.walkFileTree(
+        cacheDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (attrs.lastModifiedTime().toMillis() < oldest) {
+              Files.deleteIfExists(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            if (e != null) {
+              throw e;
+            }
+            if (!dir.equals(cacheDir)) {
+              try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                if (!entries.iterator().hasNext()) {
+                  Files.deleteIfExists(dir);
+                }
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private static Object getField(Map<?, ?> entry, String key, Class<?> type) throws IOException {
+    Object value = entry.get(key);
+    if (!type.isInstance(value)) {
+      throw new IOException(String.format("Parse cache entry has no valid %s.", key));
+    }
+    return value;
+  }
+
+  private Path getEntryPath(Path buildFile) {
+    String key = Hashing.sha1().newHasher()
+        .putBytes(parserKey.get().asBytes())
+        .putUnencodedChars(buildFile.toString())
+        .hash()
+        .toString();
+    return cacheDir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Path> getIncludes(List<Map<String, Object>> rulesAndMetaRules) throws IOException {
+    for (Map<String, Object> rule : rulesAndMetaRules) {
+      if (rule.containsKey(INCLUDES_META_RULE)) {
+        List<Path> includes = new ArrayList<>();
+        for (String include : (List<String>) rule.get(INCLUDES_META_RULE)) {
+          Path path = projectRoot.resolve(include);
+          includes.add(path.startsWith(projectRoot) ? projectRoot.relativize(path) : path);
+        }
+        return includes;
+      }
+    }
+    throw new IOException("Parser output has no " + INCLUDES_META_RULE + " meta rule.");
+  }
+
+  private synchronized String hashInclude(Path include) throws IOException {
+    String hash = includeHashes.get(include);
+    if (hash == null) {
+      hash = Hashing.sha1().hashBytes(Files.readAllBytes(include)).toString();
+      includeHashes.put(include, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Hashes the names of all the files under the directory of {@code buildFile}, stopping at
+   * subdirectories which have a build file of their own, since their files belong to another
+   * package.
+   */
+  private String hashPackageListing(Path buildFile) throws IOException {
+    List<String> names = new ArrayList<>();
+    Path packageDir = buildFile.getParent();
+    Set<Path> visited = new HashSet<>();
+    visited.add(packageDir.toRealPath());
+    listPackage(packageDir, packageDir, names, visited);
+    Collections.sort(names);
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String name : names) {
+      hasher.putUnencodedChars(name).putChar('\0');
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * @param visited the real paths of the directories listed so far, so that symlinks which loop
+   *     back to one of them are not followed forever.
+   */
+  private void listPackage(
+      Path packageDir,
+      Path dir,
+      List<String> names,
+      Set<Path> visited) throws IOException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+      for (Path entry : entries) {
+        if (isIgnored(entry)) {
+          continue;
+        }
+        String name = MorePaths.pathWithUnixSeparators(packageDir.relativize(entry));
+        if (Files.isDirectory(entry)) {
+          names.add(name + "/");
+          if (Files.isRegularFile(entry.resolve(buildFileName))) {
+            continue;
+          }
+          if (visited.add(entry.toRealPath())) {
+            listPackage(packageDir, entry, names, visited);
+          }
+        } else {
+          names.add(name);
+        }
+      }
+    }
+  }
+
+  private boolean isIgnored(Path path) {
+    if (!path.startsWith(projectRoot)) {
+      return false;
+    }
+    Path relativePath = projectRoot.relativize(path);
+    for (PathOrGlobMatcher ignorePath : ignorePaths) {
+      if (ignorePath.matches(relativePath)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
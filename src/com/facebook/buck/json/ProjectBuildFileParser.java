@@ -27,6 +27,7 @@ import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.PathOrGlobMatcher;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.rules.BuckPyFunction;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
 import com.facebook.buck.rules.Description;
@@ -48,6 +49,9 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Resources;
 
 import org.immutables.value.Value;
@@ -117,6 +121,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
   @Nullable private FutureTask<Void> stderrConsumerTerminationFuture;
   @Nullable private Thread stderrConsumerThread;
   @Nullable private ProjectBuildFileParseEvents.Started projectBuildFileParseEventStarted;
+  private final Optional<ParseResultCache> parseResultCache;
 
   protected ProjectBuildFileParser(
       final ProjectBuildFileParserOptions options,
@@ -176,6 +181,59 @@ public class ProjectBuildFileParser implements AutoCloseable {
                 }
               }
             });
+
+    if (options.getParseCacheDir().isPresent()) {
+      this.parseResultCache = Optional.of(
+          new ParseResultCache(
+              options.getParseCacheDir().get(),
+              options.getProjectRoot(),
+              options.getBuildFileName(),
+              options.getIgnorePaths(),
+              Suppliers.memoize(
+                  new Supplier<HashCode>() {
+                    @Override
+                    public HashCode get() {
+                      return computeParserKey();
+                    }
+                  })));
+    } else {
+      this.parseResultCache = Optional.absent();
+    }
+  }
+
+  /**
+   * Hashes everything other than build files and their includes which can change what buck.py
+   * returns for a build file.
+   */
+  private HashCode computeParserKey() {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putUnencodedChars(BuckVersion.getVersion());
+    try {
+      hasher.putBytes(Resources.toByteArray(Resources.getResource(BUCK_PY_RESOURCE)));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    BuckPyFunction function = new BuckPyFunction(marshaller);
+    for (Description<?> description : options.getDescriptions()) {
+      hasher.putUnencodedChars(
+          function.toPythonFunction(
+              description.getBuildRuleType(),
+              description.createUnpopulatedConstructorArg()));
+    }
+    JsonObjectHashing.hashJsonObject(hasher, options.getRawConfig());
+    JsonObjectHashing.hashJsonObject(hasher, environment);
+    JsonObjectHashing.hashJsonObject(
+        hasher,
+        FluentIterable.from(options.getIgnorePaths())
+            .transform(PathOrGlobMatcher.toPathOrGlob())
+            .toList());
+    JsonObjectHashing.hashJsonObject(hasher, options.getDefaultIncludes());
+    hasher.putUnencodedChars(options.getProjectRoot().toAbsolutePath().toString());
+    hasher.putUnencodedChars(options.getPythonInterpreter());
+    hasher.putUnencodedChars(options.getBuildFileName());
+    hasher.putBoolean(options.getAllowEmptyGlobs());
+    hasher.putBoolean(ignoreBuckAutodepsFiles);
+    return hasher.hash();
   }
 
   public void setEnableProfiling(boolean enableProfiling) {
@@ -357,6 +415,20 @@ public class ProjectBuildFileParser implements AutoCloseable {
   protected List<Map<String, Object>> getAllRulesInternal(Path buildFile)
       throws IOException, BuildFileParseException {
     ensureNotClosed();
+
+    if (parseResultCache.isPresent()) {
+      Optional<List<Map<String, Object>>> cachedValues =
+          parseResultCache.get().lookup(buildFile);
+      if (cachedValues.isPresent()) {
+        LOG.verbose("Using cached rules for %s.", buildFile);
+        ParseBuckFileEvent.Started parseBuckFileStarted = ParseBuckFileEvent.started(buildFile);
+        buckEventBus.post(parseBuckFileStarted);
+        buckEventBus.post(
+            ParseBuckFileEvent.finished(parseBuckFileStarted, cachedValues.get(), ""));
+        return cachedValues.get();
+      }
+    }
+
     initIfNeeded();
 
     // Check isInitialized implications (to avoid Eradicate warnings).
@@ -390,6 +462,11 @@ public class ProjectBuildFileParser implements AutoCloseable {
       LOG.verbose("Got rules: %s", values);
       LOG.debug("Parsed %d rules from process", values.size());
       profile = resultObject.getProfile();
+      // Diagnostics need to be reported every time the file is parsed, so only clean parses can
+      // be served from the cache.
+      if (parseResultCache.isPresent() && resultObject.getDiagnostics().isEmpty()) {
+        parseResultCache.get().store(buildFile, values);
+      }
       return values;
     } finally {
       buckEventBus.post(ParseBuckFileEvent.finished(parseBuckFileStarted, values, profile));
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.cache.JarContentsCache;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Serves the class files of jars on the classpath out of a {@link JarContentsCache} rather than
+ * having javac open and read each of them again for every compilation.
+ * <p>
+ * A location is only served from the cache if everything on it is a jar; otherwise it is left
+ * to the wrapped file manager. The platform classpath is only served from the cache when it was
+ * given explicitly, as javac treats the JDK's own one specially.
+ */
+class JarContentsCachingFileManager extends ForwardingStandardJavaFileManager {
+
+  private static final Logger LOG = Logger.get(JarContentsCachingFileManager.class);
+
+  private final JarContentsCache cache;
+  private final ImmutableSet<StandardLocation> cachedLocations;
+  // Only accessed from the compiling thread.
+  private final Map<Location, Optional<ImmutableList<CachedJar>>> jarsByLocation =
+      new HashMap<>();
+
+  private final AtomicInteger jarsFromCache = new AtomicInteger();
+  private final AtomicInteger classesFromCache = new AtomicInteger();
+  private final AtomicLong nanosSaved = new AtomicLong();
+
+  public JarContentsCachingFileManager(
+      StandardJavaFileManager fileManager,
+      JarContentsCache cache,
+      boolean explicitBootclasspath) {
+    super(fileManager);
+    this.cache = cache;
+    this.cachedLocations = explicitBootclasspath ?
+        ImmutableSet.of(StandardLocation.CLASS_PATH, StandardLocation.PLATFORM_CLASS_PATH) :
+        ImmutableSet.of(StandardLocation.CLASS_PATH);
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(
+      Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    Optional<ImmutableList<CachedJar>> jars = getCachedJars(location);
+    if (!jars.isPresent() || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+
+    ImmutableList.Builder<JavaFileObject> files = ImmutableList.builder();
+    // Without a -sourcepath javac also looks for sources on the classpath, which are not cached.
+    Set<JavaFileObject.Kind> otherKinds =
+        Sets.difference(kinds, ImmutableSet.of(JavaFileObject.Kind.CLASS));
+    if (!otherKinds.isEmpty()) {
+      files.addAll(super.list(location, packageName, otherKinds, recurse));
+    }
+    for (CachedJar jar : jars.get()) {
+      if (recurse) {
+        for (String jarPackage : jar.contents.getPackages()) {
+          if (packageName.isEmpty() ||
+              jarPackage.equals(packageName) ||
+              jarPackage.startsWith(packageName + ".")) {
+            addClassFiles(jar, jarPackage, files);
+          }
+        }
+      } else {
+        addClassFiles(jar, packageName, files);
+      }
+    }
+    return files.build();
+  }
+
+  private void addClassFiles(
+      CachedJar jar,
+      String packageName,
+      ImmutableList.Builder<JavaFileObject> files) {
+    for (JarContentsCache.ClassFile classFile : jar.contents.getClassFiles(packageName)) {
+      files.add(new CachedClassFileObject(jar, classFile));
+    }
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof CachedClassFileObject) {
+      return ((CachedClassFileObject) file).getBinaryName();
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof CachedClassFileObject || b instanceof CachedClassFileObject) {
+      return a.toUri().equals(b.toUri());
+    }
+    return super.isSameFile(a, b);
+  }
+
+  private Optional<ImmutableList<CachedJar>> getCachedJars(Location location) {
+    Optional<ImmutableList<CachedJar>> jars = jarsByLocation.get(location);
+    if (jars == null) {
+      jars = loadCachedJars(location);
+      jarsByLocation.put(location, jars);
+    }
+    return jars;
+  }
+
+  private Optional<ImmutableList<CachedJar>> loadCachedJars(Location location) {
+    if (!(location instanceof StandardLocation) || !cachedLocations.contains(location)) {
+      return Optional.absent();
+    }
+    Iterable<? extends File> entries = getLocation(location);
+    if (entries == null) {
+      return Optional.absent();
+    }
+
+    ImmutableList.Builder<CachedJar> jars = ImmutableList.builder();
+    for (File entry : entries) {
+      Path path = entry.toPath().toAbsolutePath();
+      if (!entry.exists()) {
+        // javac silently skips missing classpath entries too.
+        continue;
+      }
+      String name = entry.getName();
+      if (!entry.isFile() || !(name.endsWith(".jar") || name.endsWith(".zip"))) {
+        LOG.verbose("Not caching %s as it includes %s.", location, path);
+        return Optional.absent();
+      }
+      try {
+        JarContentsCache.Lookup lookup = cache.get(path);
+        jars.add(new CachedJar(path, lookup.getContents(), lookup.isHit()));
+      } catch (IOException e) {
+        LOG.debug(e, "Not caching %s as %s could not be read.", location, path);
+        return Optional.absent();
+      }
+    }
+
+    ImmutableList<CachedJar> cachedJars = jars.build();
+    for (CachedJar jar : cachedJars) {
+      if (jar.hit) {
+        jarsFromCache.incrementAndGet();
+        nanosSaved.addAndGet(jar.contents.getIndexNanos());
+      }
+    }
+    return Optional.of(cachedJars);
+  }
+
+  /**
+   * @return the number of jars which were already held by the cache when they were needed.
+   */
+  public int getJarsFromCache() {
+    return jarsFromCache.get();
+  }
+
+  /**
+   * @return the number of class files read out of jars which were already held by the cache.
+   */
+  public int getClassesFromCache() {
+    return classesFromCache.get();
+  }
+
+  /**
+   * @return how long opening the jars and reading the class files this compilation took from
+   *     the cache originally took.
+   */
+  public long getNanosSaved() {
+    return nanosSaved.get();
+  }
+
+  private static class CachedJar {
+    private final Path path;
+    private final JarContentsCache.JarContents contents;
+    private final boolean hit;
+
+    CachedJar(Path path, JarContentsCache.JarContents contents, boolean hit) {
+      this.path = path;
+      this.contents = contents;
+      this.hit = hit;
+    }
+  }
+
+  /**
+   * A class file in a cached jar. Its URI names the jar it is in the same way javac's own file
+   * objects for jar entries do, so that class usage tracking sees no difference.
+   */
+  private class CachedClassFileObject extends SimpleJavaFileObject {
+    private final CachedJar jar;
+    private final JarContentsCache.ClassFile classFile;
+
+    CachedClassFileObject(CachedJar jar, JarContentsCache.ClassFile classFile) {
+      // SimpleJavaFileObject insists on a hierarchical URI, which jar: URIs are not; the real one
+      // is returned from toUri() instead.
+      super(URI.create("cached:///" + classFile.getEntryName()), Kind.CLASS);
+      this.jar = jar;
+      this.classFile = classFile;
+    }
+
+    @Override
+    public URI toUri() {
+      return URI.create("jar:" + jar.path.toUri().normalize() + "!/" + classFile.getEntryName());
+    }
+
+    String getBinaryName() {
+      String entryName = classFile.getEntryName();
+      return entryName
+          .substring(0, entryName.length() - Kind.CLASS.extension.length())
+          .replace('/', '.');
+    }
+
+    @Override
+    public String getName() {
+      return jar.path + "(" + classFile.getEntryName() + ")";
+    }
+
+    @Override
+    public boolean isNameCompatible(String simpleName, Kind kind) {
+      if (kind != Kind.CLASS) {
+        return false;
+      }
+      String entryName = classFile.getEntryName();
+      String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+      return fileName.equals(simpleName + kind.extension);
+    }
+
+    @Override
+    public InputStream openInputStream() {
+      if (jar.hit) {
+        classesFromCache.incrementAndGet();
+        nanosSaved.addAndGet(classFile.getReadNanos());
+      }
+      return new ByteArrayInputStream(classFile.getContents());
+    }
+  }
+}
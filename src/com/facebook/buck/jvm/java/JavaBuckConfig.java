@@ -116,6 +116,14 @@ public class JavaBuckConfig {
     return delegate.getBooleanValue("java", "skip_checking_missing_deps", false);
   }
 
+  /**
+   * @return whether in-memory javac should keep the class files of classpath jars in memory, keyed
+   *     by the jars' contents, instead of reading each jar again for every compilation.
+   */
+  public boolean isJarContentsCacheEnabled() {
+    return delegate.getBooleanValue("java", "javac_jar_contents_cache", false);
+  }
+
   public Optional<Integer> getDxThreadCount() {
     return delegate.getInteger("java", "dx_threads");
   }
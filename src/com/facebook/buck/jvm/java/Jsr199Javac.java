@@ -19,6 +19,8 @@ package com.facebook.buck.jvm.java;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckTracingEventBusBridge;
 import com.facebook.buck.event.MissingSymbolEvent;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.event.api.BuckTracing;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.jvm.java.tracing.TranslatingJavacPhaseTracer;
@@ -28,6 +30,7 @@ import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
@@ -58,6 +61,7 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -139,6 +143,16 @@ public abstract class Jsr199Javac implements Javac {
 
     StandardJavaFileManager fileManager =
         fileManagerFactory.or(DEFAULT_FILE_MANAGER_FACTORY).create(compiler);
+    Optional<JarContentsCachingFileManager> cachingFileManager = Optional.absent();
+    Optional<JarContentsCache> jarContentsCache = context.getJarContentsCache();
+    if (jarContentsCache.isPresent()) {
+      cachingFileManager = Optional.of(
+          new JarContentsCachingFileManager(
+              fileManager,
+              jarContentsCache.get(),
+              /* explicitBootclasspath */ options.contains("-bootclasspath")));
+      fileManager = cachingFileManager.get();
+    }
     try {
       Iterable<? extends JavaFileObject> compilationUnits;
       try {
@@ -151,8 +165,14 @@ public abstract class Jsr199Javac implements Javac {
         return 1;
       }
 
-      try {
-        return buildWithClasspath(
+      try (SimplePerfEvent.Scope scope = SimplePerfEvent.scope(
+          cachingFileManager.isPresent() ?
+              Optional.of(context.getBuckEventBus()) :
+              Optional.<BuckEventBus>absent(),
+          PerfEventId.of("javac_jar_contents_cache"),
+          "target",
+          invokingRule)) {
+        int result = buildWithClasspath(
             context,
             filesystem,
             invokingRule,
@@ -164,6 +184,10 @@ public abstract class Jsr199Javac implements Javac {
             usedClassesFileWriter,
             fileManager,
             compilationUnits);
+        if (cachingFileManager.isPresent()) {
+          reportJarContentsCacheUse(invokingRule, cachingFileManager.get(), scope);
+        }
+        return result;
       } finally {
         close(compilationUnits);
       }
@@ -290,6 +314,22 @@ public abstract class Jsr199Javac implements Javac {
     }
   }
 
+  private void reportJarContentsCacheUse(
+      BuildTarget invokingRule,
+      JarContentsCachingFileManager fileManager,
+      SimplePerfEvent.Scope scope) {
+    long millisSaved = TimeUnit.NANOSECONDS.toMillis(fileManager.getNanosSaved());
+    LOG.debug(
+        "%s: read %d classes from %d cached jars, saving about %d ms.",
+        invokingRule,
+        fileManager.getClassesFromCache(),
+        fileManager.getJarsFromCache(),
+        millisSaved);
+    scope.appendFinishedInfo("jars_from_cache", fileManager.getJarsFromCache());
+    scope.appendFinishedInfo("classes_from_cache", fileManager.getClassesFromCache());
+    scope.appendFinishedInfo("time_saved_ms", millisSaved);
+  }
+
   private void close(Iterable<? extends JavaFileObject> compilationUnits) {
     for (JavaFileObject unit : compilationUnits) {
       if (unit instanceof Closeable) {
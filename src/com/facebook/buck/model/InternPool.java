@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.model;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Ordering;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pools of the values which are repeated across many target nodes: build targets,
+ * paths and the sets of them which nodes hold.  A daemon keeps every parsed node alive, so
+ * collapsing equal values onto one instance makes up a large part of its retained heap.
+ * <p>
+ * Values are held weakly, so anything no longer referenced by a node is still collected.
+ */
+public class InternPool {
+
+  private static final Counted<UnflavoredBuildTarget> UNFLAVORED_BUILD_TARGETS =
+      new Counted<>();
+  private static final Counted<BuildTarget> BUILD_TARGETS = new Counted<>();
+  private static final Counted<Path> PATHS = new Counted<>();
+  private static final Counted<ImmutableSet<?>> SETS = new Counted<>();
+
+  private InternPool() {
+    // Utility class.
+  }
+
+  public static UnflavoredBuildTarget intern(UnflavoredBuildTarget target) {
+    return UNFLAVORED_BUILD_TARGETS.intern(target);
+  }
+
+  public static BuildTarget intern(BuildTarget target) {
+    return BUILD_TARGETS.intern(target);
+  }
+
+  public static Path intern(Path path) {
+    return PATHS.intern(path);
+  }
+
+  /**
+   * Returns a shared instance of {@code set} if it can be shared without changing its iteration
+   * order, or {@code set} itself otherwise.
+   * <p>
+   * Set equality ignores order, so only sets whose order is determined by their contents are
+   * shared: sets of at most one element, and sets sorted by their elements' natural order.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> ImmutableSet<T> internSet(ImmutableSet<T> set) {
+    if (set.size() > 1 &&
+        !(set instanceof ImmutableSortedSet &&
+            ((ImmutableSortedSet<T>) set).comparator() == Ordering.natural())) {
+      return set;
+    }
+    return (ImmutableSet<T>) SETS.intern(set);
+  }
+
+  /**
+   * @return for each kind of pooled value, the number of lookups and how many of them were
+   *     satisfied by an instance which was already in the pool.
+   */
+  public static ImmutableMap<String, Stats> getStats() {
+    return ImmutableMap.of(
+        "unflavored_build_targets", UNFLAVORED_BUILD_TARGETS.getStats(),
+        "build_targets", BUILD_TARGETS.getStats(),
+        "paths", PATHS.getStats(),
+        "sets", SETS.getStats());
+  }
+
+  public static class Stats {
+    private final long lookups;
+    private final long hits;
+
+    Stats(long lookups, long hits) {
+      this.lookups = lookups;
+      this.hits = hits;
+    }
+
+    public long getLookups() {
+      return lookups;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d lookups, %d already pooled", lookups, hits);
+    }
+  }
+
+  private static class Counted<T> {
+    private final Interner<T> interner = Interners.newWeakInterner();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    T intern(T value) {
+      T interned = interner.intern(value);
+      lookups.incrementAndGet();
+      if (interned != value) {
+        hits.incrementAndGet();
+      }
+      return interned;
+    }
+
+    Stats getStats() {
+      return new Stats(lookups.get(), hits.get());
+    }
+  }
+}
@@ -65,6 +65,10 @@ class ConcurrentMapCache<K, V> {
     return values.get(key);
   }
 
+  public int size() {
+    return values.size();
+  }
+
   public boolean containsKey(K key) {
     return values.containsKey(key);
   }
@@ -86,6 +86,12 @@ class DaemonicCellState {
     }
   }
 
+  int getTargetNodeCount() {
+    try (AutoCloseableLock readLock = nodesAndTargetsLock.readLock()) {
+      return allTargetNodes.size();
+    }
+  }
+
   Optional<ImmutableList<Map<String, Object>>> lookupRawNodes(Path buildFile) {
     try (AutoCloseableLock readLock = nodesAndTargetsLock.readLock()) {
       return Optional.fromNullable(allRawNodes.getIfPresent(buildFile));
@@ -157,7 +163,10 @@ class DaemonicCellState {
     }
   }
 
-  void invalidateIfBuckConfigHasChanged(Cell cell, Path buildFile) {
+  /**
+   * @return whether the nodes of {@code buildFile} were invalidated.
+   */
+  boolean invalidateIfBuckConfigHasChanged(Cell cell, Path buildFile) {
     try (AutoCloseableLock writeLock = nodesAndTargetsLock.writeLock()) {
       // TODO(mzlee): Check whether usedConfigs includes the buildFileName
       ImmutableMap<String, ImmutableMap<String, Optional<String>>> usedConfigs =
@@ -165,7 +174,7 @@ class DaemonicCellState {
       if (usedConfigs == null) {
         // TODO(mzlee): Figure out when/how we can safely update this
         this.cell = cell;
-        return;
+        return false;
       }
       for (Map.Entry<String, ImmutableMap<String, Optional<String>>> keyEnt :
              usedConfigs.entrySet()) {
@@ -175,10 +184,11 @@ class DaemonicCellState {
           if (!value.equals(valueEnt.getValue())) {
             invalidatePath(buildFile);
             this.cell = cell;
-            return;
+            return true;
           }
         }
       }
+      return false;
     }
   }
 
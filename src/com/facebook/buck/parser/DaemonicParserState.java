@@ -59,6 +59,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -139,6 +140,12 @@ class DaemonicParserState implements ParsePipeline.Cache {
   private final AutoCloseableReadWriteUpdateLock cachedStateLock;
   private final AutoCloseableReadWriteUpdateLock cellStateLock;
 
+  /**
+   * Incremented whenever cached target nodes are dropped, so that anything built from them, such
+   * as a {@link com.facebook.buck.rules.TargetGraph}, can tell whether it is still current.
+   */
+  private final AtomicLong generation;
+
   public DaemonicParserState(
       TypeCoercerFactory typeCoercerFactory,
       int parsingThreads) {
@@ -185,6 +192,14 @@ class DaemonicParserState implements ParsePipeline.Cache {
 
     this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
     this.cellStateLock = new AutoCloseableReadWriteUpdateLock();
+    this.generation = new AtomicLong();
+  }
+
+  /**
+   * @return a number which changes whenever any cached target node is invalidated.
+   */
+  long getGeneration() {
+    return generation.get();
   }
 
   TypeCoercerFactory getTypeCoercerFactory() {
@@ -453,6 +468,9 @@ class DaemonicParserState implements ParsePipeline.Cache {
     path = state.getCellRoot().resolve(path);
     int invalidatedNodes = state.invalidatePath(path);
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
+    if (invalidatedNodes > 0) {
+      generation.incrementAndGet();
+    }
   }
 
   public static boolean isPathCreateOrDeleteEvent(WatchEvent<?> event) {
@@ -482,11 +500,13 @@ class DaemonicParserState implements ParsePipeline.Cache {
         return;
       }
       // Invalidates and also keeps the state cell up-to-date
-      state.invalidateIfBuckConfigHasChanged(cell, buildFile);
+      if (state.invalidateIfBuckConfigHasChanged(cell, buildFile)) {
+        generation.incrementAndGet();
+      }
     }
   }
 
-  private void invalidateIfProjectBuildFileParserStateChanged(Cell cell) {
+  void invalidateIfProjectBuildFileParserStateChanged(Cell cell) {
     ImmutableMap<String, String> cellEnv = cell.getBuckConfig().getFilteredEnvironment();
     Iterable<String> defaultIncludes = new ParserConfig(cell.getBuckConfig()).getDefaultIncludes();
 
@@ -546,6 +566,7 @@ class DaemonicParserState implements ParsePipeline.Cache {
       boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
       cellPathToDaemonicState.remove(cell.getRoot());
       if (invalidated) {
+        generation.incrementAndGet();
         LOG.debug("Cell cache data invalidated.");
       } else {
         LOG.debug("Cell caches were empty, no data invalidated.");
@@ -561,6 +582,7 @@ class DaemonicParserState implements ParsePipeline.Cache {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
       if (invalidated) {
+        generation.incrementAndGet();
         LOG.debug("Cache data invalidated.");
       } else {
         LOG.debug("Caches were empty, no data invalidated.");
@@ -570,6 +592,19 @@ class DaemonicParserState implements ParsePipeline.Cache {
     }
   }
 
+  /**
+   * @return the number of target nodes held across all cells.
+   */
+  public int getCachedTargetNodeCount() {
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      int count = 0;
+      for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+        count += state.getTargetNodeCount();
+      }
+      return count;
+    }
+  }
+
   public ImmutableList<Counter> getCounters() {
     return ImmutableList.<Counter>of(
         cacheInvalidatedByEnvironmentVariableChangeCounter,
@@ -76,6 +76,7 @@ import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * High-level build file parsing machinery. Primarily responsible for producing a
@@ -89,6 +90,17 @@ public class Parser {
   private final DaemonicParserState permState;
   private final ConstructorArgMarshaller marshaller;
 
+  // The graph last built by buildTargetGraphReusingCachedGraph(), with the cell it was built in
+  // and the generation of permState it was built from.
+  @GuardedBy("this")
+  @Nullable
+  private TargetGraph cachedGraph;
+  @GuardedBy("this")
+  @Nullable
+  private Path cachedGraphCellRoot;
+  @GuardedBy("this")
+  private long cachedGraphGeneration;
+
   public Parser(
       ParserConfig parserConfig,
       TypeCoercerFactory typeCoercerFactory,
@@ -250,6 +262,65 @@ public class Parser {
     }
   }
 
+  /**
+   * Builds a target graph containing at least the transitive closure of {@code toExplore}, for
+   * commands such as {@code buck query} which only look at the parts of the graph they need.
+   * <p>
+   * The graph is kept in the daemon, along with the reverse edges it indexes, and handed out again
+   * for as long as none of the target nodes it was built from have been invalidated and it holds
+   * all of {@code toExplore}. Otherwise it is built again from the target nodes cached in the
+   * daemon, covering the targets it held as well as {@code toExplore}, so that only the build
+   * files which changed are parsed again.
+   */
+  public TargetGraph buildTargetGraphReusingCachedGraph(
+      BuckEventBus eventBus,
+      Cell rootCell,
+      boolean enableProfiling,
+      ListeningExecutorService executor,
+      Iterable<BuildTarget> toExplore)
+      throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
+    // Changes to the environment only invalidate the cached nodes when they are next used, so
+    // check for them before checking whether the graph is still current.
+    permState.invalidateIfProjectBuildFileParserStateChanged(rootCell);
+    long generation = permState.getGeneration();
+
+    Set<BuildTarget> targets = Sets.newHashSet(toExplore);
+    synchronized (this) {
+      if (cachedGraph != null &&
+          cachedGraphGeneration == generation &&
+          rootCell.getRoot().equals(cachedGraphCellRoot)) {
+        if (containsNodesFor(cachedGraph, targets)) {
+          LOG.debug("Reusing the target graph of %d nodes.", cachedGraph.getNodes().size());
+          return cachedGraph;
+        }
+        for (TargetNode<?> node : cachedGraph.getNodes()) {
+          targets.add(node.getBuildTarget());
+        }
+      }
+    }
+
+    TargetGraph graph = buildTargetGraph(eventBus, rootCell, enableProfiling, executor, targets);
+    synchronized (this) {
+      cachedGraph = graph;
+      cachedGraphCellRoot = rootCell.getRoot();
+      // If nodes were invalidated while the graph was built, this makes the next call build the
+      // graph again.
+      cachedGraphGeneration = generation;
+    }
+    return graph;
+  }
+
+  private static boolean containsNodesFor(TargetGraph graph, Iterable<BuildTarget> targets) {
+    for (BuildTarget target : targets) {
+      // The graph indexes the unflavored forms of flavored targets without them being nodes of it.
+      Optional<TargetNode<?>> node = graph.getOptional(target);
+      if (!node.isPresent() || graph.getCompactGraph().getId(node.get()) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private TargetGraph buildTargetGraph(
       final PerBuildState state,
       final BuckEventBus eventBus,
@@ -644,6 +715,10 @@ public class Parser {
     return permState.getCounters();
   }
 
+  public int getCachedTargetNodeCount() {
+    return permState.getCachedTargetNodeCount();
+  }
+
   @VisibleForTesting
   DaemonicParserState getPermState() {
     return permState;
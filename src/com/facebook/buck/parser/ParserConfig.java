@@ -154,6 +154,14 @@ public class ParserConfig {
     return delegate.getLong("project", "watchman_query_timeout_ms");
   }
 
+  /**
+   * @return whether the daemon should subscribe to file changes with Watchman and invalidate its
+   *     caches as they are reported, rather than query for them at the start of each command.
+   */
+  public boolean getEnableWatchmanSubscription() {
+    return delegate.getBooleanValue("project", "watchman_subscription", false);
+  }
+
   public boolean getEnableParallelParsing() {
     return delegate.getBooleanValue("project", "parallel_parsing", true);
   }
@@ -171,6 +179,32 @@ public class ParserConfig {
     return Math.min(value, delegate.getNumThreads());
   }
 
+  /**
+   * @return the maximum number of build file parser processes to run at once, across all cells.
+   */
+  public int getMaxParserProcesses() {
+    return Math.max(
+        1,
+        delegate.getLong("project", "max_parser_processes")
+            .or((long) getNumParsingThreads())
+            .intValue());
+  }
+
+  /**
+   * @return the number of parser processes to start for the root cell as soon as a build begins.
+   */
+  public int getNumPrestartedParsers() {
+    return delegate.getLong("project", "prestart_parsers").or(0L).intValue();
+  }
+
+  /**
+   * @return whether to keep build file parse results on disk, so they can be reused by later
+   *     runs of Buck as long as the build files and their inputs are unchanged.
+   */
+  public boolean getEnablePersistentParseCache() {
+    return delegate.getBooleanValue("project", "persistent_parse_cache", false);
+  }
+
   public ApplyDefaultFlavorsMode getDefaultFlavorsMode() {
     return delegate.getEnum("project", "default_flavors_mode", ApplyDefaultFlavorsMode.class)
         .or(ApplyDefaultFlavorsMode.ENABLED);
@@ -120,12 +120,14 @@ class PerBuildState implements AutoCloseable {
     int numParsingThreads = parserConfig.getNumParsingThreads();
     this.projectBuildFileParserPool = new ProjectBuildFileParserPool(
         numParsingThreads, // Max parsers to create per cell.
+        parserConfig.getMaxParserProcesses(), // Max parsers to create across all cells.
         new Function<Cell, ProjectBuildFileParser>() {
           @Override
           public ProjectBuildFileParser apply(Cell input) {
             return createBuildFileParser(input, PerBuildState.this.ignoreBuckAutodepsFiles);
           }
-        });
+        },
+        Optional.of(eventBus));
     this.parsePipeline = new ParsePipeline(
         permState,
         DefaultParserTargetNodeFactory.createForParser(
@@ -143,6 +145,13 @@ class PerBuildState implements AutoCloseable {
     );
 
     register(rootCell);
+
+    if (parserConfig.getEnableParallelParsing()) {
+      projectBuildFileParserPool.prestart(
+          rootCell,
+          parserConfig.getNumPrestartedParsers(),
+          executorService);
+    }
   }
 
   public TargetNode<?> getTargetNode(BuildTarget target)
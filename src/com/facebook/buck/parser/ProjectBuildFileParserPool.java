@@ -16,26 +16,36 @@
 
 package com.facebook.buck.parser;
 
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.Either;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,6 +53,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -50,15 +61,26 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Allows multiple concurrently executing futures to share a constrained number of parsers.
  *
- * Parser instances are lazily created up till a fixed maximum. If more than max parser are
- * requested the associated 'requests' are queued up in the parserRequests field. As soon as
- * a parser is returned it will be used to satisfy the first pending request, otherwise it
- * is stored in the parkedParsers queue.
+ * Parser instances are lazily created up till a maximum per cell, and up till a maximum across
+ * all cells. If more than max parser are requested the associated 'requests' are queued up in the
+ * parserRequests field. As soon as a parser is returned it will be used to satisfy the first
+ * pending request, otherwise it is stored in the parkedParsers queue.
+ *
+ * Once the pool has seen how long parses take, another parser is only started for a cell if
+ * waiting for one of its busy parsers is expected to take longer than starting a new interpreter.
+ * When the overall limit has been reached, an idle parser in a cell with no pending requests is
+ * shut down to make room for a cell which needs one, so that no cell is starved.
  */
 class ProjectBuildFileParserPool implements AutoCloseable {
   private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
 
+  // Weight given to each new sample in the moving averages of parse times.
+  private static final double LATENCY_SMOOTHING = 0.2;
+
+  private static final String COUNTER_CATEGORY = "buck_parser_pool";
+
   private final int maxParsersPerCell;
+  private final int maxParsers;
   @GuardedBy("this")
   private final Function<Cell, ProjectBuildFileParser> parserFactory;
   @GuardedBy("this")
@@ -70,23 +92,64 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   private final AtomicBoolean closing;
   @GuardedBy("this")
   private final Set<ListenableFuture<?>> pendingWork;
+  // Parsers which have started their interpreter.
+  @GuardedBy("this")
+  private final Set<ProjectBuildFileParser> warmParsers;
+  // Parsers which were shut down to make room for other cells, and still need closing.
+  @GuardedBy("this")
+  private final List<ProjectBuildFileParser> retiredParsers;
+  @GuardedBy("this")
+  private final Map<Cell, CellStats> cellStats;
+  private final Optional<BuckEventBus> eventBus;
+
+  /**
+   * @param maxParsersPerCell maximum number of parsers to create for a single cell.
+   * @param parserFactory function used to create a new parser.
+   */
+  public ProjectBuildFileParserPool(
+      int maxParsersPerCell,
+      Function<Cell, ProjectBuildFileParser> parserFactory) {
+    this(maxParsersPerCell, Integer.MAX_VALUE, parserFactory);
+  }
 
   /**
    * @param maxParsersPerCell maximum number of parsers to create for a single cell.
+   * @param maxParsers maximum number of parsers to create across all cells.
    * @param parserFactory function used to create a new parser.
    */
   public ProjectBuildFileParserPool(
       int maxParsersPerCell,
+      int maxParsers,
       Function<Cell, ProjectBuildFileParser> parserFactory) {
+    this(maxParsersPerCell, maxParsers, parserFactory, Optional.<BuckEventBus>absent());
+  }
+
+  /**
+   * @param maxParsersPerCell maximum number of parsers to create for a single cell.
+   * @param maxParsers maximum number of parsers to create across all cells.
+   * @param parserFactory function used to create a new parser.
+   * @param eventBus if present, where to register counters of each cell's parse throughput.
+   */
+  public ProjectBuildFileParserPool(
+      int maxParsersPerCell,
+      int maxParsers,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      Optional<BuckEventBus> eventBus) {
     Preconditions.checkArgument(maxParsersPerCell > 0);
+    Preconditions.checkArgument(maxParsers > 0);
 
     this.maxParsersPerCell = maxParsersPerCell;
+    this.maxParsers = maxParsers;
     this.parserFactory = parserFactory;
     this.createdParsers = ArrayListMultimap.create();
     this.parkedParsers = new HashMap<>();
     this.parserRequests = new HashMap<>();
     this.closing = new AtomicBoolean(false);
     this.pendingWork = new HashSet<>();
+    this.warmParsers = Sets.newIdentityHashSet();
+    this.retiredParsers = new ArrayList<>();
+    this.cellStats = new HashMap<>();
+    this.eventBus = eventBus;
   }
 
   /**
@@ -110,9 +173,11 @@ class ProjectBuildFileParserPool implements AutoCloseable {
               Void input) throws Exception {
             Either<ProjectBuildFileParser, ListenableFuture<Void>> parserRequest =
                 requestParser(cell);
+            closeRetiredParsers();
             if (parserRequest.isLeft()) {
               ProjectBuildFileParser parser = parserRequest.getLeft();
               boolean hadErrorDuringParsing = false;
+              long startNanos = System.nanoTime();
               try {
                 return Futures.immediateFuture(
                     ImmutableList.copyOf(parser.getAllRulesAndMetaRules(buildFile)));
@@ -120,6 +185,7 @@ class ProjectBuildFileParserPool implements AutoCloseable {
                 hadErrorDuringParsing = true;
                 throw e;
               } finally {
+                recordParse(cell, parser, System.nanoTime() - startNanos);
                 returnParser(cell, parser, hadErrorDuringParsing);
               }
             } else {
@@ -129,6 +195,51 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         },
         executorService);
 
+    trackPendingWork(futureWork, executorService);
+
+    // If someone else calls cancel on `futureWork` it makes it impossible to wait for that future
+    // to finish using the parser.
+    return Futures.nonCancellationPropagating(futureWork);
+  }
+
+  /**
+   * Starts up to {@code count} parsers for {@code cell} ahead of any requests for them, so that
+   * their interpreters are ready by the time the first build files need parsing.
+   */
+  public synchronized void prestart(
+      final Cell cell,
+      int count,
+      ListeningExecutorService executorService) {
+    Preconditions.checkState(!closing.get());
+    for (int i = 0; i < count; i++) {
+      if (createdParsers.get(cell).size() >= maxParsersPerCell ||
+          createdParsers.size() >= maxParsers) {
+        return;
+      }
+      final ProjectBuildFileParser parser = createParser(cell);
+      ListenableFuture<?> futureWork = executorService.submit(
+          new Runnable() {
+            @Override
+            public void run() {
+              boolean failed = false;
+              try {
+                parser.initIfNeeded();
+                markWarm(parser);
+              } catch (IOException e) {
+                LOG.info(e, "Failed to start a parser ahead of time.");
+                failed = true;
+              } finally {
+                returnParser(cell, parser, failed);
+              }
+            }
+          });
+      trackPendingWork(futureWork, executorService);
+    }
+  }
+
+  private synchronized void trackPendingWork(
+      final ListenableFuture<?> futureWork,
+      ListeningExecutorService executorService) {
     pendingWork.add(futureWork);
     futureWork.addListener(
         new Runnable() {
@@ -140,10 +251,6 @@ class ProjectBuildFileParserPool implements AutoCloseable {
           }
         },
         executorService);
-
-    // If someone else calls cancel on `futureWork` it makes it impossible to wait for that future
-    // to finish using the parser.
-    return Futures.nonCancellationPropagating(futureWork);
   }
 
   private synchronized ListenableFuture<Void> initialSchedule(Cell cell) {
@@ -172,13 +279,17 @@ class ProjectBuildFileParserPool implements AutoCloseable {
       return Futures.immediateCancelledFuture();
     }
     SettableFuture<Void> parserFuture = SettableFuture.create();
+    getParserRequestQueue(cell).add(parserFuture);
+    return parserFuture;
+  }
+
+  private synchronized Deque<SettableFuture<Void>> getParserRequestQueue(Cell cell) {
     Deque<SettableFuture<Void>> requestsQueue = parserRequests.get(cell);
     if (requestsQueue == null) {
       requestsQueue = new ArrayDeque<>();
       parserRequests.put(cell, requestsQueue);
     }
-    requestsQueue.add(parserFuture);
-    return parserFuture;
+    return requestsQueue;
   }
 
   private synchronized Deque<ProjectBuildFileParser> getParkedParserQueue(Cell cell) {
@@ -190,6 +301,21 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     return parkedParsersQueue;
   }
 
+  private synchronized CellStats getCellStats(Cell cell) {
+    CellStats stats = cellStats.get(cell);
+    if (stats == null) {
+      if (eventBus.isPresent()) {
+        stats = new CellStats(ImmutableMap.of("cell", cell.getRoot().toString()));
+        eventBus.get().post(
+            new CounterRegistry.AsyncCounterRegistrationEvent(stats.getCounters()));
+      } else {
+        stats = new CellStats(ImmutableMap.<String, String>of());
+      }
+      cellStats.put(cell, stats);
+    }
+    return stats;
+  }
+
   private synchronized Optional<ProjectBuildFileParser> obtainParser(Cell cell) {
     if (closing.get()) {
       return Optional.absent();
@@ -202,12 +328,21 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     return createIfAllowed(cell);
   }
 
+  private synchronized void markWarm(ProjectBuildFileParser parser) {
+    warmParsers.add(parser);
+  }
+
+  private synchronized void recordParse(Cell cell, ProjectBuildFileParser parser, long nanos) {
+    getCellStats(cell).recordParse(nanos, /* coldStart */ warmParsers.add(parser));
+  }
+
   private synchronized void returnParser(
       Cell cell,
       ProjectBuildFileParser parser,
       boolean parserIsDefunct) {
     if (parserIsDefunct) {
       createdParsers.remove(cell, parser);
+      warmParsers.remove(parser);
       try {
         parser.close();
       } catch (Exception e) {
@@ -217,38 +352,120 @@ class ProjectBuildFileParserPool implements AutoCloseable {
       Deque<ProjectBuildFileParser> parkedParsersQueue = getParkedParserQueue(cell);
       parkedParsersQueue.add(parser);
     }
-    scheduleNextRequest(cell);
+    if (!scheduleNextRequest(cell)) {
+      // Nobody in this cell needs a parser right now, so let a waiting cell have a go: it can
+      // take over this parser's share of the overall limit.
+      for (Cell waitingCell : parserRequests.keySet()) {
+        if (!waitingCell.equals(cell) && scheduleNextRequest(waitingCell)) {
+          break;
+        }
+      }
+    }
   }
 
-  private synchronized void scheduleNextRequest(Cell cell) {
+  /**
+   * @return whether a pending request was woken up.
+   */
+  private synchronized boolean scheduleNextRequest(Cell cell) {
     if (!parserRequests.containsKey(cell)) {
-      return;
+      return false;
     }
 
     while (true) {
       SettableFuture<Void> nextRequest = parserRequests.get(cell).pollFirst();
       // Queue empty.
       if (nextRequest == null) {
-        return;
+        return false;
       }
       // A false return value means the future was failed/cancelled, so we ignore it.
       if (nextRequest.set(null)) {
-        return;
+        return true;
       }
     }
   }
 
   private synchronized boolean allowedToCreateParser(Cell cell) {
-    return !closing.get() && (createdParsers.get(cell).size() < maxParsersPerCell);
+    if (closing.get()) {
+      return false;
+    }
+    int cellParsers = createdParsers.get(cell).size();
+    if (cellParsers >= maxParsersPerCell) {
+      return false;
+    }
+    if (cellParsers == 0) {
+      return true;
+    }
+    // Only start another interpreter if it should be ready before one of the busy ones is.
+    int busyParsers = cellParsers - getParkedParserQueue(cell).size();
+    CellStats stats = getCellStats(cell);
+    if (busyParsers <= 0 || !stats.hasLatencyEstimates()) {
+      return true;
+    }
+    double expectedWaitNanos =
+        stats.getAverageParseNanos() * (getParserRequestQueue(cell).size() + 1) / busyParsers;
+    return expectedWaitNanos >= stats.getEstimatedStartupNanos();
   }
 
   private synchronized Optional<ProjectBuildFileParser> createIfAllowed(Cell cell) {
     if (!allowedToCreateParser(cell)) {
       return Optional.absent();
     }
+    if (createdParsers.size() >= maxParsers && !retireIdleParser(cell)) {
+      return Optional.absent();
+    }
+    return Optional.of(createParser(cell));
+  }
+
+  private synchronized ProjectBuildFileParser createParser(Cell cell) {
     ProjectBuildFileParser parser = Preconditions.checkNotNull(parserFactory.apply(cell));
     createdParsers.put(cell, parser);
-    return Optional.of(parser);
+    getCellStats(cell).recordParserCreated();
+    return parser;
+  }
+
+  /**
+   * Takes an idle parser away from a cell other than {@code cell} which has no pending requests.
+   * The parser is closed by {@link #closeRetiredParsers()}, outside of the pool's lock.
+   *
+   * @return whether a parser was retired.
+   */
+  private synchronized boolean retireIdleParser(Cell cell) {
+    for (Map.Entry<Cell, Deque<ProjectBuildFileParser>> entry : parkedParsers.entrySet()) {
+      Cell idleCell = entry.getKey();
+      if (idleCell.equals(cell) || entry.getValue().isEmpty() ||
+          !getParserRequestQueue(idleCell).isEmpty()) {
+        continue;
+      }
+      ProjectBuildFileParser parser = entry.getValue().pollLast();
+      createdParsers.remove(idleCell, parser);
+      warmParsers.remove(parser);
+      retiredParsers.add(parser);
+      return true;
+    }
+    return false;
+  }
+
+  private void closeRetiredParsers() {
+    List<ProjectBuildFileParser> toClose;
+    synchronized (this) {
+      if (retiredParsers.isEmpty()) {
+        return;
+      }
+      toClose = new ArrayList<>(retiredParsers);
+      retiredParsers.clear();
+    }
+    for (ProjectBuildFileParser parser : toClose) {
+      try {
+        parser.close();
+      } catch (Exception e) {
+        LOG.info(e, "Error shutting down an idle parser.");
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getCreatedParserCount() {
+    return createdParsers.size();
   }
 
   @Override
@@ -264,6 +481,9 @@ class ProjectBuildFileParserPool implements AutoCloseable {
       requestQueue.clear();
     }
 
+    for (Map.Entry<Cell, CellStats> entry : cellStats.entrySet()) {
+      LOG.debug("Parsing in %s: %s", entry.getKey().getRoot(), entry.getValue());
+    }
     // Any parsing that is currently taking place will be allowed to complete (as it won't notice
     // `closing` is true.
     // Any scheduled (but not executing) parse requests should notice `closing` is true and
@@ -300,6 +520,10 @@ class ProjectBuildFileParserPool implements AutoCloseable {
                   createdParsers.entries()) {
                 createdParserEntry.getValue().close();
               }
+              for (ProjectBuildFileParser parser : retiredParsers) {
+                parser.close();
+              }
+              retiredParsers.clear();
               for (Map.Entry<Cell, Deque<SettableFuture<Void>>> cellDequeEntry :
                   parserRequests.entrySet()) {
                 if (!cellDequeEntry.getValue().isEmpty()) {
@@ -315,4 +539,79 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         },
         executorService);
   }
+
+  /**
+   * How parsing has gone in one cell, used both to decide when to start more parsers and to
+   * report parse throughput.
+   */
+  private static class CellStats {
+    private final SamplingCounter parseMicrosCounter;
+    private final SamplingCounter coldParseMicrosCounter;
+    private final IntegerCounter parsersCreatedCounter;
+    private int parsersCreated;
+    private int filesParsed;
+    private long totalParseNanos;
+    // Moving averages of how long parses take on a parser which has already started its
+    // interpreter, and on one which has not.
+    private double averageParseNanos = -1;
+    private double averageColdParseNanos = -1;
+
+    CellStats(ImmutableMap<String, String> tags) {
+      this.parseMicrosCounter = new SamplingCounter(COUNTER_CATEGORY, "parse_micros", tags);
+      this.coldParseMicrosCounter =
+          new SamplingCounter(COUNTER_CATEGORY, "cold_parse_micros", tags);
+      this.parsersCreatedCounter = new IntegerCounter(COUNTER_CATEGORY, "parsers_created", tags);
+    }
+
+    ImmutableList<Counter> getCounters() {
+      return ImmutableList.<Counter>of(
+          parseMicrosCounter,
+          coldParseMicrosCounter,
+          parsersCreatedCounter);
+    }
+
+    void recordParserCreated() {
+      parsersCreated++;
+      parsersCreatedCounter.inc();
+    }
+
+    void recordParse(long nanos, boolean coldStart) {
+      filesParsed++;
+      totalParseNanos += nanos;
+      if (coldStart) {
+        averageColdParseNanos = smooth(averageColdParseNanos, nanos);
+        coldParseMicrosCounter.addSample(TimeUnit.NANOSECONDS.toMicros(nanos));
+      } else {
+        averageParseNanos = smooth(averageParseNanos, nanos);
+        parseMicrosCounter.addSample(TimeUnit.NANOSECONDS.toMicros(nanos));
+      }
+    }
+
+    private static double smooth(double average, long sample) {
+      return average < 0 ? sample : average + LATENCY_SMOOTHING * (sample - average);
+    }
+
+    boolean hasLatencyEstimates() {
+      return averageParseNanos >= 0 && averageColdParseNanos >= 0;
+    }
+
+    double getAverageParseNanos() {
+      return averageParseNanos;
+    }
+
+    double getEstimatedStartupNanos() {
+      return Math.max(0, averageColdParseNanos - averageParseNanos);
+    }
+
+    @Override
+    public String toString() {
+      long totalParseMillis = TimeUnit.NANOSECONDS.toMillis(totalParseNanos);
+      return String.format(
+          "%d files in %d ms of parser time (%.1f files/s per parser) using %d parsers",
+          filesParsed,
+          totalParseMillis,
+          totalParseMillis == 0 ? 0.0 : filesParsed * 1000.0 / totalParseMillis,
+          parsersCreated);
+    }
+  }
 }
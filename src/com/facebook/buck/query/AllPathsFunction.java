@@ -73,14 +73,17 @@ public class AllPathsFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     QueryExpression from = args.get(0).getExpression();
     QueryExpression to = args.get(1).getExpression();
 
-    Set<QueryTarget> fromSet = from.eval(env, executor);
-    Set<QueryTarget> toSet = to.eval(env, executor);
+    ImmutableList<Set<QueryTarget>> values =
+        evaluator.evalAll(ImmutableList.of(from, to), env, executor);
+    Set<QueryTarget> fromSet = values.get(0);
+    Set<QueryTarget> toSet = values.get(1);
 
     // Algorithm:
     // 1) compute "reachableFromX", the forward transitive closure of the "from" set;
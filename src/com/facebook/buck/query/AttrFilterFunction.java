@@ -59,6 +59,7 @@ public class AttrFilterFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor)
@@ -75,7 +76,7 @@ public class AttrFilterFunction implements QueryFunction {
     };
 
     Set<QueryTarget> result = new LinkedHashSet<>();
-    for (QueryTarget target : argument.eval(env, executor)) {
+    for (QueryTarget target : evaluator.eval(argument, env, executor)) {
       ImmutableSet<Object> matchingObjects = env.filterAttributeContents(target, attr, predicate);
       if (!matchingObjects.isEmpty()) {
         result.add(target);
@@ -64,12 +64,15 @@ class BinaryOperatorExpression extends QueryExpression {
   }
 
   @Override
-  public Set<QueryTarget> eval(QueryEnvironment env, ListeningExecutorService executor)
-      throws QueryException, InterruptedException {
-    Set<QueryTarget> lhsValue = new LinkedHashSet<>(operands.get(0).eval(env, executor));
+  public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
+    ImmutableList<Set<QueryTarget>> values = evaluator.evalAll(operands, env, executor);
+    Set<QueryTarget> lhsValue = new LinkedHashSet<>(values.get(0));
 
-    for (int i = 1; i < operands.size(); i++) {
-      Set<QueryTarget> rhsValue = operands.get(i).eval(env, executor);
+    for (int i = 1; i < values.size(); i++) {
+      Set<QueryTarget> rhsValue = values.get(i);
       switch (operator) {
         case INTERSECT:
         case CARET:
@@ -110,4 +113,16 @@ class BinaryOperatorExpression extends QueryExpression {
     }
     return result.toString();
   }
+
+  @Override
+  public boolean equals(Object other) {
+    return (other instanceof BinaryOperatorExpression) &&
+        operator == ((BinaryOperatorExpression) other).operator &&
+        operands.equals(((BinaryOperatorExpression) other).operands);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * operator.hashCode() + operands.hashCode();
+  }
 }
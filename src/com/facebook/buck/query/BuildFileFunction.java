@@ -54,10 +54,11 @@ public class BuildFileFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
-    Set<QueryTarget> argumentSet = args.get(0).getExpression().eval(env, executor);
+    Set<QueryTarget> argumentSet = evaluator.eval(args.get(0).getExpression(), env, executor);
     return Sets.newHashSet(env.getBuildFiles(argumentSet));
   }
 
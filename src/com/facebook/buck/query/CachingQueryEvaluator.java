@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.query;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link QueryEvaluator} which evaluates each distinct subexpression of the queries given to it
+ * only once, and evaluates independent operands concurrently.
+ * <p>
+ * Operands are evaluated on the executor the query is evaluated with, which the environment also
+ * uses to parse build files. An operand being evaluated may block waiting for that parsing, so at
+ * most {@code maxConcurrentOperands} operands are handed to the executor at once, and this should
+ * be less than the number of threads the executor has, so that parsing always has a thread to run
+ * on. A thread waiting for an operand which has not started yet evaluates it itself.
+ */
+public class CachingQueryEvaluator implements QueryEvaluator {
+
+  private final Semaphore operandPermits;
+  private final ConcurrentMap<QueryExpression, ListenableFuture<ImmutableSet<QueryTarget>>>
+      results = new ConcurrentHashMap<>();
+  // Guarded by itself.
+  private final Map<QueryExpression, Long> evaluationMillis = new LinkedHashMap<>();
+
+  public CachingQueryEvaluator(int maxConcurrentOperands) {
+    Preconditions.checkArgument(maxConcurrentOperands >= 0);
+    this.operandPermits = new Semaphore(maxConcurrentOperands);
+  }
+
+  @Override
+  public Set<QueryTarget> eval(
+      QueryExpression expression,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
+    SettableFuture<ImmutableSet<QueryTarget>> future = SettableFuture.create();
+    ListenableFuture<ImmutableSet<QueryTarget>> existing = results.putIfAbsent(expression, future);
+    if (existing != null) {
+      // Whichever thread got there first is evaluating it, and since an expression only waits for
+      // smaller expressions, it is not waiting for us.
+      return getResult(existing);
+    }
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    try {
+      ImmutableSet<QueryTarget> result = ImmutableSet.copyOf(expression.eval(this, env, executor));
+      synchronized (evaluationMillis) {
+        evaluationMillis.put(expression, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+      }
+      future.set(result);
+      return result;
+    } catch (QueryException | InterruptedException | RuntimeException e) {
+      future.setException(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public ImmutableList<Set<QueryTarget>> evalAll(
+      List<QueryExpression> expressions,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
+    List<OperandTask> tasks = new ArrayList<>(expressions.size());
+    tasks.add(null);
+    for (int i = 1; i < expressions.size(); i++) {
+      tasks.add(submit(expressions.get(i), env, executor));
+    }
+
+    ImmutableList.Builder<Set<QueryTarget>> values = ImmutableList.builder();
+    try {
+      // Evaluate the first operand, and any which could not be handed out, on this thread.
+      for (int i = 0; i < expressions.size(); i++) {
+        OperandTask task = tasks.get(i);
+        values.add(task == null ? eval(expressions.get(i), env, executor) : task.join());
+      }
+    } finally {
+      // If evaluation failed, do not start the operands still waiting to be evaluated.
+      for (OperandTask task : tasks) {
+        if (task != null) {
+          task.cancel();
+        }
+      }
+    }
+    return values.build();
+  }
+
+  /**
+   * @return the time taken to evaluate each subexpression, including the time taken by the
+   *     subexpressions of it which were evaluated for the first time, in the order in which they
+   *     finished.
+   */
+  public ImmutableMap<QueryExpression, Long> getEvaluationMillis() {
+    synchronized (evaluationMillis) {
+      return ImmutableMap.copyOf(evaluationMillis);
+    }
+  }
+
+  @Nullable
+  private OperandTask submit(
+      QueryExpression expression,
+      QueryEnvironment env,
+      ListeningExecutorService executor) {
+    if (!operandPermits.tryAcquire()) {
+      return null;
+    }
+    OperandTask task = new OperandTask(expression, env, executor);
+    try {
+      executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      operandPermits.release();
+      return null;
+    }
+    return task;
+  }
+
+  private static ImmutableSet<QueryTarget> getResult(
+      ListenableFuture<ImmutableSet<QueryTarget>> future)
+      throws QueryException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), QueryException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * An operand handed to the executor, which is evaluated by whichever of the executor and the
+   * thread waiting for it gets to it first.
+   */
+  private class OperandTask implements Runnable {
+    private final QueryExpression expression;
+    private final QueryEnvironment env;
+    private final ListeningExecutorService executor;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private final SettableFuture<ImmutableSet<QueryTarget>> result = SettableFuture.create();
+
+    OperandTask(
+        QueryExpression expression,
+        QueryEnvironment env,
+        ListeningExecutorService executor) {
+      this.expression = expression;
+      this.env = env;
+      this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        result.set(ImmutableSet.copyOf(eval(expression, env, executor)));
+      } catch (Throwable t) {
+        // Hand everything to the waiting thread, so it never waits for a result which never comes.
+        result.setException(t);
+      } finally {
+        operandPermits.release();
+      }
+    }
+
+    public Set<QueryTarget> join() throws QueryException, InterruptedException {
+      if (claimed.compareAndSet(false, true)) {
+        operandPermits.release();
+        return eval(expression, env, executor);
+      }
+      return getResult(result);
+    }
+
+    public void cancel() {
+      if (claimed.compareAndSet(false, true)) {
+        operandPermits.release();
+      }
+    }
+  }
+}
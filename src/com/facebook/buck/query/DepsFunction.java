@@ -79,10 +79,11 @@ public class DepsFunction implements QueryFunction {
    */
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
-    Set<QueryTarget> argumentSet = args.get(0).getExpression().eval(env, executor);
+    Set<QueryTarget> argumentSet = evaluator.eval(args.get(0).getExpression(), env, executor);
     int depthBound = args.size() > 1 ? args.get(1).getInteger() : Integer.MAX_VALUE;
     env.buildTransitiveClosure(argumentSet, depthBound, executor);
 
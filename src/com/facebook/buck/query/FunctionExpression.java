@@ -55,9 +55,11 @@ public class FunctionExpression extends QueryExpression {
   }
 
   @Override
-  public Set<QueryTarget> eval(QueryEnvironment env, ListeningExecutorService executor)
-      throws QueryException, InterruptedException {
-    return function.eval(env, args, executor);
+  public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
+    return function.eval(evaluator, env, args, executor);
   }
 
   @Override
@@ -87,7 +89,7 @@ public class FunctionExpression extends QueryExpression {
   @Override
   public int hashCode() {
     int h = 31;
-    h = h * 17 + function.hashCode();
+    h = h * 17 + function.getClass().hashCode();
     h = h * 17 + args.hashCode();
     return h;
   }
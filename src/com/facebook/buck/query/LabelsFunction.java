@@ -72,11 +72,12 @@ public class LabelsFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     String label = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, args.get(0).getWord());
-    Set<QueryTarget> inputs = args.get(1).getExpression().eval(env, executor);
+    Set<QueryTarget> inputs = evaluator.eval(args.get(1).getExpression(), env, executor);
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (QueryTarget input : inputs) {
       result.addAll(env.getTargetsInAttribute(input, label));
@@ -169,10 +169,12 @@ public interface QueryEnvironment {
 
     /**
      * Called when a user-defined function is to be evaluated.
+     * @param evaluator the evaluator through which argument expressions must be evaluated.
      * @param env the query environment this function is evaluated in.
      * @param args the input arguments. These are type-checked against the specification returned
      *     by {@link #getArgumentTypes} and {@link #getMandatoryArguments}*/
     Set<QueryTarget> eval(
+        QueryEvaluator evaluator,
         QueryEnvironment env,
         ImmutableList<Argument> args,
         ListeningExecutorService executor) throws QueryException, InterruptedException;
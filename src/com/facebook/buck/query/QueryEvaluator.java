@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.query;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates query expressions. Expressions and functions evaluate their operands through the
+ * evaluator rather than directly, so that it decides how and when each subexpression is evaluated.
+ */
+public interface QueryEvaluator {
+
+  /**
+   * Evaluates {@code expression}, returning a set of targets which must not be modified.
+   */
+  Set<QueryTarget> eval(
+      QueryExpression expression,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException;
+
+  /**
+   * Evaluates expressions which do not depend on each other, possibly concurrently.
+   *
+   * @return the results of evaluating each of {@code expressions}, in the same order.
+   */
+  ImmutableList<Set<QueryTarget>> evalAll(
+      List<QueryExpression> expressions,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException;
+}
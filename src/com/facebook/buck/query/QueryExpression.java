@@ -73,9 +73,12 @@ public abstract class QueryExpression {
    * (possibly-immutable) set of targets.
    *
    * Failures resulting from evaluation of an ill-formed query cause QueryException to be thrown.
+   * Subexpressions must be evaluated through {@code evaluator} rather than directly.
    */
-  public abstract Set<QueryTarget> eval(QueryEnvironment env, ListeningExecutorService executor)
-      throws QueryException, InterruptedException;
+  public abstract Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException;
 
   /**
    * Collects all target patterns that are referenced anywhere within this
@@ -82,10 +82,15 @@ public class RdepsFunction implements QueryFunction {
    */
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
-    Set<QueryTarget> universeSet = args.get(0).getExpression().eval(env, executor);
+    ImmutableList<Set<QueryTarget>> values = evaluator.evalAll(
+        ImmutableList.of(args.get(0).getExpression(), args.get(1).getExpression()),
+        env,
+        executor);
+    Set<QueryTarget> universeSet = values.get(0);
     env.buildTransitiveClosure(universeSet, Integer.MAX_VALUE, executor);
     final Predicate<QueryTarget> inUniversePredicate = Predicates.in(
         env.getTransitiveClosure(universeSet));
@@ -94,7 +99,7 @@ public class RdepsFunction implements QueryFunction {
     // The order by which we traverse the result is meaningful because the dependencies are
     // traversed level-by-level.
     Set<QueryTarget> visited = new LinkedHashSet<>();
-    Set<QueryTarget> argumentSet = args.get(1).getExpression().eval(env, executor);
+    Set<QueryTarget> argumentSet = values.get(1);
     Collection<QueryTarget> current = argumentSet;
 
     int depthBound = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
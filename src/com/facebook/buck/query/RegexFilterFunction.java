@@ -43,6 +43,7 @@ abstract class RegexFilterFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor)
@@ -55,7 +56,7 @@ abstract class RegexFilterFunction implements QueryFunction {
           String.format("Illegal pattern regexp '%s': %s", getPattern(args), e.getMessage()));
     }
 
-    Set<QueryTarget> targets = getExpressionToEval(args).eval(env, executor);
+    Set<QueryTarget> targets = evaluator.eval(getExpressionToEval(args), env, executor);
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       String attributeValue = getStringToFilter(env, args, target);
@@ -66,11 +66,13 @@ class SetExpression extends QueryExpression {
   }
 
   @Override
-  public Set<QueryTarget> eval(QueryEnvironment env, ListeningExecutorService executor)
-      throws QueryException, InterruptedException {
+  public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
     Set<QueryTarget> result = new LinkedHashSet<>();
     for (TargetLiteral expr : words) {
-      result.addAll(expr.eval(env, executor));
+      result.addAll(evaluator.eval(expr, env, executor));
     }
     return result;
   }
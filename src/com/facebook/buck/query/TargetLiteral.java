@@ -50,8 +50,10 @@ public final class TargetLiteral extends QueryExpression {
   }
 
   @Override
-  public Set<QueryTarget> eval(QueryEnvironment env, ListeningExecutorService executor)
-      throws QueryException, InterruptedException {
+  public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
+      QueryEnvironment env,
+      ListeningExecutorService executor) throws QueryException, InterruptedException {
     return env.getTargetsMatchingPattern(pattern, executor);
   }
 
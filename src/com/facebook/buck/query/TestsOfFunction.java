@@ -56,10 +56,11 @@ public class TestsOfFunction implements QueryFunction {
 
   @Override
   public Set<QueryTarget> eval(
+      QueryEvaluator evaluator,
       QueryEnvironment env,
       ImmutableList<Argument> args,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
-    Set<QueryTarget> targets = args.get(0).getExpression().eval(env, executor);
+    Set<QueryTarget> targets = evaluator.eval(args.get(0).getExpression(), env, executor);
     Set<QueryTarget> tests = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       tests.addAll(env.getTestsForTarget(target));
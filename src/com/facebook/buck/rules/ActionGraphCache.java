@@ -23,12 +23,16 @@ import com.facebook.buck.event.PerfEventId;
 import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.graph.AbstractBottomUpTraversal;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.Pair;
+import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyBuilderFactory;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapDifference;
@@ -37,9 +41,15 @@ import com.google.common.eventbus.Subscribe;
 
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -60,10 +70,14 @@ public class ActionGraphCache {
   private static final String CACHE_MISS_COUNTER_NAME = "cache_miss";
   private static final String NEW_AND_CACHED_ACTIONGRAPHS_MISMATCH_NAME =
       "new_and_cached_actiongraphs_mismatch";
+  private static final String CACHE_PARTIAL_HIT_COUNTER_NAME = "cache_partial_hit";
+  private static final String REUSED_RULES_COUNTER_NAME = "reused_rules";
 
   private final IntegerCounter cacheHitCounter;
   private final IntegerCounter cacheMissCounter;
   private final IntegerCounter actionGraphsMismatch;
+  private final IntegerCounter cachePartialHitCounter;
+  private final IntegerCounter reusedRulesCounter;
 
   private static final int MAX_MISMATCH_RULES_TO_PRINT = 10;
 
@@ -72,6 +86,9 @@ public class ActionGraphCache {
   // RuleKey checking is done in a separate thread so it doesn't slow down critical path by much.
   private ExecutorService checkExecutor;
   private AtomicBoolean checkAlreadyRunning;
+  // The last check submitted, which may still be reading the rules of a cached graph.
+  @Nullable
+  private Future<?> lastCheck;
   public ActionGraphCache() {
     // Setting corePoolSize to 0 kills the thread every time the checking task is finished.
     // Setting thread priority to minimum so it doesn't content with buck's main work.
@@ -99,6 +116,14 @@ public class ActionGraphCache {
         COUNTER_CATEGORY,
         NEW_AND_CACHED_ACTIONGRAPHS_MISMATCH_NAME,
         ImmutableMap.<String, String>of());
+    this.cachePartialHitCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        CACHE_PARTIAL_HIT_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+    this.reusedRulesCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        REUSED_RULES_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
     this.checkExecutor = checkExecutor;
     this.checkAlreadyRunning = new AtomicBoolean(false);
   }
@@ -116,6 +141,22 @@ public class ActionGraphCache {
       final boolean checkActionGraphs,
       final TargetGraph targetGraph,
       int keySeed) {
+    return getActionGraph(eventBus, checkActionGraphs, false, targetGraph, keySeed);
+  }
+
+  /**
+   * Like {@link #getActionGraph(BuckEventBus, boolean, TargetGraph, int)}, but if
+   * {@code incremental} is set and the cached {@link ActionGraph} was built from a different
+   * {@link TargetGraph}, only the {@link BuildRule}s of target nodes which changed (and of the
+   * nodes which transitively depend on them) are recreated.  All other rules are carried over from
+   * the cached {@link ActionGraph}.
+   */
+  public ActionGraphAndResolver getActionGraph(
+      final BuckEventBus eventBus,
+      final boolean checkActionGraphs,
+      final boolean incremental,
+      final TargetGraph targetGraph,
+      int keySeed) {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
     try {
@@ -129,6 +170,37 @@ public class ActionGraphCache {
               targetGraph,
               keySeed);
         }
+      } else if (lastActionGraph != null && incremental && awaitLastCheck()) {
+        Pair<TargetGraph, ActionGraphAndResolver> previousActionGraph = lastActionGraph;
+        // The previous graph is updated in place, so it must not stay cached if that fails.
+        lastActionGraph = null;
+        Optional<ActionGraphAndResolver> updatedActionGraph = createIncrementalActionGraph(
+            eventBus,
+            previousActionGraph.getFirst(),
+            previousActionGraph.getSecond(),
+            targetGraph);
+        if (updatedActionGraph.isPresent()) {
+          cachePartialHitCounter.inc();
+          LOG.info("ActionGraph cache partial hit.");
+        } else {
+          cacheMissCounter.inc();
+          LOG.info("ActionGraph cache miss. No rules could be reused.");
+          updatedActionGraph = Optional.of(
+              createActionGraph(
+                  eventBus,
+                  new DefaultTargetNodeToBuildRuleTransformer(),
+                  targetGraph));
+        }
+        lastActionGraph = new Pair<TargetGraph, ActionGraphAndResolver>(
+            targetGraph,
+            updatedActionGraph.get());
+        if (checkActionGraphs) {
+          spawnThreadToCompareActionGraphs(
+              eventBus,
+              lastActionGraph.getSecond(),
+              targetGraph,
+              keySeed);
+        }
       } else {
         cacheMissCounter.inc();
         if (lastActionGraph == null) {
@@ -189,7 +261,16 @@ public class ActionGraphCache {
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
       TargetGraph targetGraph) {
-    final BuildRuleResolver resolver = new BuildRuleResolver(targetGraph, transformer);
+    return createActionGraph(
+        eventBus,
+        new BuildRuleResolver(targetGraph, transformer),
+        targetGraph);
+  }
+
+  private static ActionGraphAndResolver createActionGraph(
+      final BuckEventBus eventBus,
+      final BuildRuleResolver resolver,
+      TargetGraph targetGraph) {
 
     final int numberOfNodes = targetGraph.getNodes().size();
     final AtomicInteger processedNodes = new AtomicInteger(0);
@@ -217,6 +298,82 @@ public class ActionGraphCache {
         .build();
   }
 
+  /**
+   * Creates an {@link ActionGraph} for {@code newTargetGraph}, reusing the rules of
+   * {@code oldActionGraph} for every target node which is shared (by identity) between
+   * {@code oldTargetGraph} and {@code newTargetGraph} and none of whose transitive dependencies
+   * changed.  The reused rules keep the resolver they were created with, so the resolver of
+   * {@code oldActionGraph} is updated in place and {@code oldActionGraph} must not be used
+   * afterwards.
+   *
+   * @return the new graph, or absent if none of the old rules could be reused.
+   */
+  @VisibleForTesting
+  Optional<ActionGraphAndResolver> createIncrementalActionGraph(
+      BuckEventBus eventBus,
+      TargetGraph oldTargetGraph,
+      ActionGraphAndResolver oldActionGraph,
+      TargetGraph newTargetGraph) {
+    // Find the nodes which were added or re-created, and everything that depends on them.  The
+    // parser hands out the same TargetNode instance for as long as its build file is unchanged, so
+    // identity is enough to tell whether a node changed.
+    Set<TargetNode<?>> invalidated = new HashSet<>();
+    Deque<TargetNode<?>> toVisit = new ArrayDeque<>();
+    for (TargetNode<?> node : newTargetGraph.getNodes()) {
+      Optional<TargetNode<?>> oldNode = oldTargetGraph.getOptional(node.getBuildTarget());
+      if (!oldNode.isPresent() || oldNode.get() != node) {
+        toVisit.add(node);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      TargetNode<?> node = toVisit.pop();
+      if (invalidated.add(node)) {
+        toVisit.addAll(newTargetGraph.getIncomingNodesView(node));
+      }
+    }
+    if (invalidated.size() == newTargetGraph.getNodes().size()) {
+      return Optional.absent();
+    }
+
+    // Rules are reused per unflavored target, as graph enhancement may have created flavored rules
+    // on behalf of a node.  A target only qualifies if none of the nodes sharing its unflavored
+    // name, in either the old or new graph, have been invalidated or removed.
+    final Set<UnflavoredBuildTarget> reusableTargets = new HashSet<>();
+    Set<UnflavoredBuildTarget> unreusableTargets = new HashSet<>();
+    for (TargetNode<?> node : newTargetGraph.getNodes()) {
+      UnflavoredBuildTarget target = node.getBuildTarget().getUnflavoredBuildTarget();
+      if (invalidated.contains(node)) {
+        unreusableTargets.add(target);
+      } else {
+        reusableTargets.add(target);
+      }
+    }
+    for (TargetNode<?> node : oldTargetGraph.getNodes()) {
+      if (!newTargetGraph.getOptional(node.getBuildTarget()).isPresent()) {
+        unreusableTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
+      }
+    }
+    reusableTargets.removeAll(unreusableTargets);
+
+    BuildRuleResolver resolver = oldActionGraph.getResolver();
+    int reusedRules = resolver.retainRules(
+        newTargetGraph,
+        new Predicate<BuildTarget>() {
+          @Override
+          public boolean apply(BuildTarget target) {
+            return reusableTargets.contains(target.getUnflavoredBuildTarget());
+          }
+        });
+    LOG.debug(
+        "Reusing %d rules, recreating rules for %d of %d target nodes.",
+        reusedRules,
+        invalidated.size(),
+        newTargetGraph.getNodes().size());
+    reusedRulesCounter.inc(reusedRules);
+
+    return Optional.of(createActionGraph(eventBus, resolver, newTargetGraph));
+  }
+
   private static Map<BuildRule, RuleKey> getRuleKeysFromBuildRules(
       Iterable<BuildRule> buildRules,
       BuildRuleResolver buildRuleResolver,
@@ -251,7 +408,7 @@ public class ActionGraphCache {
       return;
     }
 
-    checkExecutor.execute(new Runnable() {
+    lastCheck = checkExecutor.submit(new Runnable() {
       @Override
       public void run() {
         try (SimplePerfEvent.Scope scope = SimplePerfEvent.scope(
@@ -308,6 +465,31 @@ public class ActionGraphCache {
     });
   }
 
+  /**
+   * Waits for the last check to finish, as the incremental update changes the resolver it reads
+   * from in place.
+   *
+   * @return whether the cached graph may be updated, which is not the case if the wait was
+   *     interrupted.
+   */
+  private boolean awaitLastCheck() {
+    if (lastCheck == null) {
+      return true;
+    }
+    try {
+      lastCheck.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.info("Interrupted while waiting for the ActionGraph integrity check.");
+      return false;
+    } catch (ExecutionException e) {
+      LOG.warn(e.getCause(), "ActionGraph integrity check failed.");
+    }
+    lastCheck = null;
+    // A mismatch found by the check drops the cached graph.
+    return lastActionGraph != null;
+  }
+
   public void invalidateBasedOn(WatchEvent<?> event) throws InterruptedException {
     if (!isFileContentModificationEvent(event)) {
       LOG.info("ActionGraph cache invalidation due to Watchman event %s.", event);
@@ -328,7 +510,9 @@ public class ActionGraphCache {
     return ImmutableList.<Counter>of(
         cacheHitCounter,
         cacheMissCounter,
-        actionGraphsMismatch);
+        actionGraphsMismatch,
+        cachePartialHitCounter,
+        reusedRulesCounter);
   }
 
   @VisibleForTesting
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the artifacts of rules from the cache as soon as their rule keys are known, rather than
+ * when the build engine gets around to processing them, so that the cache lookups for a whole
+ * build overlap instead of being serialized along its dependency chains.
+ * <p>
+ * The fetched artifacts are parked in temporary files until the build engine claims them.  A
+ * prefetch which hasn't started by the time its rule is processed is cancelled, and the engine
+ * fetches the artifact itself, so rules are never held up waiting behind other rules' prefetches.
+ */
+class ArtifactCachePrefetcher {
+
+  private static final Logger LOG = Logger.get(ArtifactCachePrefetcher.class);
+
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+  private static final int MAX_FETCH_BATCH_SIZE = 16;
+
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentMap<BuildTarget, Prefetch> prefetches = new ConcurrentHashMap<>();
+  // Prefetches waiting for a thread, in the order they were requested.
+  private final Queue<QueuedPrefetch> queue = new ArrayDeque<>();
+
+  private final AtomicInteger claimedCount = new AtomicInteger();
+  private final AtomicInteger discardedCount = new AtomicInteger();
+
+  /**
+   * @param maxInFlight the maximum number of fetches to run at the same time.
+   */
+  ArtifactCachePrefetcher(int maxInFlight) {
+    this.executor = new ThreadPoolExecutor(
+        maxInFlight,
+        maxInFlight,
+        IDLE_THREAD_TIMEOUT_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new CommandThreadFactory(
+            new ThreadFactoryBuilder()
+                .setNameFormat(ArtifactCachePrefetcher.class.getSimpleName() + "-%d")
+                .setDaemon(true)
+                .build()));
+    // Don't keep idle threads around between builds.
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Starts fetching the artifact for {@code rule}, unless it is already built locally.
+   */
+  public void prefetch(BuildRule rule, RuleKey ruleKey, BuildContext context) {
+    Prefetch prefetch = new Prefetch(ruleKey, CachingBuildEngine.newArtifactZipPath(rule));
+    if (prefetches.putIfAbsent(rule.getBuildTarget(), prefetch) != null) {
+      return;
+    }
+    synchronized (queue) {
+      queue.add(new QueuedPrefetch(rule, prefetch, context));
+    }
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            fetchQueued();
+          }
+        });
+  }
+
+  /**
+   * Fetches the next batch of queued prefetches.  Prefetches queued while all the threads were
+   * busy are fetched together, so a cache which supports it can serve them in one request.
+   */
+  private void fetchQueued() {
+    List<QueuedPrefetch> batch = new ArrayList<>();
+    synchronized (queue) {
+      QueuedPrefetch first = queue.poll();
+      if (first == null) {
+        // An earlier task already took this prefetch as part of its batch.
+        return;
+      }
+      batch.add(first);
+      Iterator<QueuedPrefetch> iterator = queue.iterator();
+      while (batch.size() < MAX_FETCH_BATCH_SIZE && iterator.hasNext()) {
+        QueuedPrefetch next = iterator.next();
+        if (next.context.getArtifactCache() == first.context.getArtifactCache()) {
+          batch.add(next);
+          iterator.remove();
+        }
+      }
+    }
+
+    ArtifactCache cache = batch.get(0).context.getArtifactCache();
+    final Map<RuleKey, QueuedPrefetch> toFetch = new LinkedHashMap<>();
+    for (QueuedPrefetch queued : batch) {
+      Prefetch prefetch = queued.prefetch;
+      if (!prefetch.started.compareAndSet(false, true)) {
+        // The build engine got to this rule first.
+        continue;
+      }
+      try {
+        Optional<RuleKey> onDiskRuleKey =
+            queued.context.createOnDiskBuildInfoFor(
+                queued.rule.getBuildTarget(),
+                queued.rule.getProjectFilesystem())
+                .getRuleKey(BuildInfo.METADATA_KEY_FOR_RULE_KEY);
+        if (prefetch.ruleKey.equals(onDiskRuleKey.orNull()) ||
+            toFetch.containsKey(prefetch.ruleKey)) {
+          prefetch.result.set(Optional.<CacheResult>absent());
+          continue;
+        }
+        toFetch.put(prefetch.ruleKey, queued);
+      } catch (RuntimeException e) {
+        LOG.debug(e, "Prefetching %s failed.", queued.rule);
+        prefetch.result.set(Optional.<CacheResult>absent());
+      }
+    }
+    if (toFetch.isEmpty()) {
+      return;
+    }
+
+    try {
+      // Caches which can't fetch a batch in one request, and batches of one, fall back to fetch.
+      ImmutableMap.Builder<RuleKey, LazyPath> outputs = ImmutableMap.builder();
+      for (QueuedPrefetch queued : toFetch.values()) {
+        outputs.put(queued.prefetch.ruleKey, queued.prefetch.zipPath);
+      }
+      cache.multiFetch(
+          outputs.build(),
+          new ArtifactCache.MultiFetchListener() {
+            @Override
+            public void onResult(RuleKey ruleKey, CacheResult result) {
+              // Hand each artifact over as soon as it lands, so that the build engine need not
+              // wait for the rest of the batch before using it.
+              QueuedPrefetch queued = toFetch.get(ruleKey);
+              if (queued != null) {
+                queued.prefetch.result.set(Optional.of(result));
+              }
+            }
+          });
+    } catch (RuntimeException e) {
+      LOG.debug(e, "Prefetching %d artifacts failed.", toFetch.size());
+    } finally {
+      // Anything not set above failed, and is left to the build engine to fetch itself.
+      for (QueuedPrefetch queued : toFetch.values()) {
+        queued.prefetch.result.set(Optional.<CacheResult>absent());
+      }
+    }
+  }
+
+  /**
+   * Takes over the prefetched artifact for {@code rule}, waiting for its fetch to finish if it is
+   * still in progress.
+   *
+   * @return the result of fetching the artifact into the returned path, or absent if the
+   *     artifact was not prefetched, in which case the caller should fetch it itself.
+   */
+  public Optional<Fetched> claim(BuildRule rule, RuleKey ruleKey) throws InterruptedException {
+    Prefetch prefetch = prefetches.remove(rule.getBuildTarget());
+    if (prefetch == null || prefetch.started.compareAndSet(false, true)) {
+      return Optional.absent();
+    }
+    if (!prefetch.ruleKey.equals(ruleKey)) {
+      prefetch.discard();
+      return Optional.absent();
+    }
+    Optional<CacheResult> result;
+    try {
+      result = prefetch.result.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+    if (!result.isPresent()) {
+      return Optional.absent();
+    }
+    claimedCount.incrementAndGet();
+    return Optional.of(new Fetched(prefetch.zipPath, result.get()));
+  }
+
+  /**
+   * Cancels all prefetches which haven't been claimed, deleting any artifacts they fetched.
+   */
+  public void discardUnclaimed() {
+    Iterator<Prefetch> iterator = prefetches.values().iterator();
+    while (iterator.hasNext()) {
+      Prefetch prefetch = iterator.next();
+      iterator.remove();
+      prefetch.discard();
+      discardedCount.incrementAndGet();
+    }
+    LOG.debug(
+        "Used %d prefetched artifacts, discarded %d.",
+        claimedCount.getAndSet(0),
+        discardedCount.getAndSet(0));
+  }
+
+  /**
+   * The result of a prefetch, along with the path the artifact was fetched into.
+   */
+  static class Fetched {
+    private final LazyPath zipPath;
+    private final CacheResult cacheResult;
+
+    Fetched(LazyPath zipPath, CacheResult cacheResult) {
+      this.zipPath = zipPath;
+      this.cacheResult = cacheResult;
+    }
+
+    public LazyPath getZipPath() {
+      return zipPath;
+    }
+
+    public CacheResult getCacheResult() {
+      return cacheResult;
+    }
+  }
+
+  private static class QueuedPrefetch {
+    private final BuildRule rule;
+    private final Prefetch prefetch;
+    private final BuildContext context;
+
+    QueuedPrefetch(BuildRule rule, Prefetch prefetch, BuildContext context) {
+      this.rule = rule;
+      this.prefetch = prefetch;
+      this.context = context;
+    }
+  }
+
+  private static class Prefetch {
+    private final RuleKey ruleKey;
+    private final LazyPath zipPath;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final SettableFuture<Optional<CacheResult>> result = SettableFuture.create();
+
+    Prefetch(RuleKey ruleKey, LazyPath zipPath) {
+      this.ruleKey = ruleKey;
+      this.zipPath = zipPath;
+    }
+
+    void discard() {
+      if (started.compareAndSet(false, true)) {
+        return;
+      }
+      result.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              Optional<CacheResult> fetched = Futures.getUnchecked(result);
+              if (fetched.isPresent() && fetched.get().getType().isSuccess()) {
+                try {
+                  Files.deleteIfExists(zipPath.getUnchecked());
+                } catch (IOException e) {
+                  LOG.debug(e, "Failed to delete unused prefetched artifact %s.", zipPath);
+                }
+              }
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+}
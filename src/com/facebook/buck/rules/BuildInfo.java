@@ -32,7 +32,7 @@ public class BuildInfo {
   /**
    * Key for {@link OnDiskBuildInfo} which lists the recorded items.
    */
-  static final String METADATA_KEY_FOR_RECORDED_PATHS = "RECORDED_PATHS";
+  public static final String METADATA_KEY_FOR_RECORDED_PATHS = "RECORDED_PATHS";
 
   /**
    * Key for {@link OnDiskBuildInfo} with a map of outputs to hashes.
@@ -47,7 +47,7 @@ public class BuildInfo {
   /**
    * Key for {@link OnDiskBuildInfo} to identify the RuleKey for a build rule.
    */
-  static final String METADATA_KEY_FOR_RULE_KEY = "RULE_KEY";
+  public static final String METADATA_KEY_FOR_RULE_KEY = "RULE_KEY";
 
   /**
    * Key for {@link OnDiskBuildInfo} to identify the input RuleKey for a build rule.
@@ -63,7 +63,6 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
@@ -92,7 +91,6 @@ public class BuildInfoRecorder {
   private final ImmutableMap<String, String> artifactExtraData;
   private final Map<String, String> metadataToWrite;
   private final Map<String, String> buildMetadata;
-  private final AtomicBoolean warnedUserOfCacheStoreFailure;
 
   /**
    * Every value in this set is a path relative to the project root.
@@ -123,7 +121,6 @@ public class BuildInfoRecorder {
     this.metadataToWrite = Maps.newLinkedHashMap();
     this.buildMetadata = Maps.newLinkedHashMap();
     this.pathsToOutputs = Sets.newHashSet();
-    this.warnedUserOfCacheStoreFailure = new AtomicBoolean(false);
   }
 
   private String toJson(Object value) {
@@ -330,10 +327,11 @@ public class BuildInfoRecorder {
       eventBus.post(ArtifactCompressionEvent.finished(started));
     }
 
-    // Store the artifact, including any additional metadata.
+    // Store the artifact, including any additional metadata.  Nothing else uses the zip, so the
+    // cache may take it over rather than making its own copy first.
     ListenableFuture<Void> storeFuture = artifactCache.store(
         ArtifactInfo.builder().setRuleKeys(ruleKeys).setMetadata(buildMetadata).build(),
-        BorrowablePath.notBorrowablePath(zip));
+        BorrowablePath.borrowablePath(zip));
     Futures.addCallback(
         storeFuture,
         new FutureCallback<Void>() {
@@ -345,12 +343,8 @@ public class BuildInfoRecorder {
           @Override
           public void onFailure(Throwable t) {
             onCompletion();
+            // The caches warn the user about failed stores themselves, so only log it here.
             LOG.info(t, "Failed storing RuleKeys %s to the cache.", ruleKeys);
-            if (warnedUserOfCacheStoreFailure.compareAndSet(false, true)) {
-              eventBus.post(
-                  ConsoleEvent.severe("Failed storing an artifact to the cache," +
-                      "see log for details."));
-            }
           }
 
           private void onCompletion() {
@@ -24,6 +24,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -31,6 +32,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
@@ -42,7 +44,7 @@ import javax.annotation.Nullable;
  */
 public class BuildRuleResolver {
 
-  private final TargetGraph targetGraph;
+  private volatile TargetGraph targetGraph;
   private final TargetNodeToBuildRuleTransformer buildRuleGenerator;
   private final ConcurrentHashMap<BuildTarget, BuildRule> buildRuleIndex;
   private final LoadingCache<Pair<BuildTarget, Class<?>>, Optional<?>> metadataCache;
@@ -206,6 +208,26 @@ public class BuildRuleResolver {
     return buildRule;
   }
 
+  /**
+   * Points this resolver at {@code newTargetGraph}, dropping every rule whose target does not match
+   * {@code retain}.  The retained rules hold on to this resolver (through their
+   * {@link SourcePathResolver}), so updating it in place, rather than indexing them in a new
+   * resolver, keeps them resolving against the rules of the new graph.
+   *
+   * @return the number of rules retained.
+   */
+  int retainRules(TargetGraph newTargetGraph, Predicate<BuildTarget> retain) {
+    targetGraph = newTargetGraph;
+    Iterator<BuildTarget> targets = buildRuleIndex.keySet().iterator();
+    while (targets.hasNext()) {
+      if (!retain.apply(targets.next())) {
+        targets.remove();
+      }
+    }
+    metadataCache.invalidateAll();
+    return buildRuleIndex.size();
+  }
+
   /**
    * Adds an iterable of build rules to the index.
    */
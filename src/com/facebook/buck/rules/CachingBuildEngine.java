@@ -20,6 +20,9 @@ import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
@@ -101,6 +104,9 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -118,8 +124,15 @@ public class CachingBuildEngine implements BuildEngine {
   // The default weight to use in the executor when building a rule locally.
   private static final int DEFAULT_BUILD_WEIGHT = 1;
 
+  private static final int UNZIP_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
   private static final Logger LOG = Logger.get(CachingBuildEngine.class);
 
+  private static final String COUNTER_CATEGORY = "buck_build_engine";
+  private static final String RESULTS_LOCK_WAIT_COUNTER_NAME = "results_lock_wait_micros";
+  private static final String RULE_KEY_REGISTRATION_RACES_COUNTER_NAME =
+      "rule_key_registration_races";
+
   /**
    * These are the values returned by {@link #build(BuildContext, BuildRule)}.
    * This must always return the same value for the build of each target.
@@ -136,6 +149,16 @@ public class CachingBuildEngine implements BuildEngine {
   @Nullable
   private volatile Throwable firstFailure = null;
 
+  private final IntegerCounter resultsLockWaitCounter = new IntegerCounter(
+      COUNTER_CATEGORY,
+      RESULTS_LOCK_WAIT_COUNTER_NAME,
+      ImmutableMap.<String, String>of());
+  private final IntegerCounter ruleKeyRegistrationRacesCounter = new IntegerCounter(
+      COUNTER_CATEGORY,
+      RULE_KEY_REGISTRATION_RACES_COUNTER_NAME,
+      ImmutableMap.<String, String>of());
+  private final AtomicBoolean countersRegistered = new AtomicBoolean(false);
+
   private final WeightedListeningExecutorService service;
   private final BuildMode buildMode;
   private final DepFiles depFiles;
@@ -145,6 +168,10 @@ public class CachingBuildEngine implements BuildEngine {
   private final Optional<Long> artifactCacheSizeLimit;
   private final LoadingCache<ProjectFilesystem, FileHashCache> fileHashCaches;
   private final LoadingCache<ProjectFilesystem, RuleKeyFactories> ruleKeyFactories;
+  private final Optional<ArtifactCachePrefetcher> prefetcher;
+  private final Optional<DependencyFileRuleKeyIndex> depFileRuleKeyIndex;
+  // The number of calls to build() which haven't finished yet.
+  private final AtomicInteger activeBuilds = new AtomicInteger();
 
   public CachingBuildEngine(
       WeightedListeningExecutorService service,
@@ -153,10 +180,12 @@ public class CachingBuildEngine implements BuildEngine {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int artifactCachePrefetchLimit,
       final long inputRuleKeyFileSizeLimit,
       ObjectMapper objectMapper,
       final BuildRuleResolver resolver,
-      final int keySeed) {
+      final int keySeed,
+      Optional<DependencyFileRuleKeyIndex> depFileRuleKeyIndex) {
     this.ruleDeps = new RuleDepsCache(service);
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, service);
 
@@ -167,6 +196,8 @@ public class CachingBuildEngine implements BuildEngine {
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
     this.objectMapper = objectMapper;
     this.pathResolver = new SourcePathResolver(resolver);
+    this.prefetcher = createPrefetcher(buildMode, artifactCachePrefetchLimit);
+    this.depFileRuleKeyIndex = depFileRuleKeyIndex;
 
     this.fileHashCaches = createFileHashCacheLoader(fileHashCache);
     this.ruleKeyFactories = CacheBuilder.newBuilder()
@@ -194,6 +225,32 @@ public class CachingBuildEngine implements BuildEngine {
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
       SourcePathResolver pathResolver,
+      Function<? super ProjectFilesystem, RuleKeyFactories> ruleKeyFactoriesFunction) {
+    this(
+        service,
+        fileHashCache,
+        buildMode,
+        depFiles,
+        maxDepFileCacheEntries,
+        artifactCacheSizeLimit,
+        /* artifactCachePrefetchLimit */ 0,
+        pathResolver,
+        ruleKeyFactoriesFunction);
+  }
+
+  /**
+   * This constructor MUST ONLY BE USED FOR TESTS.
+   */
+  @VisibleForTesting
+  CachingBuildEngine(
+      WeightedListeningExecutorService service,
+      FileHashCache fileHashCache,
+      BuildMode buildMode,
+      DepFiles depFiles,
+      long maxDepFileCacheEntries,
+      Optional<Long> artifactCacheSizeLimit,
+      int artifactCachePrefetchLimit,
+      SourcePathResolver pathResolver,
       final Function<? super ProjectFilesystem, RuleKeyFactories> ruleKeyFactoriesFunction) {
     this.ruleDeps = new RuleDepsCache(service);
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, service);
@@ -205,6 +262,8 @@ public class CachingBuildEngine implements BuildEngine {
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
     this.objectMapper = ObjectMappers.newDefaultInstance();
     this.pathResolver = pathResolver;
+    this.prefetcher = createPrefetcher(buildMode, artifactCachePrefetchLimit);
+    this.depFileRuleKeyIndex = Optional.absent();
 
     this.fileHashCaches = createFileHashCacheLoader(fileHashCache);
     this.ruleKeyFactories = CacheBuilder.newBuilder()
@@ -227,6 +286,17 @@ public class CachingBuildEngine implements BuildEngine {
     return Optional.of(new UnskippedRulesTracker(ruleDeps, service));
   }
 
+  private static Optional<ArtifactCachePrefetcher> createPrefetcher(
+      BuildMode buildMode,
+      int prefetchLimit) {
+    // Shallow builds only fetch the deps of rules which missed the cache, so prefetching every
+    // rule would mostly download artifacts which are never used.
+    if (prefetchLimit <= 0 || buildMode == BuildMode.SHALLOW) {
+      return Optional.absent();
+    }
+    return Optional.of(new ArtifactCachePrefetcher(prefetchLimit));
+  }
+
   private static LoadingCache<ProjectFilesystem, FileHashCache> createFileHashCacheLoader(
       final FileHashCache defaultCache) {
     return CacheBuilder.newBuilder()
@@ -468,15 +538,28 @@ public class CachingBuildEngine implements BuildEngine {
                     CacheResult.localKeyUnchangedHit())));
       }
 
-      // 2. Rule key cache lookup.
-      cacheResult = tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
-          rule,
-          defaultRuleKey,
-          buildInfoRecorder,
-          context.getArtifactCache(),
-          // TODO(shs96c): This should be a shared between all tests, not one per cell
-          rule.getProjectFilesystem(),
-          context);
+      // 2. Rule key cache lookup, which may already have been started by the prefetcher.
+      Optional<ArtifactCachePrefetcher.Fetched> prefetched = prefetcher.isPresent() ?
+          prefetcher.get().claim(rule, defaultRuleKey) :
+          Optional.<ArtifactCachePrefetcher.Fetched>absent();
+      if (prefetched.isPresent()) {
+        cacheResult = unzipArtifactFromCacheResult(
+            rule,
+            defaultRuleKey,
+            prefetched.get().getZipPath(),
+            context,
+            rule.getProjectFilesystem(),
+            prefetched.get().getCacheResult());
+      } else {
+        cacheResult = tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+            rule,
+            defaultRuleKey,
+            buildInfoRecorder,
+            context.getArtifactCache(),
+            // TODO(shs96c): This should be a shared between all tests, not one per cell
+            rule.getProjectFilesystem(),
+            context);
+      }
 
       if (cacheResult.getType().isSuccess()) {
         return Futures.transform(
@@ -976,8 +1059,12 @@ public class CachingBuildEngine implements BuildEngine {
       return existingResult;
     }
 
-    // Otherwise, grab the lock and delegate to the real method,
+    // Otherwise, grab the lock and delegate to the real method, recording how long we waited for
+    // it so that contention on this monitor shows up in the build engine counters.
+    long lockRequestedNanos = System.nanoTime();
     synchronized (results) {
+      resultsLockWaitCounter.inc(
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lockRequestedNanos));
       return getBuildRuleResultWithRuntimeDepsUnlocked(rule, context, asyncCallbacks);
     }
   }
@@ -1016,12 +1103,31 @@ public class CachingBuildEngine implements BuildEngine {
     return seen.size();
   }
 
-  private synchronized ListenableFuture<RuleKey> calculateRuleKey(
+  /**
+   * Returns the future holding the default rule key of {@code rule}, creating it if necessary.
+   *
+   * <p>This is lock-free: the first caller to register a placeholder future for a target owns the
+   * computation and every other caller (including concurrent ones) shares that placeholder.  Since
+   * the placeholder is registered before recursing into the deps, each rule key is set up at most
+   * once, even if the dependency walk revisits a rule before its key has been calculated.
+   */
+  private ListenableFuture<RuleKey> calculateRuleKey(
       final BuildRule rule,
       final BuildContext context) {
-    ListenableFuture<RuleKey> ruleKey = ruleKeys.get(rule.getBuildTarget());
-    if (ruleKey == null) {
+    ListenableFuture<RuleKey> existingRuleKey = ruleKeys.get(rule.getBuildTarget());
+    if (existingRuleKey != null) {
+      return existingRuleKey;
+    }
 
+    SettableFuture<RuleKey> ruleKey = SettableFuture.create();
+    existingRuleKey = ruleKeys.putIfAbsent(rule.getBuildTarget(), ruleKey);
+    if (existingRuleKey != null) {
+      // Another thread beat us to registering this rule, so use its future instead.
+      ruleKeyRegistrationRacesCounter.inc();
+      return existingRuleKey;
+    }
+
+    try {
       // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
       // one, we need to wait for them to complete.
       ListenableFuture<List<RuleKey>> depKeys =
@@ -1043,32 +1149,51 @@ public class CachingBuildEngine implements BuildEngine {
       final RuleKeyFactories keyFactories =
           ruleKeyFactories.getUnchecked(rule.getProjectFilesystem());
 
-      // Setup a future to calculate this rule key once the dependencies have been calculated.
-      ruleKey = Futures.transform(
-          depKeys,
-          new Function<List<RuleKey>, RuleKey>() {
-            @Override
-            public RuleKey apply(List<RuleKey> input) {
-              try (BuildRuleEvent.Scope scope =
-                       BuildRuleEvent.startSuspendScope(
-                           context.getEventBus(),
-                           rule,
-                           keyFactories.defaultRuleKeyBuilderFactory)) {
-                return keyFactories.defaultRuleKeyBuilderFactory.build(rule);
-              }
-            }
-          },
-          service);
-
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), ruleKey);
+      // Setup a future to calculate this rule key once the dependencies have been calculated, and
+      // hook it up to the placeholder we've already published.
+      ruleKey.setFuture(
+          Futures.transform(
+              depKeys,
+              new Function<List<RuleKey>, RuleKey>() {
+                @Override
+                public RuleKey apply(List<RuleKey> input) {
+                  try (BuildRuleEvent.Scope scope =
+                           BuildRuleEvent.startSuspendScope(
+                               context.getEventBus(),
+                               rule,
+                               keyFactories.defaultRuleKeyBuilderFactory)) {
+                    RuleKey ruleKey = keyFactories.defaultRuleKeyBuilderFactory.build(rule);
+                    if (prefetcher.isPresent() && rule.isCacheable()) {
+                      prefetcher.get().prefetch(rule, ruleKey, context);
+                    }
+                    return ruleKey;
+                  }
+                }
+              },
+              service));
+    } catch (RuntimeException e) {
+      // Make sure nobody waiting on the placeholder hangs if we failed to set up the calculation.
+      ruleKey.setException(e);
     }
 
     return ruleKey;
   }
 
+  private void registerCounters(BuckEventBus eventBus) {
+    if (countersRegistered.compareAndSet(false, true)) {
+      eventBus.post(
+          new CounterRegistry.AsyncCounterRegistrationEvent(
+              ImmutableList.<Counter>of(
+                  resultsLockWaitCounter,
+                  ruleKeyRegistrationRacesCounter)));
+    }
+  }
+
   @Override
   public ListenableFuture<BuildResult> build(BuildContext context, BuildRule rule) {
+    registerCounters(context.getEventBus());
+    activeBuilds.incrementAndGet();
+
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     final ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks =
@@ -1077,7 +1202,7 @@ public class CachingBuildEngine implements BuildEngine {
         registerTopLevelRule(rule, context.getEventBus()),
         getBuildRuleResultWithRuntimeDeps(rule, context, asyncCallbacks),
         service);
-    return Futures.transformAsync(
+    ListenableFuture<BuildResult> buildResult = Futures.transformAsync(
         resultFuture,
         new AsyncFunction<BuildResult, BuildResult>() {
           @Override
@@ -1089,6 +1214,19 @@ public class CachingBuildEngine implements BuildEngine {
           }
         },
         service);
+
+    // Once nothing is being built any more, nobody will claim the remaining prefetched artifacts.
+    buildResult.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (activeBuilds.decrementAndGet() == 0 && prefetcher.isPresent()) {
+              prefetcher.get().discardUnclaimed();
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return buildResult;
   }
 
   private CacheResult tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
@@ -1103,16 +1241,7 @@ public class CachingBuildEngine implements BuildEngine {
       return CacheResult.ignored();
     }
 
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    final LazyPath lazyZipPath = new LazyPath() {
-      @Override
-      protected Path create() throws IOException {
-        return Files.createTempFile(
-            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
-            ".zip");
-      }
-    };
+    final LazyPath lazyZipPath = newArtifactZipPath(rule);
 
     // TODO(bolinfest): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
@@ -1129,6 +1258,23 @@ public class CachingBuildEngine implements BuildEngine {
                     cacheResult);
   }
 
+  /**
+   * @return the path to fetch the artifact for {@code rule} into, which is only created once it is
+   *     needed.
+   */
+  static LazyPath newArtifactZipPath(final BuildRule rule) {
+    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
+    // that we are creating a zip-based FileSystem.
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return Files.createTempFile(
+            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
+            ".zip");
+      }
+    };
+  }
+
   private CacheResult unzipArtifactFromCacheResult(
       BuildRule rule,
       RuleKey ruleKey,
@@ -1160,10 +1306,15 @@ public class CachingBuildEngine implements BuildEngine {
         ImmutableSet.of(ruleKey));
     buildContext.getEventBus().post(started);
     try {
+      // Large artifacts unpack much faster with several threads writing files.  Any of the build
+      // threads which are idle help out, but we never wait for ones that are busy.
       Unzip.extractZipFile(
           zipPath.toAbsolutePath(),
           filesystem,
-          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+          filesystem.getRootPath().getFileSystem().getPath(""),
+          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+          service,
+          UNZIP_PARALLELISM);
 
       // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
       // around for debugging purposes.
@@ -1337,6 +1488,27 @@ public class CachingBuildEngine implements BuildEngine {
       return Optional.absent();
     }
 
+    DependencyFileRuleKeyBuilderFactory depFileRuleKeyBuilderFactory =
+        ruleKeyFactories.getUnchecked(rule.getProjectFilesystem()).depFileRuleKeyBuilderFactory;
+
+    // If none of the files in the dep file have changed since the dep-file rule key was last
+    // calculated, and nothing else about the rule has either, it has not changed.
+    Optional<Pair<RuleKey, ImmutableSet<SourcePath>>> manifestKeyAndInputs = Optional.absent();
+    if (depFileRuleKeyIndex.isPresent() && depFileRuleKeyIndex.get().canIndex(rule)) {
+      manifestKeyAndInputs = depFileRuleKeyBuilderFactory.buildManifestKey(rule);
+      if (manifestKeyAndInputs.isPresent()) {
+        Optional<Pair<RuleKey, ImmutableSet<SourcePath>>> indexed =
+            depFileRuleKeyIndex.get().get(
+                rule,
+                manifestKeyAndInputs.get().getFirst(),
+                manifestKeyAndInputs.get().getSecond(),
+                depFile.get());
+        if (indexed.isPresent()) {
+          return indexed;
+        }
+      }
+    }
+
     // Build the dep-file rule key.  If any inputs are no longer on disk, this means something
     // changed and a dep-file based rule key can't be calculated.
     ImmutableList<DependencyFileEntry> inputs =
@@ -1345,11 +1517,21 @@ public class CachingBuildEngine implements BuildEngine {
             DependencyFileEntry.class)).toList();
 
     try {
-      return this.ruleKeyFactories.getUnchecked(rule.getProjectFilesystem())
-          .depFileRuleKeyBuilderFactory.build(
+      Optional<Pair<RuleKey, ImmutableSet<SourcePath>>> depFileRuleKeyAndInputs =
+          depFileRuleKeyBuilderFactory.build(
               rule,
               ((SupportsDependencyFileRuleKey) rule).getPossibleInputSourcePaths(),
               inputs);
+      if (manifestKeyAndInputs.isPresent() && depFileRuleKeyAndInputs.isPresent()) {
+        depFileRuleKeyIndex.get().put(
+            rule,
+            manifestKeyAndInputs.get().getFirst(),
+            manifestKeyAndInputs.get().getSecond(),
+            depFile.get(),
+            inputs,
+            depFileRuleKeyAndInputs.get());
+      }
+      return depFileRuleKeyAndInputs;
     } catch (NoSuchFileException e) {
       if (!allowMissingInputs) {
         throw e;
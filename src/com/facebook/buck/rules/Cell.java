@@ -348,6 +348,13 @@ public class Cell {
             .setWatchman(watchman)
             .setWatchmanQueryTimeoutMs(parserConfig.getWatchmanQueryTimeoutMs())
             .setRawConfig(getBuckConfig().getRawConfigForParser())
+            // Cached results are not invalidated by changes in subpackages, which a glob can only
+            // reach when package boundaries are not checked.
+            .setParseCacheDir(
+                parserConfig.getEnablePersistentParseCache() &&
+                    parserConfig.getEnforceBuckPackageBoundary() ?
+                    Optional.of(filesystem.resolve(filesystem.getBuckPaths().getParseCacheDir())) :
+                    Optional.<Path>absent())
             .build());
   }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.io.WatchEvents;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.rules.keys.DependencyFileEntry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.eventbus.Subscribe;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers the dep-file rule key last calculated for each rule, along with an index from each
+ * file listed in a rule's dep file to the rules listing it. While a rule's manifest key, which
+ * covers everything but the files it might list in its dep file, the set of files it might list,
+ * and its dep file stay the same and none of the files listed change, its dep-file rule key is
+ * reused rather than calculated again.
+ * <p>
+ * Lives in the daemon and learns of changed files from the file change event bus, so only rules
+ * whose inputs are all watched, i.e. inside the project and not ignored, are remembered.  Only
+ * the most recently used rules are remembered, so the index doesn't grow for as long as the daemon
+ * lives.
+ */
+public class DependencyFileRuleKeyIndex {
+
+  private static final Logger LOG = Logger.get(DependencyFileRuleKeyIndex.class);
+
+  private static final int DEFAULT_MAX_ENTRIES = 50000;
+
+  private final ProjectFilesystem filesystem;
+  private final int maxEntries;
+  // Guarded by this.  In access order, so the least recently used rule is forgotten first.
+  private final LinkedHashMap<BuildTarget, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+  // Guarded by this.
+  private final SetMultimap<Path, BuildTarget> rulesByInput = HashMultimap.create();
+
+  public DependencyFileRuleKeyIndex(ProjectFilesystem filesystem) {
+    this(filesystem, DEFAULT_MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  DependencyFileRuleKeyIndex(ProjectFilesystem filesystem, int maxEntries) {
+    this.filesystem = filesystem;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return whether changes to the files of {@code rule} are seen by this index.
+   */
+  public boolean canIndex(BuildRule rule) {
+    return rule.getProjectFilesystem().getRootPath().equals(filesystem.getRootPath());
+  }
+
+  /**
+   * @return the dep-file rule key and inputs last calculated for {@code rule}, if it was calculated
+   *     for the same manifest key, possible dep file inputs and dep file, and none of the files in
+   *     the dep file have changed since.
+   */
+  public synchronized Optional<Pair<RuleKey, ImmutableSet<SourcePath>>> get(
+      BuildRule rule,
+      RuleKey manifestKey,
+      ImmutableSet<SourcePath> possibleInputs,
+      ImmutableList<String> depFile) {
+    Entry entry = entries.get(rule.getBuildTarget());
+    // The manifest key doesn't cover the possible inputs, so a file which is no longer one of them
+    // but is still listed in the dep file would otherwise go unnoticed.
+    if (entry == null ||
+        !entry.manifestKey.equals(manifestKey) ||
+        !entry.possibleInputs.equals(possibleInputs) ||
+        !entry.depFile.equals(depFile)) {
+      return Optional.absent();
+    }
+    return Optional.of(entry.depFileRuleKeyAndInputs);
+  }
+
+  /**
+   * Remembers the dep-file rule key calculated for {@code rule} from the given dep file, if all of
+   * the files listed in it are watched for changes.
+   */
+  public synchronized void put(
+      BuildRule rule,
+      RuleKey manifestKey,
+      ImmutableSet<SourcePath> possibleInputs,
+      ImmutableList<String> depFile,
+      Iterable<DependencyFileEntry> inputs,
+      Pair<RuleKey, ImmutableSet<SourcePath>> depFileRuleKeyAndInputs) {
+    BuildTarget target = rule.getBuildTarget();
+    remove(target);
+    if (!canIndex(rule)) {
+      return;
+    }
+
+    List<Path> inputPaths = new ArrayList<>();
+    for (DependencyFileEntry input : inputs) {
+      Path path = input.pathToFile().normalize();
+      if (!filesystem.isWatched(path)) {
+        LOG.verbose("Not indexing %s as %s is not watched.", target, path);
+        return;
+      }
+      inputPaths.add(path);
+    }
+
+    entries.put(
+        target,
+        new Entry(
+            manifestKey,
+            possibleInputs,
+            depFile,
+            ImmutableList.copyOf(inputPaths),
+            depFileRuleKeyAndInputs));
+    for (Path path : inputPaths) {
+      rulesByInput.put(path, target);
+    }
+    while (entries.size() > maxEntries) {
+      remove(entries.keySet().iterator().next());
+    }
+  }
+
+  private void remove(BuildTarget target) {
+    Entry entry = entries.remove(target);
+    if (entry != null) {
+      for (Path path : entry.inputs) {
+        rulesByInput.remove(path, target);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Forgets the rules listing a changed file, or every rule if the changes are not known. The
+   * {@link Path}s contained within events must all be relative to the {@link ProjectFilesystem}
+   * root.
+   */
+  @Subscribe
+  public synchronized void onFileSystemChange(WatchEvent<?> event) {
+    if (!WatchEvents.isPathChangeEvent(event)) {
+      LOG.debug("Forgetting all dep-file rule keys.");
+      entries.clear();
+      rulesByInput.clear();
+      return;
+    }
+
+    // Watchman reports each file under a moved or removed directory, so only exact matches count.
+    Path path = ((Path) event.context()).normalize();
+    for (BuildTarget target : ImmutableList.copyOf(rulesByInput.get(path))) {
+      LOG.verbose("Forgetting dep-file rule key of %s as %s changed.", target, path);
+      remove(target);
+    }
+  }
+
+  private static class Entry {
+    private final RuleKey manifestKey;
+    private final ImmutableSet<SourcePath> possibleInputs;
+    private final ImmutableList<String> depFile;
+    private final ImmutableList<Path> inputs;
+    private final Pair<RuleKey, ImmutableSet<SourcePath>> depFileRuleKeyAndInputs;
+
+    Entry(
+        RuleKey manifestKey,
+        ImmutableSet<SourcePath> possibleInputs,
+        ImmutableList<String> depFile,
+        ImmutableList<Path> inputs,
+        Pair<RuleKey, ImmutableSet<SourcePath>> depFileRuleKeyAndInputs) {
+      this.manifestKey = manifestKey;
+      this.possibleInputs = possibleInputs;
+      this.depFile = depFile;
+      this.inputs = inputs;
+      this.depFileRuleKeyAndInputs = depFileRuleKeyAndInputs;
+    }
+  }
+}
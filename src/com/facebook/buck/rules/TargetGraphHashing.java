@@ -29,6 +29,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
@@ -41,6 +42,7 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ForkJoinPool;
@@ -63,6 +65,7 @@ public class TargetGraphHashing {
   private final FileHashLoader fileHashLoader;
   private final Iterable<TargetNode<?>> roots;
   private int numThreads = 1;
+  private Optional<TargetHashCache> targetHashCache = Optional.absent();
 
   public TargetGraphHashing(
       final BuckEventBus eventBus,
@@ -131,6 +134,15 @@ public class TargetGraphHashing {
     return this;
   }
 
+  /**
+   * Reuses the hashes of nodes which have not changed since they were last calculated with
+   * {@code targetHashCache}, which must only be used with the daemon's file hash cache.
+   */
+  public TargetGraphHashing setTargetHashCache(TargetHashCache targetHashCache) {
+    this.targetHashCache = Optional.of(targetHashCache);
+    return this;
+  }
+
   private class HashNodeTask extends RecursiveTask<HashCode> {
     private final TargetNode<?> node;
     private Map<BuildTarget, ForkJoinTask<HashCode>> buildTargetHashes;
@@ -144,12 +156,40 @@ public class TargetGraphHashing {
 
     @Override
     protected HashCode compute() {
+      // Wait for the deps first, so the cache has seen any change to their hashes.
+      Map<BuildTarget, HashCode> dependencyHashCodes = new LinkedHashMap<>();
+      for (BuildTarget dependency : node.getDeps()) {
+        ForkJoinTask<HashCode> dependencyHashCodeTask = buildTargetHashes.get(dependency);
+        Preconditions.checkState(dependencyHashCodeTask != null);
+        HashCode dependencyHashCode = dependencyHashCodeTask.join();
+        Preconditions.checkState(dependencyHashCode != null);
+        dependencyHashCodes.put(dependency, dependencyHashCode);
+      }
+
+      ProjectFilesystem cellFilesystem = rootCell.getCell(node.getBuildTarget()).getFilesystem();
+      boolean cacheable =
+          targetHashCache.isPresent() && targetHashCache.get().canCache(cellFilesystem);
+      if (cacheable) {
+        Optional<HashCode> cachedHashCode = targetHashCache.get().get(node);
+        if (cachedHashCode.isPresent()) {
+          LOG.verbose("Reusing hash for target %s: %s", node.getBuildTarget(), cachedHashCode);
+          return cachedHashCode.get();
+        }
+      }
+
+      HashCode result;
       try (SimplePerfEvent.Scope scope = getHashNodeEventScope(eventBus, node.getBuildTarget())) {
-        return hashNode();
+        result = hashNode(cellFilesystem, dependencyHashCodes);
       }
+      if (cacheable) {
+        targetHashCache.get().put(node, result);
+      }
+      return result;
     }
 
-    private HashCode hashNode() {
+    private HashCode hashNode(
+        ProjectFilesystem cellFilesystem,
+        Map<BuildTarget, HashCode> dependencyHashCodes) {
       Hasher hasher = Hashing.sha1().newHasher();
       LOG.verbose("Hashing node %s", node);
       // Hash the node's build target and rules.
@@ -158,8 +198,6 @@ public class TargetGraphHashing {
       LOG.verbose("Got rules hash %s", targetRuleHashCode);
       hasher.putBytes(targetRuleHashCode.asBytes());
 
-      ProjectFilesystem cellFilesystem = rootCell.getCell(node.getBuildTarget()).getFilesystem();
-
       try {
         // Hash the contents of all input files and directories.
         PathHashing.hashPaths(
@@ -175,11 +213,9 @@ public class TargetGraphHashing {
       }
 
       // hash each dependency's build target and that build target's own hash.
-      for (BuildTarget dependency : node.getDeps()) {
-        ForkJoinTask<HashCode> dependencyHashCodeTask = buildTargetHashes.get(dependency);
-        Preconditions.checkState(dependencyHashCodeTask != null);
-        HashCode dependencyHashCode = dependencyHashCodeTask.join();
-        Preconditions.checkState(dependencyHashCode != null);
+      for (Map.Entry<BuildTarget, HashCode> entry : dependencyHashCodes.entrySet()) {
+        BuildTarget dependency = entry.getKey();
+        HashCode dependencyHashCode = entry.getValue();
         LOG.verbose("Node %s: adding dependency %s (%s)", node, dependency, dependencyHashCode);
         StringHashing.hashStringAndLength(hasher, dependency.toString());
         hasher.putBytes(dependencyHashCode.asBytes());
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.io.WatchEvents;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the target hashes calculated by {@link TargetGraphHashing} from one daemon invocation to
+ * the next, so that {@code buck targets --show-target-hash} only hashes again the part of the
+ * target graph touched since the last time.
+ * <p>
+ * A node's hash covers its raw attributes, the contents of its inputs and the hashes of its deps,
+ * so its entry is dropped once any of those may have changed: when a file change event names one
+ * of its inputs or a directory above one, or when the entry of one of its deps is dropped or
+ * replaced by one with a different hash. That only works for nodes whose inputs the file watcher
+ * sees and whose deps have entries too, so no other nodes get one. The hashes are of file contents
+ * as given by the daemon's file hash cache, and must only be used with that cache.
+ * <p>
+ * Builds do not compute target hashes at all. The distributed build state export hashes rules
+ * rather than target nodes, and has to record the hash of every file it ships to the workers, so
+ * it cannot skip unchanged nodes this way.
+ */
+public class TargetHashCache {
+
+  private static final Logger LOG = Logger.get(TargetHashCache.class);
+
+  private final ProjectFilesystem filesystem;
+  // Guarded by this.
+  private final Map<BuildTarget, Entry> entries = new HashMap<>();
+  // Guarded by this.
+  private final SetMultimap<Path, BuildTarget> nodesByInput = HashMultimap.create();
+  // Guarded by this.
+  private final SetMultimap<BuildTarget, BuildTarget> dependents = HashMultimap.create();
+
+  public TargetHashCache(ProjectFilesystem filesystem) {
+    this.filesystem = filesystem;
+  }
+
+  /**
+   * @return whether changes to the inputs of nodes in the cell with the given filesystem are seen
+   *     by this cache.
+   */
+  public boolean canCache(ProjectFilesystem cellFilesystem) {
+    return cellFilesystem.getRootPath().equals(filesystem.getRootPath());
+  }
+
+  /**
+   * @return the hash last calculated for {@code node}, if it was calculated for a node with the
+   *     same raw attributes, inputs and deps, and none of those inputs nor the hashes of those deps
+   *     have changed since. The hashes of the node's deps must already be up to date.
+   */
+  public synchronized Optional<HashCode> get(TargetNode<?> node) {
+    Entry entry = entries.get(node.getBuildTarget());
+    if (entry == null || !entry.isFor(node)) {
+      return Optional.absent();
+    }
+    return Optional.of(entry.hash);
+  }
+
+  /**
+   * Remembers the hash calculated for {@code node}, forgetting the nodes depending on it if it
+   * differs from the one remembered.
+   */
+  public synchronized void put(TargetNode<?> node, HashCode hash) {
+    BuildTarget target = node.getBuildTarget();
+    if (!isCacheable(node)) {
+      // Nothing would tell us when the nodes depending on this one go stale.
+      invalidate(target);
+      return;
+    }
+    Entry previous = entries.get(target);
+    if (previous != null && previous.hash.equals(hash)) {
+      remove(target);
+    } else {
+      invalidate(target);
+    }
+
+    Entry entry = new Entry(node, hash);
+    entries.put(target, entry);
+    for (Path input : entry.inputs) {
+      nodesByInput.put(input.normalize(), target);
+    }
+    for (BuildTarget dep : entry.deps) {
+      dependents.put(dep, target);
+    }
+  }
+
+  private boolean isCacheable(TargetNode<?> node) {
+    for (Path input : node.getInputs()) {
+      Path path = input.normalize();
+      if (!filesystem.isWatched(path)) {
+        LOG.verbose("Not caching the hash of %s as %s is not watched.", node, path);
+        return false;
+      }
+    }
+    for (BuildTarget dep : node.getDeps()) {
+      if (!entries.containsKey(dep)) {
+        LOG.verbose("Not caching the hash of %s as that of %s is not cached.", node, dep);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void remove(BuildTarget target) {
+    Entry entry = entries.remove(target);
+    if (entry != null) {
+      for (Path input : entry.inputs) {
+        nodesByInput.remove(input.normalize(), target);
+      }
+      for (BuildTarget dep : entry.deps) {
+        dependents.remove(dep, target);
+      }
+    }
+  }
+
+  /**
+   * Forgets the hash of {@code target} and of everything depending on it.
+   */
+  private void invalidate(BuildTarget target) {
+    Deque<BuildTarget> toInvalidate = new ArrayDeque<>();
+    toInvalidate.add(target);
+    while (!toInvalidate.isEmpty()) {
+      BuildTarget next = toInvalidate.remove();
+      toInvalidate.addAll(dependents.get(next));
+      remove(next);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Forgets the hashes of the nodes using a changed file, or a directory containing it, and of the
+   * nodes depending on them, or every hash if the changes are not known. The {@link Path}s
+   * contained within events must all be relative to the {@link ProjectFilesystem} root.
+   */
+  @Subscribe
+  public synchronized void onFileSystemChange(WatchEvent<?> event) {
+    if (!WatchEvents.isPathChangeEvent(event)) {
+      LOG.debug("Forgetting all target hashes.");
+      entries.clear();
+      nodesByInput.clear();
+      dependents.clear();
+      return;
+    }
+
+    for (Path path = ((Path) event.context()).normalize(); path != null; path = path.getParent()) {
+      for (BuildTarget target : ImmutableList.copyOf(nodesByInput.get(path))) {
+        LOG.verbose("Forgetting target hash of %s as %s changed.", target, event.context());
+        invalidate(target);
+      }
+    }
+  }
+
+  private static class Entry {
+    private final HashCode rawInputsHashCode;
+    private final ImmutableSet<Path> inputs;
+    private final ImmutableSet<BuildTarget> deps;
+    private final HashCode hash;
+
+    Entry(TargetNode<?> node, HashCode hash) {
+      this.rawInputsHashCode = node.getRawInputsHashCode();
+      this.inputs = node.getInputs();
+      this.deps = node.getDeps();
+      this.hash = hash;
+    }
+
+    boolean isFor(TargetNode<?> node) {
+      return rawInputsHashCode.equals(node.getRawInputsHashCode()) &&
+          inputs.equals(node.getInputs()) &&
+          deps.equals(node.getDeps());
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.Flavor;
+import com.facebook.buck.model.InternPool;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.ExceptionWithHumanReadableMessage;
@@ -107,16 +108,26 @@ public class TargetNodeFactory {
                       constructorArg));
     }
 
+    // Nodes are kept alive for the lifetime of the daemon, so share what we can with other nodes.
+    ImmutableSortedSet.Builder<BuildTarget> extraDeps = ImmutableSortedSet.naturalOrder();
+    for (BuildTarget dep : Sets.difference(extraDepsBuilder.build(), declaredDeps)) {
+      extraDeps.add(InternPool.intern(dep));
+    }
+    ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
+    for (Path path : pathsBuilder.build()) {
+      paths.add(InternPool.intern(path));
+    }
+
     return new TargetNode<>(
         this,
         rawInputsHashCode,
         description,
         constructorArg,
         params,
-        declaredDeps,
-        ImmutableSortedSet.copyOf(Sets.difference(extraDepsBuilder.build(), declaredDeps)),
-        visibilityPatterns,
-        pathsBuilder.build(),
+        InternPool.internSet(declaredDeps),
+        InternPool.internSet(extraDeps.build()),
+        InternPool.internSet(visibilityPatterns),
+        InternPool.internSet(paths.build()),
         cellRoots);
   }
 
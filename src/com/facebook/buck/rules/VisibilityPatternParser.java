@@ -54,6 +54,22 @@ public class VisibilityPatternParser {
     public String getRepresentation() {
       return buildTargetPattern.getCellFreeRepresentation();
     }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof BuildTargetVisibilityPattern)) {
+        return false;
+      }
+      return buildTargetPattern.equals(((BuildTargetVisibilityPattern) o).buildTargetPattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return buildTargetPattern.hashCode();
+    }
   }
 
   private static class PublicVisibilityPattern extends VisibilityPattern {
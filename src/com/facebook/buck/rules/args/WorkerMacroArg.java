@@ -102,4 +102,8 @@ public class WorkerMacroArg extends MacroArg {
   public String getJobArgs() {
     return jobArgs;
   }
+
+  public int getMaxWorkers() {
+    return workerTool.getMaxWorkers();
+  }
 }
@@ -17,6 +17,7 @@
 package com.facebook.buck.rules.coercer;
 
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.InternPool;
 import com.facebook.buck.rules.CellPathResolver;
 
 import java.nio.file.Path;
@@ -59,7 +60,7 @@ public class PathTypeCoercer extends LeafTypeCoercer<Path> {
         }
       }
 
-      return normalizedPath;
+      return InternPool.intern(normalizedPath);
     } else {
       throw CoerceFailedException.simple(object, getOutputClass());
     }
@@ -32,4 +32,5 @@ interface AbstractWorkerJobParams {
   String getStartupArgs();
   ImmutableMap<String, String> getStartupEnvironment();
   String getJobArgs();
+  int getMaxWorkers();
 }
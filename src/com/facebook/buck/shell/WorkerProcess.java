@@ -25,6 +25,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
@@ -32,9 +33,14 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -50,7 +56,21 @@ public class WorkerProcess {
   private final AtomicInteger currentMessageID = new AtomicInteger();
   private boolean handshakePerformed = false;
   @Nullable
-  private WorkerProcessProtocol protocol;
+  private volatile WorkerProcessProtocol protocol;
+  private volatile ImmutableSet<String> capabilities = ImmutableSet.of();
+
+  // Held for the whole of a job by workers which can only run one at a time.
+  private final Object jobLock = new Object();
+  private final Object sendLock = new Object();
+
+  // With pipelining, whichever waiting thread holds the "receiving" role reads responses off the
+  // process and hands those belonging to other jobs over to their threads through this map.
+  private final Object responseLock = new Object();
+  private final Set<Integer> pendingMessageIDs = new HashSet<>();
+  // Jobs whose threads stopped waiting for them, whose responses are dropped when they arrive.
+  private final Set<Integer> abandonedMessageIDs = new HashSet<>();
+  private final Map<Integer, Integer> receivedExitCodes = new HashMap<>();
+  private boolean receiving = false;
   @Nullable
   private ProcessExecutor.LaunchedProcess launchedProcess;
 
@@ -87,15 +107,33 @@ public class WorkerProcess {
     LOG.debug("Sending handshake to process %d", this.hashCode());
     protocol.sendHandshake(messageID);
     LOG.debug("Receiving handshake from process %d", this.hashCode());
-    protocol.receiveHandshake(messageID);
+    capabilities = protocol.receiveHandshake(messageID);
+    LOG.debug("Process %d announced capabilities %s", this.hashCode(), capabilities);
     handshakePerformed = true;
   }
 
-  public synchronized WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
+  /**
+   * @return whether the process accepts new jobs while others are still running.
+   */
+  public boolean supportsPipelining() {
+    return capabilities.contains(WorkerProcessProtocolZero.CAPABILITY_PIPELINING);
+  }
+
+  public WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
     Preconditions.checkState(
         protocol != null,
         "Tried to submit a job to the worker process before the handshake was performed.");
 
+    if (supportsPipelining()) {
+      return runJob(jobArgs);
+    }
+    synchronized (jobLock) {
+      return runJob(jobArgs);
+    }
+  }
+
+  private WorkerJobResult runJob(String jobArgs) throws IOException {
+    WorkerProcessProtocol protocol = Preconditions.checkNotNull(this.protocol);
     int messageID = currentMessageID.getAndAdd(1);
     Path argsPath = Paths.get(
         tmpPath.toString(),
@@ -113,11 +151,21 @@ public class WorkerProcess {
         messageID,
         this.hashCode(),
         jobArgs);
-    protocol.sendCommand(messageID, argsPath, stdoutPath, stderrPath);
+    boolean pipelined = supportsPipelining();
+    if (pipelined) {
+      synchronized (responseLock) {
+        pendingMessageIDs.add(messageID);
+      }
+    }
+    synchronized (sendLock) {
+      protocol.sendCommand(messageID, argsPath, stdoutPath, stderrPath);
+    }
     LOG.debug("Receiving response for job %d from process %d",
         messageID,
         this.hashCode());
-    int exitCode = protocol.receiveCommandResponse(messageID);
+    int exitCode = pipelined ?
+        waitForResponse(protocol, messageID) :
+        protocol.receiveCommandResponse(messageID);
     Optional<String> stdout = filesystem.readFileIfItExists(stdoutPath);
     Optional<String> stderr = filesystem.readFileIfItExists(stderrPath);
     LOG.debug("Job %d for process %d finished \n" +
@@ -133,6 +181,71 @@ public class WorkerProcess {
     return WorkerJobResult.of(exitCode, stdout, stderr);
   }
 
+  /**
+   * Waits for the response to the given pipelined job, reading responses off the process itself
+   * if no other thread is currently doing so.
+   */
+  private int waitForResponse(
+      WorkerProcessProtocol protocol,
+      int messageID) throws IOException {
+    synchronized (responseLock) {
+      while (true) {
+        Integer exitCode = receivedExitCodes.remove(messageID);
+        if (exitCode != null) {
+          return exitCode;
+        }
+        if (!receiving) {
+          break;
+        }
+        try {
+          responseLock.wait();
+        } catch (InterruptedException e) {
+          // The process will still answer the job, so leave it pending for whoever is receiving.
+          if (receivedExitCodes.remove(messageID) == null) {
+            abandonedMessageIDs.add(messageID);
+          }
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              String.format("Interrupted waiting for job %d of process %d.",
+                  messageID,
+                  this.hashCode()));
+        }
+      }
+      receiving = true;
+    }
+
+    try {
+      while (true) {
+        WorkerProcessCommandResponse response = protocol.receiveNextCommandResponse();
+        synchronized (responseLock) {
+          if (!pendingMessageIDs.remove(response.getMessageID())) {
+            throw new HumanReadableException(
+                "Received a response for job %d, which process %d was not running.",
+                response.getMessageID(),
+                this.hashCode());
+          }
+          if (response.getMessageID() == messageID) {
+            return response.getExitCode();
+          }
+          if (abandonedMessageIDs.remove(response.getMessageID())) {
+            LOG.debug(
+                "Dropping the response for abandoned job %d of process %d.",
+                response.getMessageID(),
+                this.hashCode());
+            continue;
+          }
+          receivedExitCodes.put(response.getMessageID(), response.getExitCode());
+          responseLock.notifyAll();
+        }
+      }
+    } finally {
+      synchronized (responseLock) {
+        receiving = false;
+        responseLock.notifyAll();
+      }
+    }
+  }
+
   public void close() {
     LOG.debug("Closing process %d", this.hashCode());
     try {
@@ -151,4 +264,9 @@ public class WorkerProcess {
   void setProtocol(WorkerProcessProtocol protocolMock) {
     this.protocol = protocolMock;
   }
+
+  @VisibleForTesting
+  void setCapabilities(ImmutableSet<String> capabilities) {
+    this.capabilities = capabilities;
+  }
 }
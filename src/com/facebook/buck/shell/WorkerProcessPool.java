@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.shell;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Up to a fixed number of instances of the same worker process, between which jobs are spread.
+ * <p>
+ * Each job goes to the least loaded instance: an idle one if there is one, else a newly started
+ * one while there are fewer than the maximum, else one which accepts pipelined jobs. Only when
+ * none of those is available does a job wait for an instance to free up.
+ * <p>
+ * How busy the instances are is reported through the counters returned by {@link #getCounters()}.
+ */
+public abstract class WorkerProcessPool {
+
+  private static final Logger LOG = Logger.get(WorkerProcessPool.class);
+
+  private static final String COUNTER_CATEGORY = "buck_worker_pool";
+
+  private final int maxWorkers;
+  // Guarded by this.
+  private final List<Worker> workers = new ArrayList<>();
+
+  private final IntegerCounter workersStartedCounter;
+  private final IntegerCounter jobsCompletedCounter;
+  private final IntegerCounter jobsWaitedCounter;
+  private final IntegerCounter busyMicrosCounter;
+  private final SamplingCounter jobsInFlightCounter;
+
+  public WorkerProcessPool(int maxWorkers) {
+    this(maxWorkers, ImmutableMap.<String, String>of());
+  }
+
+  /**
+   * @param counterTags the tags of this pool's counters, telling it apart from other pools.
+   */
+  public WorkerProcessPool(int maxWorkers, ImmutableMap<String, String> counterTags) {
+    Preconditions.checkArgument(maxWorkers > 0, "max_workers must be positive.");
+    this.maxWorkers = maxWorkers;
+    this.workersStartedCounter =
+        new IntegerCounter(COUNTER_CATEGORY, "workers_started", counterTags);
+    this.jobsCompletedCounter =
+        new IntegerCounter(COUNTER_CATEGORY, "jobs_completed", counterTags);
+    this.jobsWaitedCounter = new IntegerCounter(COUNTER_CATEGORY, "jobs_waited", counterTags);
+    this.busyMicrosCounter = new IntegerCounter(COUNTER_CATEGORY, "busy_micros", counterTags);
+    this.jobsInFlightCounter =
+        new SamplingCounter(COUNTER_CATEGORY, "jobs_in_flight", counterTags);
+  }
+
+  /**
+   * @return counters of the instances started, the jobs completed, how many of those had to wait
+   *     for an instance to free up, the time the instances spent running at least one job between
+   *     them, and how many jobs the instance chosen for each job was already running, including
+   *     that one.
+   */
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.<Counter>of(
+        workersStartedCounter,
+        jobsCompletedCounter,
+        jobsWaitedCounter,
+        busyMicrosCounter,
+        jobsInFlightCounter);
+  }
+
+  /**
+   * Creates a new instance of the worker process. It will be launched when first given a job.
+   */
+  protected abstract WorkerProcess startWorkerProcess() throws IOException;
+
+  public WorkerJobResult submitJob(String jobArgs) throws IOException, InterruptedException {
+    Worker worker = acquireWorker();
+    try {
+      worker.process.ensureLaunchAndHandshake();
+      return worker.process.submitAndWaitForJob(jobArgs);
+    } finally {
+      releaseWorker(worker);
+    }
+  }
+
+  private synchronized Worker acquireWorker() throws IOException, InterruptedException {
+    boolean waited = false;
+    while (true) {
+      Worker leastLoaded = null;
+      for (Worker worker : workers) {
+        if (leastLoaded == null || worker.inFlight < leastLoaded.inFlight) {
+          leastLoaded = worker;
+        }
+      }
+
+      Worker chosen;
+      if (leastLoaded != null && leastLoaded.inFlight == 0) {
+        chosen = leastLoaded;
+      } else if (workers.size() < maxWorkers) {
+        chosen = new Worker(startWorkerProcess());
+        workers.add(chosen);
+        workersStartedCounter.inc();
+      } else if (leastLoaded != null && leastLoaded.process.supportsPipelining()) {
+        chosen = leastLoaded;
+      } else {
+        if (!waited) {
+          waited = true;
+          jobsWaitedCounter.inc();
+        }
+        wait();
+        continue;
+      }
+
+      if (chosen.inFlight == 0) {
+        chosen.busySinceNanos = System.nanoTime();
+      }
+      chosen.inFlight++;
+      chosen.maxInFlight = Math.max(chosen.maxInFlight, chosen.inFlight);
+      jobsInFlightCounter.addSample(chosen.inFlight);
+      return chosen;
+    }
+  }
+
+  private synchronized void releaseWorker(Worker worker) {
+    worker.inFlight--;
+    worker.jobsCompleted++;
+    jobsCompletedCounter.inc();
+    if (worker.inFlight == 0) {
+      long busyNanos = System.nanoTime() - worker.busySinceNanos;
+      worker.busyNanos += busyNanos;
+      busyMicrosCounter.inc(TimeUnit.NANOSECONDS.toMicros(busyNanos));
+    }
+    notifyAll();
+  }
+
+  @VisibleForTesting
+  synchronized int getWorkerCount() {
+    return workers.size();
+  }
+
+  /**
+   * Logs how much each instance was used and closes them all.
+   */
+  public synchronized void close() {
+    RuntimeException failure = null;
+    long now = System.nanoTime();
+    for (Worker worker : workers) {
+      long lifetimeNanos = Math.max(1, now - worker.createdNanos);
+      LOG.info(
+          "Worker process %d ran %d jobs, at most %d at once, and was busy for %d of %d ms (%d%%).",
+          worker.process.hashCode(),
+          worker.jobsCompleted,
+          worker.maxInFlight,
+          TimeUnit.NANOSECONDS.toMillis(worker.busyNanos),
+          TimeUnit.NANOSECONDS.toMillis(lifetimeNanos),
+          100 * worker.busyNanos / lifetimeNanos);
+      try {
+        worker.process.close();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    workers.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * A worker process along with its load and usage statistics, all guarded by the pool.
+   */
+  private static class Worker {
+    private final WorkerProcess process;
+    private final long createdNanos = System.nanoTime();
+    private int inFlight = 0;
+    private int maxInFlight = 0;
+    private long jobsCompleted = 0;
+    private long busySinceNanos = 0;
+    private long busyNanos = 0;
+
+    Worker(WorkerProcess process) {
+      this.process = process;
+    }
+  }
+}
@@ -15,15 +15,25 @@
  */
 package com.facebook.buck.shell;
 
+import com.google.common.collect.ImmutableSet;
+
 import java.io.IOException;
 import java.nio.file.Path;
 
 public interface WorkerProcessProtocol {
 
   void sendHandshake(int handshakeID) throws IOException;
-  void receiveHandshake(int handshakeID) throws IOException;
+  /**
+   * @return the capabilities announced by the worker process.
+   */
+  ImmutableSet<String> receiveHandshake(int handshakeID) throws IOException;
   void sendCommand(int messageID, Path argsPath, Path stdoutPath, Path stderrPath)
       throws IOException;
   int receiveCommandResponse(int messageID) throws IOException;
+  /**
+   * Receives the response to whichever job the worker process finished next, which, if it runs
+   * several jobs at once, need not be the one it was sent first.
+   */
+  WorkerProcessCommandResponse receiveNextCommandResponse() throws IOException;
   void close() throws IOException;
 }
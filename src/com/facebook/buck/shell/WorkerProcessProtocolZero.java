@@ -17,6 +17,7 @@ package com.facebook.buck.shell;
 
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProcessExecutor;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
@@ -33,6 +34,12 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
   private static final String TYPE_ERROR = "error";
   private static final String PROTOCOL_VERSION = "0";
 
+  /**
+   * Announced in its handshake response by a worker process which can be sent more jobs while
+   * others are still running, and which may answer them in any order.
+   */
+  public static final String CAPABILITY_PIPELINING = "pipelining";
+
   private final ProcessExecutor executor;
   private final ProcessExecutor.LaunchedProcess launchedProcess;
   private final JsonWriter processStdinWriter;
@@ -80,12 +87,15 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
           protocol_version: '0',
           capabilities: []
         }
+
+    where the capabilities may include 'pipelining'.
    */
   @Override
-  public void receiveHandshake(int handshakeID) throws IOException {
+  public ImmutableSet<String> receiveHandshake(int handshakeID) throws IOException {
     int id = -1;
     String type = "";
     String protocolVersion = "";
+    ImmutableSet.Builder<String> capabilities = ImmutableSet.builder();
 
     try {
       processStdoutReader.beginArray();
@@ -101,11 +111,14 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
         } else if (property.equals("capabilities")) {
           try {
             processStdoutReader.beginArray();
+            while (processStdoutReader.hasNext()) {
+              capabilities.add(processStdoutReader.nextString());
+            }
             processStdoutReader.endArray();
           } catch (IllegalStateException e) {
             throw new HumanReadableException(
                 "Expected handshake response's \"capabilities\" to " +
-                    "be an empty array.");
+                    "be an array of strings.");
           }
         } else {
           processStdoutReader.skipValue();
@@ -132,6 +145,7 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
           "\"protocol_version\" to be \"%s\", got \"%s\" instead.",
           PROTOCOL_VERSION, protocolVersion));
     }
+    return capabilities.build();
   }
 
   /*
@@ -186,6 +200,16 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
   */
   @Override
   public int receiveCommandResponse(int messageID) throws IOException {
+    WorkerProcessCommandResponse response = receiveNextCommandResponse();
+    if (response.getMessageID() != messageID) {
+      throw new HumanReadableException(String.format("Expected response's \"id\" value to be " +
+          "\"%d\", got \"%d\" instead.", messageID, response.getMessageID()));
+    }
+    return response.getExitCode();
+  }
+
+  @Override
+  public WorkerProcessCommandResponse receiveNextCommandResponse() throws IOException {
     int id = -1;
     int exitCode = -1;
     String type = "";
@@ -212,15 +236,11 @@ public class WorkerProcessProtocolZero implements WorkerProcessProtocol {
           getStdErrorOutput());
     }
 
-    if (id != messageID) {
-      throw new HumanReadableException(String.format("Expected response's \"id\" value to be " +
-          "\"%d\", got \"%d\" instead.", messageID, id));
-    }
     if (!type.equals(TYPE_RESULT) && !type.equals(TYPE_ERROR)) {
       throw new HumanReadableException(String.format("Expected response's \"type\" " +
           "to be one of [\"%s\",\"%s\"], got \"%s\" instead.", TYPE_RESULT, TYPE_ERROR, type));
     }
-    return exitCode;
+    return WorkerProcessCommandResponse.of(id, exitCode);
   }
 
   /*
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.shell;
 
+import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.step.ExecutionContext;
@@ -38,6 +39,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WorkerShellStep implements Step {
 
@@ -62,9 +64,8 @@ public class WorkerShellStep implements Step {
     try {
       // Use the process's startup command as the key.
       String key = Joiner.on(' ').join(getCommand(context.getPlatform()));
-      WorkerProcess process = getWorkerProcessForKey(key, context);
-      process.ensureLaunchAndHandshake();
-      WorkerJobResult result = process.submitAndWaitForJob(getExpandedJobArgs(context));
+      WorkerProcessPool pool = getWorkerProcessPoolForKey(key, context);
+      WorkerJobResult result = pool.submitJob(getExpandedJobArgs(context));
       Verbosity verbosity = context.getVerbosity();
       if (result.getStdout().isPresent() && !result.getStdout().get().isEmpty() &&
           verbosity.shouldPrintOutput()) {
@@ -81,36 +82,52 @@ public class WorkerShellStep implements Step {
   }
 
   /**
-   * Returns an existing WorkerProcess for the given key if one exists, else creates a new one.
+   * Returns an existing WorkerProcessPool for the given key if one exists, else creates a new one.
    */
-  private WorkerProcess getWorkerProcessForKey(
+  private WorkerProcessPool getWorkerProcessPoolForKey(
       String key,
-      ExecutionContext context) throws IOException {
-    ConcurrentMap<String, WorkerProcess> processMap = context.getWorkerProcesses();
-    WorkerProcess process = processMap.get(key);
-    if (process != null) {
-      return process;
+      final ExecutionContext context) {
+    ConcurrentMap<String, WorkerProcessPool> poolMap = context.getWorkerProcessPools();
+    WorkerProcessPool pool = poolMap.get(key);
+    if (pool != null) {
+      return pool;
     }
 
-    Path tmpDir = getWorkerJobParamsToUse(context.getPlatform()).getTempDir();
-    filesystem.mkdirs(tmpDir);
-
-    ProcessExecutorParams processParams = ProcessExecutorParams.builder()
-        .setCommand(getCommand(context.getPlatform()))
-        .setEnvironment(getEnvironmentForProcess(context))
-        .setDirectory(filesystem.getRootPath().toFile())
-        .build();
-    WorkerProcess newProcess = new WorkerProcess(
-        context.getProcessExecutor(),
-        processParams,
-        filesystem,
-        tmpDir);
+    final WorkerJobParams paramsToUse = getWorkerJobParamsToUse(context.getPlatform());
+    WorkerProcessPool newPool = new WorkerProcessPool(
+        paramsToUse.getMaxWorkers(),
+        ImmutableMap.of("command", key)) {
+      private final AtomicInteger workersStarted = new AtomicInteger();
+
+      @Override
+      protected WorkerProcess startWorkerProcess() throws IOException {
+        // Each instance gets a directory of its own, as they number their jobs independently.
+        Path workerTmpDir = paramsToUse.getTempDir().resolve(
+            String.valueOf(workersStarted.getAndIncrement()));
+        filesystem.mkdirs(workerTmpDir);
+
+        ProcessExecutorParams processParams = ProcessExecutorParams.builder()
+            .setCommand(getCommand(context.getPlatform()))
+            .setEnvironment(getEnvironmentForProcess(context))
+            .setDirectory(filesystem.getRootPath().toFile())
+            .build();
+        return new WorkerProcess(
+            context.getProcessExecutor(),
+            processParams,
+            filesystem,
+            workerTmpDir);
+      }
+    };
 
-    WorkerProcess previousValue = processMap.putIfAbsent(key, newProcess);
+    WorkerProcessPool previousValue = poolMap.putIfAbsent(key, newPool);
     // If putIfAbsent does not return null, then that means another thread beat this thread
-    // into putting an WorkerProcess in the map for this key. If that's the case, then we should
-    // ignore newProcess and return the existing one.
-    return previousValue == null ? newProcess : previousValue;
+    // into putting an WorkerProcessPool in the map for this key. If that's the case, then we
+    // should ignore newPool and return the existing one.
+    if (previousValue != null) {
+      return previousValue;
+    }
+    context.postEvent(new CounterRegistry.AsyncCounterRegistrationEvent(newPool.getCounters()));
+    return newPool;
   }
 
   @VisibleForTesting
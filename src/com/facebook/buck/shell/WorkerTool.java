@@ -24,4 +24,9 @@ public interface WorkerTool {
   Tool getTool();
   String getArgs();
   Path getTempDir();
+
+  /**
+   * @return the maximum number of instances of the tool's process to run at once.
+   */
+  int getMaxWorkers();
 }
@@ -119,7 +119,8 @@ public class WorkerToolDescription implements Description<WorkerToolDescription.
         new SourcePathResolver(resolver),
         (BinaryBuildRule) rule,
         expandedStartupArgs,
-        expandedEnv);
+        expandedEnv,
+        args.maxWorkers.or(1));
   }
 
   @Override
@@ -151,5 +152,6 @@ public class WorkerToolDescription implements Description<WorkerToolDescription.
     public Optional<ImmutableMap<String, String>> env;
     public Optional<String> args;
     public BuildTarget exe;
+    public Optional<Integer> maxWorkers;
   }
 }
@@ -23,12 +23,13 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.jvm.core.JavaPackageFinder;
 import com.facebook.buck.model.BuildId;
-import com.facebook.buck.shell.WorkerProcess;
+import com.facebook.buck.shell.WorkerProcessPool;
 import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.ClassLoaderCache;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
@@ -88,6 +89,12 @@ abstract class AbstractExecutionContext implements Closeable {
   @Value.Parameter
   abstract Optional<AdbOptions> getAdbOptions();
 
+  /**
+   * The class files of classpath jars, if in-memory javac should read them from memory rather
+   * than opening each jar again for every compilation.
+   */
+  public abstract Optional<JarContentsCache> getJarContentsCache();
+
   /**
    * Returns an {@link AndroidPlatformTarget} if the user specified one via {@code local.properties}
    * or some other mechanism. If the user failed to specify one, an exception will be thrown.
@@ -118,7 +125,7 @@ abstract class AbstractExecutionContext implements Closeable {
   }
 
   @Value.Default
-  public ConcurrentMap<String, WorkerProcess> getWorkerProcesses() {
+  public ConcurrentMap<String, WorkerProcessPool> getWorkerProcessPools() {
     return new ConcurrentHashMap<>();
   }
 
@@ -212,7 +219,7 @@ abstract class AbstractExecutionContext implements Closeable {
         .setConsole(console)
         .setProcessExecutor(new ProcessExecutor(console))
         .setClassLoaderCache(getClassLoaderCache().addRef())
-        .setWorkerProcesses(new ConcurrentHashMap<String, WorkerProcess>())
+        .setWorkerProcessPools(new ConcurrentHashMap<String, WorkerProcessPool>())
         .build();
   }
 
@@ -220,11 +227,11 @@ abstract class AbstractExecutionContext implements Closeable {
   public void close() throws IOException {
     getClassLoaderCache().close();
     try {
-      for (WorkerProcess process : getWorkerProcesses().values()) {
-        process.close();
+      for (WorkerProcessPool pool : getWorkerProcessPools().values()) {
+        pool.close();
       }
     } finally {
-      getWorkerProcesses().clear();
+      getWorkerProcessPools().clear();
     }
   }
 }
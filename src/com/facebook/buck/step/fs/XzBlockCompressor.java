@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step.fs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses a file into a single XZ stream made of independently compressed blocks, which are
+ * compressed in parallel.
+ * <p>
+ * Each block is compressed into a stream of its own, from which the block is then lifted into the
+ * output stream, whose index is rebuilt to list every block. The result is an ordinary multi-block
+ * XZ stream, as {@code xz -T} would produce, and is decompressed in the same way as a single-block
+ * one. As blocks do not share a dictionary, blocks are several times the dictionary size so that
+ * little compression is lost.
+ */
+class XzBlockCompressor {
+
+  private static final int HEADER_SIZE = 12;
+  private static final int FOOTER_SIZE = 12;
+  private static final byte[] FOOTER_MAGIC = {'Y', 'Z'};
+
+  private final ListeningExecutorService executorService;
+  private final int compressionLevel;
+  private final int check;
+  private final int blockSize;
+
+  XzBlockCompressor(ListeningExecutorService executorService, int compressionLevel, int check)
+      throws IOException {
+    this.executorService = executorService;
+    this.compressionLevel = compressionLevel;
+    this.check = check;
+    this.blockSize = getBlockSize(compressionLevel);
+  }
+
+  /**
+   * @return the size of the blocks input is split into at the given level: three times the
+   *     dictionary size, the same as {@code xz -T} uses.
+   */
+  static int getBlockSize(int compressionLevel) throws IOException {
+    return Math.max(1024 * 1024, 3 * new LZMA2Options(compressionLevel).getDictSize());
+  }
+
+  /**
+   * @param source the file to compress, which must not be empty.
+   */
+  void compress(final Path source, OutputStream out)
+      throws IOException, InterruptedException {
+    long size;
+    try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+      size = channel.size();
+    }
+    Preconditions.checkArgument(size > 0, "%s is empty.", source);
+
+    List<ListenableFuture<byte[]>> blocks = new ArrayList<>();
+    for (long offset = 0; offset < size; offset += blockSize) {
+      final long blockOffset = offset;
+      final int length = (int) Math.min(blockSize, size - offset);
+      blocks.add(executorService.submit(
+          new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+              return compressBlock(source, blockOffset, length);
+            }
+          }));
+    }
+
+    List<byte[]> streams;
+    try {
+      streams = Futures.allAsList(blocks).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for (ListenableFuture<byte[]> block : blocks) {
+        block.cancel(true);
+      }
+    }
+    writeStream(streams, out);
+  }
+
+  private byte[] compressBlock(Path source, long offset, int length) throws IOException {
+    // Wait for memory before reading the block in, so that queued blocks don't hold buffers.
+    XzMemorySemaphore.acquireMemory(compressionLevel);
+    try {
+      ByteBuffer input = ByteBuffer.allocate(length);
+      try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+        while (input.hasRemaining()) {
+          if (channel.read(input, offset + input.position()) == -1) {
+            throw new IOException(String.format("%s was truncated while compressing.", source));
+          }
+        }
+      }
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4);
+      try (XZOutputStream xzOut =
+               new XZOutputStream(compressed, new LZMA2Options(compressionLevel), check)) {
+        xzOut.write(input.array(), 0, length);
+      }
+      return compressed.toByteArray();
+    } finally {
+      XzMemorySemaphore.releaseMemory(compressionLevel);
+    }
+  }
+
+  /**
+   * Writes the blocks of the given single-block streams out as one stream.
+   */
+  private static void writeStream(List<byte[]> streams, OutputStream out) throws IOException {
+    byte[] first = streams.get(0);
+    out.write(first, 0, HEADER_SIZE);
+
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    index.write(0);
+    writeVarInt(index, streams.size());
+    for (byte[] stream : streams) {
+      Preconditions.checkState(
+          Arrays.equals(
+              Arrays.copyOfRange(stream, 0, HEADER_SIZE),
+              Arrays.copyOfRange(first, 0, HEADER_SIZE)));
+      int indexStart = stream.length - FOOTER_SIZE - getIndexSize(stream);
+      out.write(stream, HEADER_SIZE, indexStart - HEADER_SIZE);
+
+      // Each stream's index holds a single record of the block's unpadded and uncompressed sizes.
+      int[] position = {indexStart + 1};
+      Preconditions.checkState(readVarInt(stream, position) == 1);
+      writeVarInt(index, readVarInt(stream, position));
+      writeVarInt(index, readVarInt(stream, position));
+    }
+    while (index.size() % 4 != 0) {
+      index.write(0);
+    }
+    byte[] indexBytes = index.toByteArray();
+    out.write(indexBytes);
+    writeCrc32(out, indexBytes, 0, indexBytes.length);
+
+    // The footer records the size of the index, in four byte units less one, and the stream flags.
+    byte[] footer = new byte[6];
+    int backwardSize = (indexBytes.length + 4) / 4 - 1;
+    for (int i = 0; i < 4; i++) {
+      footer[i] = (byte) (backwardSize >>> (8 * i));
+    }
+    footer[4] = first[6];
+    footer[5] = first[7];
+    writeCrc32(out, footer, 0, footer.length);
+    out.write(footer);
+    out.write(FOOTER_MAGIC);
+  }
+
+  private static int getIndexSize(byte[] stream) {
+    int footerStart = stream.length - FOOTER_SIZE;
+    long backwardSize = 0;
+    for (int i = 3; i >= 0; i--) {
+      backwardSize = (backwardSize << 8) | (stream[footerStart + 4 + i] & 0xff);
+    }
+    return (int) ((backwardSize + 1) * 4);
+  }
+
+  private static long readVarInt(byte[] bytes, int[] position) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[position[0]++];
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, long value) {
+    while (value >= 0x80) {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeCrc32(OutputStream out, byte[] bytes, int offset, int length)
+      throws IOException {
+    CRC32 crc32 = new CRC32();
+    crc32.update(bytes, offset, length);
+    long value = crc32.getValue();
+    for (int i = 0; i < 4; i++) {
+      out.write((int) (value >>> (8 * i)) & 0xff);
+    }
+  }
+}
@@ -23,8 +23,10 @@ import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepExecutionResult;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZ;
@@ -53,6 +55,7 @@ public class XzStep implements Step {
   private final int compressionLevel;
   private final boolean keep;
   private final int check;
+  private final Optional<ListeningExecutorService> executorService;
 
   /**
    * Create an {@link XzStep} to compress a file using XZ.
@@ -73,6 +76,24 @@ public class XzStep implements Step {
       int compressionLevel,
       boolean keep,
       int check) {
+    this(
+        filesystem,
+        sourceFile,
+        destinationFile,
+        compressionLevel,
+        keep,
+        check,
+        Optional.<ListeningExecutorService>absent());
+  }
+
+  private XzStep(
+      ProjectFilesystem filesystem,
+      Path sourceFile,
+      Path destinationFile,
+      int compressionLevel,
+      boolean keep,
+      int check,
+      Optional<ListeningExecutorService> executorService) {
     this.filesystem = filesystem;
     this.sourceFile = sourceFile;
     this.destinationFile = destinationFile;
@@ -81,6 +102,7 @@ public class XzStep implements Step {
     this.compressionLevel = compressionLevel;
     this.keep = keep;
     this.check = check;
+    this.executorService = executorService;
   }
 
   /**
@@ -124,6 +146,36 @@ public class XzStep implements Step {
     this(filesystem, sourceFile, outputPath, compressionLevel, /* keep */ false, XZ.CHECK_CRC32);
   }
 
+  /**
+   * Creates an XzStep to compress a file with the given XZ compression level and output path,
+   * splitting files larger than a few times the dictionary size into blocks which are compressed
+   * in parallel on {@code executorService}.
+   *
+   * <p> The output is a single XZ stream, which decompresses as any other does, but is slightly
+   * larger than if the file had been compressed as one block.
+   *
+   * @param sourceFile file to compress
+   * @param outputPath the desired output path.
+   * @param compressionLevel level of compression (from 0-9)
+   * @param executorService where to compress blocks, which must not be the executor running this
+   *     step.
+   */
+  public XzStep(
+      ProjectFilesystem filesystem,
+      Path sourceFile,
+      Path outputPath,
+      int compressionLevel,
+      ListeningExecutorService executorService) {
+    this(
+        filesystem,
+        sourceFile,
+        outputPath,
+        compressionLevel,
+        /* keep */ false,
+        XZ.CHECK_CRC32,
+        Optional.of(executorService));
+  }
+
   /**
    * Creates an XzStep to compress a file with XZ at a user supplied compression level .
    *
@@ -146,13 +198,24 @@ public class XzStep implements Step {
   }
 
   @Override
-  public StepExecutionResult execute(ExecutionContext context) {
+  public StepExecutionResult execute(ExecutionContext context) throws InterruptedException {
+    if (executorService.isPresent()) {
+      try {
+        if (filesystem.getFileSize(sourceFile) > XzBlockCompressor.getBlockSize(compressionLevel)) {
+          return executeInBlocks(executorService.get());
+        }
+      } catch (IOException e) {
+        LOG.error(e);
+        return StepExecutionResult.ERROR;
+      }
+    }
+
+    XzMemorySemaphore.acquireMemory(compressionLevel);
     try (
         InputStream in = filesystem.newFileInputStream(sourceFile);
         OutputStream out = filesystem.newFileOutputStream(destinationFile);
         XZOutputStream xzOut = new XZOutputStream(out, new LZMA2Options(compressionLevel), check)
     ) {
-      XzMemorySemaphore.acquireMemory(compressionLevel);
       ByteStreams.copy(in, xzOut);
       xzOut.finish();
       if (!keep) {
@@ -167,6 +230,21 @@ public class XzStep implements Step {
     return StepExecutionResult.SUCCESS;
   }
 
+  private StepExecutionResult executeInBlocks(ListeningExecutorService executorService)
+      throws InterruptedException {
+    try (OutputStream out = filesystem.newFileOutputStream(destinationFile)) {
+      new XzBlockCompressor(executorService, compressionLevel, check)
+          .compress(filesystem.resolve(sourceFile), out);
+      if (!keep) {
+        filesystem.deleteFileAtPath(sourceFile);
+      }
+    } catch (IOException e) {
+      LOG.error(e);
+      return StepExecutionResult.ERROR;
+    }
+    return StepExecutionResult.SUCCESS;
+  }
+
   public Path getDestinationFile() {
     return destinationFile;
   }
@@ -174,7 +252,13 @@ public class XzStep implements Step {
   @Override
   public String getDescription(ExecutionContext context) {
     return Joiner.on(" ").skipNulls().join(
-     "xz", "-z", "-" + compressionLevel, (keep ? "--keep" : null), "--check=crc32", sourceFile);
+        "xz",
+        "-z",
+        "-" + compressionLevel,
+        (keep ? "--keep" : null),
+        (executorService.isPresent() ? "-T0" : null),
+        "--check=crc32",
+        sourceFile);
   }
 
   @Override
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.Watchman.Capability;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Watchman subscription to the changes {@link WatchmanWatcher} queries for, kept open for the
+ * lifetime of the daemon on a connection of its own. The changes Watchman reports are posted to
+ * the file change event bus as they arrive, so the caches listening to it are invalidated before
+ * the next command starts rather than when it starts.
+ * <p>
+ * Changes are only posted while no command is running: those reported while one runs are held
+ * back until it finishes, so that a command only sees the caches change when it starts.
+ */
+public class WatchmanSubscription implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(WatchmanSubscription.class);
+
+  private static final String COUNTER_CATEGORY = "buck_watchman_subscription";
+  private static final String SETTLE_LATENCY_COUNTER_NAME = "settle_latency_millis";
+  private static final String OVERFLOW_COUNTER_NAME = "overflows";
+
+  private final EventBus fileChangeEventBus;
+  private final WatchmanClient watchmanClient;
+  private final int overflow;
+  private final Clock clock;
+  private final ExecutorService executor;
+  private final SamplingCounter settleLatencyCounter;
+  private final IntegerCounter overflowCounter;
+
+  // Guarded by this.
+  private final List<Notification> pendingNotifications = new ArrayList<>();
+  // Guarded by this.
+  private int runningCommands;
+  // Guarded by this. Absent until subscribed, and once the subscription is lost.
+  private Optional<String> lastClock = Optional.absent();
+  private volatile boolean closed;
+
+  @VisibleForTesting
+  WatchmanSubscription(
+      EventBus fileChangeEventBus,
+      WatchmanClient watchmanClient,
+      int overflow,
+      Clock clock) {
+    this.fileChangeEventBus = fileChangeEventBus;
+    this.watchmanClient = watchmanClient;
+    this.overflow = overflow;
+    this.clock = clock;
+    this.executor = MostExecutors.newSingleThreadExecutor("Watchman subscription");
+    this.settleLatencyCounter = new SamplingCounter(
+        COUNTER_CATEGORY,
+        SETTLE_LATENCY_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+    this.overflowCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        OVERFLOW_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+  }
+
+  /**
+   * Subscribes to changes under {@code watchRoot} over a new connection to Watchman.
+   *
+   * @return the subscription, or absent if subscribing failed.
+   */
+  public static Optional<WatchmanSubscription> subscribe(
+      String watchRoot,
+      EventBus fileChangeEventBus,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Watchman watchman,
+      UUID subscriptionUUID,
+      Console console,
+      Clock clock) throws InterruptedException {
+    Optional<WatchmanClient> watchmanClient = watchman.connect(console, clock);
+    if (!watchmanClient.isPresent()) {
+      return Optional.absent();
+    }
+    WatchmanSubscription subscription = new WatchmanSubscription(
+        fileChangeEventBus,
+        watchmanClient.get(),
+        WatchmanWatcher.DEFAULT_OVERFLOW_THRESHOLD,
+        clock);
+    try {
+      subscription.start(
+          watchRoot,
+          watchman.getProjectPrefix(),
+          "buckd-" + subscriptionUUID,
+          ignorePaths,
+          watchman.getCapabilities());
+      return Optional.of(subscription);
+    } catch (IOException e) {
+      LOG.warn(e, "Could not subscribe to changes with Watchman.");
+      try {
+        subscription.close();
+      } catch (IOException ioe) {
+        LOG.warn(ioe, "Could not close Watchman subscription client");
+      }
+      return Optional.absent();
+    }
+  }
+
+  @VisibleForTesting
+  void start(
+      String watchRoot,
+      Optional<String> watchPrefix,
+      String subscriptionName,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Set<Capability> watchmanCapabilities) throws IOException, InterruptedException {
+    // Subscribe to the changes since now, rather than get a fresh instance notification.
+    Object since = query("clock", watchRoot).get("clock");
+    if (!(since instanceof String)) {
+      throw new IOException(String.format("Watchman did not return a clock: %s", since));
+    }
+    query(
+        WatchmanWatcher.createSubscribeQuery(
+            watchRoot,
+            watchPrefix,
+            subscriptionName,
+            (String) since,
+            ignorePaths,
+            watchmanCapabilities).toArray());
+    LOG.debug("Subscribed to changes since %s as %s", since, subscriptionName);
+
+    synchronized (this) {
+      lastClock = Optional.of((String) since);
+    }
+    executor.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            receiveNotifications();
+          }
+        });
+  }
+
+  private Map<String, ? extends Object> query(Object... query)
+      throws IOException, InterruptedException {
+    Optional<? extends Map<String, ? extends Object>> response =
+        watchmanClient.queryWithTimeout(
+            TimeUnit.MILLISECONDS.toNanos(WatchmanWatcher.DEFAULT_TIMEOUT_MILLIS),
+            query);
+    if (!response.isPresent()) {
+      throw new IOException(
+          String.format("Watchman did not respond to %s", ImmutableList.copyOf(query)));
+    }
+    Object error = response.get().get("error");
+    if (error != null) {
+      throw new IOException(String.format("Error in Watchman output: %s", error));
+    }
+    return response.get();
+  }
+
+  private void receiveNotifications() {
+    try {
+      while (true) {
+        onMessage(watchmanClient.receive());
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Stopped receiving Watchman notifications.");
+    } catch (IOException | RuntimeException e) {
+      if (!closed) {
+        LOG.warn(e, "Lost the Watchman subscription, querying for changes in commands instead.");
+      }
+    } finally {
+      synchronized (this) {
+        // The next command finds out about the changes it missed from Watchman itself.
+        lastClock = Optional.absent();
+        pendingNotifications.clear();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void onMessage(Map<String, ? extends Object> message) throws IOException {
+    if (message.get("subscription") == null) {
+      LOG.verbose("Ignoring Watchman message %s", message);
+      return;
+    }
+    if (message.containsKey("canceled")) {
+      throw new IOException("Watchman canceled the subscription.");
+    }
+
+    Object notificationClock = message.get("clock");
+    if (notificationClock instanceof String) {
+      lastClock = Optional.of((String) notificationClock);
+    }
+    pendingNotifications.add(new Notification(message, clock.nanoTime()));
+    if (runningCommands == 0) {
+      postNotifications();
+    }
+  }
+
+  // Guarded by this.
+  private void postNotifications() {
+    for (Notification notification : pendingNotifications) {
+      if (WatchmanWatcher.postChanges(fileChangeEventBus, notification.message, overflow)) {
+        overflowCounter.inc();
+      }
+      if (notification.message.containsKey("files")) {
+        settleLatencyCounter.addSample(
+            TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - notification.receivedNanos));
+      }
+    }
+    pendingNotifications.clear();
+  }
+
+  /**
+   * Holds back the changes reported from now on until {@link #releaseChanges()} is called, while a
+   * command is running.
+   */
+  public synchronized void holdChanges() {
+    runningCommands++;
+  }
+
+  /**
+   * Posts the changes held back since the matching call to {@link #holdChanges()}, unless another
+   * command is still holding them back.
+   */
+  public synchronized void releaseChanges() {
+    Preconditions.checkState(runningCommands > 0);
+    runningCommands--;
+    if (runningCommands == 0) {
+      postNotifications();
+    }
+  }
+
+  /**
+   * Posts the changes reported so far, even while they are held back, for a command which is
+   * starting.
+   *
+   * @return the clock the posted changes are up to, or absent if the subscription has been lost,
+   *     in which case the changes must be found out by other means.
+   */
+  synchronized Optional<String> postPendingChanges() {
+    if (lastClock.isPresent()) {
+      postNotifications();
+    }
+    return lastClock;
+  }
+
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.<Counter>of(settleLatencyCounter, overflowCounter);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    watchmanClient.close();
+    executor.shutdownNow();
+  }
+
+  private static class Notification {
+    private final Map<String, ? extends Object> message;
+    private final long receivedNanos;
+
+    Notification(Map<String, ? extends Object> message, long receivedNanos) {
+      this.message = message;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+}
@@ -55,12 +55,13 @@ import javax.annotation.Nullable;
 public class WatchmanWatcher {
 
   private static final Logger LOG = Logger.get(WatchmanWatcher.class);
-  private static final int DEFAULT_OVERFLOW_THRESHOLD = 10000;
-  private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  static final int DEFAULT_OVERFLOW_THRESHOLD = 10000;
+  static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
   private final EventBus fileChangeEventBus;
   private final List<Object> query;
   private final WatchmanClient watchmanClient;
+  private final Optional<WatchmanSubscription> subscription;
 
   /**
    * The maximum number of watchman changes to process in each call to postEvents before
@@ -80,6 +81,26 @@ public class WatchmanWatcher {
       ImmutableSet<PathOrGlobMatcher> ignorePaths,
       Watchman watchman,
       UUID queryUUID) {
+    this(
+        watchRoot,
+        fileChangeEventBus,
+        ignorePaths,
+        watchman,
+        queryUUID,
+        Optional.<WatchmanSubscription>absent());
+  }
+
+  /**
+   * @param subscription if present and still active, the changes it has already reported are
+   *     posted by {@link #postEvents}, which then only asks Watchman for the changes since those.
+   */
+  public WatchmanWatcher(
+      String watchRoot,
+      EventBus fileChangeEventBus,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Watchman watchman,
+      UUID queryUUID,
+      Optional<WatchmanSubscription> subscription) {
     this(
         fileChangeEventBus,
         watchman.getWatchmanClient().get(),
@@ -90,7 +111,8 @@ public class WatchmanWatcher {
             watchman.getProjectPrefix(),
             queryUUID.toString(),
             ignorePaths,
-            watchman.getCapabilities()));
+            watchman.getCapabilities()),
+        subscription);
   }
 
   @VisibleForTesting
@@ -99,11 +121,28 @@ public class WatchmanWatcher {
                   int overflow,
                   long timeoutMillis,
                   List<Object> query) {
+    this(
+        fileChangeEventBus,
+        watchmanClient,
+        overflow,
+        timeoutMillis,
+        query,
+        Optional.<WatchmanSubscription>absent());
+  }
+
+  @VisibleForTesting
+  WatchmanWatcher(EventBus fileChangeEventBus,
+                  WatchmanClient watchmanClient,
+                  int overflow,
+                  long timeoutMillis,
+                  List<Object> query,
+                  Optional<WatchmanSubscription> subscription) {
     this.fileChangeEventBus = fileChangeEventBus;
     this.watchmanClient = watchmanClient;
     this.overflow = overflow;
     this.timeoutMillis = timeoutMillis;
     this.query = query;
+    this.subscription = subscription;
   }
 
   @VisibleForTesting
@@ -122,6 +161,36 @@ public class WatchmanWatcher {
     sinceParams.put(
         "since",
         new StringBuilder("n:buckd").append(uuid).toString());
+    sinceParams.putAll(
+        createFileParams(watchRoot, watchPrefix, ignorePaths, watchmanCapabilities));
+    queryParams.add(sinceParams);
+    return queryParams;
+  }
+
+  /**
+   * @return a command subscribing to the same changes {@link #createQuery} asks for, reporting
+   *     those since {@code since}.
+   */
+  static List<Object> createSubscribeQuery(
+      String watchRoot,
+      Optional<String> watchPrefix,
+      String subscriptionName,
+      String since,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Set<Capability> watchmanCapabilities) {
+    Map<String, Object> subscribeParams = new LinkedHashMap<>();
+    subscribeParams.put("since", since);
+    subscribeParams.putAll(
+        createFileParams(watchRoot, watchPrefix, ignorePaths, watchmanCapabilities));
+    return Lists.<Object>newArrayList("subscribe", watchRoot, subscriptionName, subscribeParams);
+  }
+
+  private static Map<String, Object> createFileParams(
+      String watchRoot,
+      Optional<String> watchPrefix,
+      ImmutableSet<PathOrGlobMatcher> ignorePaths,
+      Set<Capability> watchmanCapabilities) {
+    Map<String, Object> fileParams = new LinkedHashMap<>();
 
     // Exclude any expressions added to this list.
     List<Object> excludeAnyOf = Lists.<Object>newArrayList("anyof");
@@ -175,18 +244,27 @@ public class WatchmanWatcher {
       }
     }
 
-    sinceParams.put(
+    fileParams.put(
         "expression",
         Lists.newArrayList(
             "not",
             excludeAnyOf));
-    sinceParams.put("empty_on_fresh_instance", true);
-    sinceParams.put("fields", Lists.newArrayList("name", "exists", "new"));
+    fileParams.put("empty_on_fresh_instance", true);
+    fileParams.put("fields", Lists.newArrayList("name", "exists", "new"));
     if (watchPrefix.isPresent()) {
-      sinceParams.put("relative_root", watchPrefix.get());
+      fileParams.put("relative_root", watchPrefix.get());
     }
-    queryParams.add(sinceParams);
-    return queryParams;
+    return fileParams;
+  }
+
+  /**
+   * @return {@code query} asking for the changes since {@code clock} instead.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Object> createQuerySince(List<Object> query, String clock) {
+    Map<String, Object> sinceParams = new LinkedHashMap<>((Map<String, Object>) query.get(2));
+    sinceParams.put("since", clock);
+    return Lists.<Object>newArrayList(query.get(0), query.get(1), sinceParams);
   }
 
   /**
@@ -197,12 +275,22 @@ public class WatchmanWatcher {
    * conservatively by subscribers then no other remedial action is required.
    *
    * Any warnings posted by Watchman are added to watchmanWarningsBuilder.
+   *
+   * If there is an active subscription, the changes it has reported are posted first, and
+   * Watchman is only asked for those since, which are normally none.
    */
-  @SuppressWarnings("unchecked")
   public void postEvents(
       BuckEventBus buckEventBus,
       ImmutableSet.Builder<String> watchmanWarningsBuilder
   ) throws IOException, InterruptedException {
+    List<Object> query = this.query;
+    if (subscription.isPresent()) {
+      Optional<String> clock = subscription.get().postPendingChanges();
+      if (clock.isPresent()) {
+        // Watchman may not have reported changes made just before this command started yet.
+        query = createQuerySince(query, clock.get());
+      }
+    }
     try {
       Optional<? extends Map<String, ? extends Object>> queryResponse =
           watchmanClient.queryWithTimeout(
@@ -213,7 +301,7 @@ public class WatchmanWatcher {
             "Could get response from Watchman for query %s within %d ms",
             query,
             timeoutMillis);
-        postWatchEvent(createOverflowEvent());
+        postWatchEvent(fileChangeEventBus, createOverflowEvent());
         return;
       }
 
@@ -224,7 +312,7 @@ public class WatchmanWatcher {
         LOG.error(
             e,
             "Error in Watchman output. Posting an overflow event to flush the caches");
-        postWatchEvent(createOverflowEvent());
+        postWatchEvent(fileChangeEventBus, createOverflowEvent());
         throw e;
       }
 
@@ -236,62 +324,79 @@ public class WatchmanWatcher {
         watchmanWarningsBuilder.add(warning);
       }
 
-      Boolean isFreshInstance = (Boolean) response.get("is_fresh_instance");
-      if (isFreshInstance != null && isFreshInstance) {
-        postWatchEvent(createOverflowEvent());
-        return;
-      }
-
-      List<Map<String, Object>> files = (List<Map<String, Object>>) response.get("files");
-      if (files != null) {
-        if (files.size() > overflow) {
-          LOG.warn(
-              "Too many changed files (%d > %d), giving up and posting overflow event.",
-              files.size(), overflow);
-          postWatchEvent(createOverflowEvent());
-          return;
-        }
-
-        for (Map<String, Object> file : files) {
-          String fileName = (String) file.get("name");
-          if (fileName == null) {
-            LOG.warn("Filename missing from Watchman file response %s", file);
-            postWatchEvent(createOverflowEvent());
-            return;
-          }
-          PathEventBuilder builder = new PathEventBuilder();
-          builder.setPath(Paths.get(fileName));
-          Boolean fileNew = (Boolean) file.get("new");
-          if (fileNew != null && fileNew) {
-            builder.setCreationEvent();
-          }
-          Boolean fileExists = (Boolean) file.get("exists");
-          if (fileExists != null && !fileExists) {
-            builder.setDeletionEvent();
-          }
-          postWatchEvent(builder.build());
-        }
-
-        LOG.debug("Posted %d Watchman events.", files.size());
-      }
+      postChanges(fileChangeEventBus, response, overflow);
     } catch (InterruptedException e) {
       LOG.warn(e, "Interrupted while talking to Watchman");
-      postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
+      // Events may have been lost, signal overflow.
+      postWatchEvent(fileChangeEventBus, createOverflowEvent());
       Thread.currentThread().interrupt();
       throw e;
     } catch (IOException e) {
       LOG.error(e, "I/O error talking to Watchman");
-      postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
+      // Events may have been lost, signal overflow.
+      postWatchEvent(fileChangeEventBus, createOverflowEvent());
       throw e;
     }
   }
 
-  private void postWatchEvent(WatchEvent<?> event) {
+  /**
+   * Posts the changed files in a response to a query or in a subscription notification, or an
+   * overflow event if there are more than {@code overflow} of them or they are not known.
+   *
+   * @return whether an overflow event was posted.
+   */
+  @SuppressWarnings("unchecked")
+  static boolean postChanges(
+      EventBus fileChangeEventBus,
+      Map<String, ? extends Object> response,
+      int overflow) {
+    Boolean isFreshInstance = (Boolean) response.get("is_fresh_instance");
+    if (isFreshInstance != null && isFreshInstance) {
+      postWatchEvent(fileChangeEventBus, createOverflowEvent());
+      return true;
+    }
+
+    List<Map<String, Object>> files = (List<Map<String, Object>>) response.get("files");
+    if (files != null) {
+      if (files.size() > overflow) {
+        LOG.warn(
+            "Too many changed files (%d > %d), giving up and posting overflow event.",
+            files.size(), overflow);
+        postWatchEvent(fileChangeEventBus, createOverflowEvent());
+        return true;
+      }
+
+      for (Map<String, Object> file : files) {
+        String fileName = (String) file.get("name");
+        if (fileName == null) {
+          LOG.warn("Filename missing from Watchman file response %s", file);
+          postWatchEvent(fileChangeEventBus, createOverflowEvent());
+          return true;
+        }
+        PathEventBuilder builder = new PathEventBuilder();
+        builder.setPath(Paths.get(fileName));
+        Boolean fileNew = (Boolean) file.get("new");
+        if (fileNew != null && fileNew) {
+          builder.setCreationEvent();
+        }
+        Boolean fileExists = (Boolean) file.get("exists");
+        if (fileExists != null && !fileExists) {
+          builder.setDeletionEvent();
+        }
+        postWatchEvent(fileChangeEventBus, builder.build());
+      }
+
+      LOG.debug("Posted %d Watchman events.", files.size());
+    }
+    return false;
+  }
+
+  private static void postWatchEvent(EventBus fileChangeEventBus, WatchEvent<?> event) {
     LOG.warn("Posting WatchEvent: %s", event);
     fileChangeEventBus.post(event);
   }
 
-  private WatchEvent<Object> createOverflowEvent() {
+  private static WatchEvent<Object> createOverflowEvent() {
     return new WatchEvent<Object>() {
 
       @Override
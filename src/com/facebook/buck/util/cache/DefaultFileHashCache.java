@@ -47,6 +47,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
   private final Optional<Path> buckOutPath;
+  private final Optional<PersistentFileHashIndex> persistentIndex;
 
   @VisibleForTesting
   final LoadingCache<Path, HashCodeAndFileType> loadingCache;
@@ -58,8 +59,16 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   DefaultFileHashCache(
       ProjectFilesystem projectFilesystem,
       Optional<Path> buckOutPath) {
+    this(projectFilesystem, buckOutPath, Optional.<PersistentFileHashIndex>absent());
+  }
+
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<Path> buckOutPath,
+      Optional<PersistentFileHashIndex> persistentIndex) {
     this.projectFilesystem = projectFilesystem;
     this.buckOutPath = buckOutPath;
+    this.persistentIndex = persistentIndex;
 
     this.loadingCache =
         CacheBuilder.newBuilder().build(
@@ -90,6 +99,19 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return new DefaultFileHashCache(projectFilesystem, Optional.<Path>absent());
   }
 
+  /**
+   * Creates a cache which consults {@code persistentIndex} before reading the contents of a file,
+   * so that hashes of unchanged files can be reused across process restarts.
+   */
+  public static FileHashCache createPersistentFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      PersistentFileHashIndex persistentIndex) {
+    return new DefaultFileHashCache(
+        projectFilesystem,
+        Optional.<Path>absent(),
+        Optional.of(persistentIndex));
+  }
+
   private HashCodeAndFileType getHashCodeAndFileType(Path path) throws IOException {
     if (projectFilesystem.isDirectory(path)) {
       return getDirHashCode(path);
@@ -115,6 +137,9 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
             }
           }
         };
+    if (persistentIndex.isPresent() && !path.isAbsolute()) {
+      return persistentIndex.get().get(path, source);
+    }
     return source.hash(Hashing.sha1());
   }
 
@@ -174,12 +199,18 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       loadingCache.invalidate(path);
     }
     sizeCache.invalidate(path);
+    if (persistentIndex.isPresent()) {
+      persistentIndex.get().invalidate(path);
+    }
   }
 
   @Override
   public void invalidateAll() {
     loadingCache.invalidateAll();
     sizeCache.invalidateAll();
+    if (persistentIndex.isPresent()) {
+      persistentIndex.get().invalidateAll();
+    }
   }
 
   /**
@@ -233,6 +264,10 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     }
   }
 
+  protected Optional<PersistentFileHashIndex> getPersistentIndex() {
+    return persistentIndex;
+  }
+
   @Override
   public ProjectFilesystem getFilesystem() {
     return projectFilesystem;
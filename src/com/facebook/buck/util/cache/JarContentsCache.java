@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Holds the class files of jars in memory, keyed by the hash of each jar's contents, so that
+ * compilations which share classpath entries do not each have to open and inflate them again.
+ * <p>
+ * As entries are keyed by content, the jars held may be shared between builds for as long as the
+ * cache lives; they are held softly, so they are dropped again under memory pressure.
+ */
+public class JarContentsCache {
+
+  private static final Logger LOG = Logger.get(JarContentsCache.class);
+
+  private final Cache<HashCode, JarContents> jars;
+  private final FileHashLoader hashLoader;
+
+  public JarContentsCache(FileHashLoader hashLoader) {
+    this(CacheBuilder.newBuilder().softValues().<HashCode, JarContents>build(), hashLoader);
+  }
+
+  private JarContentsCache(Cache<HashCode, JarContents> jars, FileHashLoader hashLoader) {
+    this.jars = jars;
+    this.hashLoader = hashLoader;
+  }
+
+  /**
+   * @return a cache holding the same jars as this one, which hashes jars using the given loader.
+   */
+  public JarContentsCache withHashLoader(FileHashLoader hashLoader) {
+    return new JarContentsCache(jars, hashLoader);
+  }
+
+  /**
+   * @return the contents of the given jar, and whether they were already held by the cache.
+   */
+  public Lookup get(final Path jar) throws IOException {
+    Preconditions.checkArgument(jar.isAbsolute());
+    HashCode hash = hashLoader.get(jar);
+    JarContents contents = jars.getIfPresent(hash);
+    if (contents != null) {
+      return new Lookup(contents, true);
+    }
+    try {
+      return new Lookup(
+          jars.get(
+              hash,
+              new Callable<JarContents>() {
+                @Override
+                public JarContents call() throws IOException {
+                  return JarContents.read(jar);
+                }
+              }),
+          false);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  public static class Lookup {
+    private final JarContents contents;
+    private final boolean hit;
+
+    private Lookup(JarContents contents, boolean hit) {
+      this.contents = contents;
+      this.hit = hit;
+    }
+
+    public JarContents getContents() {
+      return contents;
+    }
+
+    public boolean isHit() {
+      return hit;
+    }
+  }
+
+  /**
+   * The class files in a jar, by package, along with how long it took to read them.
+   */
+  public static class JarContents {
+    private final ImmutableListMultimap<String, ClassFile> classFilesByPackage;
+    private final long indexNanos;
+
+    private JarContents(
+        ImmutableListMultimap<String, ClassFile> classFilesByPackage,
+        long indexNanos) {
+      this.classFilesByPackage = classFilesByPackage;
+      this.indexNanos = indexNanos;
+    }
+
+    private static JarContents read(Path jar) throws IOException {
+      long start = System.nanoTime();
+      try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+        ImmutableList.Builder<ZipEntry> classEntries = ImmutableList.builder();
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+             entries.hasMoreElements();
+            ) {
+          ZipEntry entry = entries.nextElement();
+          if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+            classEntries.add(entry);
+          }
+        }
+        long indexNanos = System.nanoTime() - start;
+
+        ImmutableListMultimap.Builder<String, ClassFile> classFiles =
+            ImmutableListMultimap.builder();
+        for (ZipEntry entry : classEntries.build()) {
+          long readStart = System.nanoTime();
+          byte[] bytes;
+          try (InputStream input = zipFile.getInputStream(entry)) {
+            bytes = ByteStreams.toByteArray(input);
+          }
+          String name = entry.getName();
+          int lastSlash = name.lastIndexOf('/');
+          String packageName = lastSlash == -1 ? "" : name.substring(0, lastSlash).replace('/', '.');
+          classFiles.put(
+              packageName,
+              new ClassFile(name, bytes, System.nanoTime() - readStart));
+        }
+        LOG.verbose("Read %s in %d ms.", jar, (System.nanoTime() - start) / 1000000);
+        return new JarContents(classFiles.build(), indexNanos);
+      }
+    }
+
+    public ImmutableList<ClassFile> getClassFiles(String packageName) {
+      return classFilesByPackage.get(packageName);
+    }
+
+    public ImmutableSet<String> getPackages() {
+      return classFilesByPackage.keySet();
+    }
+
+    /**
+     * @return how long it took to open the jar and list its entries.
+     */
+    public long getIndexNanos() {
+      return indexNanos;
+    }
+  }
+
+  public static class ClassFile {
+    private final String entryName;
+    private final byte[] contents;
+    private final long readNanos;
+
+    private ClassFile(String entryName, byte[] contents, long readNanos) {
+      this.entryName = entryName;
+      this.contents = contents;
+      this.readNanos = readNanos;
+    }
+
+    /**
+     * @return the name of the entry in the jar, e.g. {@code com/example/Foo.class}.
+     */
+    public String getEntryName() {
+      return entryName;
+    }
+
+    /**
+     * @return the contents of the class file, which must not be modified.
+     */
+    @SuppressWarnings("PMD.MethodReturnsInternalArray")
+    public byte[] getContents() {
+      return contents;
+    }
+
+    /**
+     * @return how long it took to inflate the class file out of the jar.
+     */
+    public long getReadNanos() {
+      return readNanos;
+    }
+  }
+}
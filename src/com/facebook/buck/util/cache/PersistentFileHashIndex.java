@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk index of file content hashes which survives restarts of the daemon.
+ * <p>
+ * Entries are keyed by project-relative path and are only trusted while the file's modification
+ * time, size and file key (the inode on POSIX systems) still match the values recorded when the
+ * file was hashed, so a cold start only needs to re-read the contents of files which have actually
+ * changed since the index was written.
+ * <p>
+ * Files modified very shortly before they are hashed are not recorded: many filesystems only keep
+ * modification times to the second (or worse), so such a file could still change again without
+ * its stamp changing.
+ * <p>
+ * The index is deliberately not tied to a Watchman clock.  Every entry is checked against the
+ * file's current attributes when it is used, however long ago the index was written, so a file
+ * edited while no daemon was running is still re-hashed.  The index is also used by runs without
+ * a daemon or without Watchman, and dropping it whenever Watchman restarts would throw it away in
+ * the cold starts it exists for.
+ */
+public class PersistentFileHashIndex {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashIndex.class);
+
+  // "FHI" followed by the format version.
+  private static final int MAGIC = 0x46484901;
+
+  // Coarser than the modification time granularity of any filesystem we expect to run on.
+  @VisibleForTesting
+  static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path indexPath;
+  private final ConcurrentMap<Path, Entry> entries;
+  private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+  @VisibleForTesting
+  PersistentFileHashIndex(
+      ProjectFilesystem projectFilesystem,
+      Path indexPath,
+      ConcurrentMap<Path, Entry> entries) {
+    this.projectFilesystem = projectFilesystem;
+    this.indexPath = indexPath;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the index stored at {@code indexPath}, or creates an empty one if there is no usable
+   * index on disk.
+   *
+   * @param indexPath the location of the index, relative to the project root.
+   */
+  public static PersistentFileHashIndex load(ProjectFilesystem projectFilesystem, Path indexPath) {
+    ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    Path absoluteIndexPath = projectFilesystem.resolve(indexPath);
+    try (FileChannel channel = FileChannel.open(absoluteIndexPath, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      readEntries(projectFilesystem, buffer, entries);
+      LOG.debug("Loaded %d file hashes from %s.", entries.size(), absoluteIndexPath);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No file hash index found at %s.", absoluteIndexPath);
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LOG.warn(e, "Ignoring unreadable file hash index %s.", absoluteIndexPath);
+      entries.clear();
+    }
+    return new PersistentFileHashIndex(projectFilesystem, indexPath, entries);
+  }
+
+  private static void readEntries(
+      ProjectFilesystem projectFilesystem,
+      MappedByteBuffer buffer,
+      Map<Path, Entry> entries) {
+    if (buffer.getInt() != MAGIC) {
+      throw new IllegalArgumentException("File hash index has an unexpected format.");
+    }
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      Path path = projectFilesystem.getRootPath().getFileSystem().getPath(readString(buffer));
+      long lastModifiedTime = buffer.getLong();
+      long size = buffer.getLong();
+      String fileKey = buffer.get() == 0 ? null : readString(buffer);
+      byte[] hash = new byte[readLength(buffer, buffer.get())];
+      buffer.get(hash);
+      entries.put(path, new Entry(lastModifiedTime, size, fileKey, HashCode.fromBytes(hash)));
+    }
+  }
+
+  private static String readString(MappedByteBuffer buffer) {
+    byte[] bytes = new byte[readLength(buffer, buffer.getInt())];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  /**
+   * Checks a length read from the index before it is used to size an array, so that a corrupt
+   * index is rejected like any other unreadable one rather than failing the command.
+   */
+  private static int readLength(MappedByteBuffer buffer, int length) {
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException(
+          String.format("File hash index has an invalid length %d.", length));
+    }
+    return length;
+  }
+
+  /**
+   * @return the SHA-1 of the contents of the file at {@code relativePath}, using the hash recorded
+   *     in the index if the file has not changed since it was recorded, or hashing
+   *     {@code contents} and recording the result otherwise.
+   */
+  public HashCode get(Path relativePath, ByteSource contents) throws IOException {
+    // Stat the file before reading it, so that a modification racing with the hashing below
+    // results in a stale stamp (and thus a re-hash next time) rather than a stale hash.
+    BasicFileAttributes attributes = Files.readAttributes(
+        projectFilesystem.resolve(relativePath),
+        BasicFileAttributes.class);
+    Entry existing = entries.get(relativePath);
+    if (existing != null && existing.matches(attributes)) {
+      return existing.hashCode;
+    }
+
+    HashCode hashCode = contents.hash(Hashing.sha1());
+    if (System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() <
+        RACY_MODIFICATION_WINDOW_MILLIS) {
+      invalidate(relativePath);
+      return hashCode;
+    }
+    entries.put(relativePath, Entry.of(attributes, hashCode));
+    dirty.set(true);
+    return hashCode;
+  }
+
+  public void invalidate(Path relativePath) {
+    if (entries.remove(relativePath) != null) {
+      dirty.set(true);
+    }
+  }
+
+  public void invalidateAll() {
+    entries.clear();
+    dirty.set(true);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the index back to disk if it has changed since it was loaded or last saved.  The new
+   * index is written to a temporary file first and moved into place, so concurrent readers never
+   * observe a partially written index.
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty.getAndSet(false)) {
+      return;
+    }
+
+    Path absoluteIndexPath = projectFilesystem.resolve(indexPath);
+    Files.createDirectories(absoluteIndexPath.getParent());
+    Path tempPath = Files.createTempFile(
+        absoluteIndexPath.getParent(),
+        absoluteIndexPath.getFileName().toString(),
+        ".tmp");
+    try {
+      // Take a snapshot, as the map may be concurrently modified while we're writing it out.
+      Map<Path, Entry> snapshot = new HashMap<>(entries);
+      try (DataOutputStream out =
+               new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Path, Entry> mapEntry : snapshot.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          writeString(out, mapEntry.getKey().toString());
+          out.writeLong(entry.lastModifiedTime);
+          out.writeLong(entry.size);
+          if (entry.fileKey == null) {
+            out.writeByte(0);
+          } else {
+            out.writeByte(1);
+            writeString(out, entry.fileKey);
+          }
+          byte[] hash = entry.hashCode.asBytes();
+          out.writeByte(hash.length);
+          out.write(hash);
+        }
+      }
+      Files.move(
+          tempPath,
+          absoluteIndexPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      LOG.debug("Saved %d file hashes to %s.", snapshot.size(), absoluteIndexPath);
+    } catch (IOException e) {
+      dirty.set(true);
+      throw e;
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @VisibleForTesting
+  static class Entry {
+    private final long lastModifiedTime;
+    private final long size;
+    @Nullable
+    private final String fileKey;
+    private final HashCode hashCode;
+
+    Entry(long lastModifiedTime, long size, @Nullable String fileKey, HashCode hashCode) {
+      this.lastModifiedTime = lastModifiedTime;
+      this.size = size;
+      this.fileKey = fileKey;
+      this.hashCode = hashCode;
+    }
+
+    static Entry of(BasicFileAttributes attributes, HashCode hashCode) {
+      return new Entry(
+          attributes.lastModifiedTime().toMillis(),
+          attributes.size(),
+          getFileKey(attributes),
+          hashCode);
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return lastModifiedTime == attributes.lastModifiedTime().toMillis() &&
+          size == attributes.size() &&
+          Objects.equal(fileKey, getFileKey(attributes));
+    }
+
+    @Nullable
+    private static String getFileKey(BasicFileAttributes attributes) {
+      Object fileKey = attributes.fileKey();
+      return fileKey == null ? null : fileKey.toString();
+    }
+  }
+
+}
@@ -37,6 +37,16 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     super(projectFilesystem, Optional.<Path>absent());
   }
 
+  /**
+   * Creates a cache backed by {@code persistentIndex}, so that after a daemon restart files which
+   * have not changed on disk do not need to be re-hashed.
+   */
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      PersistentFileHashIndex persistentIndex) {
+    super(projectFilesystem, Optional.<Path>absent(), Optional.of(persistentIndex));
+  }
+
   /**
    * Called when file change events are posted to the file change EventBus to invalidate cached
    * build rules if required. {@link Path}s contained within events must all be relative to the
@@ -67,8 +77,13 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
           ).keySet();
       LOG.verbose("Paths to invalidate: %s", pathsToInvalidate);
       loadingCache.invalidateAll(pathsToInvalidate);
+      if (getPersistentIndex().isPresent()) {
+        getPersistentIndex().get().invalidate(path);
+      }
     } else {
       // Non-path change event, likely an overflow due to many change events: invalidate everything.
+      // The persistent index is kept, as its entries are re-validated against the file's current
+      // modification time, size and inode before being used.
       LOG.debug("Invalidating all");
       loadingCache.invalidateAll();
     }
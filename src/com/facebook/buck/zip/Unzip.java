@@ -21,9 +21,14 @@ import com.facebook.buck.io.MorePosixFilePermissions;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
@@ -34,8 +39,20 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 public class Unzip {
 
@@ -55,136 +72,241 @@ public class Unzip {
       ProjectFilesystem filesystem,
       Path relativePath,
       ExistingFileMode existingFileMode) throws IOException {
+    return extractZipFile(
+        zipFile,
+        filesystem,
+        relativePath,
+        existingFileMode,
+        MoreExecutors.newDirectExecutorService(),
+        /* parallelism */ 1);
+  }
+
+  /**
+   * Unzips a file to a destination and returns the paths of the written files, writing files on
+   * up to {@code parallelism} threads at once.
+   * <p>
+   * The calling thread always takes part in writing files, and never waits for work which has been
+   * handed to {@code executorService} but has not started yet. So it is safe to call this from a
+   * thread owned by {@code executorService}, even when all its other threads are busy.
+   */
+  public static ImmutableList<Path> extractZipFile(
+      Path zipFile,
+      final ProjectFilesystem filesystem,
+      Path relativePath,
+      ExistingFileMode existingFileMode,
+      ListeningExecutorService executorService,
+      int parallelism) throws IOException {
+    try (final ZipFile zip = new ZipFile(zipFile.toFile())) {
+      // Read the central directory once, keeping only the last entry for any name.
+      Map<Path, ZipArchiveEntry> entries = new LinkedHashMap<>();
+      for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+        Path target = relativePath.resolve(entry.getName());
+        entries.remove(target);
+        entries.put(target, entry);
+      }
 
-    ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
-    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
-      Enumeration<ZipArchiveEntry> entries = zip.getEntries();
-      while (entries.hasMoreElements()) {
-        ZipArchiveEntry entry = entries.nextElement();
-        String fileName = entry.getName();
-        Path target = relativePath.resolve(fileName);
-        if (filesystem.exists(target)) {
-          switch (existingFileMode) {
-            case OVERWRITE:
-              // Unpack the file or directory as usual, overwriting the file.
-              break;
-            case OVERWRITE_AND_CLEAN_DIRECTORIES:
-              // Delete the file or directory before unpacking it.
-              filesystem.deleteRecursivelyIfExists(target);
-              break;
+      // Clear out anything in the way before writing anything, so that cleaning a directory can't
+      // remove files which have just been unpacked into it.
+      if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+        for (Path target : entries.keySet()) {
+          if (filesystem.exists(target)) {
+            filesystem.deleteRecursivelyIfExists(target);
           }
         }
+      }
 
-        // TODO(bolinfest): Keep track of which directories have already been written to avoid
-        // making unnecessary Files.createDirectories() calls. In practice, a single zip file will
-        // have many entries in the same directory.
-
-        if (entry.isDirectory()) {
-          // Create the directory and all its parent directories
-          filesystem.mkdirs(target);
+      // A single zip file has many entries in the same directory, so create each directory once,
+      // up front, rather than once per entry.
+      Set<Path> directories = new TreeSet<>();
+      final Queue<Map.Entry<Path, ZipArchiveEntry>> files = new ConcurrentLinkedQueue<>();
+      ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
+      for (Map.Entry<Path, ZipArchiveEntry> entry : entries.entrySet()) {
+        Path target = entry.getKey();
+        if (entry.getValue().isDirectory()) {
+          directories.add(target);
         } else {
-          // Create parent folder
-          filesystem.createParentDirs(target);
-
-          filesWritten.add(target);
-          // Write file
-          try (InputStream is = zip.getInputStream(entry)) {
-            if (entry.isUnixSymlink()) {
-              filesystem.createSymLink(
-                  target,
-                  filesystem.getRootPath().getFileSystem()
-                      .getPath(new String(ByteStreams.toByteArray(is), Charsets.UTF_8)),
-                  /* force */ true);
-            } else {
-              try (OutputStream out = filesystem.newFileOutputStream(target)) {
-                ByteStreams.copy(is, out);
-              }
-            }
+          if (target.getParent() != null) {
+            directories.add(target.getParent());
           }
+          files.add(entry);
+          filesWritten.add(target);
+        }
+      }
+      for (Path directory : directories) {
+        filesystem.mkdirs(directory);
+      }
 
-          // restore mtime for the file
-          filesystem.resolve(target).toFile().setLastModified(entry.getTime());
-
-          // TODO(shs96c): Implement what the comment below says we should do.
-          //
-          // Sets the file permissions of the output file given the information in {@code entry}'s
-          // extra data field. According to the docs at
-          // http://www.opensource.apple.com/source/zip/zip-6/unzip/unzip/proginfo/extra.fld there
-          // are two extensions that might support file permissions: Acorn and ASi UNIX. We shall
-          // assume that inputs are not from an Acorn SparkFS. The relevant section from the docs:
-          //
-          // <pre>
-          //    The following is the layout of the ASi extra block for Unix.  The
-          //    local-header and central-header versions are identical.
-          //    (Last Revision 19960916)
-          //
-          //    Value         Size        Description
-          //    -----         ----        -----------
-          //   (Unix3) 0x756e        Short       tag for this extra block type ("nu")
-          //   TSize         Short       total data size for this block
-          //   CRC           Long        CRC-32 of the remaining data
-          //   Mode          Short       file permissions
-          //   SizDev        Long        symlink'd size OR major/minor dev num
-          //   UID           Short       user ID
-          //   GID           Short       group ID
-          //   (var.)        variable    symbolic link filename
-          //
-          //   Mode is the standard Unix st_mode field from struct stat, containing
-          //   user/group/other permissions, setuid/setgid and symlink info, etc.
-          // </pre>
-          //
-          // From the stat man page, we see that the following mask values are defined for the file
-          // permissions component of the st_mode field:
-          //
-          // <pre>
-          //   S_ISUID   0004000   set-user-ID bit
-          //   S_ISGID   0002000   set-group-ID bit (see below)
-          //   S_ISVTX   0001000   sticky bit (see below)
-          //
-          //   S_IRWXU     00700   mask for file owner permissions
-          //
-          //   S_IRUSR     00400   owner has read permission
-          //   S_IWUSR     00200   owner has write permission
-          //   S_IXUSR     00100   owner has execute permission
-          //
-          //   S_IRWXG     00070   mask for group permissions
-          //   S_IRGRP     00040   group has read permission
-          //   S_IWGRP     00020   group has write permission
-          //   S_IXGRP     00010   group has execute permission
-          //
-          //   S_IRWXO     00007   mask for permissions for others
-          //   (not in group)
-          //   S_IROTH     00004   others have read permission
-          //   S_IWOTH     00002   others have write permission
-          //   S_IXOTH     00001   others have execute permission
-          // </pre>
-          //
-          // For the sake of our own sanity, we're going to assume that no-one is using symlinks,
-          // but we'll check and throw if they are.
-          //
-          // Before we do anything, we should check the header ID. Pfft!
-          //
-          // Having jumped through all these hoops, it turns out that InfoZIP's "unzip" store the
-          // values in the external file attributes of a zip entry (found in the zip's central
-          // directory) assuming that the OS creating the zip was one of an enormous list that
-          // includes UNIX but not Windows, it first searches for the extra fields, and if not found
-          // falls through to a code path that supports MS-DOS and which stores the UNIX file
-          // attributes in the upper 16 bits of the external attributes field.
-          //
-          // We'll support neither approach fully, but we encode whether this file was executable
-          // via storing 0100 in the fields that are typically used by zip implementations to store
-          // POSIX permissions. If we find it was executable, use the platform independent java
-          // interface to make this unpacked file executable.
-
-          Set<PosixFilePermission> permissions =
-              MorePosixFilePermissions.fromMode(entry.getExternalAttributes() >> 16);
-          if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
-            MoreFiles.makeExecutable(filesystem.resolve(target));
-          }
+      // Write the files.  Each helper claims itself before starting, so that once the calling
+      // thread has run out of files to write, it only waits for the helpers which are actually
+      // running, rather than those still queued behind other work.
+      List<AtomicBoolean> helperClaims = new ArrayList<>();
+      List<ListenableFuture<Void>> helpers = new ArrayList<>();
+      for (int i = 1; i < Math.min(parallelism, files.size()); i++) {
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        helperClaims.add(claimed);
+        helpers.add(
+            executorService.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws IOException {
+                    if (claimed.compareAndSet(false, true)) {
+                      writeFiles(zip, files, filesystem);
+                    }
+                    return null;
+                  }
+                }));
+      }
+
+      boolean finished = false;
+      try {
+        writeFiles(zip, files, filesystem);
+        finished = true;
+      } finally {
+        if (!finished) {
+          // Stop the helpers picking up more work before waiting for them.
+          files.clear();
+        }
+        // The helpers read from the zip file, so they must be done before it is closed.
+        Throwable helperFailure = waitForStartedHelpers(helperClaims, helpers);
+        if (finished && helperFailure != null) {
+          Throwables.propagateIfPossible(helperFailure, IOException.class);
+          throw new RuntimeException(helperFailure);
+        }
+      }
+      return filesWritten.build();
+    }
+  }
+
+  private static void writeFiles(
+      ZipFile zip,
+      Queue<Map.Entry<Path, ZipArchiveEntry>> files,
+      ProjectFilesystem filesystem) throws IOException {
+    Map.Entry<Path, ZipArchiveEntry> file;
+    while ((file = files.poll()) != null) {
+      writeFile(zip, file.getValue(), filesystem, file.getKey());
+    }
+  }
+
+  /**
+   * @return the first failure of the helpers which started, once they have all finished.
+   */
+  @Nullable
+  private static Throwable waitForStartedHelpers(
+      List<AtomicBoolean> helperClaims,
+      List<ListenableFuture<Void>> helpers) {
+    Throwable failure = null;
+    for (int i = 0; i < helpers.size(); i++) {
+      if (helperClaims.get(i).compareAndSet(false, true)) {
+        // Never started, and now never will.
+        continue;
+      }
+      try {
+        Uninterruptibles.getUninterruptibly(helpers.get(i));
+      } catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      }
+    }
+    return failure;
+  }
+
+  private static void writeFile(
+      ZipFile zip,
+      ZipArchiveEntry entry,
+      ProjectFilesystem filesystem,
+      Path target) throws IOException {
+    try (InputStream is = zip.getInputStream(entry)) {
+      if (entry.isUnixSymlink()) {
+        filesystem.createSymLink(
+            target,
+            filesystem.getRootPath().getFileSystem()
+                .getPath(new String(ByteStreams.toByteArray(is), Charsets.UTF_8)),
+            /* force */ true);
+      } else {
+        try (OutputStream out = filesystem.newFileOutputStream(target)) {
+          ByteStreams.copy(is, out);
         }
       }
     }
-    return filesWritten.build();
+
+    // restore mtime for the file
+    filesystem.resolve(target).toFile().setLastModified(entry.getTime());
+
+    // TODO(shs96c): Implement what the comment below says we should do.
+    //
+    // Sets the file permissions of the output file given the information in {@code entry}'s
+    // extra data field. According to the docs at
+    // http://www.opensource.apple.com/source/zip/zip-6/unzip/unzip/proginfo/extra.fld there
+    // are two extensions that might support file permissions: Acorn and ASi UNIX. We shall
+    // assume that inputs are not from an Acorn SparkFS. The relevant section from the docs:
+    //
+    // <pre>
+    //    The following is the layout of the ASi extra block for Unix.  The
+    //    local-header and central-header versions are identical.
+    //    (Last Revision 19960916)
+    //
+    //    Value         Size        Description
+    //    -----         ----        -----------
+    //   (Unix3) 0x756e        Short       tag for this extra block type ("nu")
+    //   TSize         Short       total data size for this block
+    //   CRC           Long        CRC-32 of the remaining data
+    //   Mode          Short       file permissions
+    //   SizDev        Long        symlink'd size OR major/minor dev num
+    //   UID           Short       user ID
+    //   GID           Short       group ID
+    //   (var.)        variable    symbolic link filename
+    //
+    //   Mode is the standard Unix st_mode field from struct stat, containing
+    //   user/group/other permissions, setuid/setgid and symlink info, etc.
+    // </pre>
+    //
+    // From the stat man page, we see that the following mask values are defined for the file
+    // permissions component of the st_mode field:
+    //
+    // <pre>
+    //   S_ISUID   0004000   set-user-ID bit
+    //   S_ISGID   0002000   set-group-ID bit (see below)
+    //   S_ISVTX   0001000   sticky bit (see below)
+    //
+    //   S_IRWXU     00700   mask for file owner permissions
+    //
+    //   S_IRUSR     00400   owner has read permission
+    //   S_IWUSR     00200   owner has write permission
+    //   S_IXUSR     00100   owner has execute permission
+    //
+    //   S_IRWXG     00070   mask for group permissions
+    //   S_IRGRP     00040   group has read permission
+    //   S_IWGRP     00020   group has write permission
+    //   S_IXGRP     00010   group has execute permission
+    //
+    //   S_IRWXO     00007   mask for permissions for others
+    //   (not in group)
+    //   S_IROTH     00004   others have read permission
+    //   S_IWOTH     00002   others have write permission
+    //   S_IXOTH     00001   others have execute permission
+    // </pre>
+    //
+    // For the sake of our own sanity, we're going to assume that no-one is using symlinks,
+    // but we'll check and throw if they are.
+    //
+    // Before we do anything, we should check the header ID. Pfft!
+    //
+    // Having jumped through all these hoops, it turns out that InfoZIP's "unzip" store the
+    // values in the external file attributes of a zip entry (found in the zip's central
+    // directory) assuming that the OS creating the zip was one of an enormous list that
+    // includes UNIX but not Windows, it first searches for the extra fields, and if not found
+    // falls through to a code path that supports MS-DOS and which stores the UNIX file
+    // attributes in the upper 16 bits of the external attributes field.
+    //
+    // We'll support neither approach fully, but we encode whether this file was executable
+    // via storing 0100 in the fields that are typically used by zip implementations to store
+    // POSIX permissions. If we find it was executable, use the platform independent java
+    // interface to make this unpacked file executable.
+
+    Set<PosixFilePermission> permissions =
+        MorePosixFilePermissions.fromMode(entry.getExternalAttributes() >> 16);
+    if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
+      MoreFiles.makeExecutable(filesystem.resolve(target));
+    }
   }
 
   public static ImmutableList<Path> extractZipFile(
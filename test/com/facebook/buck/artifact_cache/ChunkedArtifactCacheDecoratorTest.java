@@ -0,0 +1,398 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChunkedArtifactCacheDecoratorTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey firstRuleKey =
+      new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final RuleKey secondRuleKey =
+      new RuleKey("1111111111111111111111111111111111111111");
+
+  private static final long CHUNK_REUPLOAD_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private ProjectFilesystem filesystem;
+  private AtomicInteger delegateFetches;
+  private InMemoryArtifactCache delegate;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    delegateFetches = new AtomicInteger();
+    delegate = new InMemoryArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        delegateFetches.incrementAndGet();
+        return super.fetch(ruleKey, output);
+      }
+    };
+
+    filesystem.mkdirs(Paths.get("out/dir"));
+    Files.write(tmp.getRoot().resolve("out/small.txt"), "small".getBytes(UTF_8));
+    byte[] big = new byte[600 * 1024];
+    new Random(0).nextBytes(big);
+    Files.write(tmp.getRoot().resolve("out/big.bin"), big);
+    Files.write(tmp.getRoot().resolve("out/run.sh"), "#!/bin/sh".getBytes(UTF_8));
+    assertTrue(tmp.getRoot().resolve("out/run.sh").toFile().setExecutable(true));
+  }
+
+  @Test
+  public void artifactIsPutBackTogetherFromItsChunks() throws Exception {
+    Path original = createArtifactZip("original.zip");
+    try (ChunkedArtifactCacheDecorator storingCache = newCache("chunks-1");
+         ChunkedArtifactCacheDecorator fetchingCache = newCache("chunks-2")) {
+      storingCache.store(
+          ArtifactInfo.builder()
+              .addRuleKeys(firstRuleKey)
+              .setMetadata(ImmutableMap.of("key", "value"))
+              .build(),
+          BorrowablePath.notBorrowablePath(original))
+          .get();
+
+      Path fetched = tmp.getRoot().resolve("fetched.zip");
+      CacheResult result = fetchingCache.fetch(firstRuleKey, LazyPath.ofInstance(fetched));
+
+      assertEquals(CacheResultType.HIT, result.getType());
+      assertEquals("value", result.getMetadata().get("key"));
+      assertSameZipContents(original, fetched);
+    }
+  }
+
+  @Test
+  public void onlyChangedChunksAreStoredAgain() throws Exception {
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks")) {
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(createArtifactZip("first.zip")))
+          .get();
+      int firstCount = delegate.getArtifactCount();
+
+      Files.write(tmp.getRoot().resolve("out/small.txt"), "changed".getBytes(UTF_8));
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(secondRuleKey).build(),
+          BorrowablePath.notBorrowablePath(createArtifactZip("second.zip")))
+          .get();
+
+      // The big file spans several chunks, none of which should have been stored again.
+      assertThat(firstCount, Matchers.greaterThan(4));
+      assertEquals(firstCount + 2, delegate.getArtifactCount());
+    }
+  }
+
+  @Test
+  public void chunksLastSeenLongAgoAreStoredAgain() throws Exception {
+    DirArtifactCache chunkStore = newChunkStore("chunks");
+    try (ChunkedArtifactCacheDecorator cache = new ChunkedArtifactCacheDecorator(
+        delegate,
+        delegate,
+        filesystem,
+        BuckEventBusFactory.newInstance(),
+        Suppliers.ofInstance(chunkStore),
+        /* performChunkedStores */ true,
+        /* minimumChunkedArtifactSize */ 0L,
+        CHUNK_REUPLOAD_AGE_MILLIS)) {
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(createArtifactZip("first.zip")))
+          .get();
+      int chunkCount = delegate.getArtifactCount() - 1;
+
+      // The remote cache may have evicted the chunks since, so they must be uploaded again.
+      InMemoryArtifactCache evictingCache = new InMemoryArtifactCache();
+      setAllModifiedTimes(
+          tmp.getRoot().resolve("chunks"),
+          System.currentTimeMillis() - 2 * CHUNK_REUPLOAD_AGE_MILLIS);
+      try (ChunkedArtifactCacheDecorator laterCache = new ChunkedArtifactCacheDecorator(
+          evictingCache,
+          evictingCache,
+          filesystem,
+          BuckEventBusFactory.newInstance(),
+          Suppliers.ofInstance(chunkStore),
+          /* performChunkedStores */ true,
+          /* minimumChunkedArtifactSize */ 0L,
+          CHUNK_REUPLOAD_AGE_MILLIS)) {
+        laterCache.store(
+            ArtifactInfo.builder().addRuleKeys(secondRuleKey).build(),
+            BorrowablePath.notBorrowablePath(createArtifactZip("second.zip")))
+            .get();
+        assertEquals(chunkCount + 1, evictingCache.getArtifactCount());
+
+        // Having been stored again, they are skipped until they are old again.
+        laterCache.store(
+            ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+            BorrowablePath.notBorrowablePath(createArtifactZip("third.zip")))
+            .get();
+        assertEquals(chunkCount + 2, evictingCache.getArtifactCount());
+      }
+    }
+  }
+
+  @Test
+  public void onlyChunksMissingLocallyAreFetched() throws Exception {
+    try (ChunkedArtifactCacheDecorator storingCache = newCache("chunks-1");
+         ChunkedArtifactCacheDecorator fetchingCache = newCache("chunks-2")) {
+      storingCache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(createArtifactZip("first.zip")))
+          .get();
+      assertEquals(
+          CacheResultType.HIT,
+          fetchingCache.fetch(firstRuleKey, LazyPath.ofInstance(tmp.newFile())).getType());
+
+      Files.write(tmp.getRoot().resolve("out/small.txt"), "changed".getBytes(UTF_8));
+      Path second = createArtifactZip("second.zip");
+      storingCache.store(
+          ArtifactInfo.builder().addRuleKeys(secondRuleKey).build(),
+          BorrowablePath.notBorrowablePath(second))
+          .get();
+      delegateFetches.set(0);
+      Path fetched = tmp.getRoot().resolve("fetched.zip");
+      assertEquals(
+          CacheResultType.HIT,
+          fetchingCache.fetch(secondRuleKey, LazyPath.ofInstance(fetched)).getType());
+
+      // The manifest, and the one chunk holding the changed file.
+      assertEquals(2, delegateFetches.get());
+      assertSameZipContents(second, fetched);
+    }
+  }
+
+  @Test
+  public void missingChunksAreFetchedInBatches() throws Exception {
+    final List<Integer> batchSizes = new ArrayList<>();
+    InMemoryArtifactCache chunkCache = new InMemoryArtifactCache() {
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(
+          ImmutableMap<RuleKey, LazyPath> outputs,
+          MultiFetchListener listener) {
+        batchSizes.add(outputs.size());
+        return super.multiFetch(outputs, listener);
+      }
+    };
+    try (ChunkedArtifactCacheDecorator storingCache = newCache("chunks-1", chunkCache);
+         ChunkedArtifactCacheDecorator fetchingCache = newCache("chunks-2", chunkCache)) {
+      Path original = createArtifactZip("original.zip");
+      storingCache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(original))
+          .get();
+      int chunkCount = chunkCache.getArtifactCount();
+
+      Path fetched = tmp.getRoot().resolve("fetched.zip");
+      assertEquals(
+          CacheResultType.HIT,
+          fetchingCache.fetch(firstRuleKey, LazyPath.ofInstance(fetched)).getType());
+
+      assertThat(chunkCount, Matchers.greaterThan(4));
+      int fetchedChunks = 0;
+      for (int batchSize : batchSizes) {
+        assertThat(
+            batchSize,
+            Matchers.lessThanOrEqualTo(ChunkedArtifactCacheDecorator.MAX_CHUNK_FETCH_BATCH_SIZE));
+        fetchedChunks += batchSize;
+      }
+      assertEquals(chunkCount, fetchedChunks);
+      assertEquals(
+          (chunkCount + ChunkedArtifactCacheDecorator.MAX_CHUNK_FETCH_BATCH_SIZE - 1) /
+              ChunkedArtifactCacheDecorator.MAX_CHUNK_FETCH_BATCH_SIZE,
+          batchSizes.size());
+      assertSameZipContents(original, fetched);
+    }
+  }
+
+  @Test
+  public void manifestIsNotStoredUnlessAllChunksAre() throws Exception {
+    final AtomicBoolean failChunkStores = new AtomicBoolean(true);
+    InMemoryArtifactCache chunkCache = new InMemoryArtifactCache() {
+      @Override
+      public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+        if (failChunkStores.get()) {
+          return Futures.immediateFailedFuture(new IOException("upload failed"));
+        }
+        return super.store(info, output);
+      }
+    };
+    try (ChunkedArtifactCacheDecorator cache = newCache("chunks", chunkCache)) {
+      Path artifact = createArtifactZip("first.zip");
+      try {
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+            BorrowablePath.notBorrowablePath(artifact))
+            .get();
+        fail("The store should have failed.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause(), Matchers.instanceOf(IOException.class));
+      }
+      assertEquals(0, delegate.getArtifactCount());
+
+      // None of the chunks were recorded as stored, so they are all uploaded again.
+      failChunkStores.set(false);
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(artifact))
+          .get();
+      assertEquals(1, delegate.getArtifactCount());
+      assertThat(chunkCache.getArtifactCount(), Matchers.greaterThan(4));
+    }
+  }
+
+  @Test
+  public void smallArtifactsAreStoredWhole() throws Exception {
+    try (ChunkedArtifactCacheDecorator cache = new ChunkedArtifactCacheDecorator(
+        delegate,
+        delegate,
+        filesystem,
+        BuckEventBusFactory.newInstance(),
+        Suppliers.ofInstance(newChunkStore("chunks")),
+        /* performChunkedStores */ true,
+        /* minimumChunkedArtifactSize */ 10 * 1024 * 1024,
+        CHUNK_REUPLOAD_AGE_MILLIS)) {
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(firstRuleKey).build(),
+          BorrowablePath.notBorrowablePath(createArtifactZip("first.zip")))
+          .get();
+
+      assertEquals(1, delegate.getArtifactCount());
+    }
+  }
+
+  private ChunkedArtifactCacheDecorator newCache(String chunksDir) throws IOException {
+    return newCache(chunksDir, delegate);
+  }
+
+  private ChunkedArtifactCacheDecorator newCache(String chunksDir, ArtifactCache chunkCache)
+      throws IOException {
+    return new ChunkedArtifactCacheDecorator(
+        delegate,
+        chunkCache,
+        filesystem,
+        BuckEventBusFactory.newInstance(),
+        Suppliers.ofInstance(newChunkStore(chunksDir)),
+        /* performChunkedStores */ true,
+        /* minimumChunkedArtifactSize */ 0L,
+        CHUNK_REUPLOAD_AGE_MILLIS);
+  }
+
+  private DirArtifactCache newChunkStore(String chunksDir) throws IOException {
+    return new DirArtifactCache(
+        "chunks",
+        filesystem,
+        Paths.get(chunksDir),
+        /* doStore */ true,
+        Optional.of(1024 * 1024 * 1024L),
+        /* useEvictionIndex */ true);
+  }
+
+  private static void setAllModifiedTimes(Path root, long millis) throws IOException {
+    final FileTime time = FileTime.fromMillis(millis);
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.setLastModifiedTime(file, time);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private Path createArtifactZip(String name) throws IOException {
+    Path zip = tmp.getRoot().resolve(name);
+    filesystem.createZip(
+        ImmutableList.of(
+            Paths.get("out/dir"),
+            Paths.get("out/small.txt"),
+            Paths.get("out/big.bin"),
+            Paths.get("out/run.sh")),
+        zip);
+    return zip;
+  }
+
+  private static void assertSameZipContents(Path expected, Path actual) throws IOException {
+    try (ZipFile expectedZip = new ZipFile(expected.toFile());
+         ZipFile actualZip = new ZipFile(actual.toFile())) {
+      List<ZipArchiveEntry> expectedEntries =
+          Collections.list(expectedZip.getEntriesInPhysicalOrder());
+      List<ZipArchiveEntry> actualEntries =
+          Collections.list(actualZip.getEntriesInPhysicalOrder());
+      assertEquals(expectedEntries.size(), actualEntries.size());
+      for (int i = 0; i < expectedEntries.size(); i++) {
+        ZipArchiveEntry expectedEntry = expectedEntries.get(i);
+        ZipArchiveEntry actualEntry = actualEntries.get(i);
+        assertEquals(expectedEntry.getName(), actualEntry.getName());
+        assertEquals(expectedEntry.getUnixMode(), actualEntry.getUnixMode());
+        assertEquals(expectedEntry.getMethod(), actualEntry.getMethod());
+        try (InputStream expectedInput = expectedZip.getInputStream(expectedEntry);
+             InputStream actualInput = actualZip.getInputStream(actualEntry)) {
+          assertArrayEquals(
+              ByteStreams.toByteArray(expectedInput),
+              ByteStreams.toByteArray(actualInput));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class DirArtifactCacheIndexTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void replayingTheLogRestoresUsageOrder() throws IOException {
+    Path indexPath = tmp.getRoot().resolve("index.log");
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.create(
+        indexPath,
+        ImmutableList.of(new DirArtifactCacheIndex.Entry("a", 1)));
+    index.recordStore("b", 2);
+    index.recordStore("c", 3);
+    index.recordHit("a");
+    index.flush();
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(indexPath);
+    assertEquals(ImmutableList.of("b", "c", "a"), reloaded.getEntriesLeastRecentlyUsedFirst());
+    assertEquals(6, reloaded.getTotalSizeBytes());
+  }
+
+  @Test
+  public void evictionOnlyRemovesLeastRecentlyUsedEntries() throws IOException {
+    Path indexPath = tmp.getRoot().resolve("index.log");
+    DirArtifactCacheIndex index =
+        DirArtifactCacheIndex.create(indexPath, ImmutableList.<DirArtifactCacheIndex.Entry>of());
+    index.recordStore("a", 5);
+    index.recordStore("b", 5);
+    index.recordStore("c", 5);
+
+    ImmutableList<DirArtifactCacheIndex.Entry> evicted = index.evict(10);
+    assertEquals(1, evicted.size());
+    assertEquals("a", evicted.get(0).getName());
+    assertEquals(
+        ImmutableList.of("b", "c"),
+        DirArtifactCacheIndex.load(indexPath).getEntriesLeastRecentlyUsedFirst());
+  }
+
+  @Test
+  public void compactionKeepsEntriesRecordedByOtherIndexes() throws IOException {
+    Path indexPath = tmp.getRoot().resolve("index.log");
+    DirArtifactCacheIndex index =
+        DirArtifactCacheIndex.create(indexPath, ImmutableList.<DirArtifactCacheIndex.Entry>of());
+    index.recordStore("a", 1);
+    index.flush();
+    DirArtifactCacheIndex otherIndex = DirArtifactCacheIndex.load(indexPath);
+    otherIndex.recordStore("b", 2);
+    otherIndex.flush();
+
+    // Enough records for the log to be compacted.
+    for (int i = 0; i < 5000; i++) {
+      index.recordHit("a");
+    }
+    index.flush();
+
+    assertEquals(ImmutableList.of("b", "a"), index.getEntriesLeastRecentlyUsedFirst());
+    assertEquals(
+        ImmutableList.of("b", "a"),
+        DirArtifactCacheIndex.load(indexPath).getEntriesLeastRecentlyUsedFirst());
+    assertThat(Files.size(indexPath), Matchers.lessThan(1024L));
+  }
+
+  @Test
+  public void truncatedRecordAtEndOfLogIsIgnored() throws IOException {
+    Path indexPath = tmp.getRoot().resolve("index.log");
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.create(
+        indexPath,
+        ImmutableList.of(new DirArtifactCacheIndex.Entry("a", 1)));
+    index.flush();
+    try (OutputStream out = Files.newOutputStream(indexPath, StandardOpenOption.APPEND)) {
+      // The start of a store record which never got written out completely.
+      out.write(new byte[] {1, 0, 5, 'b'});
+    }
+
+    assertEquals(
+        ImmutableList.of("a"),
+        DirArtifactCacheIndex.load(indexPath).getEntriesLeastRecentlyUsedFirst());
+  }
+}
@@ -352,6 +352,33 @@ public class DirArtifactCacheTest {
     assertThat(Files.exists(fileY), Matchers.is(true));
   }
 
+  @Test
+  public void testStoredArtifactIsUnaffectedByRewritingTheOutputInPlace() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        Paths.get("."),
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+
+    Files.write(fileX, "x".getBytes(UTF_8));
+    RuleKey ruleKeyX = new RuleKey("00000000000000000000000000000000");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    // Overwriting truncates and rewrites the same inode, which a hard link would share.
+    Files.write(fileX, "rewritten".getBytes(UTF_8));
+
+    Path fetched = tmpDir.getRoot().resolve("fetched");
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyX, LazyPath.ofInstance(fetched)).getType());
+    assertEquals("x", new String(Files.readAllBytes(fetched), UTF_8));
+  }
+
   @Test
   public void testNoStoreMisses() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -633,6 +660,64 @@ public class DirArtifactCacheTest {
             LazyPath.ofInstance(fileZ)).getType());
   }
 
+  @Test
+  public void testEvictionIndexEvictsLeastRecentlyUsedArtifacts() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    ImmutableList.Builder<RuleKey> ruleKeysBuilder = ImmutableList.builder();
+    for (String name : ImmutableList.of("aaaa", "bbbb", "cccc", "dddd")) {
+      ruleKeysBuilder.add(new RuleKey(name));
+    }
+    ImmutableList<RuleKey> ruleKeys = ruleKeysBuilder.build();
+    Path file = tmpDir.newFile("artifact");
+    Files.write(file, "x".getBytes(UTF_8));
+
+    // Each entry takes 5 bytes (1 for the artifact, 4 for its metadata), so storing the fourth
+    // exceeds the limit and trims the cache down to 12 bytes, i.e. two entries.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(19L),
+        /* useEvictionIndex */ true);
+
+    for (RuleKey ruleKey : ruleKeys.subList(0, 3)) {
+      dirArtifactCache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+          BorrowablePath.notBorrowablePath(file));
+    }
+    // Fetching the first artifact makes the second one the least recently used.
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeys.get(0), LazyPath.ofInstance(tmpDir.newFile())).getType());
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeys.get(3)).build(),
+        BorrowablePath.notBorrowablePath(file));
+    // Wait for the background eviction to finish.
+    dirArtifactCache.close();
+
+    // The index is persisted, so a new instance sees the same state.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(19L),
+        /* useEvictionIndex */ true);
+    ImmutableList.Builder<CacheResultType> results = ImmutableList.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.add(
+          dirArtifactCache.fetch(ruleKey, LazyPath.ofInstance(tmpDir.newFile())).getType());
+    }
+    assertEquals(
+        ImmutableList.of(
+            CacheResultType.HIT,
+            CacheResultType.MISS,
+            CacheResultType.MISS,
+            CacheResultType.HIT),
+        results.build());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -30,8 +30,11 @@ public class DummyArtifactCache extends NoopArtifactCache {
   @Nullable
   public RuleKey storeKey;
 
+  public boolean storeOutputWasBorrowable;
+
   public void reset() {
     storeKey = null;
+    storeOutputWasBorrowable = false;
   }
 
   @Override
@@ -44,6 +47,7 @@ public class DummyArtifactCache extends NoopArtifactCache {
       ArtifactInfo info,
       BorrowablePath output) {
     storeKey = Iterables.getFirst(info.getRuleKeys(), null);
+    storeOutputWasBorrowable = output.canBorrow();
     return Futures.immediateFuture(null);
   }
 
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -106,6 +107,54 @@ public class HttpArtifactCacheBinaryProtocolTest {
     assertThat(fetchResponsePayload.toByteArray(), Matchers.equalTo(data.getBytes(Charsets.UTF_8)));
   }
 
+  @Test
+  public void testMultiFetchResponse() throws IOException {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey ruleKey2 = new RuleKey("90000000000000000000008000000005");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("metaKey", "metaValue");
+
+    ByteArrayOutputStream responseOutputStream = new ByteArrayOutputStream();
+    try (DataOutputStream responseOutput = new DataOutputStream(responseOutputStream)) {
+      HttpArtifactCacheBinaryProtocol.writeMultiFetchHit(
+          responseOutput,
+          new HttpArtifactCacheBinaryProtocol.FetchResponse(
+              ImmutableSet.of(ruleKey),
+              metadata,
+              ByteSource.wrap("first".getBytes(Charsets.UTF_8))));
+      HttpArtifactCacheBinaryProtocol.writeMultiFetchMiss(responseOutput);
+      HttpArtifactCacheBinaryProtocol.writeMultiFetchHit(
+          responseOutput,
+          new HttpArtifactCacheBinaryProtocol.FetchResponse(
+              ImmutableSet.of(ruleKey2),
+              ImmutableMap.<String, String>of(),
+              ByteSource.wrap("second".getBytes(Charsets.UTF_8))));
+    }
+
+    DataInputStream responseInput =
+        new DataInputStream(new ByteArrayInputStream(responseOutputStream.toByteArray()));
+
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    Optional<DataInputStream> entry =
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(responseInput);
+    FetchResponseReadResult result =
+        HttpArtifactCacheBinaryProtocol.readFetchResponse(entry.get(), payload);
+    assertThat(result.getRuleKeys(), Matchers.contains(ruleKey));
+    assertThat(result.getMetadata(), Matchers.equalTo(metadata));
+    assertThat(result.getActualHashCode(), Matchers.equalTo(result.getExpectedHashCode()));
+    assertThat(payload.toString("UTF-8"), Matchers.equalTo("first"));
+
+    assertThat(
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(responseInput).isPresent(),
+        Matchers.is(false));
+
+    payload.reset();
+    entry = HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(responseInput);
+    result = HttpArtifactCacheBinaryProtocol.readFetchResponse(entry.get(), payload);
+    assertThat(result.getRuleKeys(), Matchers.contains(ruleKey2));
+    assertThat(payload.toString("UTF-8"), Matchers.equalTo("second"));
+    assertThat(responseInput.read(), Matchers.is(-1));
+  }
+
   @Test
   public void testReadFetchResponse() throws IOException {
     final String base64EncodedData =
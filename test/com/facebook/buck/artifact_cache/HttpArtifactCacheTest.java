@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.rules.RuleKey;
@@ -34,11 +35,14 @@ import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.timing.IncrementingFakeClock;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import okhttp3.MediaType;
@@ -60,8 +64,11 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import okio.Buffer;
@@ -562,6 +569,160 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void multiFetchAsksForAllKeysInOneRequest() throws Exception {
+    final FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    final RuleKey hitKey = new RuleKey("00000000000000000000000000000001");
+    final RuleKey missKey = new RuleKey("00000000000000000000000000000002");
+    final RuleKey otherHitKey = new RuleKey("00000000000000000000000000000003");
+    final List<String> requestedPaths = Lists.newArrayList();
+    final List<ImmutableList<RuleKey>> requestedKeys = Lists.newArrayList();
+    argsBuilder.setProjectFilesystem(filesystem);
+    HttpArtifactCache cache =
+        new HttpArtifactCache(argsBuilder.build()) {
+          @Override
+          protected HttpResponse fetchCall(String path, Request.Builder requestBuilder)
+              throws IOException {
+            requestedPaths.add(path);
+            Request request = requestBuilder.url(SERVER + path).build();
+            try (Buffer requestBody = new Buffer();
+                 Buffer responseBody = new Buffer()) {
+              request.body().writeTo(requestBody);
+              ImmutableList<RuleKey> ruleKeys =
+                  HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(
+                      new DataInputStream(requestBody.inputStream()));
+              requestedKeys.add(ruleKeys);
+              DataOutputStream output = new DataOutputStream(responseBody.outputStream());
+              for (RuleKey ruleKey : ruleKeys) {
+                if (ruleKey.equals(missKey)) {
+                  HttpArtifactCacheBinaryProtocol.writeMultiFetchMiss(output);
+                } else {
+                  HttpArtifactCacheBinaryProtocol.writeMultiFetchHit(
+                      output,
+                      new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                          ImmutableSet.of(ruleKey),
+                          ImmutableMap.<String, String>of(),
+                          ByteSource.wrap(ruleKey.toString().getBytes(Charsets.UTF_8))));
+                }
+              }
+              return new OkHttpResponseWrapper(
+                  new Response.Builder()
+                      .body(ResponseBody.create(OCTET_STREAM, responseBody.readByteArray()))
+                      .code(HttpURLConnection.HTTP_OK)
+                      .protocol(Protocol.HTTP_1_1)
+                      .request(request)
+                      .build());
+            }
+          }
+        };
+
+    final List<RuleKey> reportedKeys = Lists.newArrayList();
+    ImmutableMap<RuleKey, CacheResult> results = cache.multiFetch(
+        ImmutableMap.of(
+            hitKey, LazyPath.ofInstance(Paths.get("output/hit")),
+            missKey, LazyPath.ofInstance(Paths.get("output/miss")),
+            otherHitKey, LazyPath.ofInstance(Paths.get("output/other_hit"))),
+        new ArtifactCache.MultiFetchListener() {
+          @Override
+          public void onResult(RuleKey ruleKey, CacheResult result) {
+            reportedKeys.add(ruleKey);
+          }
+        });
+
+    assertEquals(ImmutableList.of("/artifacts/multifetch"), requestedPaths);
+    assertEquals(ImmutableList.of(hitKey, missKey, otherHitKey), reportedKeys);
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(hitKey, missKey, otherHitKey)),
+        requestedKeys);
+    assertEquals(CacheResultType.HIT, results.get(hitKey).getType());
+    assertEquals(CacheResultType.MISS, results.get(missKey).getType());
+    assertEquals(CacheResultType.HIT, results.get(otherHitKey).getType());
+    assertEquals(
+        Optional.of(otherHitKey.toString()),
+        filesystem.readFileIfItExists(Paths.get("output/other_hit")));
+    cache.close();
+  }
+
+  @Test
+  public void storesQueuedDuringAnUploadAreSentInOneRequest() throws Exception {
+    final FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    final CountDownLatch firstUploadStarted = new CountDownLatch(1);
+    final CountDownLatch firstUploadMayFinish = new CountDownLatch(1);
+    final List<Integer> multiStoreSizes = Lists.newCopyOnWriteArrayList();
+    ListeningExecutorService writers =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+    argsBuilder
+        .setProjectFilesystem(filesystem)
+        .setHttpWriteExecutorService(writers)
+        .setMaxStoreBatchSize(8);
+    HttpArtifactCache cache =
+        new HttpArtifactCache(argsBuilder.build()) {
+          @Override
+          protected HttpResponse storeCall(Request.Builder requestBuilder) throws IOException {
+            firstUploadStarted.countDown();
+            try {
+              firstUploadMayFinish.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            return new OkHttpResponseWrapper(
+                new Response.Builder()
+                    .body(createDummyBody())
+                    .code(HttpURLConnection.HTTP_ACCEPTED)
+                    .protocol(Protocol.HTTP_1_1)
+                    .request(requestBuilder.url(SERVER).build())
+                    .build());
+          }
+
+          @Override
+          protected HttpResponse multiStoreCall(Request.Builder requestBuilder)
+              throws IOException {
+            Request request = requestBuilder.url(SERVER).build();
+            Buffer buf = new Buffer();
+            request.body().writeTo(buf);
+            int count = HttpArtifactCacheBinaryProtocol.readMultiStoreRequestCount(
+                new DataInputStream(buf.inputStream()));
+            multiStoreSizes.add(count);
+
+            try (Buffer responseBody = new Buffer()) {
+              HttpArtifactCacheBinaryProtocol.writeMultiStoreResponse(
+                  new DataOutputStream(responseBody.outputStream()),
+                  Collections.nCopies(count, true));
+              return new OkHttpResponseWrapper(
+                  new Response.Builder()
+                      .body(ResponseBody.create(OCTET_STREAM, responseBody.readByteArray()))
+                      .code(HttpURLConnection.HTTP_ACCEPTED)
+                      .protocol(Protocol.HTTP_1_1)
+                      .request(request)
+                      .build());
+            }
+          }
+        };
+
+    List<ListenableFuture<Void>> stores = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      Path output = Paths.get("output/file" + i);
+      filesystem.writeContentsToPath("data" + i, output);
+      stores.add(
+          cache.store(
+              ArtifactInfo.builder().addRuleKeys(new RuleKey("0000000" + i)).build(),
+              BorrowablePath.borrowablePath(output)));
+      if (i == 0) {
+        // Hold up the first upload until the other two are queued behind it.
+        firstUploadStarted.await();
+      }
+    }
+    while (cache.getPendingStoreCount() < 2) {
+      Thread.sleep(10);
+    }
+    firstUploadMayFinish.countDown();
+    Futures.allAsList(stores).get();
+
+    assertEquals(ImmutableList.of(2), ImmutableList.copyOf(multiStoreSizes));
+    writers.shutdown();
+    cache.close();
+  }
+
   private static ResponseBody createDummyBody() {
     return ResponseBody.create(MediaType.parse("text/plain"), "SUCCESS");
   }
@@ -72,6 +72,13 @@ public class InMemoryArtifactCache implements ArtifactCache {
     }
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      MultiFetchListener listener) {
+    return ArtifactCaches.fetchEach(this, outputs, listener);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
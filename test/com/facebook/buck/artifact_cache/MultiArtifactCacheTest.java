@@ -17,22 +17,33 @@
 package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class MultiArtifactCacheTest {
 
@@ -53,6 +64,21 @@ public class MultiArtifactCacheTest {
 
   }
 
+  // A cache which does not answer fetches until it is released (or the fetch is interrupted).
+  class BlockingArtifactCache extends InMemoryArtifactCache {
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        return CacheResult.miss();
+      }
+      return super.fetch(ruleKey, output);
+    }
+  }
+
   @Test
   public void testCacheFetch() throws InterruptedException, IOException {
     DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
@@ -109,6 +135,27 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void onlyTheLastCacheMayBorrowTheStoredOutput() throws InterruptedException, IOException {
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache3 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+        dummyArtifactCache1,
+        dummyArtifactCache2,
+        dummyArtifactCache3));
+
+    multiArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        BorrowablePath.borrowablePath(dummyFile.get()));
+
+    assertFalse(dummyArtifactCache1.storeOutputWasBorrowable);
+    assertFalse(dummyArtifactCache2.storeOutputWasBorrowable);
+    assertTrue(dummyArtifactCache3.storeOutputWasBorrowable);
+
+    multiArtifactCache.close();
+  }
+
   @Test
   public void preserveErrorsFromInnerCache() throws InterruptedException, IOException {
     ErroringArtifactCache inner = new ErroringArtifactCache();
@@ -146,4 +193,192 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void speculativeFetchReturnsHitFromSecondaryCacheWhilePrimaryIsSlow() throws Exception {
+    BlockingArtifactCache slowCache = new BlockingArtifactCache();
+    InMemoryArtifactCache fastCache = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(slowCache, fastCache),
+        Optional.of(10L),
+        /* maxSpeculativeFetchThreads */ 4);
+
+    fastCache.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "contents".getBytes(StandardCharsets.UTF_8));
+    Path output = tmp.newFile();
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("contents", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+    // The artifact is still propagated to the slow cache, and no contender's files are left over.
+    assertThat(slowCache.hasArtifact(dummyRuleKey), Matchers.is(true));
+    assertThat(
+        Files.exists(output.resolveSibling(output.getFileName() + ".secondary")),
+        Matchers.is(false));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void speculativeFetchPrefersPrimaryCacheWhenItAnswersInTime() throws Exception {
+    InMemoryArtifactCache primaryCache = new InMemoryArtifactCache();
+    InMemoryArtifactCache secondaryCache = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(primaryCache, secondaryCache),
+        Optional.of(10000L),
+        /* maxSpeculativeFetchThreads */ 4);
+
+    primaryCache.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "primary".getBytes(StandardCharsets.UTF_8));
+    secondaryCache.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "secondary".getBytes(StandardCharsets.UTF_8));
+    Path output = tmp.newFile();
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("primary", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void speculativeFetchDeletesLosingContendersOutputOnceItFinishesWriting()
+      throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch slowFetchDone = new CountDownLatch(1);
+    InMemoryArtifactCache slowCache = new InMemoryArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        // Like a fetch halfway through writing its output, this carries on when cancelled.
+        Uninterruptibles.awaitUninterruptibly(release);
+        try {
+          return super.fetch(ruleKey, output);
+        } finally {
+          slowFetchDone.countDown();
+        }
+      }
+    };
+    InMemoryArtifactCache fastCache = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(slowCache, fastCache),
+        Optional.of(10L),
+        /* maxSpeculativeFetchThreads */ 4);
+    for (InMemoryArtifactCache cache : ImmutableList.of(slowCache, fastCache)) {
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          "contents".getBytes(StandardCharsets.UTF_8));
+    }
+
+    Path output = tmp.newFile();
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+    assertEquals(CacheResultType.HIT, result.getType());
+
+    // Let the cancelled primary fetch write its file, which it should then delete.
+    release.countDown();
+    assertTrue(slowFetchDone.await(5, TimeUnit.SECONDS));
+    Path primaryOutput = output.resolveSibling(output.getFileName() + ".primary");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (Files.exists(primaryOutput) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertFalse(Files.exists(primaryOutput));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void speculativeFetchWaitsForSecondaryCachesWhenPrimaryFetchFails() throws Exception {
+    final CountDownLatch raceStarted = new CountDownLatch(1);
+    final CountDownLatch primaryFailed = new CountDownLatch(1);
+    ArtifactCache failingCache = new NoopArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        Uninterruptibles.awaitUninterruptibly(raceStarted);
+        primaryFailed.countDown();
+        throw new IllegalStateException("fetch failed");
+      }
+    };
+    InMemoryArtifactCache secondaryCache = new InMemoryArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        raceStarted.countDown();
+        Uninterruptibles.awaitUninterruptibly(primaryFailed);
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+        return super.fetch(ruleKey, output);
+      }
+    };
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.of(failingCache, secondaryCache),
+        Optional.of(10L),
+        /* maxSpeculativeFetchThreads */ 4);
+    secondaryCache.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "contents".getBytes(StandardCharsets.UTF_8));
+
+    Path output = tmp.newFile();
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("contents", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void multiFetchReportsHitsBeforeAskingTheNextCache() throws IOException {
+    final RuleKey firstKey = new RuleKey("1111111111111111111111111111111111111111");
+    final RuleKey secondKey = new RuleKey("2222222222222222222222222222222222222222");
+    final RuleKey missingKey = new RuleKey("3333333333333333333333333333333333333333");
+    InMemoryArtifactCache firstCache = new InMemoryArtifactCache();
+    final List<RuleKey> askedOfSecondCache = new ArrayList<>();
+    InMemoryArtifactCache secondCache = new InMemoryArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        askedOfSecondCache.add(ruleKey);
+        return super.fetch(ruleKey, output);
+      }
+    };
+    firstCache.store(
+        ArtifactInfo.builder().addRuleKeys(firstKey).build(),
+        "first".getBytes(StandardCharsets.UTF_8));
+    secondCache.store(
+        ArtifactInfo.builder().addRuleKeys(secondKey).build(),
+        "second".getBytes(StandardCharsets.UTF_8));
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.<ArtifactCache>of(firstCache, secondCache));
+
+    final List<String> reported = new ArrayList<>();
+    ImmutableMap<RuleKey, CacheResult> results = multiArtifactCache.multiFetch(
+        ImmutableMap.of(
+            firstKey, LazyPath.ofInstance(tmp.newFile()),
+            secondKey, LazyPath.ofInstance(tmp.newFile()),
+            missingKey, LazyPath.ofInstance(tmp.newFile())),
+        new ArtifactCache.MultiFetchListener() {
+          @Override
+          public void onResult(RuleKey ruleKey, CacheResult result) {
+            reported.add(
+                String.format(
+                    "%s %s after %d",
+                    ruleKey,
+                    result.getType(),
+                    askedOfSecondCache.size()));
+          }
+        });
+
+    assertEquals(
+        ImmutableList.of(
+            firstKey + " HIT after 0",
+            secondKey + " HIT after 1",
+            missingKey + " MISS after 2"),
+        reported);
+    assertEquals(CacheResultType.HIT, results.get(secondKey).getType());
+    assertEquals(CacheResultType.MISS, results.get(missingKey).getType());
+    // The artifact the second cache had is propagated to the first.
+    assertTrue(firstCache.hasArtifact(secondKey));
+
+    multiArtifactCache.close();
+  }
+
 }
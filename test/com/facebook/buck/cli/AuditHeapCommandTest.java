@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+public class AuditHeapCommandTest {
+
+  @Test
+  public void sharedDependenciesAreCountedOnce() {
+    BuildTarget common = BuildTargetFactory.newInstance("//:common");
+    TargetNode<?> commonNode = JavaLibraryBuilder
+        .createBuilder(common)
+        .addSrc(Paths.get("Common.java"))
+        .build();
+    TargetNode<?> first = JavaLibraryBuilder
+        .createBuilder(BuildTargetFactory.newInstance("//:first"))
+        .addSrc(Paths.get("First.java"))
+        .addDep(common)
+        .build();
+    TargetNode<?> second = JavaLibraryBuilder
+        .createBuilder(BuildTargetFactory.newInstance("//:second"))
+        .addSrc(Paths.get("Second.java"))
+        .addDep(common)
+        .build();
+    TargetGraph graph = TargetGraphFactory.newInstance(
+        ImmutableSet.of(commonNode, first, second));
+
+    Map<String, Long> counts = AuditHeapCommand.measureGraph(graph);
+
+    assertEquals(3L, (long) counts.get("target_nodes"));
+    assertEquals(2L, (long) counts.get("edges"));
+    assertEquals(5L, (long) counts.get("build_target_references"));
+    assertEquals(3L, (long) counts.get("distinct_build_target_instances"));
+    assertEquals(3L, (long) counts.get("path_references"));
+    assertEquals(3L, (long) counts.get("distinct_path_instances"));
+  }
+}
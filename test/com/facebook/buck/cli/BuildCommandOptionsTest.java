@@ -21,6 +21,7 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.jvm.java.DefaultJavaPackageFinder;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
@@ -62,4 +63,24 @@ public class BuildCommandOptionsTest {
         .build();
     assertThat(buckConfig.getNumThreads(), Matchers.equalTo(42));
   }
+
+  @Test
+  public void configOverrideArgumentsGiveTheSameOverrides() throws CmdLineException {
+    BuildCommand command = new BuildCommand();
+    new AdditionalOptionsCmdLineParser(command).parseArgument(
+        "--config", "cache.mode=dir",
+        "-c", "secondary//java.source_level=8",
+        "--no-cache");
+
+    BuildCommand otherCommand = new BuildCommand();
+    new AdditionalOptionsCmdLineParser(otherCommand).parseArgument(
+        command.getConfigOverrideArguments());
+    assertEquals(command.getConfigOverrides(), otherCommand.getConfigOverrides());
+    assertEquals(
+        ImmutableList.of(
+            "--config", "cache.mode=dir",
+            "--config", "secondary//java.source_level=8",
+            "--no-cache"),
+        command.getConfigOverrideArguments());
+  }
 }
@@ -29,6 +29,8 @@ import com.facebook.buck.jvm.java.intellij.Project;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.DependencyFileRuleKeyIndex;
+import com.facebook.buck.rules.TargetHashCache;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
@@ -36,6 +38,7 @@ import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.ProcessManager;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.cache.NullFileHashCache;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Optional;
@@ -129,7 +132,10 @@ public class CleanCommandTest extends EasyMockSupport {
         new NullFileHashCache(),
         new HashMap<ExecutionContext.ExecutorPool, ListeningExecutorService>(),
         CommandRunnerParamsForTesting.BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new JarContentsCache(new NullFileHashCache()),
+        Optional.<DependencyFileRuleKeyIndex>absent(),
+        Optional.<TargetHashCache>absent());
   }
 
 }
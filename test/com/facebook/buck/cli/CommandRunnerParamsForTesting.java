@@ -31,6 +31,8 @@ import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
+import com.facebook.buck.rules.DependencyFileRuleKeyIndex;
+import com.facebook.buck.rules.TargetHashCache;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.step.ExecutionContext;
@@ -40,6 +42,7 @@ import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.ProcessManager;
 import com.facebook.buck.util.TriState;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.cache.NullFileHashCache;
 import com.facebook.buck.util.environment.BuildEnvironmentDescription;
 import com.facebook.buck.util.environment.Platform;
@@ -110,7 +113,10 @@ public class CommandRunnerParamsForTesting {
             ExecutionContext.ExecutorPool.PROJECT,
             MoreExecutors.newDirectExecutorService()),
         BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new JarContentsCache(new NullFileHashCache()),
+        Optional.<DependencyFileRuleKeyIndex>absent(),
+        Optional.<TargetHashCache>absent());
   }
 
   public static Builder builder() {
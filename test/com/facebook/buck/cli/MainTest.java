@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.integration.TestContext;
+import com.facebook.buck.util.CapturingPrintStream;
+import com.google.common.base.Optional;
+import com.martiansoftware.nailgun.NGContext;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class MainTest {
+
+  private Main newMain() {
+    return new Main(
+        new CapturingPrintStream(),
+        new CapturingPrintStream(),
+        new ByteArrayInputStream(new byte[0]));
+  }
+
+  @Test
+  public void nailgunWithoutWatchmanIsNotADaemon() {
+    Optional<NGContext> context = Optional.<NGContext>of(new TestContext());
+    assertFalse(Main.isDaemon(context, Watchman.NULL_WATCHMAN));
+    assertFalse(Main.isDaemon(Optional.<NGContext>absent(), Watchman.NULL_WATCHMAN));
+  }
+
+  @Test
+  public void daemonWithoutWatchmanDoesNotShareDependencyFileRuleKeyIndex()
+      throws IOException, InterruptedException {
+    Cell cell = new TestCellBuilder().build();
+    boolean isDaemon =
+        Main.isDaemon(Optional.<NGContext>of(new TestContext()), Watchman.NULL_WATCHMAN);
+    assertEquals(
+        Optional.absent(),
+        newMain().getDependencyFileRuleKeyIndexFromDaemon(isDaemon, cell));
+  }
+
+  @Test
+  public void daemonWithoutWatchmanDoesNotShareTargetHashCache()
+      throws IOException, InterruptedException {
+    Cell cell = new TestCellBuilder().build();
+    boolean isDaemon =
+        Main.isDaemon(Optional.<NGContext>of(new TestContext()), Watchman.NULL_WATCHMAN);
+    assertEquals(
+        Optional.absent(),
+        newMain().getTargetHashCacheFromDaemon(isDaemon, cell));
+  }
+}
@@ -41,6 +41,8 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.jvm.java.FakeJavaPackageFinder;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.DependencyFileRuleKeyIndex;
+import com.facebook.buck.rules.TargetHashCache;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.testutil.TestConsole;
@@ -49,6 +51,7 @@ import com.facebook.buck.testutil.integration.TestDataHelper;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.ProcessManager;
+import com.facebook.buck.util.cache.JarContentsCache;
 import com.facebook.buck.util.cache.NullFileHashCache;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Optional;
@@ -133,6 +136,9 @@ public class ReplCommandIntegrationTest {
         new NullFileHashCache(),
         new HashMap<ExecutionContext.ExecutorPool, ListeningExecutorService>(),
         CommandRunnerParamsForTesting.BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new JarContentsCache(new NullFileHashCache()),
+        Optional.<DependencyFileRuleKeyIndex>absent(),
+        Optional.<TargetHashCache>absent());
   }
 }
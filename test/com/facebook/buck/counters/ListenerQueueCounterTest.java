@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.counters;
+
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.timing.DefaultClock;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ListenerQueueCounterTest {
+
+  private static final String CATEGORY = "Counter_Category";
+  private static final String NAME = "listener";
+
+  @Test
+  public void testReportsQueueDepthUntilTheListenerCatchesUp() throws Exception {
+    BuckEventBus eventBus = new BuckEventBus(
+        new DefaultClock(),
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        /* listenerQueueSize */ 8,
+        BuckEventBus.OverflowPolicy.BLOCK);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    eventBus.register(subscriber);
+    ListenerQueueCounter counter = new ListenerQueueCounter(
+        CATEGORY,
+        NAME,
+        ImmutableMap.<String, String>of(),
+        eventBus);
+    Assert.assertFalse(counter.flush().isPresent());
+
+    eventBus.post(newEvent());
+    Assert.assertTrue(subscriber.started.await(1, TimeUnit.SECONDS));
+    eventBus.post(newEvent());
+    eventBus.post(newEvent());
+
+    Optional<CounterSnapshot> snapshot = counter.flush();
+    Assert.assertTrue(snapshot.isPresent());
+    Assert.assertEquals(CATEGORY, snapshot.get().getCategory());
+    Assert.assertEquals(
+        2L,
+        (long) snapshot.get().getValues().get("listener_BlockingSubscriber_queue_depth"));
+    Assert.assertEquals(
+        2L,
+        (long) snapshot.get().getValues().get("listener_BlockingSubscriber_max_queue_depth"));
+    Assert.assertEquals(
+        0L,
+        (long) snapshot.get().getValues().get("listener_BlockingSubscriber_dropped_events"));
+
+    subscriber.release.countDown();
+    eventBus.close();
+    snapshot = counter.flush();
+    Assert.assertTrue(snapshot.isPresent());
+    Assert.assertEquals(
+        0L,
+        (long) snapshot.get().getValues().get("listener_BlockingSubscriber_queue_depth"));
+
+    // Nothing has happened since.
+    Assert.assertFalse(counter.flush().isPresent());
+  }
+
+  private static BuckEvent newEvent() {
+    return new CountersSnapshotEvent(ImmutableList.<CounterSnapshot>of());
+  }
+
+  private static class BlockingSubscriber {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Subscribe
+    @SuppressWarnings("unused")
+    public void block(BuckEvent event) throws InterruptedException {
+      started.countDown();
+      release.await();
+    }
+  }
+}
@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -171,6 +172,11 @@ public class DepfilesTest {
               "output: input\\\\\\\twith\\\\\\\ttabs\r\n",
               "output",
               ImmutableList.of("input\\\twith\\\ttabs")
+          },
+          {
+              "output: caf\u00e9/h\u00e9ader.h d\u00e9j\u00e0\\ vu.h\n",
+              "output",
+              ImmutableList.of("caf\u00e9/h\u00e9ader.h", "d\u00e9j\u00e0 vu.h")
           }
       });
   }
@@ -193,4 +199,14 @@ public class DepfilesTest {
           Depfiles.parseDepfile(new StringReader(input)),
           Matchers.equalTo(new Depfiles.Depfile(expectedTarget, expectedPrereqs)));
   }
+
+  @Test
+  public void parseDepfileFromBytes() throws IOException {
+    assertThat(
+        String.format(
+            "[%s] should parse correctly",
+            input),
+        Depfiles.parseDepfile(input.getBytes(StandardCharsets.UTF_8)),
+        Matchers.equalTo(new Depfiles.Depfile(expectedTarget, expectedPrereqs)));
+  }
 }
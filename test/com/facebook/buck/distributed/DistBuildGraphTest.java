@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class DistBuildGraphTest {
+
+  private final SourcePathResolver pathResolver = new SourcePathResolver(
+      new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+
+  @Test
+  public void prioritiesFollowLongestChainOfDependents() {
+    // a -> b -> c -> d, a -> d
+    BuildRule d = new FakeBuildRule("//:d", pathResolver);
+    BuildRule c = new FakeBuildRule("//:c", pathResolver, d);
+    BuildRule b = new FakeBuildRule("//:b", pathResolver, c);
+    BuildRule a = new FakeBuildRule("//:a", pathResolver, b, d);
+
+    DistBuildGraph graph =
+        DistBuildGraph.create(ImmutableList.of(a), Predicates.<BuildRule>alwaysFalse());
+
+    assertEquals(4, graph.size());
+    assertEquals(1, graph.getPriority(a.getBuildTarget()));
+    assertEquals(2, graph.getPriority(b.getBuildTarget()));
+    assertEquals(3, graph.getPriority(c.getBuildTarget()));
+    assertEquals(4, graph.getPriority(d.getBuildTarget()));
+    assertThat(
+        graph.getDependents(d.getBuildTarget()),
+        Matchers.containsInAnyOrder(a.getBuildTarget(), c.getBuildTarget()));
+  }
+
+  @Test
+  public void builtRulesAndTheirDepsAreLeftOut() {
+    // a -> b -> c, a -> d, where b is built already.
+    BuildRule c = new FakeBuildRule("//:c", pathResolver);
+    final BuildRule b = new FakeBuildRule("//:b", pathResolver, c);
+    BuildRule d = new FakeBuildRule("//:d", pathResolver);
+    BuildRule a = new FakeBuildRule("//:a", pathResolver, b, d);
+
+    DistBuildGraph graph = DistBuildGraph.create(
+        ImmutableList.of(a),
+        new Predicate<BuildRule>() {
+          @Override
+          public boolean apply(BuildRule rule) {
+            return rule == b;
+          }
+        });
+
+    assertEquals(ImmutableSet.of(a.getBuildTarget(), d.getBuildTarget()), graph.getTargets());
+    assertEquals(ImmutableSet.of(d.getBuildTarget()), graph.getDeps(a.getBuildTarget()));
+  }
+
+  @Test
+  public void builtTopLevelRulesLeaveNothingToBuild() {
+    BuildRule b = new FakeBuildRule("//:b", pathResolver);
+    BuildRule a = new FakeBuildRule("//:a", pathResolver, b);
+
+    DistBuildGraph graph =
+        DistBuildGraph.create(ImmutableList.of(a), Predicates.<BuildRule>alwaysTrue());
+
+    assertEquals(0, graph.size());
+  }
+}
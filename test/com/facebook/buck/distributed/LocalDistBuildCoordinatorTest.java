@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.distributed.thrift.BuildJob;
+import com.facebook.buck.distributed.thrift.BuildStatus;
+import com.facebook.buck.distributed.thrift.BuildStatusRequest;
+import com.facebook.buck.distributed.thrift.FrontendRequest;
+import com.facebook.buck.distributed.thrift.FrontendRequestType;
+import com.facebook.buck.distributed.thrift.FrontendResponse;
+import com.facebook.buck.distributed.thrift.LogRecord;
+import com.facebook.buck.distributed.thrift.StartBuildRequest;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.timing.FakeClock;
+import com.facebook.buck.util.InputStreamConsumer;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LocalDistBuildCoordinatorTest {
+
+  private final SourcePathResolver pathResolver = new SourcePathResolver(
+      new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+
+  private ListeningExecutorService executorService;
+
+  @Before
+  public void setUp() {
+    executorService = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void buildsEachRuleAfterItsDeps() throws Exception {
+    // a -> {b, c} -> d
+    BuildRule d = new FakeBuildRule("//:d", pathResolver);
+    BuildRule b = new FakeBuildRule("//:b", pathResolver, d);
+    BuildRule c = new FakeBuildRule("//:c", pathResolver, d);
+    BuildRule a = new FakeBuildRule("//:a", pathResolver, b, c);
+    DistBuildGraph graph =
+        DistBuildGraph.create(ImmutableList.of(a), Predicates.<BuildRule>alwaysFalse());
+    FakeWorkers workers = new FakeWorkers(graph, ImmutableSet.<BuildTarget>of());
+
+    BuildJob job;
+    try (LocalDistBuildCoordinator coordinator = new LocalDistBuildCoordinator(
+        graph,
+        2,
+        workers,
+        executorService,
+        new FakeClock(0))) {
+      job = runBuild(coordinator);
+    }
+
+    assertEquals(BuildStatus.FINISHED_SUCCESSFULLY, job.getStatus());
+    assertEquals(graph.getTargets(), ImmutableSet.copyOf(workers.built));
+    assertFalse(workers.builtBeforeDeps);
+    assertThat(workers.created, Matchers.lessThanOrEqualTo(2));
+  }
+
+  @Test
+  public void failedJobFailsBuildAndStopsHandingOutRules() throws Exception {
+    BuildRule b = new FakeBuildRule("//:b", pathResolver);
+    BuildRule a = new FakeBuildRule("//:a", pathResolver, b);
+    DistBuildGraph graph =
+        DistBuildGraph.create(ImmutableList.of(a), Predicates.<BuildRule>alwaysFalse());
+    FakeWorkers workers = new FakeWorkers(graph, ImmutableSet.of(b.getBuildTarget()));
+
+    BuildJob job;
+    try (LocalDistBuildCoordinator coordinator = new LocalDistBuildCoordinator(
+        graph,
+        2,
+        workers,
+        executorService,
+        new FakeClock(0))) {
+      job = runBuild(coordinator);
+    }
+
+    assertEquals(BuildStatus.FAILED, job.getStatus());
+    assertFalse(workers.built.contains(a.getBuildTarget()));
+  }
+
+  @Test
+  public void workerOutputIsPassedBackInLogBook() throws Exception {
+    BuildRule a = new FakeBuildRule("//:a", pathResolver);
+    DistBuildGraph graph =
+        DistBuildGraph.create(ImmutableList.of(a), Predicates.<BuildRule>alwaysFalse());
+    FakeWorkers workers = new FakeWorkers(graph, ImmutableSet.<BuildTarget>of());
+
+    BuildJob job;
+    try (LocalDistBuildCoordinator coordinator = new LocalDistBuildCoordinator(
+        graph,
+        1,
+        workers,
+        executorService,
+        new FakeClock(0))) {
+      job = runBuild(coordinator);
+    }
+
+    List<String> lines = new ArrayList<>();
+    for (LogRecord record : job.getDebug().getLogBook()) {
+      lines.add(record.getName());
+    }
+    assertThat(lines, Matchers.hasItem("[worker 0] Building [//:a]"));
+  }
+
+  private static BuildJob runBuild(LocalDistBuildCoordinator coordinator) throws Exception {
+    FrontendRequest request = new FrontendRequest();
+    request.setType(FrontendRequestType.START_BUILD);
+    request.setStartBuild(new StartBuildRequest());
+    FrontendResponse response = new FrontendResponse();
+    coordinator.makeRequest(request, response);
+    BuildJob job = response.getStartBuild().getBuildJob();
+
+    request = new FrontendRequest();
+    request.setType(FrontendRequestType.BUILD_STATUS);
+    request.setBuildStatus(new BuildStatusRequest().setBuildId(job.getBuildId()));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (job.getStatus() == BuildStatus.BUILDING) {
+      assertTrue("Build did not finish in time.", System.nanoTime() < deadline);
+      Thread.sleep(10);
+      response = new FrontendResponse();
+      coordinator.makeRequest(request, response);
+      job = response.getBuildStatus().getBuildJob();
+    }
+    return job;
+  }
+
+  /**
+   * Workers which record the rules they build, failing those they are told to.
+   */
+  private static class FakeWorkers implements DistBuildWorker.Factory {
+    private final DistBuildGraph graph;
+    private final ImmutableSet<BuildTarget> failing;
+    private final Set<BuildTarget> built = Collections.synchronizedSet(new HashSet<BuildTarget>());
+    private volatile boolean builtBeforeDeps = false;
+    private volatile int created = 0;
+
+    FakeWorkers(DistBuildGraph graph, ImmutableSet<BuildTarget> failing) {
+      this.graph = graph;
+      this.failing = failing;
+    }
+
+    @Override
+    public DistBuildWorker create(int index, final InputStreamConsumer.Handler output) {
+      created++;
+      return new DistBuildWorker() {
+        @Override
+        public int build(ImmutableSet<BuildTarget> targets) {
+          output.handleLine("Building " + targets);
+          for (BuildTarget target : targets) {
+            if (failing.contains(target)) {
+              return 1;
+            }
+            if (!built.containsAll(graph.getDeps(target))) {
+              builtBeforeDeps = true;
+            }
+          }
+          built.addAll(targets);
+          return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+      };
+    }
+  }
+}
@@ -19,17 +19,25 @@ package com.facebook.buck.event;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import com.facebook.buck.event.external.events.ProgressEventInterface;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BuckEventBusTest {
 
@@ -123,6 +131,171 @@ public class BuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void slowListenerDoesNotDelayOthersWithPerListenerDispatch() throws Exception {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        true,
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        16,
+        BuckEventBus.OverflowPolicy.BLOCK);
+    BlockingSubscriber slowSubscriber = new BlockingSubscriber();
+    CountingSubscriber fastSubscriber = new CountingSubscriber(3);
+    eb.register(slowSubscriber);
+    eb.register(fastSubscriber);
+
+    for (int i = 0; i < 3; i++) {
+      eb.post(new TestEvent());
+    }
+    assertTrue(
+        "All events should reach the fast listener while the slow one is blocked.",
+        fastSubscriber.latch.await(timeoutMillis, TimeUnit.MILLISECONDS));
+
+    slowSubscriber.release.countDown();
+    eb.close();
+    assertEquals(3, slowSubscriber.events.size());
+  }
+
+  @Test
+  public void progressEventsAreCoalescedWhenListenerQueueIsFull() throws Exception {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        true,
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        1,
+        BuckEventBus.OverflowPolicy.DROP_COALESCE);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    eb.register(subscriber);
+
+    // The first event is taken by the listener thread (which then blocks), the second fills the
+    // queue and the rest have to be coalesced, as posting would block forever otherwise.
+    eb.post(new TestEvent());
+    subscriber.started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    eb.post(new TestEvent());
+    for (int i = 1; i <= 10; i++) {
+      eb.post(new TestProgressEvent(i / 10.0));
+    }
+
+    subscriber.release.countDown();
+    eb.close();
+    assertEquals(3, subscriber.events.size());
+    assertEquals(
+        1.0,
+        ((TestProgressEvent) subscriber.events.get(2)).getProgressValue(),
+        0.0);
+    assertEquals(9, eb.getListenerQueueStats().get(0).getDroppedEventCount());
+  }
+
+  @Test
+  public void droppedProgressEventsDoNotReorderOtherEvents() throws Exception {
+    final BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        true,
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        3,
+        BuckEventBus.OverflowPolicy.DROP_COALESCE);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    eb.register(subscriber);
+
+    TestEvent first = new TestEvent();
+    eb.post(first);
+    subscriber.started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    TestEvent second = new TestEvent();
+    TestEvent third = new TestEvent();
+    TestProgressEvent latestProgress = new TestProgressEvent(1.0);
+    final TestEvent fourth = new TestEvent();
+    eb.post(second);
+    eb.post(new TestProgressEvent(0.5));
+    eb.post(third);
+    eb.post(latestProgress);
+    // The queue is full, so this waits for the listener to catch up.
+    Thread poster = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            eb.post(fourth);
+          }
+        });
+    poster.start();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (poster.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+
+    subscriber.release.countDown();
+    poster.join();
+    eb.close();
+    assertEquals(
+        ImmutableList.<BuckEvent>of(first, second, third, latestProgress, fourth),
+        ImmutableList.copyOf(subscriber.events));
+  }
+
+  @Test
+  public void listenersPostingToFullQueuesDoNotWaitForThemselves() throws Exception {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        true,
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        1,
+        BuckEventBus.OverflowPolicy.BLOCK);
+    ReplyingSubscriber subscriber = new ReplyingSubscriber(eb, 3);
+    eb.register(subscriber);
+
+    eb.post(new TestEvent());
+    eb.close();
+    assertEquals(4, subscriber.events.size());
+  }
+
+  @Test
+  public void interruptedPosterStillQueuesItsEvent() throws Exception {
+    final BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        true,
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        BuckEventBus.DispatchMode.PER_LISTENER,
+        1,
+        BuckEventBus.OverflowPolicy.BLOCK);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    eb.register(subscriber);
+
+    eb.post(new TestEvent());
+    subscriber.started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    eb.post(new TestEvent());
+    final TestEvent last = new TestEvent();
+    final AtomicBoolean stillInterrupted = new AtomicBoolean();
+    // The queue is full, so this waits until it is interrupted.
+    Thread poster = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            eb.post(last);
+            stillInterrupted.set(Thread.currentThread().isInterrupted());
+          }
+        });
+    poster.start();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (poster.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    poster.interrupt();
+    poster.join();
+
+    subscriber.release.countDown();
+    eb.close();
+    assertTrue(stillInterrupted.get());
+    assertEquals(3, subscriber.events.size());
+    assertSame(last, subscriber.events.get(2));
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
@@ -149,6 +322,79 @@ public class BuckEventBusTest {
     }
   }
 
+  private static class BlockingSubscriber {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<BuckEvent> events = new CopyOnWriteArrayList<>();
+
+    @Subscribe
+    public void block(BuckEvent event) throws InterruptedException {
+      started.countDown();
+      release.await();
+      events.add(event);
+    }
+  }
+
+  private static class ReplyingSubscriber {
+    private final BuckEventBus eventBus;
+    private final int replies;
+    private final List<BuckEvent> events = new CopyOnWriteArrayList<>();
+
+    private ReplyingSubscriber(BuckEventBus eventBus, int replies) {
+      this.eventBus = eventBus;
+      this.replies = replies;
+    }
+
+    @Subscribe
+    public void reply(BuckEvent event) {
+      events.add(event);
+      if (event instanceof TestEvent) {
+        for (int i = 0; i < replies; i++) {
+          eventBus.post(new TestProgressEvent(i));
+        }
+      }
+    }
+  }
+
+  private static class CountingSubscriber {
+    private final CountDownLatch latch;
+
+    private CountingSubscriber(int expectedEvents) {
+      this.latch = new CountDownLatch(expectedEvents);
+    }
+
+    @Subscribe
+    @SuppressWarnings("unused")
+    public void count(BuckEvent event) {
+      latch.countDown();
+    }
+  }
+
+  private static class TestProgressEvent extends AbstractBuckEvent
+      implements ProgressEventInterface {
+    private final double progressValue;
+
+    private TestProgressEvent(double progressValue) {
+      super(EventKey.unique());
+      this.progressValue = progressValue;
+    }
+
+    @Override
+    public double getProgressValue() {
+      return progressValue;
+    }
+
+    @Override
+    protected String getValueString() {
+      return "progress=" + progressValue;
+    }
+
+    @Override
+    public String getEventName() {
+      return "TestProgressEvent";
+    }
+  }
+
   private static class TestEvent extends AbstractBuckEvent {
 
     public TestEvent() {
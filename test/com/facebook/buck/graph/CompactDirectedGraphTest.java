@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+public class CompactDirectedGraphTest {
+
+  @Test
+  public void edgesAreAvailableInBothDirections() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("C", "B");
+    mutableGraph.addNode("D");
+
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    assertEquals(4, graph.getNodeCount());
+    assertEquals(3, graph.getEdgeCount());
+    assertEquals(-1, graph.getId("E"));
+    for (String node : graph.getNodes()) {
+      assertEquals(node, graph.getNode(graph.getId(node)));
+    }
+    assertEquals(ImmutableSet.of("B", "C"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableSet.of("A", "C"), graph.getIncomingNodesFor("B"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("E"));
+    assertEquals(ImmutableSet.of("B", "D"), graph.getNodesWithNoOutgoingEdges());
+    assertEquals(ImmutableSet.of("A", "D"), graph.getNodesWithNoIncomingEdges());
+
+    int a = graph.getId("A");
+    assertEquals(2, graph.getOutDegree(a));
+    assertEquals(0, graph.getInDegree(a));
+    assertEquals(graph.getId("A"), graph.getIncomingNode(graph.getId("C"), 0));
+  }
+
+  @Test
+  public void bottomUpOrderVisitsSinksFirstAndSkipsCycles() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("X", "Y");
+    mutableGraph.addEdge("Y", "X");
+    mutableGraph.addEdge("Z", "X");
+
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+    List<String> order = new ArrayList<>();
+    for (int node : graph.getBottomUpOrder()) {
+      order.add(graph.getNode(node));
+    }
+
+    assertEquals(ImmutableList.of("C", "B", "A"), order);
+    int[] heights = graph.getHeights();
+    assertEquals(2, heights[graph.getId("A")]);
+    assertEquals(0, heights[graph.getId("C")]);
+    assertEquals(-1, heights[graph.getId("Z")]);
+  }
+
+  @Test
+  public void reachableNodesIncludeRootsAndEverythingBelowThem() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("D", "C");
+    mutableGraph.addEdge("E", "A");
+
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+    BitSet roots = new BitSet();
+    roots.set(graph.getId("A"));
+    BitSet reachable = graph.getReachableNodes(roots);
+
+    List<String> nodes = new ArrayList<>();
+    for (int id = reachable.nextSetBit(0); id >= 0; id = reachable.nextSetBit(id + 1)) {
+      nodes.add(graph.getNode(id));
+    }
+    assertThat(nodes, Matchers.containsInAnyOrder("A", "B", "C"));
+    assertEquals(1, roots.cardinality());
+  }
+
+  @Test
+  public void findsStronglyConnectedComponentsAndCycles() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("C", "A");
+    mutableGraph.addEdge("C", "D");
+    mutableGraph.addEdge("E", "E");
+
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    assertFalse(graph.isAcyclic());
+    assertThat(
+        graph.findStronglyConnectedComponents(),
+        Matchers.containsInAnyOrder(
+            ImmutableSet.of("A", "B", "C"),
+            ImmutableSet.of("D"),
+            ImmutableSet.of("E")));
+    // Components come out in reverse topological order.
+    assertTrue(
+        graph.findStronglyConnectedComponents().indexOf(ImmutableSet.of("D")) <
+        graph.findStronglyConnectedComponents().indexOf(ImmutableSet.of("A", "B", "C")));
+    assertEquals(
+        ImmutableSet.of(ImmutableSet.of("A", "B", "C"), ImmutableSet.of("E")),
+        graph.findCycles());
+  }
+
+  @Test
+  public void deepGraphsDoNotOverflowTheStack() {
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    for (int i = 0; i < 100000; i++) {
+      mutableGraph.addEdge(i, i + 1);
+    }
+
+    CompactDirectedGraph<Integer> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    assertTrue(graph.isAcyclic());
+    assertEquals(100001, graph.findStronglyConnectedComponents().size());
+    mutableGraph.addEdge(100000, 0);
+    assertEquals(1, mutableGraph.findCycles().size());
+  }
+
+  @Test
+  public void equalityDoesNotDependOnNodeNumbering() {
+    MutableDirectedGraph<String> first = new MutableDirectedGraph<>();
+    first.addNode("C");
+    first.addEdge("A", "B");
+    first.addEdge("B", "C");
+    MutableDirectedGraph<String> second = new MutableDirectedGraph<>();
+    second.addEdge("B", "C");
+    second.addEdge("A", "B");
+
+    assertEquals(CompactDirectedGraph.copyOf(first), CompactDirectedGraph.copyOf(second));
+    assertEquals(
+        CompactDirectedGraph.copyOf(first).hashCode(),
+        CompactDirectedGraph.copyOf(second).hashCode());
+
+    second.addEdge("A", "C");
+    assertNotEquals(CompactDirectedGraph.copyOf(first), CompactDirectedGraph.copyOf(second));
+  }
+
+  @Test
+  public void graphsWithTheSameDegreesButDifferentEdgesAreNotEqual() {
+    MutableDirectedGraph<String> first = new MutableDirectedGraph<>();
+    first.addEdge("A", "B");
+    first.addEdge("A", "C");
+    first.addEdge("B", "D");
+    MutableDirectedGraph<String> second = new MutableDirectedGraph<>();
+    second.addEdge("A", "B");
+    second.addEdge("A", "D");
+    second.addEdge("B", "C");
+
+    assertNotEquals(CompactDirectedGraph.copyOf(first), CompactDirectedGraph.copyOf(second));
+  }
+
+  @Test
+  public void adjacentNodesAreUnmodifiableSetViews() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("D", "C");
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    Set<String> outgoing = graph.getOutgoingNodesView("A");
+    assertEquals(ImmutableSet.of("B", "C"), outgoing);
+    assertEquals(ImmutableSet.of("B", "C").hashCode(), outgoing.hashCode());
+    assertTrue(outgoing.contains("C"));
+    assertFalse(outgoing.contains("D"));
+    assertFalse(outgoing.contains("E"));
+    assertEquals(ImmutableSet.of("A", "D"), graph.getIncomingNodesView("C"));
+    assertEquals(ImmutableSet.of(), graph.getIncomingNodesView("A"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesView("E"));
+    try {
+      outgoing.remove("B");
+      fail("Adjacent node views should be unmodifiable.");
+    } catch (UnsupportedOperationException e) {
+      assertEquals(2, outgoing.size());
+    }
+  }
+
+  @Test
+  public void topologicalSortOfDefaultGraphMatchesMutableGraph() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "D");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("D", "C");
+    mutableGraph.addEdge("E", "C");
+    mutableGraph.addNode("F");
+
+    assertEquals(
+        TopologicalSort.sort(mutableGraph, Predicates.<String>alwaysTrue()),
+        TopologicalSort.sort(
+            new DefaultDirectedAcyclicGraph<>(mutableGraph),
+            Predicates.<String>alwaysTrue()));
+    assertEquals(
+        ImmutableList.of("C", "F", "B", "D", "E", "A"),
+        TopologicalSort.sort(
+            new DefaultDirectedAcyclicGraph<>(mutableGraph),
+            Predicates.<String>alwaysTrue()));
+  }
+}
@@ -126,4 +126,18 @@ public class MutableDirectedGraphTest {
     graph.addNode("C");
     assertTrue(graph.isAcyclic());
   }
+
+  @Test
+  public void testFindStronglyConnectedComponentsOfDeepGraph() {
+    MutableDirectedGraph<Integer> graph = new MutableDirectedGraph<Integer>();
+    int depth = 100000;
+    for (int i = 0; i < depth; i++) {
+      graph.addEdge(i, i + 1);
+    }
+    graph.addEdge(depth, depth - 1);
+    assertEquals(depth, graph.findStronglyConnectedComponents().size());
+    assertEquals(
+        ImmutableSet.of(ImmutableSet.of(depth - 1, depth)),
+        graph.findCycles());
+  }
 }
@@ -27,6 +27,8 @@ import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.DirArtifactCacheTestUtil;
+import com.facebook.buck.artifact_cache.HttpArtifactCache;
+import com.facebook.buck.artifact_cache.NetworkCacheArgs;
 import com.facebook.buck.artifact_cache.TestArtifactCaches;
 import com.facebook.buck.cli.BuckConfig;
 import com.facebook.buck.cli.BuckConfigTestUtils;
@@ -36,6 +38,7 @@ import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.slb.SingleUriService;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.environment.Architecture;
@@ -55,11 +58,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import okhttp3.OkHttpClient;
+
 import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -159,6 +165,47 @@ public class ServedCacheIntegrationTest {
         Matchers.equalTo(A_FILE_DATA));
   }
 
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    webServer = new WebServer(
+        /* port */ 0,
+        projectFilesystem,
+        "/static/",
+        MAPPER);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    SingleUriService service = new SingleUriService(
+        URI.create(String.format("http://127.0.0.1:%d/", webServer.getPort().get())),
+        new OkHttpClient());
+    HttpArtifactCache serverBackedCache = new HttpArtifactCache(
+        NetworkCacheArgs.builder()
+            .setCacheName("http")
+            .setRepository("")
+            .setFetchClient(service)
+            .setStoreClient(service)
+            .setDoStore(false)
+            .setProjectFilesystem(projectFilesystem)
+            .setBuckEventBus(buckEventBus)
+            .setHttpWriteExecutorService(DIRECT_EXECUTOR_SERVICE)
+            .setErrorTextTemplate("{cache_name} {error_message}")
+            .build());
+
+    RuleKey missingRuleKey = new RuleKey("9876543210");
+    Path fetchedContents = tmpDir.newFile();
+    ImmutableMap<RuleKey, CacheResult> results = serverBackedCache.multiFetch(
+        ImmutableMap.of(
+            missingRuleKey, LazyPath.ofInstance(tmpDir.newFile()),
+            A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents)),
+        ArtifactCache.MultiFetchListener.NOOP);
+    assertThat(results.get(missingRuleKey).getType(), Matchers.is(CacheResultType.MISS));
+    assertThat(results.get(A_FILE_RULE_KEY).getType(), Matchers.is(CacheResultType.HIT));
+    assertThat(results.get(A_FILE_RULE_KEY).getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(),
+        Matchers.equalTo(A_FILE_DATA));
+    serverBackedCache.close();
+  }
+
   private static class ThrowAfterXBytesStream extends FilterInputStream {
     private final long bytesToThrowAfter;
     private long bytesRead = 0L;
@@ -342,6 +389,13 @@ public class ServedCacheIntegrationTest {
         return CacheResult.miss();
       }
 
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(
+          ImmutableMap<RuleKey, LazyPath> outputs,
+          MultiFetchListener listener) {
+        return ArtifactCaches.fetchEach(this, outputs, listener);
+      }
+
       @Override
       public ListenableFuture<Void> store(
           ArtifactInfo info,
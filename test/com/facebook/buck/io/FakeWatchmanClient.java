@@ -23,6 +23,8 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Fake implementation of {@link WatchmanClient} for tests.
@@ -32,6 +34,8 @@ public class FakeWatchmanClient implements WatchmanClient {
   private final Map<? extends List<? extends Object>, ? extends Map<String, ? extends Object>>
     queryResults;
   private final Exception exceptionToThrow;
+  private final BlockingQueue<Map<String, ? extends Object>> messages =
+      new LinkedBlockingQueue<>();
 
   public FakeWatchmanClient(
       long queryElapsedTimeNanos,
@@ -71,6 +75,18 @@ public class FakeWatchmanClient implements WatchmanClient {
     return Optional.of(result);
   }
 
+  @Override
+  public Map<String, ? extends Object> receive() throws InterruptedException {
+    return messages.take();
+  }
+
+  /**
+   * Queues a message to be returned by {@link #receive()}, as if Watchman had sent it.
+   */
+  public void sendMessage(Map<String, ? extends Object> message) {
+    messages.add(message);
+  }
+
   @Override
   public void close() {
   }
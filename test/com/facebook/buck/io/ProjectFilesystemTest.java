@@ -54,6 +54,7 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -461,6 +462,26 @@ public class ProjectFilesystemTest {
     }
   }
 
+  @Test
+  public void testCreateZipStoresAlreadyCompressedFiles() throws IOException {
+    Path jar = tmp.newFile("lib.jar");
+    Path text = tmp.newFile("notes.txt");
+    Files.write(jar, "not really a jar".getBytes(UTF_8));
+    Files.write(text, "plain text".getBytes(UTF_8));
+
+    Path zipFile = tmp.getRoot().resolve("test.zip");
+    filesystem.createZip(ImmutableList.of(jar, text), zipFile);
+
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      ZipArchiveEntry jarEntry = zip.getEntry(jar.toString());
+      assertEquals(ZipEntry.STORED, jarEntry.getMethod());
+      try (InputStream input = zip.getInputStream(jarEntry)) {
+        assertEquals("not really a jar", CharStreams.toString(new InputStreamReader(input, UTF_8)));
+      }
+      assertEquals(ZipEntry.DEFLATED, zip.getEntry(text.toString()).getMethod());
+    }
+  }
+
   @Test
   public void testCreateReadOnlyFileSetsPermissions() throws IOException {
     Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
@@ -642,6 +663,21 @@ public class ProjectFilesystemTest {
         Matchers.hasItem(Paths.get("cache_dir")));
   }
 
+  @Test
+  public void privateBuckOutOnlyMovesBookkeepingPaths() throws IOException {
+    Config config = ConfigBuilder.createFromText(
+        "[project]",
+        "private_buck_out = buck-out/worker-1");
+    BuckPaths buckPaths = new ProjectFilesystem(tmp.getRoot(), config).getBuckPaths();
+
+    assertEquals(Paths.get("buck-out/worker-1/tmp"), buckPaths.getTmpDir());
+    assertEquals(Paths.get("buck-out/worker-1/log"), buckPaths.getLogDir());
+    assertEquals(Paths.get("buck-out/worker-1/.filehashes"), buckPaths.getFileHashIndex());
+    assertEquals(Paths.get("buck-out/worker-1/chunks"), buckPaths.getArtifactChunksDir());
+    assertEquals(Paths.get("buck-out/gen"), buckPaths.getGenDir());
+    assertEquals(Paths.get("buck-out/bin"), buckPaths.getScratchDir());
+  }
+
   @Test
   public void ignoredPathsShouldBeIgnoredWhenWalkingTheFilesystem() throws IOException {
     Config config = ConfigBuilder.createFromText(
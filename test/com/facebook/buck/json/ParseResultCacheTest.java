@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ParseResultCacheTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path root;
+  private Path buildFile;
+  private List<Map<String, Object>> rules;
+
+  @Before
+  public void setUp() throws IOException {
+    root = tmp.getRoot();
+    Files.createDirectories(root.resolve("foo/bar"));
+    buildFile = root.resolve("foo/BUCK");
+    write("foo/BUCK", "java_library(name = 'foo', srcs = glob(['**/*.java']))");
+    write("DEFS", "# Shared macros.");
+    write("foo/Foo.java", "class Foo {}");
+    rules = ImmutableList.<Map<String, Object>>of(
+        ImmutableMap.<String, Object>of(
+            "buck.base_path", "foo",
+            "buck.type", "java_library",
+            "name", "foo",
+            "srcs", ImmutableList.of("Foo.java")),
+        ImmutableMap.<String, Object>of(
+            "__includes", ImmutableList.of(buildFile.toString(), root.resolve("DEFS").toString())),
+        ImmutableMap.<String, Object>of("__configs", ImmutableMap.of()));
+  }
+
+  @Test
+  public void unchangedBuildFileIsServedFromANewInstance() {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+  }
+
+  @Test
+  public void differentParserInputsMiss() {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+
+    assertFalse(newCache(HashCode.fromInt(2)).lookup(buildFile).isPresent());
+  }
+
+  @Test
+  public void changedIncludeMisses() throws IOException {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    write("DEFS", "# Different macros.");
+
+    assertFalse(newCache(HashCode.fromInt(1)).lookup(buildFile).isPresent());
+  }
+
+  @Test
+  public void addedFileInPackageMisses() throws IOException {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    write("foo/bar/Bar.java", "class Bar {}");
+
+    assertFalse(newCache(HashCode.fromInt(1)).lookup(buildFile).isPresent());
+  }
+
+  @Test
+  public void changesInSubpackagesAreIgnored() throws IOException {
+    write("foo/bar/BUCK", "");
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    write("foo/bar/Bar.java", "class Bar {}");
+
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+  }
+
+  @Test
+  public void storeUsesTheListingTakenByTheMissedLookup() throws IOException {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    write("foo/Bar.java", "class Bar {}");
+    ParseResultCache cache = newCache(HashCode.fromInt(1));
+    assertFalse(cache.lookup(buildFile).isPresent());
+    // A file added while the build file is being parsed must not be recorded as seen by the parse.
+    write("foo/Baz.java", "class Baz {}");
+    cache.store(buildFile, rules);
+
+    assertFalse(newCache(HashCode.fromInt(1)).lookup(buildFile).isPresent());
+  }
+
+  @Test
+  public void unusedEntriesAreEvicted() throws IOException {
+    Path otherBuildFile = root.resolve("foo/bar/BUCK");
+    write("foo/bar/BUCK", "");
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    newCache(HashCode.fromInt(1)).store(otherBuildFile, rules);
+    setAllModifiedTimes(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30));
+    // Using an entry keeps it.
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+
+    newCache(HashCode.fromInt(2)).store(buildFile, rules);
+
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+    assertFalse(newCache(HashCode.fromInt(1)).lookup(otherBuildFile).isPresent());
+  }
+
+  @Test
+  public void changesInIgnoredPathsAreIgnored() throws IOException {
+    Files.createDirectories(root.resolve("foo/ignored"));
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    write("foo/ignored/Baz.java", "class Baz {}");
+
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+  }
+
+  @Test
+  public void symlinkLoopsInPackageAreOnlyListedOnce() throws IOException {
+    Files.createSymbolicLink(root.resolve("foo/bar/loop"), root.resolve("foo/bar"));
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+
+    assertEquals(Optional.of(rules), newCache(HashCode.fromInt(1)).lookup(buildFile));
+  }
+
+  @Test
+  public void entriesWithMissingFieldsAreIgnored() throws IOException {
+    newCache(HashCode.fromInt(1)).store(buildFile, rules);
+    final BserSerializer serializer = new BserSerializer();
+    Files.walkFileTree(
+        root.resolve("buck-out/parse"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            try (OutputStream output = Files.newOutputStream(file)) {
+              serializer.serializeToStream(ImmutableMap.of("values", ImmutableList.of()), output);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+
+    assertFalse(newCache(HashCode.fromInt(1)).lookup(buildFile).isPresent());
+  }
+
+  private void setAllModifiedTimes(long millis) throws IOException {
+    final FileTime time = FileTime.fromMillis(millis);
+    Files.walkFileTree(
+        root.resolve("buck-out/parse"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.setLastModifiedTime(file, time);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private ParseResultCache newCache(HashCode parserKey) {
+    return new ParseResultCache(
+        root.resolve("buck-out/parse"),
+        root,
+        "BUCK",
+        ImmutableSet.of(new PathOrGlobMatcher(root.getFileSystem().getPath("foo/ignored"))),
+        Suppliers.ofInstance(parserKey));
+  }
+
+  private void write(String path, String contents) throws IOException {
+    Files.write(root.resolve(path), contents.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.facebook.buck.util.cache.DefaultFileHashCache;
+import com.facebook.buck.util.cache.JarContentsCache;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+public class JarContentsCachingFileManagerTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private JavaCompiler compiler;
+  private JarContentsCache cache;
+  private Path libJar;
+
+  @Before
+  public void setUp() throws IOException {
+    compiler = ToolProvider.getSystemJavaCompiler();
+    cache = new JarContentsCache(
+        DefaultFileHashCache.createDefaultFileHashCache(new ProjectFilesystem(tmp.getRootPath())));
+
+    Path libClasses = tmp.newFolder("lib-classes").toPath();
+    Path libSource = writeSource("lib/Lib.java", "package lib; public class Lib {}");
+    compile(
+        compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8),
+        libSource,
+        libClasses,
+        ImmutableList.<Path>of());
+
+    libJar = tmp.getRootPath().resolve("lib.jar");
+    try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(libJar))) {
+      output.putNextEntry(new JarEntry("lib/Lib.class"));
+      Files.copy(libClasses.resolve("lib/Lib.class"), output);
+      output.closeEntry();
+    }
+  }
+
+  @Test
+  public void classesAreServedFromCacheOnSecondCompilation() throws IOException {
+    Path source = writeSource("app/App.java", "package app; public class App { lib.Lib lib; }");
+
+    JarContentsCachingFileManager first = newFileManager();
+    assertTrue(compile(first, source, tmp.newFolder("first").toPath(), ImmutableList.of(libJar)));
+    assertThat(first.getJarsFromCache(), Matchers.equalTo(0));
+    assertThat(first.getClassesFromCache(), Matchers.equalTo(0));
+
+    JarContentsCachingFileManager second = newFileManager();
+    assertTrue(
+        compile(second, source, tmp.newFolder("second").toPath(), ImmutableList.of(libJar)));
+    assertThat(second.getJarsFromCache(), Matchers.equalTo(1));
+    assertThat(second.getClassesFromCache(), Matchers.greaterThan(0));
+  }
+
+  @Test
+  public void cachedClassFilesAreSeenByClassUsageTracking() throws IOException {
+    Path source = writeSource("app/App.java", "package app; public class App { lib.Lib lib; }");
+    cache.get(libJar);
+
+    ClassUsageTracker tracker = new ClassUsageTracker();
+    JarContentsCachingFileManager fileManager = newFileManager();
+    assertTrue(
+        compile(
+            tracker.wrapFileManager(fileManager),
+            source,
+            tmp.newFolder("out").toPath(),
+            ImmutableList.of(libJar)));
+
+    assertThat(fileManager.getClassesFromCache(), Matchers.greaterThan(0));
+    assertThat(
+        tracker.getClassUsageMap().get(libJar.toAbsolutePath()),
+        Matchers.contains(Paths.get("lib/Lib.class")));
+  }
+
+  @Test
+  public void listingCachedJarGivesJarUris() throws IOException {
+    JarContentsCachingFileManager fileManager = newFileManager();
+    fileManager.setLocation(StandardLocation.CLASS_PATH, ImmutableList.of(libJar.toFile()));
+
+    JavaFileObject file = Iterables.getOnlyElement(
+        fileManager.list(
+            StandardLocation.CLASS_PATH,
+            "lib",
+            ImmutableSet.of(JavaFileObject.Kind.CLASS),
+            false));
+
+    assertThat(file.toUri().toString(), Matchers.startsWith("jar:file:"));
+    assertThat(file.toUri().toString(), Matchers.endsWith("lib.jar!/lib/Lib.class"));
+    assertThat(
+        fileManager.inferBinaryName(StandardLocation.CLASS_PATH, file),
+        Matchers.equalTo("lib.Lib"));
+  }
+
+  @Test
+  public void classpathsWithDirectoriesAreLeftToTheWrappedFileManager() throws IOException {
+    Path source = writeSource("app/App.java", "package app; public class App { lib.Lib lib; }");
+    cache.get(libJar);
+
+    JarContentsCachingFileManager fileManager = newFileManager();
+    assertTrue(
+        compile(
+            fileManager,
+            source,
+            tmp.newFolder("out").toPath(),
+            ImmutableList.of(libJar, tmp.newFolder("classes").toPath())));
+
+    assertThat(fileManager.getJarsFromCache(), Matchers.equalTo(0));
+    assertThat(fileManager.getClassesFromCache(), Matchers.equalTo(0));
+  }
+
+  private JarContentsCachingFileManager newFileManager() {
+    return new JarContentsCachingFileManager(
+        compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8),
+        cache,
+        false);
+  }
+
+  private boolean compile(
+      StandardJavaFileManager fileManager,
+      Path source,
+      Path outputDirectory,
+      ImmutableList<Path> classpath) throws IOException {
+    ImmutableList.Builder<String> options = ImmutableList.builder();
+    options.add("-d", outputDirectory.toString());
+    if (!classpath.isEmpty()) {
+      options.add("-classpath", Joiner.on(File.pathSeparator).join(classpath));
+    }
+    try {
+      return compiler.getTask(
+          null,
+          fileManager,
+          null,
+          options.build(),
+          null,
+          fileManager.getJavaFileObjects(source.toFile())).call();
+    } finally {
+      fileManager.close();
+    }
+  }
+
+  private Path writeSource(String name, String contents) throws IOException {
+    Path source = tmp.getRootPath().resolve(name);
+    Files.createDirectories(source.getParent());
+    try (OutputStream output = Files.newOutputStream(source)) {
+      output.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+    return source;
+  }
+}
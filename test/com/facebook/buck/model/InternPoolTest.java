@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class InternPoolTest {
+
+  @Test
+  public void equalPathsAreShared() {
+    Path path = InternPool.intern(Paths.get("foo/Bar.java"));
+    assertSame(path, InternPool.intern(Paths.get("foo", "Bar.java")));
+  }
+
+  @Test
+  public void sortedSetsAreShared() {
+    ImmutableSet<String> set = InternPool.internSet(ImmutableSortedSet.of("a", "b", "c"));
+    assertSame(set, InternPool.internSet(ImmutableSortedSet.of("c", "b", "a")));
+  }
+
+  @Test
+  public void singletonSetsAreShared() {
+    ImmutableSet<String> set = InternPool.internSet(ImmutableSet.of("only"));
+    assertSame(set, InternPool.internSet(ImmutableSet.of("only")));
+  }
+
+  @Test
+  public void insertionOrderedSetsKeepTheirOrder() {
+    InternPool.internSet(ImmutableSet.of("x", "y"));
+    ImmutableSet<String> reversed = InternPool.internSet(ImmutableSet.of("y", "x"));
+    assertEquals(ImmutableList.of("y", "x"), reversed.asList());
+  }
+}
@@ -25,6 +25,8 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
@@ -1387,6 +1389,55 @@ public class ParserTest {
     assertEquals("Should have cached build rules.", 1, counter.calls);
   }
 
+  @Test
+  public void whenGraphForQueryRequestedAgainThenCachedGraphIsReused()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    BuildTarget foo = BuildTarget.builder(cellRoot, "//java/com/facebook", "foo").build();
+    BuildTarget bar = BuildTarget.builder(cellRoot, "//java/com/facebook", "bar").build();
+    TargetGraph graph = parser.buildTargetGraphReusingCachedGraph(
+        eventBus,
+        cell,
+        false,
+        executorService,
+        ImmutableList.of(foo, bar));
+
+    assertSame(
+        graph,
+        parser.buildTargetGraphReusingCachedGraph(
+            eventBus,
+            cell,
+            false,
+            executorService,
+            ImmutableList.of(foo)));
+  }
+
+  @Test
+  public void whenNotifiedOfBuildFileChangeThenCachedGraphForQueryIsRebuilt()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    BuildTarget foo = BuildTarget.builder(cellRoot, "//java/com/facebook", "foo").build();
+    TargetGraph graph = parser.buildTargetGraphReusingCachedGraph(
+        eventBus,
+        cell,
+        false,
+        executorService,
+        ImmutableList.of(foo));
+
+    WatchEvent<Path> event = createPathEvent(
+        MorePaths.relativize(tempDir.getRoot().toRealPath(), testBuildFile),
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    parser.onFileSystemChange(event);
+
+    assertNotSame(
+        graph,
+        parser.buildTargetGraphReusingCachedGraph(
+            eventBus,
+            cell,
+            false,
+            executorService,
+            ImmutableList.of(foo)));
+    assertEquals("Should have invalidated cache.", 2, counter.calls);
+  }
+
   @Test
   public void whenSingleTargetThenAllRulesRequestedThenRulesAreParsedOnce()
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
@@ -19,16 +19,23 @@ package com.facebook.buck.parser;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.util.concurrent.AssertScopeExclusiveAccess;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -41,6 +48,7 @@ import org.junit.Test;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -348,6 +356,115 @@ public class ProjectBuildFileParserPoolTest {
     }
   }
 
+  @Test
+  public void idleParsersAreHandedOverToOtherCellsAtTheGlobalLimit() throws Exception {
+    Cell firstCell = EasyMock.createMock(Cell.class);
+    Cell secondCell = EasyMock.createMock(Cell.class);
+    final AtomicInteger createCount = new AtomicInteger(0);
+    final AtomicInteger closeCount = new AtomicInteger(0);
+    final CountDownLatch bothParsing = new CountDownLatch(2);
+    ListeningExecutorService executorService = MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(2));
+
+    try (ProjectBuildFileParserPool parserPool =
+        new ProjectBuildFileParserPool(
+            /* maxParsersPerCell */ 2,
+            /* maxParsers */ 2,
+            new Function<Cell, ProjectBuildFileParser>() {
+              @Override
+              public ProjectBuildFileParser apply(Cell input) {
+                createCount.incrementAndGet();
+                ProjectBuildFileParser mock =
+                    EasyMock.createNiceMock(ProjectBuildFileParser.class);
+                try {
+                  EasyMock.expect(mock.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
+                      .andAnswer(
+                          new IAnswer<List<Map<String, Object>>>() {
+                            @Override
+                            public List<Map<String, Object>> answer() throws Throwable {
+                              bothParsing.countDown();
+                              bothParsing.await(1, TimeUnit.SECONDS);
+                              return ImmutableList.of();
+                            }
+                          })
+                      .anyTimes();
+                  mock.close();
+                  EasyMock.expectLastCall()
+                      .andAnswer(
+                          new IAnswer<Void>() {
+                            @Override
+                            public Void answer() throws Throwable {
+                              closeCount.incrementAndGet();
+                              return null;
+                            }
+                          })
+                      .anyTimes();
+                } catch (Exception e) {
+                  Throwables.propagate(e);
+                }
+                EasyMock.replay(mock);
+                return mock;
+              }
+            })) {
+
+      // The first cell takes up the whole budget.
+      Futures.allAsList(scheduleWork(firstCell, parserPool, executorService, 2)).get();
+      assertThat(parserPool.getCreatedParserCount(), Matchers.equalTo(2));
+
+      // The second cell can only get a parser by having one of the first cell's idle ones retired.
+      Futures.allAsList(scheduleWork(secondCell, parserPool, executorService, 1)).get();
+      assertThat(parserPool.getCreatedParserCount(), Matchers.equalTo(2));
+      assertThat(createCount.get(), Matchers.equalTo(3));
+      assertThat(closeCount.get(), Matchers.equalTo(1));
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void registersParseCountersForEachCell() throws Exception {
+    Cell cell = EasyMock.createMock(Cell.class);
+    EasyMock.expect(cell.getRoot()).andReturn(Paths.get("/cell")).anyTimes();
+    EasyMock.replay(cell);
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    final List<Counter> registeredCounters = new ArrayList<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void registerCounters(CounterRegistry.AsyncCounterRegistrationEvent event) {
+            registeredCounters.addAll(event.getCounters());
+          }
+        });
+
+    try (ProjectBuildFileParserPool parserPool =
+        new ProjectBuildFileParserPool(
+            /* maxParsersPerCell */ 1,
+            /* maxParsers */ 1,
+            createMockPaserFactory(
+                new IAnswer<List<Map<String, Object>>>() {
+                  @Override
+                  public List<Map<String, Object>> answer() throws Throwable {
+                    return ImmutableList.of();
+                  }
+                }),
+            Optional.of(eventBus))) {
+      Futures.allAsList(
+          scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 3)).get();
+    }
+
+    assertThat(registeredCounters, Matchers.hasSize(3));
+    ImmutableMap.Builder<String, Long> values = ImmutableMap.builder();
+    for (Counter counter : registeredCounters) {
+      assertThat(counter.getTags(), Matchers.hasEntry("cell", "/cell"));
+      values.putAll(counter.flush().get().getValues());
+    }
+    // The first parse has to start the parser's interpreter; the others don't.
+    assertThat(values.build(), Matchers.allOf(
+        Matchers.hasEntry("parse_micros_count", 2L),
+        Matchers.hasEntry("cold_parse_micros_count", 1L),
+        Matchers.hasEntry("parsers_created", 1L)));
+  }
+
   private static ImmutableSet<ListenableFuture<?>> scheduleWork(
       Cell cell,
       ProjectBuildFileParserPool pool,
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+public class CachingQueryEvaluatorTest {
+
+  private ListeningExecutorService executor;
+  private CountingQueryEnvironment env;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    env = new CountingQueryEnvironment();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void repeatedSubexpressionsAreEvaluatedOnce() throws Exception {
+    CachingQueryEvaluator evaluator = new CachingQueryEvaluator(3);
+
+    Set<QueryTarget> result = evaluator.eval(
+        QueryParser.parse("(a + b) ^ (b + c) - (a + b) + a", env),
+        env,
+        executor);
+    evaluator.eval(QueryParser.parse("b + c", env), env, executor);
+
+    assertEquals(ImmutableSet.of(target("a")), result);
+    for (String pattern : ImmutableList.of("a", "b", "c")) {
+      assertEquals(1, env.evaluations.count(pattern));
+    }
+    assertThat(
+        evaluator.getEvaluationMillis().keySet(),
+        Matchers.hasItem(QueryParser.parse("a + b", env)));
+  }
+
+  @Test
+  public void operandsAreReturnedInOrderWhetherOrNotTheyRunConcurrently() throws Exception {
+    ImmutableList<QueryExpression> operands = ImmutableList.of(
+        QueryParser.parse("a", env),
+        QueryParser.parse("b", env),
+        QueryParser.parse("c", env),
+        QueryParser.parse("d", env));
+
+    for (int maxConcurrentOperands : ImmutableList.of(0, 1, 3)) {
+      ImmutableList<Set<QueryTarget>> values =
+          new CachingQueryEvaluator(maxConcurrentOperands).evalAll(operands, env, executor);
+      assertEquals(
+          ImmutableList.of(
+              ImmutableSet.of(target("a")),
+              ImmutableSet.of(target("b")),
+              ImmutableSet.of(target("c")),
+              ImmutableSet.of(target("d"))),
+          values);
+    }
+  }
+
+  @Test
+  public void failureOfAnOperandFailsTheQuery() throws Exception {
+    CachingQueryEvaluator evaluator = new CachingQueryEvaluator(3);
+
+    thrown.expect(QueryException.class);
+    thrown.expectMessage("no such pattern: fail");
+    evaluator.eval(QueryParser.parse("a + fail + b", env), env, executor);
+  }
+
+  private static QueryTarget target(String pattern) {
+    return QueryFileTarget.of(Paths.get(pattern));
+  }
+
+  /**
+   * Resolves each pattern to a single file of that name, counting how often each is resolved.
+   */
+  private static class CountingQueryEnvironment extends FakeQueryEnvironment {
+    private final Multiset<String> evaluations = ConcurrentHashMultiset.create();
+
+    @Override
+    public Set<QueryTarget> getTargetsMatchingPattern(
+        String pattern,
+        ListeningExecutorService executor) throws QueryException, InterruptedException {
+      evaluations.add(pattern);
+      if (pattern.equals("fail")) {
+        throw new QueryException("no such pattern: %s", pattern);
+      }
+      return ImmutableSortedSet.of(target(pattern));
+    }
+  }
+}
@@ -18,6 +18,8 @@ package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -46,16 +48,25 @@ import org.junit.rules.ExpectedException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class ActionGraphCacheTest {
 
   private static final int CACHE_HIT_COUNTER_INDEX = 0;
   private static final int CACHE_MISS_COUNTER_INDEX = 1;
+  private static final int CACHE_PARTIAL_HIT_COUNTER_INDEX = 3;
   private static final boolean CHECK_GRAPHS = true;
   private static final boolean NOT_CHECK_GRAPHS = false;
+  private static final boolean INCREMENTAL = true;
 
   private TargetNode<?> nodeA;
   private TargetNode<?> nodeB;
@@ -156,6 +167,119 @@ public class ActionGraphCacheTest {
     assertThat(resultRun1RuleKeys, Matchers.equalTo(resultRun3RuleKeys));
   }
 
+  @Test
+  public void incrementalUpdateReusesRulesOfUnchangedNodes() {
+    ActionGraphCache cache = new ActionGraphCache(MoreExecutors.newDirectExecutorService());
+
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, INCREMENTAL, targetGraph, 0);
+    BuildRule ruleA = resultRun1.getResolver().getRule(nodeA.getBuildTarget());
+    BuildRule ruleB = resultRun1.getResolver().getRule(nodeB.getBuildTarget());
+
+    // Replace A with a new node, as the parser would after its build file changed.
+    TargetNode<?> newNodeA = createTargetNode("A", nodeB);
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(
+        eventBus,
+        CHECK_GRAPHS,
+        INCREMENTAL,
+        TargetGraphFactory.newInstance(newNodeA, nodeB),
+        0);
+
+    ImmutableList<Counter> counters = cache.getCounters();
+    assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 1);
+    assertEquals(((IntegerCounter) counters.get(CACHE_PARTIAL_HIT_COUNTER_INDEX)).get(), 1);
+    assertSame(ruleB, resultRun2.getResolver().getRule(nodeB.getBuildTarget()));
+    assertNotSame(ruleA, resultRun2.getResolver().getRule(nodeA.getBuildTarget()));
+    // The reused rule must resolve against the new graph, not the one it was created for.
+    assertSame(resultRun1.getResolver(), resultRun2.getResolver());
+
+    // The updated graph must be indistinguishable from one built from scratch.
+    ActionGraphAndResolver freshResult = ActionGraphCache.getFreshActionGraph(
+        eventBus,
+        new DefaultTargetNodeToBuildRuleTransformer(),
+        TargetGraphFactory.newInstance(newNodeA, nodeB));
+    assertThat(
+        getRuleKeysFromBuildRules(
+            resultRun2.getActionGraph().getNodes(),
+            resultRun2.getResolver()).values(),
+        Matchers.containsInAnyOrder(
+            getRuleKeysFromBuildRules(
+                freshResult.getActionGraph().getNodes(),
+                freshResult.getResolver()).values().toArray()));
+  }
+
+  @Test
+  public void incrementalUpdateRecreatesRulesDependingOnChangedNodes() {
+    ActionGraphCache cache = new ActionGraphCache(MoreExecutors.newDirectExecutorService());
+
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, INCREMENTAL, targetGraph, 0);
+    BuildRule ruleA = resultRun1.getResolver().getRule(nodeA.getBuildTarget());
+
+    // Replacing B invalidates A as well, so nothing can be reused and this is a plain miss.
+    TargetNode<?> newNodeB = createTargetNode("B");
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        INCREMENTAL,
+        TargetGraphFactory.newInstance(nodeA, newNodeB),
+        0);
+
+    ImmutableList<Counter> counters = cache.getCounters();
+    assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 2);
+    assertEquals(((IntegerCounter) counters.get(CACHE_PARTIAL_HIT_COUNTER_INDEX)).get(), 0);
+    assertNotSame(ruleA, resultRun2.getResolver().getRule(nodeA.getBuildTarget()));
+  }
+
+  @Test
+  public void incrementalUpdateWaitsForTheCheckOfThePreviousGraph() throws InterruptedException {
+    final List<Future<?>> checks = new ArrayList<>();
+    ExecutorService checkExecutor = new ThreadPoolExecutor(
+        1,
+        1,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>()) {
+      @Override
+      protected void beforeExecute(Thread t, Runnable r) {
+        // Give the incremental update every chance to run while the check is still pending.
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        RunnableFuture<T> check = super.newTaskFor(runnable, value);
+        checks.add(check);
+        return check;
+      }
+    };
+    try {
+      ActionGraphCache cache = new ActionGraphCache(checkExecutor);
+      cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, INCREMENTAL, targetGraph, 0);
+      // A cache hit starts a check of the cached graph in the background.
+      cache.getActionGraph(eventBus, CHECK_GRAPHS, INCREMENTAL, targetGraph, 0);
+
+      cache.getActionGraph(
+          eventBus,
+          NOT_CHECK_GRAPHS,
+          INCREMENTAL,
+          TargetGraphFactory.newInstance(createTargetNode("A", nodeB), nodeB),
+          0);
+
+      assertEquals(1, checks.size());
+      assertTrue(checks.get(0).isDone());
+      ImmutableList<Counter> counters = cache.getCounters();
+      assertEquals(((IntegerCounter) counters.get(CACHE_PARTIAL_HIT_COUNTER_INDEX)).get(), 1);
+    } finally {
+      checkExecutor.shutdownNow();
+      checkExecutor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+  }
+
   // If this breaks it probably means the ActionGraphCache checking also breaks.
   @Test
   public void compareActionGraphsBasedOnRuleKeys() {
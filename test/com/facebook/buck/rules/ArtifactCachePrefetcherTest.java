@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCaches;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.jvm.java.FakeJavaPackageFinder;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+public class ArtifactCachePrefetcherTest {
+
+  private static final RuleKey RULE_KEY_A = new RuleKey("aaaa");
+  private static final RuleKey RULE_KEY_B = new RuleKey("bbbb");
+  private static final RuleKey RULE_KEY_C = new RuleKey("cccc");
+  private static final RuleKey RULE_KEY_D = new RuleKey("dddd");
+
+  private BlockingArtifactCache cache;
+  private BuildContext context;
+  private SourcePathResolver pathResolver;
+
+  @Before
+  public void setUp() {
+    cache = new BlockingArtifactCache();
+    context = FakeBuildContext.newBuilder()
+        .setActionGraph(new ActionGraph(ImmutableList.<BuildRule>of()))
+        .setJavaPackageFinder(new FakeJavaPackageFinder())
+        .setArtifactCache(cache)
+        .build();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+  }
+
+  @Test
+  public void claimReturnsTheResultOfAnInFlightPrefetch() throws Exception {
+    BuildRule rule = new FakeBuildRule("//:a", pathResolver);
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(1);
+
+    prefetcher.prefetch(rule, RULE_KEY_A, context);
+    cache.fetchesStarted.acquire();
+    cache.mayFinish.countDown();
+
+    Optional<ArtifactCachePrefetcher.Fetched> fetched = prefetcher.claim(rule, RULE_KEY_A);
+    assertTrue(fetched.isPresent());
+    assertEquals(CacheResultType.HIT, fetched.get().getCacheResult().getType());
+    assertTrue(Files.exists(fetched.get().getZipPath().getUnchecked()));
+    assertEquals(ImmutableList.of(RULE_KEY_A), ImmutableList.copyOf(cache.fetched));
+    Files.delete(fetched.get().getZipPath().getUnchecked());
+  }
+
+  @Test
+  public void claimingARuleBeforeItsPrefetchStartsCancelsThePrefetch() throws Exception {
+    BuildRule ruleA = new FakeBuildRule("//:a", pathResolver);
+    BuildRule ruleB = new FakeBuildRule("//:b", pathResolver);
+    BuildRule ruleC = new FakeBuildRule("//:c", pathResolver);
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(1);
+
+    // The first prefetch holds up the only prefetching thread, so the others are queued.
+    prefetcher.prefetch(ruleA, RULE_KEY_A, context);
+    cache.fetchesStarted.acquire();
+    prefetcher.prefetch(ruleB, RULE_KEY_B, context);
+    prefetcher.prefetch(ruleC, RULE_KEY_C, context);
+
+    assertFalse(prefetcher.claim(ruleB, RULE_KEY_B).isPresent());
+
+    cache.mayFinish.countDown();
+    cache.fetchesStarted.acquire();
+    Optional<ArtifactCachePrefetcher.Fetched> fetchedC = prefetcher.claim(ruleC, RULE_KEY_C);
+    assertTrue(fetchedC.isPresent());
+    assertEquals(ImmutableList.of(RULE_KEY_A, RULE_KEY_C), ImmutableList.copyOf(cache.fetched));
+
+    Files.delete(fetchedC.get().getZipPath().getUnchecked());
+    prefetcher.discardUnclaimed();
+  }
+
+  @Test
+  public void prefetchesQueuedBehindAFetchAreFetchedInOneRequest() throws Exception {
+    BuildRule ruleA = new FakeBuildRule("//:a", pathResolver);
+    BuildRule ruleB = new FakeBuildRule("//:b", pathResolver);
+    BuildRule ruleC = new FakeBuildRule("//:c", pathResolver);
+    BuildRule ruleD = new FakeBuildRule("//:d", pathResolver);
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(1);
+
+    prefetcher.prefetch(ruleA, RULE_KEY_A, context);
+    cache.fetchesStarted.acquire();
+    prefetcher.prefetch(ruleB, RULE_KEY_B, context);
+    prefetcher.prefetch(ruleC, RULE_KEY_C, context);
+    prefetcher.prefetch(ruleD, RULE_KEY_D, context);
+    cache.mayFinish.countDown();
+    // Wait for the queued prefetches to start, so claiming them doesn't cancel them.
+    cache.fetchesStarted.acquire(3);
+
+    ImmutableMap<BuildRule, RuleKey> ruleKeys = ImmutableMap.of(
+        ruleA, RULE_KEY_A,
+        ruleB, RULE_KEY_B,
+        ruleC, RULE_KEY_C,
+        ruleD, RULE_KEY_D);
+    for (Map.Entry<BuildRule, RuleKey> entry : ruleKeys.entrySet()) {
+      Optional<ArtifactCachePrefetcher.Fetched> fetched =
+          prefetcher.claim(entry.getKey(), entry.getValue());
+      assertTrue(fetched.isPresent());
+      assertEquals(CacheResultType.HIT, fetched.get().getCacheResult().getType());
+      Files.delete(fetched.get().getZipPath().getUnchecked());
+    }
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of(RULE_KEY_A),
+            ImmutableList.of(RULE_KEY_B, RULE_KEY_C, RULE_KEY_D)),
+        ImmutableList.copyOf(cache.multiFetched));
+  }
+
+  @Test(timeout = 10000)
+  public void claimDoesNotWaitForTheRestOfItsBatch() throws Exception {
+    BuildRule ruleA = new FakeBuildRule("//:a", pathResolver);
+    BuildRule ruleB = new FakeBuildRule("//:b", pathResolver);
+    BuildRule ruleC = new FakeBuildRule("//:c", pathResolver);
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(1);
+    CountDownLatch mayFinishC = new CountDownLatch(1);
+    cache.heldUp.put(RULE_KEY_C, mayFinishC);
+
+    prefetcher.prefetch(ruleA, RULE_KEY_A, context);
+    cache.fetchesStarted.acquire();
+    prefetcher.prefetch(ruleB, RULE_KEY_B, context);
+    prefetcher.prefetch(ruleC, RULE_KEY_C, context);
+    cache.mayFinish.countDown();
+    // Once C's fetch has started, B's has finished, but the batch is still in flight.
+    cache.fetchesStarted.acquire(2);
+
+    Optional<ArtifactCachePrefetcher.Fetched> fetchedB = prefetcher.claim(ruleB, RULE_KEY_B);
+    assertTrue(fetchedB.isPresent());
+    assertEquals(CacheResultType.HIT, fetchedB.get().getCacheResult().getType());
+    Files.delete(fetchedB.get().getZipPath().getUnchecked());
+
+    mayFinishC.countDown();
+    Optional<ArtifactCachePrefetcher.Fetched> fetchedC = prefetcher.claim(ruleC, RULE_KEY_C);
+    assertTrue(fetchedC.isPresent());
+    Files.delete(fetchedC.get().getZipPath().getUnchecked());
+    prefetcher.discardUnclaimed();
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(RULE_KEY_A), ImmutableList.of(RULE_KEY_B, RULE_KEY_C)),
+        ImmutableList.copyOf(cache.multiFetched));
+  }
+
+  /**
+   * Records the keys it is asked for, and holds up fetches until it's told they may finish.
+   */
+  private static class BlockingArtifactCache implements ArtifactCache {
+    private final Semaphore fetchesStarted = new Semaphore(0);
+    private final CountDownLatch mayFinish = new CountDownLatch(1);
+    private final Map<RuleKey, CountDownLatch> heldUp = new ConcurrentHashMap<>();
+    private final List<RuleKey> fetched = new CopyOnWriteArrayList<>();
+    private final List<ImmutableList<RuleKey>> multiFetched = new CopyOnWriteArrayList<>();
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+      fetched.add(ruleKey);
+      fetchesStarted.release();
+      try {
+        mayFinish.await();
+        CountDownLatch latch = heldUp.get(ruleKey);
+        if (latch != null) {
+          latch.await();
+        }
+        Files.write(output.get(), new byte[] {0});
+      } catch (InterruptedException | IOException e) {
+        return CacheResult.error("blocking", e.getMessage());
+      }
+      return CacheResult.hit("blocking");
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(
+        ImmutableMap<RuleKey, LazyPath> outputs,
+        MultiFetchListener listener) {
+      multiFetched.add(outputs.keySet().asList());
+      return ArtifactCaches.fetchEach(this, outputs, listener);
+    }
+
+    @Override
+    public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+      return Futures.immediateFuture(null);
+    }
+
+    @Override
+    public boolean isStoreSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
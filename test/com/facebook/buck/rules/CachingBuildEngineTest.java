@@ -25,16 +25,19 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
 import com.facebook.buck.cli.CommandEvent;
+import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
@@ -106,6 +109,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.easymock.EasyMockSupport;
 import org.hamcrest.Matchers;
@@ -130,6 +134,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
@@ -267,10 +274,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Add a build step so we can verify that the steps are executed.
       buildSteps.add(
@@ -317,6 +326,57 @@ public class CachingBuildEngineTest {
                   Optional.<Long>absent())));
     }
 
+    @Test
+    public void shallowBuildsDoNotFetchDepsOfCachedRules() throws Exception {
+      FakeBuildRule dep = new FakeBuildRule("//:dep", pathResolver);
+      BuildRule ruleToTest = createRule(
+          filesystem,
+          pathResolver,
+          ImmutableSet.<BuildRule>of(dep),
+          /* buildSteps */ ImmutableList.<Step>of(),
+          /* postBuildSteps */ ImmutableList.<Step>of(),
+          /* pathToOutputFile */ null);
+      filesystem.writeContentsToPath(
+          MAPPER.writeValueAsString(ImmutableList.of()),
+          BuildInfo.getPathToMetadataDirectory(ruleToTest.getBuildTarget(), filesystem)
+              .resolve(BuildInfo.METADATA_KEY_FOR_RECORDED_PATHS));
+
+      final List<RuleKey> fetched = new CopyOnWriteArrayList<>();
+      ArtifactCache cache =
+          new FakeArtifactCacheThatWritesAZipFile(
+              ImmutableMap.of(
+                  Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar"),
+                  "Imagine this is the contents of a valid JAR file.")) {
+            @Override
+            public CacheResult fetch(RuleKey ruleKey, LazyPath file) {
+              fetched.add(ruleKey);
+              return super.fetch(ruleKey, file);
+            }
+          };
+
+      // Even with prefetching configured, the top-level rule's cache hit means its dep is never
+      // looked at, so nothing should be downloaded for it.
+      CachingBuildEngine cachingBuildEngine =
+          new CachingBuildEngine(
+              toWeighted(MoreExecutors.newDirectExecutorService()),
+              fileHashCache,
+              CachingBuildEngine.BuildMode.SHALLOW,
+              CachingBuildEngine.DepFiles.ENABLED,
+              256L,
+              Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 10,
+              NO_INPUT_FILE_SIZE_LIMIT,
+              ObjectMappers.newDefaultInstance(),
+              resolver,
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
+
+      BuildResult result =
+          cachingBuildEngine.build(buildContext.withArtifactCache(cache), ruleToTest).get();
+      assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+      assertEquals(ImmutableList.of(ruleKeyBuilderFactory.build(ruleToTest)), fetched);
+    }
+
     @Test
     public void testAsyncJobsAreNotLeftInExecutor()
         throws IOException, ExecutionException, InterruptedException {
@@ -364,10 +424,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
       ListenableFuture<BuildResult> buildResult = cachingBuildEngine.build(buildContext, buildRule);
 
       BuildResult result = buildResult.get();
@@ -448,10 +510,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
       ListenableFuture<BuildResult> buildResult = cachingBuildEngine.build(buildContext, buildRule);
       buckEventBus.post(
           CommandEvent.finished(
@@ -533,10 +597,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
       ListenableFuture<BuildResult> buildResult = cachingBuildEngine.build(buildContext, buildRule);
       buckEventBus.post(
           CommandEvent.finished(
@@ -591,10 +657,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       replayAll();
@@ -670,10 +738,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(context, ruleToTest).get();
@@ -781,10 +851,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(context, ruleToTest).get();
@@ -879,10 +951,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(context, ruleToTest).get();
@@ -922,10 +996,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
       assertThat(result.getSuccess(), equalTo(BuildRuleSuccessType.BUILT_LOCALLY));
@@ -959,10 +1035,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
@@ -1037,10 +1115,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
@@ -1133,10 +1213,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Run the build.
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
@@ -1193,16 +1275,186 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       assertThat(
           cachingBuildEngine.getNumRulesToBuild(ImmutableList.of(rule1)),
           equalTo(3));
     }
 
+    @Test
+    public void concurrentBuildsOfSharedDepsRegisterCountersOnce() throws Exception {
+      ListeningExecutorService service = listeningDecorator(Executors.newFixedThreadPool(4));
+      BuckEventBus buckEventBus = BuckEventBusFactory.newInstance();
+      FakeBuckEventListener listener = new FakeBuckEventListener();
+      buckEventBus.register(listener);
+      BuildContext buildContext = this.buildContext.withEventBus(buckEventBus);
+
+      // Create a diamond-shaped graph, where the bottom rule is reachable via both sides.
+      BuildRule bottom =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:bottom"))
+                  .setProjectFilesystem(filesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+      BuildRule left =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:left"))
+                  .setDeclaredDeps(ImmutableSortedSet.of(bottom))
+                  .setProjectFilesystem(filesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+      BuildRule right =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:right"))
+                  .setDeclaredDeps(ImmutableSortedSet.of(bottom))
+                  .setProjectFilesystem(filesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+      BuildRule top =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:top"))
+                  .setDeclaredDeps(ImmutableSortedSet.of(left, right))
+                  .setProjectFilesystem(filesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+
+      // Create the build engine.
+      CachingBuildEngine cachingBuildEngine =
+          new CachingBuildEngine(
+              toWeighted(service),
+              fileHashCache,
+              CachingBuildEngine.BuildMode.SHALLOW,
+              CachingBuildEngine.DepFiles.ENABLED,
+              256L,
+              Optional.<Long>absent(),
+              pathResolver,
+              Functions.constant(
+                  new CachingBuildEngine.RuleKeyFactories(
+                      ruleKeyBuilderFactory,
+                      NOOP_INPUT_BASED_RULE_KEY_FACTORY,
+                      NOOP_RULE_KEY_FACTORY,
+                      NOOP_DEP_FILE_RULE_KEY_FACTORY)));
+
+      // Kick off builds of all the rules at once, so that they race to set up the rule keys.
+      List<ListenableFuture<BuildResult>> results = Lists.newArrayList();
+      for (BuildRule rule : ImmutableList.of(top, left, right, bottom)) {
+        results.add(cachingBuildEngine.build(buildContext, rule));
+      }
+      for (BuildResult result : Futures.allAsList(results).get()) {
+        assertThat(result.getStatus(), equalTo(BuildRuleStatus.SUCCESS));
+      }
+      assertTrue(service.shutdownNow().isEmpty());
+
+      // Verify that all the rules shared a single set of build engine counters.
+      assertThat(
+          FluentIterable.from(listener.getEvents())
+              .filter(CounterRegistry.AsyncCounterRegistrationEvent.class)
+              .size(),
+          equalTo(1));
+    }
+
+    @Test
+    public void sharedRuleKeysAreHandedOutWhileStillBeingSetUp() throws Exception {
+      ListeningExecutorService service = listeningDecorator(Executors.newFixedThreadPool(2));
+      ListeningExecutorService otherBuilder =
+          listeningDecorator(Executors.newSingleThreadExecutor());
+      final BuildContext buildContext = this.buildContext;
+
+      // Give the dep its own filesystem, so that setting up its rule key can be held up without
+      // holding up any other rule.
+      final FakeProjectFilesystem depFilesystem = new FakeProjectFilesystem(tmp.newFolder("dep"));
+      final BuildRule dep =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:dep"))
+                  .setProjectFilesystem(depFilesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+      BuildRule top =
+          new RuleWithSteps(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//:top"))
+                  .setDeclaredDeps(ImmutableSortedSet.of(dep))
+                  .setProjectFilesystem(filesystem)
+                  .build(),
+              pathResolver,
+              ImmutableList.<Step>of(),
+              /* output */ null);
+
+      // Create the build engine, which will stall setting up the dep's rule key until released.
+      final CachingBuildEngine.RuleKeyFactories ruleKeyFactories =
+          new CachingBuildEngine.RuleKeyFactories(
+              ruleKeyBuilderFactory,
+              NOOP_INPUT_BASED_RULE_KEY_FACTORY,
+              NOOP_RULE_KEY_FACTORY,
+              NOOP_DEP_FILE_RULE_KEY_FACTORY);
+      final CountDownLatch settingUpDepRuleKey = new CountDownLatch(1);
+      final CountDownLatch releaseDepRuleKey = new CountDownLatch(1);
+      final CachingBuildEngine cachingBuildEngine =
+          new CachingBuildEngine(
+              toWeighted(service),
+              fileHashCache,
+              CachingBuildEngine.BuildMode.SHALLOW,
+              CachingBuildEngine.DepFiles.ENABLED,
+              256L,
+              Optional.<Long>absent(),
+              pathResolver,
+              new Function<ProjectFilesystem, CachingBuildEngine.RuleKeyFactories>() {
+                @Override
+                public CachingBuildEngine.RuleKeyFactories apply(ProjectFilesystem input) {
+                  if (input == depFilesystem) {
+                    settingUpDepRuleKey.countDown();
+                    Uninterruptibles.awaitUninterruptibly(releaseDepRuleKey);
+                  }
+                  return ruleKeyFactories;
+                }
+              });
+
+      try {
+        // Building the top rule sets up the dep's rule key on one of the service's threads.
+        ListenableFuture<BuildResult> topResult = cachingBuildEngine.build(buildContext, top);
+        assertTrue(settingUpDepRuleKey.await(5, TimeUnit.SECONDS));
+
+        // While that's stuck, building the dep from another thread needs the same rule key, and
+        // should be handed the pending future rather than waiting for the first thread.
+        ListenableFuture<ListenableFuture<BuildResult>> depBuildStarted =
+            otherBuilder.submit(
+                new Callable<ListenableFuture<BuildResult>>() {
+                  @Override
+                  public ListenableFuture<BuildResult> call() {
+                    return cachingBuildEngine.build(buildContext, dep);
+                  }
+                });
+        ListenableFuture<BuildResult> depResult = depBuildStarted.get(5, TimeUnit.SECONDS);
+        assertFalse(depResult.isDone());
+
+        releaseDepRuleKey.countDown();
+        assertThat(topResult.get().getStatus(), equalTo(BuildRuleStatus.SUCCESS));
+        assertThat(depResult.get().getStatus(), equalTo(BuildRuleStatus.SUCCESS));
+        assertThat(
+            cachingBuildEngine.getRuleKey(dep.getBuildTarget()),
+            equalTo(ruleKeyBuilderFactory.build(dep)));
+      } finally {
+        releaseDepRuleKey.countDown();
+        otherBuilder.shutdownNow();
+        service.shutdownNow();
+      }
+    }
+
     @Test
     public void artifactCacheSizeLimit() throws Exception {
       // Create a simple rule which just writes something new to the output file.
@@ -1226,10 +1478,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.of(2L),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
 
       // Verify that after building successfully, nothing is cached.
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
@@ -1261,10 +1515,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
       BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
       assertEquals(
           BuildRuleSuccessType.BUILT_LOCALLY,
@@ -1285,10 +1541,12 @@ public class CachingBuildEngineTest {
               CachingBuildEngine.DepFiles.ENABLED,
               256L,
               Optional.<Long>absent(),
+              /* artifactCachePrefetchLimit */ 0,
               NO_INPUT_FILE_SIZE_LIMIT,
               ObjectMappers.newDefaultInstance(),
               resolver,
-              0);
+              0,
+              Optional.<DependencyFileRuleKeyIndex>absent());
       result = cachingBuildEngine.build(buildContext, rule).get();
       assertEquals(
           BuildRuleSuccessType.FETCHED_FROM_CACHE,
@@ -3356,6 +3614,13 @@ public class CachingBuildEngineTest {
       return CacheResult.hit("dir");
     }
 
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(
+        ImmutableMap<RuleKey, LazyPath> outputs,
+        MultiFetchListener listener) {
+      return ArtifactCaches.fetchEach(this, outputs, listener);
+    }
+
     @Override
     public ListenableFuture<Void> store(
         ArtifactInfo info,
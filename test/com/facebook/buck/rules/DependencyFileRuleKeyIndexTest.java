@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.rules.keys.DependencyFileEntry;
+import com.facebook.buck.testutil.WatchEventsForTests;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+
+public class DependencyFileRuleKeyIndexTest {
+
+  private static final RuleKey MANIFEST_KEY = new RuleKey("aaaa");
+  private static final ImmutableList<String> DEP_FILE = ImmutableList.of("{\"a\":1}");
+  private static final Path HEADER = Paths.get("foo/bar.h");
+  private static final ImmutableSet<SourcePath> POSSIBLE_INPUTS =
+      ImmutableSet.<SourcePath>of(new FakeSourcePath("foo/bar.h"), new FakeSourcePath("foo/baz.h"));
+  private static final Pair<RuleKey, ImmutableSet<SourcePath>> RESULT =
+      new Pair<RuleKey, ImmutableSet<SourcePath>>(
+          new RuleKey("bbbb"),
+          ImmutableSet.<SourcePath>of());
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private SourcePathResolver pathResolver;
+  private BuildRule rule;
+  private DependencyFileRuleKeyIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    rule = new FakeBuildRule(BuildTargetFactory.newInstance("//:rule"), filesystem, pathResolver);
+    index = new DependencyFileRuleKeyIndex(filesystem);
+  }
+
+  @Test
+  public void remembersKeyForSameManifestKeyAndDepFile() {
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+
+    assertEquals(Optional.of(RESULT), index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE));
+    assertFalse(index.get(rule, new RuleKey("cccc"), POSSIBLE_INPUTS, DEP_FILE).isPresent());
+    assertFalse(
+        index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, ImmutableList.of("{\"b\":1}")).isPresent());
+  }
+
+  @Test
+  public void forgetsKeyWhenPossibleInputsChange() {
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+
+    // The header is unchanged on disk, but the rule can no longer use it.
+    assertFalse(
+        index.get(
+            rule,
+            MANIFEST_KEY,
+            ImmutableSet.<SourcePath>of(new FakeSourcePath("foo/baz.h")),
+            DEP_FILE)
+            .isPresent());
+  }
+
+  @Test
+  public void forgetsRulesListingChangedFile() {
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+
+    index.onFileSystemChange(
+        WatchEventsForTests.createPathEvent(
+            Paths.get("foo/other.h"),
+            StandardWatchEventKinds.ENTRY_MODIFY));
+    assertTrue(index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+
+    index.onFileSystemChange(
+        WatchEventsForTests.createPathEvent(HEADER, StandardWatchEventKinds.ENTRY_MODIFY));
+    assertFalse(index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void forgetsEverythingOnOverflow() {
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+
+    index.onFileSystemChange(WatchEventsForTests.createOverflowEvent());
+
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void doesNotRememberRulesWithUnwatchedInputs() {
+    index.put(
+        rule,
+        MANIFEST_KEY,
+        POSSIBLE_INPUTS,
+        DEP_FILE,
+        entries(HEADER, filesystem.getBuckPaths().getGenDir().resolve("gen.h")),
+        RESULT);
+    assertEquals(0, index.size());
+
+    index.put(
+        rule,
+        MANIFEST_KEY,
+        POSSIBLE_INPUTS,
+        DEP_FILE,
+        entries(Paths.get("../outside.h")),
+        RESULT);
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void doesNotRememberRulesFromOtherFilesystems() throws Exception {
+    BuildRule otherRule = new FakeBuildRule(
+        BuildTargetFactory.newInstance("//:other"),
+        new ProjectFilesystem(tmp.newFolder("other")),
+        pathResolver);
+
+    assertFalse(index.canIndex(otherRule));
+    index.put(otherRule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void replacesPreviousEntryForRule() {
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+    index.put(
+        rule,
+        MANIFEST_KEY,
+        POSSIBLE_INPUTS,
+        DEP_FILE,
+        entries(Paths.get("foo/baz.h")),
+        RESULT);
+
+    index.onFileSystemChange(
+        WatchEventsForTests.createPathEvent(HEADER, StandardWatchEventKinds.ENTRY_MODIFY));
+
+    assertTrue(index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+  }
+
+  @Test
+  public void forgetsLeastRecentlyUsedRulesOnceFull() {
+    index = new DependencyFileRuleKeyIndex(filesystem, /* maxEntries */ 2);
+    BuildRule secondRule =
+        new FakeBuildRule(BuildTargetFactory.newInstance("//:second"), filesystem, pathResolver);
+    BuildRule thirdRule =
+        new FakeBuildRule(BuildTargetFactory.newInstance("//:third"), filesystem, pathResolver);
+    index.put(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+    index.put(secondRule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+    assertTrue(index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+
+    index.put(thirdRule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE, entries(HEADER), RESULT);
+
+    assertEquals(2, index.size());
+    assertTrue(index.get(rule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+    assertFalse(index.get(secondRule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+    assertTrue(index.get(thirdRule, MANIFEST_KEY, POSSIBLE_INPUTS, DEP_FILE).isPresent());
+  }
+
+  private static ImmutableList<DependencyFileEntry> entries(Path... paths) {
+    ImmutableList.Builder<DependencyFileEntry> entries = ImmutableList.builder();
+    for (Path path : paths) {
+      entries.add(DependencyFileEntry.of(path, Optional.<Path>absent()));
+    }
+    return entries.build();
+  }
+}
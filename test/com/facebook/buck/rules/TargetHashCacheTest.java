@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.facebook.buck.testutil.WatchEventsForTests;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+
+public class TargetHashCacheTest {
+
+  private static final BuildTarget LIB = BuildTargetFactory.newInstance("//foo:lib");
+  private static final BuildTarget DEP = BuildTargetFactory.newInstance("//dep:dep");
+  private static final Path LIB_SRC = Paths.get("foo/FooLib.java");
+  private static final Path DEP_SRC = Paths.get("dep/DepLib.java");
+
+  private FakeProjectFilesystem filesystem;
+  private BuckEventBus eventBus;
+  private Cell cell;
+  private TargetHashCache targetHashCache;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = new FakeProjectFilesystem();
+    eventBus = BuckEventBusFactory.newInstance();
+    cell = new TestCellBuilder().setFilesystem(filesystem).build();
+    targetHashCache = new TargetHashCache(filesystem);
+  }
+
+  @Test
+  public void hashesAreReusedUntilAnInputChanges() throws Exception {
+    TargetGraph graph = createGraph(HashCode.fromLong(1));
+    FileHashCache before = fileHashes("abcdef");
+    FileHashCache after = fileHashes("abc1ef");
+
+    ImmutableMap<BuildTarget, HashCode> first = hash(graph, before, true);
+    assertEquals(2, targetHashCache.size());
+    // Without a file change event, nothing is hashed again, even though the file hashes differ.
+    assertEquals(first, hash(graph, after, true));
+
+    targetHashCache.onFileSystemChange(
+        WatchEventsForTests.createPathEvent(DEP_SRC, StandardWatchEventKinds.ENTRY_MODIFY));
+    ImmutableMap<BuildTarget, HashCode> second = hash(graph, after, true);
+
+    assertEquals(hash(graph, after, false), second);
+    assertNotEquals(first.get(DEP), second.get(DEP));
+    assertNotEquals(first.get(LIB), second.get(LIB));
+  }
+
+  @Test
+  public void nodesDependingOnAChangedNodeAreHashedAgain() throws Exception {
+    FileHashCache fileHashes = fileHashes("abcdef");
+    ImmutableMap<BuildTarget, HashCode> first =
+        hash(createGraph(HashCode.fromLong(1)), fileHashes, true);
+
+    TargetGraph changedGraph = createGraph(HashCode.fromLong(2));
+    ImmutableMap<BuildTarget, HashCode> second = hash(changedGraph, fileHashes, true);
+
+    assertEquals(hash(changedGraph, fileHashes, false), second);
+    assertNotEquals(first.get(LIB), second.get(LIB));
+  }
+
+  @Test
+  public void overflowForgetsEverything() throws Exception {
+    hash(createGraph(HashCode.fromLong(1)), fileHashes("abcdef"), true);
+    assertEquals(2, targetHashCache.size());
+
+    targetHashCache.onFileSystemChange(WatchEventsForTests.createOverflowEvent());
+
+    assertEquals(0, targetHashCache.size());
+  }
+
+  private ImmutableMap<BuildTarget, HashCode> hash(
+      TargetGraph graph,
+      FileHashCache fileHashCache,
+      boolean useCache) throws Exception {
+    TargetGraphHashing hashing = new TargetGraphHashing(
+        eventBus,
+        cell,
+        graph,
+        fileHashCache,
+        ImmutableList.<TargetNode<?>>of(graph.get(LIB)));
+    if (useCache) {
+      hashing.setTargetHashCache(targetHashCache);
+    }
+    return hashing.hashTargetGraph();
+  }
+
+  private FileHashCache fileHashes(String depSrcHash) {
+    return new FakeFileHashCache(
+        ImmutableMap.of(
+            filesystem.resolve(LIB_SRC), HashCode.fromString("123456"),
+            filesystem.resolve(DEP_SRC), HashCode.fromString(depSrcHash)));
+  }
+
+  private static TargetGraph createGraph(HashCode depRawInputsHashCode) {
+    TargetNode<?> dep = JavaLibraryBuilder.createBuilder(DEP, depRawInputsHashCode)
+        .addSrc(DEP_SRC)
+        .build();
+    TargetNode<?> lib = JavaLibraryBuilder.createBuilder(LIB, HashCode.fromLong(3))
+        .addSrc(LIB_SRC)
+        .addDep(DEP)
+        .build();
+    return TargetGraphFactory.newInstance(lib, dep);
+  }
+}
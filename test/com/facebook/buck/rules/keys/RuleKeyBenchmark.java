@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleParams;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRuleParamsBuilder;
+import com.facebook.buck.rules.NoopBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.RuleKeyBuilder;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures rule key computation over synthetic action graphs of different shapes.
+ * <p>
+ * Run with {@code ant benchmark -Dbenchmark=com.facebook.buck.rules.keys.RuleKeyBenchmark}.
+ */
+public class RuleKeyBenchmark {
+
+  public enum Shape {
+    /** One rule depending on many small rules. */
+    WIDE,
+    /** A long chain of small rules. */
+    DEEP,
+    /** A few rules with many source files each, like a large java_library. */
+    JAVA_LIBRARY,
+    /** Rules with a few sources and many headers each, like a cxx_library. */
+    CXX_HEADERS,
+  }
+
+  private static final int SMALL_RULE_SOURCES = 10;
+  private static final int LARGE_RULE_COUNT = 10;
+  private static final ImmutableList<BuildRule> NO_DEPS = ImmutableList.of();
+
+  @Param({"WIDE", "DEEP", "JAVA_LIBRARY", "CXX_HEADERS"})
+  private Shape shape = Shape.WIDE;
+
+  @Param({"100", "1000"})
+  private int size = 100;
+
+  private SourcePathResolver pathResolver;
+  private FileHashLoader hashLoader;
+  private ImmutableList<BuildRule> rules;
+  private BenchmarkRule largestRule;
+  private ToolchainRule toolchainRule;
+  private DefaultRuleKeyBuilderFactory warmFactory;
+
+  @Test
+  public void ruleKeysAreComputedForEveryShape() {
+    size = 20;
+    for (Shape value : Shape.values()) {
+      shape = value;
+      setUpBenchmark();
+      assertEquals(
+          new DefaultRuleKeyBuilderFactory(0, hashLoader, pathResolver).build(largestRule),
+          new DefaultRuleKeyBuilderFactory(0, hashLoader, pathResolver).build(largestRule));
+      defaultRuleKeys();
+      inputBasedRuleKeys();
+      assertTrue(hashSources(1).toString().length() > 0);
+      reflectiveFieldDiscovery(1);
+      appendableSubKeys(1);
+    }
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    hashLoader = new PathNameHashLoader();
+    Toolchain toolchain = new Toolchain(size);
+
+    List<BuildRule> graph = new ArrayList<>();
+    switch (shape) {
+      case WIDE:
+        for (int i = 0; i < size; i++) {
+          graph.add(createRule(filesystem, toolchain, i, SMALL_RULE_SOURCES, 0, NO_DEPS));
+        }
+        graph.add(createRule(filesystem, toolchain, size, SMALL_RULE_SOURCES, 0, graph));
+        break;
+      case DEEP:
+        for (int i = 0; i < size; i++) {
+          graph.add(
+              createRule(
+                  filesystem,
+                  toolchain,
+                  i,
+                  SMALL_RULE_SOURCES,
+                  0,
+                  graph.subList(Math.max(0, i - 1), i)));
+        }
+        break;
+      case JAVA_LIBRARY:
+        for (int i = 0; i < LARGE_RULE_COUNT; i++) {
+          graph.add(createRule(filesystem, toolchain, i, size, 0, NO_DEPS));
+        }
+        break;
+      case CXX_HEADERS:
+        for (int i = 0; i < LARGE_RULE_COUNT; i++) {
+          graph.add(
+              createRule(filesystem, toolchain, i, SMALL_RULE_SOURCES, size, NO_DEPS));
+        }
+        break;
+    }
+    rules = ImmutableList.copyOf(graph);
+
+    largestRule = (BenchmarkRule) rules.get(0);
+    for (BuildRule rule : rules) {
+      if (((BenchmarkRule) rule).getInputCount() > largestRule.getInputCount()) {
+        largestRule = (BenchmarkRule) rule;
+      }
+    }
+    toolchainRule = new ToolchainRule(
+        new FakeBuildRuleParamsBuilder("//:toolchain").setProjectFilesystem(filesystem).build(),
+        pathResolver,
+        toolchain);
+    warmFactory = new DefaultRuleKeyBuilderFactory(0, hashLoader, pathResolver);
+    warmFactory.build(toolchainRule);
+  }
+
+  private BuildRule createRule(
+      ProjectFilesystem filesystem,
+      Toolchain toolchain,
+      int index,
+      int sourceCount,
+      int headerCount,
+      List<BuildRule> deps) {
+    String baseName = String.format("//rule_%d", index);
+    ImmutableSortedSet.Builder<SourcePath> srcs = ImmutableSortedSet.naturalOrder();
+    for (int i = 0; i < sourceCount; i++) {
+      srcs.add(new PathSourcePath(filesystem, Paths.get(baseName.substring(2), "Src" + i)));
+    }
+    ImmutableSortedMap.Builder<String, SourcePath> headers = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < headerCount; i++) {
+      String header = String.format("rule_%d/header_%d.h", index, i);
+      headers.put(header, new PathSourcePath(filesystem, Paths.get(header)));
+    }
+    BuildRuleParams params =
+        new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance(baseName + ":rule"))
+            .setDeclaredDeps(ImmutableSortedSet.copyOf(deps))
+            .setProjectFilesystem(filesystem)
+            .build();
+    return new BenchmarkRule(params, pathResolver, srcs.build(), headers.build(), toolchain);
+  }
+
+  /**
+   * Computes default rule keys for the whole graph with cold caches, as a build does.
+   */
+  @Macrobenchmark
+  public void defaultRuleKeys() {
+    DefaultRuleKeyBuilderFactory factory =
+        new DefaultRuleKeyBuilderFactory(0, hashLoader, pathResolver);
+    for (BuildRule rule : rules) {
+      factory.build(rule);
+    }
+  }
+
+  /**
+   * Computes input-based rule keys for the whole graph with cold caches.
+   */
+  @Macrobenchmark
+  public void inputBasedRuleKeys() {
+    InputBasedRuleKeyBuilderFactory factory =
+        new InputBasedRuleKeyBuilderFactory(0, hashLoader, pathResolver);
+    for (BuildRule rule : rules) {
+      factory.build(rule);
+    }
+  }
+
+  /**
+   * Finds the {@link AddToRuleKey} fields of a rule class, which is done once per class.
+   */
+  @Benchmark
+  public int reflectiveFieldDiscovery(int reps) {
+    int fields = 0;
+    for (int i = 0; i < reps; i++) {
+      try {
+        fields += new ReflectiveAlterKeyLoader().load(BenchmarkRule.class).size();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Hashes the sources of the rule with the most inputs into a key.
+   */
+  @Benchmark
+  public RuleKey hashSources(int reps) {
+    RuleKey ruleKey = null;
+    for (int i = 0; i < reps; i++) {
+      RuleKeyBuilder<RuleKey> builder = new RuleKeyBuilder<RuleKey>(pathResolver, hashLoader) {
+        @Override
+        protected RuleKeyBuilder<RuleKey> setBuildRule(BuildRule rule) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RuleKeyBuilder<RuleKey> setAppendableRuleKey(
+            String key,
+            RuleKeyAppendable appendable) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RuleKey build() {
+          return buildRuleKey();
+        }
+      };
+      builder.setReflectively("srcs", largestRule.srcs);
+      builder.setReflectively("headers", largestRule.headers);
+      ruleKey = builder.build();
+    }
+    return ruleKey;
+  }
+
+  /**
+   * Computes the key of a rule whose only input is a {@link RuleKeyAppendable} which every rule
+   * shares, so that its sub-key comes from the factory's cache.
+   */
+  @Benchmark
+  public RuleKey appendableSubKeys(int reps) {
+    RuleKey ruleKey = null;
+    for (int i = 0; i < reps; i++) {
+      ruleKey = warmFactory.newInstance(toolchainRule).build();
+    }
+    return ruleKey;
+  }
+
+  private static class BenchmarkRule extends NoopBuildRule {
+    @AddToRuleKey
+    private final ImmutableSortedSet<SourcePath> srcs;
+    @AddToRuleKey
+    private final ImmutableSortedMap<String, SourcePath> headers;
+    @AddToRuleKey
+    private final Toolchain toolchain;
+    @AddToRuleKey
+    private final ImmutableList<String> flags = ImmutableList.of("-g", "-O2", "-Wall");
+
+    BenchmarkRule(
+        BuildRuleParams params,
+        SourcePathResolver resolver,
+        ImmutableSortedSet<SourcePath> srcs,
+        ImmutableSortedMap<String, SourcePath> headers,
+        Toolchain toolchain) {
+      super(params, resolver);
+      this.srcs = srcs;
+      this.headers = headers;
+      this.toolchain = toolchain;
+    }
+
+    int getInputCount() {
+      return srcs.size() + headers.size();
+    }
+  }
+
+  private static class ToolchainRule extends NoopBuildRule {
+    @AddToRuleKey
+    private final Toolchain toolchain;
+
+    ToolchainRule(BuildRuleParams params, SourcePathResolver resolver, Toolchain toolchain) {
+      super(params, resolver);
+      this.toolchain = toolchain;
+    }
+  }
+
+  /**
+   * Stands in for the compilers and platforms which many rules share.
+   */
+  private static class Toolchain implements RuleKeyAppendable {
+    private final ImmutableList<String> flags;
+
+    Toolchain(int flagCount) {
+      ImmutableList.Builder<String> flags = ImmutableList.builder();
+      for (int i = 0; i < flagCount; i++) {
+        flags.add("-DFLAG_" + i);
+      }
+      this.flags = flags.build();
+    }
+
+    @Override
+    public void appendToRuleKey(RuleKeyObjectSink sink) {
+      sink.setReflectively("compiler", "clang");
+      sink.setReflectively("flags", flags);
+    }
+  }
+
+  /**
+   * Hashes the names of files rather than their contents, so that no files need to exist.
+   */
+  private static class PathNameHashLoader implements FileHashLoader {
+    @Override
+    public HashCode get(Path path) {
+      return Hashing.sha1().hashString(path.toString(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getSize(Path path) {
+      return path.toString().length();
+    }
+
+    @Override
+    public HashCode get(ArchiveMemberPath archiveMemberPath) {
+      return Hashing.sha1().hashString(archiveMemberPath.toString(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -15,28 +15,40 @@
  */
 package com.facebook.buck.shell;
 
+import com.google.common.collect.ImmutableSet;
+
 import java.io.IOException;
 import java.nio.file.Path;
 
 public class FakeWorkerProcessProtocol implements WorkerProcessProtocol {
 
   private boolean isClosed = false;
+  private int lastMessageID = -1;
 
   @Override
   public void sendHandshake(int handshakeID) throws IOException {}
 
   @Override
-  public void receiveHandshake(int handshakeID) throws IOException {}
+  public ImmutableSet<String> receiveHandshake(int handshakeID) throws IOException {
+    return ImmutableSet.of();
+  }
 
   @Override
   public void sendCommand(int messageID, Path argsPath, Path stdoutPath, Path stderrPath)
-      throws IOException {}
+      throws IOException {
+    lastMessageID = messageID;
+  }
 
   @Override
   public int receiveCommandResponse(int messageID) throws IOException {
     return 0;
   }
 
+  @Override
+  public WorkerProcessCommandResponse receiveNextCommandResponse() throws IOException {
+    return WorkerProcessCommandResponse.of(lastMessageID, 0);
+  }
+
   @Override
   public void close() throws IOException {
     isClosed = true;
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.shell;
+
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterSnapshot;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+public class WorkerProcessPoolTest {
+
+  private static final WorkerJobResult RESULT =
+      WorkerJobResult.of(0, Optional.<String>absent(), Optional.<String>absent());
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentJobsAreSpreadOverUpToMaxWorkers() throws Exception {
+    CyclicBarrier allJobsRunning = new CyclicBarrier(3);
+    WorkerProcessPool pool = createPool(3, allJobsRunning, ImmutableSet.<String>of());
+
+    submitConcurrently(pool, 3);
+
+    assertThat(pool.getWorkerCount(), Matchers.equalTo(3));
+  }
+
+  @Test
+  public void testSequentialJobsReuseOneWorker() throws Exception {
+    WorkerProcessPool pool = createPool(3, null, ImmutableSet.<String>of());
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(pool.submitJob("job"), Matchers.equalTo(RESULT));
+    }
+
+    assertThat(pool.getWorkerCount(), Matchers.equalTo(1));
+  }
+
+  @Test
+  public void testPipeliningWorkerRunsJobsConcurrently() throws Exception {
+    CyclicBarrier allJobsRunning = new CyclicBarrier(2);
+    WorkerProcessPool pool = createPool(
+        1,
+        allJobsRunning,
+        ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_PIPELINING));
+
+    submitConcurrently(pool, 2);
+
+    assertThat(pool.getWorkerCount(), Matchers.equalTo(1));
+  }
+
+  @Test
+  public void testCountersReportHowBusyTheWorkersWere() throws Exception {
+    CyclicBarrier allJobsRunning = new CyclicBarrier(2);
+    WorkerProcessPool pool = createPool(
+        1,
+        allJobsRunning,
+        ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_PIPELINING));
+
+    submitConcurrently(pool, 2);
+
+    Map<String, Long> values = new HashMap<>();
+    for (Counter counter : pool.getCounters()) {
+      Optional<CounterSnapshot> snapshot = counter.flush();
+      if (snapshot.isPresent()) {
+        values.putAll(snapshot.get().getValues());
+      }
+    }
+    assertThat(values.get("workers_started"), Matchers.equalTo(1L));
+    assertThat(values.get("jobs_completed"), Matchers.equalTo(2L));
+    assertThat(values.get("jobs_in_flight_max"), Matchers.equalTo(2L));
+    assertThat(values.get("busy_micros"), Matchers.greaterThan(0L));
+    assertThat(values, Matchers.not(Matchers.hasKey("jobs_waited")));
+  }
+
+  private void submitConcurrently(final WorkerProcessPool pool, int jobs) throws Exception {
+    List<Future<WorkerJobResult>> results = new ArrayList<>();
+    for (int i = 0; i < jobs; i++) {
+      results.add(executor.submit(
+          new Callable<WorkerJobResult>() {
+            @Override
+            public WorkerJobResult call() throws Exception {
+              return pool.submitJob("job");
+            }
+          }));
+    }
+    for (Future<WorkerJobResult> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS), Matchers.equalTo(RESULT));
+    }
+  }
+
+  /**
+   * Creates a pool whose workers, if given a barrier, only finish a job once the expected number
+   * of jobs are all running at the same time.
+   */
+  private static WorkerProcessPool createPool(
+      int maxWorkers,
+      @Nullable final CyclicBarrier allJobsRunning,
+      final ImmutableSet<String> capabilities) {
+    return new WorkerProcessPool(maxWorkers) {
+      @Override
+      protected WorkerProcess startWorkerProcess() throws IOException {
+        FakeWorkerProcess process = new FakeWorkerProcess(ImmutableMap.of("job", RESULT)) {
+          @Override
+          public WorkerJobResult submitAndWaitForJob(String jobArgs) throws IOException {
+            if (allJobsRunning != null) {
+              try {
+                allJobsRunning.await(10, TimeUnit.SECONDS);
+              } catch (Exception e) {
+                throw new IOException(e);
+              }
+            }
+            return super.submitAndWaitForJob(jobArgs);
+          }
+        };
+        process.setCapabilities(capabilities);
+        return process;
+      }
+    };
+  }
+}
@@ -123,6 +123,25 @@ public class WorkerProcessProtocolZeroTest {
     protocol.receiveHandshake(handshakeID);
   }
 
+  @Test
+  public void testReceiveHandshakeReturnsCapabilities() throws IOException {
+    int handshakeID = 123;
+    JsonReader jsonReader = new JsonReader(new StringReader(String.format(
+        "[{\"id\":%d,\"type\":\"handshake\",\"protocol_version\":\"0\"," +
+            "\"capabilities\":[\"pipelining\"]}",
+        handshakeID)));
+
+    WorkerProcessProtocol protocol = new WorkerProcessProtocolZero(
+        fakeProcessExecutor,
+        fakeLaunchedProcess,
+        dummyJsonWriter,
+        jsonReader);
+
+    assertThat(
+        protocol.receiveHandshake(handshakeID),
+        Matchers.contains(WorkerProcessProtocolZero.CAPABILITY_PIPELINING));
+  }
+
   @Test
   public void testReceiveHandshakeWithMalformedJSON() throws IOException {
     String malformedJson = "=^..^= meow";
@@ -241,6 +260,21 @@ public class WorkerProcessProtocolZeroTest {
     protocol.receiveCommandResponse(messageID);
   }
 
+  @Test
+  public void testReceiveNextCommandResponseAcceptsAnyID() throws IOException {
+    JsonReader jsonReader = createMockJsonReaderForReceiveCommandResponse(456, "error", 3);
+
+    WorkerProcessProtocol protocol = new WorkerProcessProtocolZero(
+        fakeProcessExecutor,
+        fakeLaunchedProcess,
+        dummyJsonWriter,
+        jsonReader);
+
+    assertThat(
+        protocol.receiveNextCommandResponse(),
+        Matchers.equalTo(WorkerProcessCommandResponse.of(456, 3)));
+  }
+
   @Test
   public void testReceiveCommandResponseWithMalformedJSON() throws IOException {
     String malformedJson = "><(((('> blub";
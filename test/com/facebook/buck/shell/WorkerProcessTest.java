@@ -26,6 +26,7 @@ import com.facebook.buck.util.FakeProcessExecutor;
 import com.facebook.buck.util.ProcessExecutorParams;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 import org.hamcrest.Matchers;
 import org.junit.Test;
@@ -34,6 +35,17 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class WorkerProcessTest {
 
@@ -71,6 +83,141 @@ public class WorkerProcessTest {
     assertThat(filesystem.readFileIfItExists(argsPath).get(), Matchers.equalTo(jobArgs));
   }
 
+  @Test
+  public void testPipelinedJobsGetTheirOwnResponsesInWhicheverOrderTheyArrive()
+      throws Exception {
+    final ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path tmpPath = Files.createTempDirectory("tmp").toAbsolutePath().normalize();
+    final CountDownLatch bothJobsSent = new CountDownLatch(2);
+    final ConcurrentLinkedDeque<Integer> sentMessageIDs = new ConcurrentLinkedDeque<>();
+
+    final WorkerProcess process = new WorkerProcess(
+        new FakeProcessExecutor(),
+        createDummyParams(),
+        filesystem,
+        tmpPath);
+    process.setProtocol(new FakeWorkerProcessProtocol() {
+      @Override
+      public void sendCommand(int messageID, Path argsPath, Path stdoutPath, Path stderrPath)
+          throws IOException {
+        // Echo each job's arguments back as its output.
+        filesystem.writeContentsToPath(filesystem.readFileIfItExists(argsPath).get(), stdoutPath);
+        sentMessageIDs.add(messageID);
+        bothJobsSent.countDown();
+      }
+
+      @Override
+      public WorkerProcessCommandResponse receiveNextCommandResponse() throws IOException {
+        try {
+          bothJobsSent.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        // Answer the most recently sent job first.
+        int messageID = sentMessageIDs.removeLast();
+        return WorkerProcessCommandResponse.of(messageID, messageID + 10);
+      }
+    });
+    process.setCapabilities(ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_PIPELINING));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<WorkerJobResult>> results = new ArrayList<>();
+      for (final String jobArgs : ImmutableList.of("first", "second")) {
+        results.add(executor.submit(
+            new Callable<WorkerJobResult>() {
+              @Override
+              public WorkerJobResult call() throws IOException {
+                return process.submitAndWaitForJob(jobArgs);
+              }
+            }));
+      }
+      WorkerJobResult first = results.get(0).get(10, TimeUnit.SECONDS);
+      WorkerJobResult second = results.get(1).get(10, TimeUnit.SECONDS);
+
+      assertThat(first.getStdout(), Matchers.equalTo(Optional.of("first")));
+      assertThat(second.getStdout(), Matchers.equalTo(Optional.of("second")));
+      assertThat(
+          ImmutableSet.of(first.getExitCode(), second.getExitCode()),
+          Matchers.equalTo(ImmutableSet.of(10, 11)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testResponsesToAbandonedPipelinedJobsAreDropped() throws Exception {
+    final ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path tmpPath = Files.createTempDirectory("tmp").toAbsolutePath().normalize();
+    final BlockingQueue<Integer> sentMessageIDs = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> responsesToSend = new LinkedBlockingQueue<>();
+    final CountDownLatch receiving = new CountDownLatch(1);
+
+    final WorkerProcess process = new WorkerProcess(
+        new FakeProcessExecutor(),
+        createDummyParams(),
+        filesystem,
+        tmpPath);
+    process.setProtocol(new FakeWorkerProcessProtocol() {
+      @Override
+      public void sendCommand(int messageID, Path argsPath, Path stdoutPath, Path stderrPath) {
+        sentMessageIDs.add(messageID);
+      }
+
+      @Override
+      public WorkerProcessCommandResponse receiveNextCommandResponse() throws IOException {
+        receiving.countDown();
+        try {
+          int messageID = responsesToSend.take();
+          return WorkerProcessCommandResponse.of(messageID, messageID + 10);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    });
+    process.setCapabilities(ImmutableSet.of(WorkerProcessProtocolZero.CAPABILITY_PIPELINING));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      // The first job's thread reads the responses off the process.
+      Future<WorkerJobResult> first = executor.submit(
+          new Callable<WorkerJobResult>() {
+            @Override
+            public WorkerJobResult call() throws IOException {
+              return process.submitAndWaitForJob("first");
+            }
+          });
+      int firstMessageID = sentMessageIDs.take();
+      assertTrue(receiving.await(10, TimeUnit.SECONDS));
+
+      // The second job's thread waits for the first one to hand it its response, but gives up.
+      final CountDownLatch secondGaveUp = new CountDownLatch(1);
+      Future<WorkerJobResult> second = executor.submit(
+          new Callable<WorkerJobResult>() {
+            @Override
+            public WorkerJobResult call() throws IOException {
+              try {
+                return process.submitAndWaitForJob("second");
+              } finally {
+                secondGaveUp.countDown();
+              }
+            }
+          });
+      int secondMessageID = sentMessageIDs.take();
+      second.cancel(true);
+      assertTrue(secondGaveUp.await(10, TimeUnit.SECONDS));
+
+      // The process still answers the abandoned job, which mustn't upset the first one.
+      responsesToSend.add(secondMessageID);
+      responsesToSend.add(firstMessageID);
+      assertThat(
+          first.get(10, TimeUnit.SECONDS).getExitCode(),
+          Matchers.equalTo(firstMessageID + 10));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testClose() throws IOException {
     FakeWorkerProcessProtocol protocol = new FakeWorkerProcessProtocol();
@@ -79,7 +79,8 @@ public class WorkerShellStepTest {
         startupCommand,
         startupArgs,
         startupEnv,
-        jobArgs);
+        jobArgs,
+        /* maxWorkers */ 1);
   }
 
   @Test
@@ -205,10 +206,17 @@ public class WorkerShellStepTest {
         0,
         Optional.of("my stdout"),
         Optional.of("my stderr"));
-    WorkerProcess workerProcess = new FakeWorkerProcess(ImmutableMap.of("myJobArgs", jobResult));
+    final WorkerProcess workerProcess =
+        new FakeWorkerProcess(ImmutableMap.of("myJobArgs", jobResult));
+    WorkerProcessPool workerProcessPool = new WorkerProcessPool(/* maxWorkers */ 1) {
+      @Override
+      protected WorkerProcess startWorkerProcess() {
+        return workerProcess;
+      }
+    };
 
-    ConcurrentHashMap<String, WorkerProcess> workerProcessMap = new ConcurrentHashMap<>();
-    workerProcessMap.put("/bin/bash -e -c startupCommand startupArgs", workerProcess);
+    ConcurrentHashMap<String, WorkerProcessPool> workerProcessPoolMap = new ConcurrentHashMap<>();
+    workerProcessPoolMap.put("/bin/bash -e -c startupCommand startupArgs", workerProcessPool);
 
     BuckEventBus eventBus = BuckEventBusFactory.newInstance();
     FakeBuckEventListener listener = new FakeBuckEventListener();
@@ -218,7 +226,7 @@ public class WorkerShellStepTest {
     ExecutionContext context = TestExecutionContext
         .newBuilder()
         .setPlatform(Platform.LINUX)
-        .setWorkerProcesses(workerProcessMap)
+        .setWorkerProcessPools(workerProcessPoolMap)
         .setConsole(console)
         .setBuckEventBus(eventBus)
         .build();
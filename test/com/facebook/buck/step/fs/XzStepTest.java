@@ -16,7 +16,9 @@
 
 package com.facebook.buck.step.fs;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.PathByteSource;
@@ -25,10 +27,15 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.integration.TestDataHelper;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZInputStream;
 
@@ -36,8 +43,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.Executors;
 
 public class XzStepTest {
 
@@ -52,7 +62,7 @@ public class XzStepTest {
   }
 
   @Test
-  public void testXzStep() throws IOException {
+  public void testXzStep() throws IOException, InterruptedException {
     final Path sourceFile =
         TestDataHelper.getTestDataScenario(this, "xz_with_rm_and_check").resolve("xzstep.data");
     final File destinationFile = tmp.newFile("xzstep.data.xz");
@@ -81,4 +91,47 @@ public class XzStepTest {
         "Decompressed file must be identical to original.",
         original.contentEquals(decompressed));
   }
+
+  @Test
+  public void testXzStepCompressesLargeFilesInBlocks() throws IOException, InterruptedException {
+    // Enough data for several blocks, with some repetition for the compressor to find.
+    byte[] data = new byte[XzBlockCompressor.getBlockSize(0) * 3 + 12345];
+    Random random = new Random(0);
+    for (int i = 0; i < data.length; i += 64) {
+      byte[] run = new byte[64];
+      random.nextBytes(run);
+      System.arraycopy(run, 0, data, i, Math.min(run.length, data.length - i));
+      if (i + 128 < data.length) {
+        System.arraycopy(run, 0, data, i + 64, 64);
+        i += 64;
+      }
+    }
+    final File sourceFile = tmp.newFile("blocks.data");
+    Files.write(sourceFile.toPath(), data);
+    File destinationFile = tmp.newFile("blocks.data.xz");
+
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      XzStep step = new XzStep(
+          new ProjectFilesystem(tmp.getRoot().toPath()),
+          sourceFile.toPath(),
+          destinationFile.toPath(),
+          /* compressionLevel -- for faster testing */ 0,
+          executorService);
+      assertEquals(0, step.execute(TestExecutionContext.newInstance()).getExitCode());
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    assertFalse("Source file should have been removed.", sourceFile.exists());
+    try (SeekableXZInputStream in =
+             new SeekableXZInputStream(new SeekableFileInputStream(destinationFile))) {
+      assertEquals(4, in.getBlockCount());
+      assertArrayEquals(data, ByteStreams.toByteArray(in));
+    }
+    try (InputStream in = new XZInputStream(new FileInputStream(destinationFile))) {
+      assertArrayEquals(data, ByteStreams.toByteArray(in));
+    }
+  }
 }
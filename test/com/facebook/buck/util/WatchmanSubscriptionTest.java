@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.FakeWatchmanClient;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.timing.FakeClock;
+import com.facebook.buck.timing.SettableFakeClock;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class WatchmanSubscriptionTest {
+
+  private static final String ROOT = "/path/to/root";
+  private static final String NAME = "buckd-test";
+  private static final ImmutableSet<PathOrGlobMatcher> IGNORE_PATHS =
+      ImmutableSet.of(new PathOrGlobMatcher(Paths.get("buck-out")));
+
+  private final BlockingQueue<WatchEvent<?>> events = new LinkedBlockingQueue<>();
+  private EventBus eventBus;
+  private SettableFakeClock clock;
+  private FakeWatchmanClient watchmanClient;
+  private WatchmanSubscription subscription;
+
+  @Before
+  public void setUp() throws Exception {
+    eventBus = new EventBus("watchman-subscription-test");
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onEvent(WatchEvent<?> event) {
+            events.add(event);
+          }
+        });
+    clock = new SettableFakeClock(0, 0);
+    watchmanClient = new FakeWatchmanClient(
+        0 /* queryElapsedTimeNanos */,
+        ImmutableMap.of(
+            ImmutableList.of("clock", ROOT),
+            ImmutableMap.of("clock", "c:1"),
+            createSubscribeQuery(),
+            ImmutableMap.of("subscribe", NAME)));
+    subscription = new WatchmanSubscription(eventBus, watchmanClient, 2 /* overflow */, clock);
+    subscription.start(
+        ROOT,
+        Optional.<String>absent(),
+        NAME,
+        IGNORE_PATHS,
+        ImmutableSet.<Watchman.Capability>of());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    subscription.close();
+  }
+
+  @Test
+  public void changesArePostedAsTheyAreReported() throws Exception {
+    watchmanClient.sendMessage(notification("c:2", "foo/BUCK"));
+
+    WatchEvent<?> event = events.poll(10, TimeUnit.SECONDS);
+    assertNotNull(event);
+    assertEquals(Paths.get("foo/BUCK"), event.context());
+  }
+
+  @Test
+  public void changesAreHeldBackWhileACommandRuns() throws Exception {
+    subscription.holdChanges();
+    subscription.onMessage(notification("c:2", "foo/BUCK"));
+    assertTrue(events.isEmpty());
+
+    // The command starting posts the changes reported before it started.
+    assertEquals(Optional.of("c:2"), subscription.postPendingChanges());
+    assertEquals(Paths.get("foo/BUCK"), events.remove().context());
+
+    subscription.onMessage(notification("c:3", "bar/BUCK"));
+    clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(5));
+    assertTrue(events.isEmpty());
+
+    subscription.releaseChanges();
+    assertEquals(Paths.get("bar/BUCK"), events.remove().context());
+    SamplingCounter settleLatency = (SamplingCounter) subscription.getCounters().get(0);
+    assertEquals(2, settleLatency.getCount());
+    assertEquals(5, settleLatency.getMax());
+  }
+
+  @Test
+  public void tooManyChangesAreCountedAsAnOverflow() throws Exception {
+    subscription.onMessage(notification("c:2", "a/BUCK", "b/BUCK", "c/BUCK"));
+
+    assertEquals(StandardWatchEventKinds.OVERFLOW, events.remove().kind());
+    assertTrue(events.isEmpty());
+    IntegerCounter overflows = (IntegerCounter) subscription.getCounters().get(1);
+    assertEquals(1, overflows.get());
+  }
+
+  @Test
+  public void commandsOnlyQueryForChangesSinceTheLastOneReported() throws Exception {
+    subscription.onMessage(notification("c:2", "foo/BUCK"));
+    events.clear();
+
+    List<Object> query = WatchmanWatcher.createQuery(
+        ROOT,
+        Optional.<String>absent(),
+        "uuid",
+        IGNORE_PATHS,
+        ImmutableSet.<Watchman.Capability>of());
+    @SuppressWarnings("unchecked")
+    Map<String, Object> sinceParams =
+        new LinkedHashMap<>((Map<String, Object>) query.get(2));
+    sinceParams.put("since", "c:2");
+    FakeWatchmanClient commandClient = new FakeWatchmanClient(
+        0 /* queryElapsedTimeNanos */,
+        ImmutableMap.of(
+            ImmutableList.of("query", ROOT, sinceParams),
+            ImmutableMap.of(
+                "files",
+                ImmutableList.of(ImmutableMap.<String, Object>of("name", "bar/BUCK")))));
+
+    new WatchmanWatcher(eventBus, commandClient, 2, 10000, query, Optional.of(subscription))
+        .postEvents(
+            new BuckEventBus(new FakeClock(0), new BuildId()),
+            ImmutableSet.<String>builder());
+
+    assertEquals(Paths.get("bar/BUCK"), events.remove().context());
+    assertTrue(events.isEmpty());
+  }
+
+  private static List<Object> createSubscribeQuery() {
+    return WatchmanWatcher.createSubscribeQuery(
+        ROOT,
+        Optional.<String>absent(),
+        NAME,
+        "c:1",
+        IGNORE_PATHS,
+        ImmutableSet.<Watchman.Capability>of());
+  }
+
+  private static ImmutableMap<String, Object> notification(String clock, String... paths) {
+    ImmutableList.Builder<Map<String, Object>> files = ImmutableList.builder();
+    for (String path : paths) {
+      files.add(ImmutableMap.<String, Object>of("name", path, "exists", true, "new", false));
+    }
+    return ImmutableMap.of(
+        "subscription", NAME,
+        "clock", clock,
+        "files", files.build());
+  }
+}
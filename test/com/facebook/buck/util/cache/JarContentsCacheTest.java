@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class JarContentsCacheTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private JarContentsCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    cache = new JarContentsCache(
+        DefaultFileHashCache.createDefaultFileHashCache(new ProjectFilesystem(tmp.getRootPath())));
+  }
+
+  @Test
+  public void classFilesAreIndexedByPackage() throws IOException {
+    Path jar = writeJar(
+        "lib.jar",
+        ImmutableMap.of(
+            "com/example/Foo.class", "foo",
+            "com/example/inner/Bar.class", "bar",
+            "Top.class", "top",
+            "META-INF/MANIFEST.MF", "manifest"));
+
+    JarContentsCache.JarContents contents = cache.get(jar).getContents();
+
+    assertThat(
+        contents.getPackages(),
+        Matchers.containsInAnyOrder("com.example", "com.example.inner", ""));
+    JarContentsCache.ClassFile foo =
+        Iterables.getOnlyElement(contents.getClassFiles("com.example"));
+    assertThat(foo.getEntryName(), Matchers.equalTo("com/example/Foo.class"));
+    assertArrayEquals("foo".getBytes(StandardCharsets.UTF_8), foo.getContents());
+    assertThat(contents.getClassFiles("META-INF"), Matchers.empty());
+  }
+
+  @Test
+  public void secondLookupIsServedFromCache() throws IOException {
+    Path jar = writeJar("lib.jar", ImmutableMap.of("Foo.class", "foo"));
+
+    JarContentsCache.Lookup first = cache.get(jar);
+    JarContentsCache.Lookup second = cache.get(jar);
+
+    assertFalse(first.isHit());
+    assertTrue(second.isHit());
+    assertSame(first.getContents(), second.getContents());
+  }
+
+  @Test
+  public void jarsWithTheSameContentsAreSharedAcrossPaths() throws IOException {
+    Path jar = writeJar("lib.jar", ImmutableMap.of("Foo.class", "foo"));
+    Path copy = tmp.getRootPath().resolve("copy.jar");
+    Files.copy(jar, copy);
+
+    cache.get(jar);
+
+    assertTrue(cache.withHashLoader(
+        DefaultFileHashCache.createDefaultFileHashCache(new ProjectFilesystem(tmp.getRootPath())))
+        .get(copy)
+        .isHit());
+  }
+
+  @Test
+  public void jarsWithDifferentContentsAreNotShared() throws IOException {
+    Path jar = writeJar("lib.jar", ImmutableMap.of("Foo.class", "foo"));
+    Path other = writeJar("other.jar", ImmutableMap.of("Foo.class", "changed"));
+
+    cache.get(jar);
+
+    assertFalse(cache.get(other).isHit());
+  }
+
+  private Path writeJar(String name, ImmutableMap<String, String> entries) throws IOException {
+    Path jar = tmp.getRootPath().resolve(name);
+    try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar))) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        output.putNextEntry(new JarEntry(entry.getKey()));
+        output.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        output.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
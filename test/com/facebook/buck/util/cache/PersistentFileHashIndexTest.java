@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+public class PersistentFileHashIndexTest {
+
+  private static final Path INDEX = Paths.get("buck-out/.filehashes");
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRootPath());
+  }
+
+  @Test
+  public void unchangedFilesAreNotRehashedAfterReload() throws IOException {
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+    Files.setLastModifiedTime(filesystem.resolve(path), FileTime.fromMillis(1000));
+
+    PersistentFileHashIndex index = PersistentFileHashIndex.load(filesystem, INDEX);
+    HashCode hashCode = index.get(path, source(path));
+    index.save();
+
+    PersistentFileHashIndex reloaded = PersistentFileHashIndex.load(filesystem, INDEX);
+    assertEquals(1, reloaded.size());
+    assertEquals(hashCode, reloaded.get(path, new FailingByteSource()));
+  }
+
+  @Test
+  public void modifiedFilesAreRehashedAfterReload() throws IOException {
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+
+    PersistentFileHashIndex index = PersistentFileHashIndex.load(filesystem, INDEX);
+    index.get(path, source(path));
+    index.save();
+
+    filesystem.writeContentsToPath("class Foo { int bar; }", path);
+    Files.setLastModifiedTime(filesystem.resolve(path), FileTime.fromMillis(1000));
+
+    PersistentFileHashIndex reloaded = PersistentFileHashIndex.load(filesystem, INDEX);
+    assertEquals(
+        Hashing.sha1().hashString("class Foo { int bar; }", StandardCharsets.UTF_8),
+        reloaded.get(path, source(path)));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws IOException {
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+    Files.setLastModifiedTime(
+        filesystem.resolve(path),
+        FileTime.fromMillis(
+            System.currentTimeMillis() -
+                PersistentFileHashIndex.RACY_MODIFICATION_WINDOW_MILLIS / 2));
+
+    PersistentFileHashIndex index = PersistentFileHashIndex.load(filesystem, INDEX);
+    assertEquals(
+        Hashing.sha1().hashString("class Foo {}", StandardCharsets.UTF_8),
+        index.get(path, source(path)));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void invalidatedEntriesAreNotPersisted() throws IOException {
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+
+    PersistentFileHashIndex index = PersistentFileHashIndex.load(filesystem, INDEX);
+    index.get(path, source(path));
+    index.invalidate(path);
+    index.save();
+
+    assertEquals(0, PersistentFileHashIndex.load(filesystem, INDEX).size());
+  }
+
+  @Test
+  public void corruptIndexIsIgnored() throws IOException {
+    filesystem.mkdirs(INDEX.getParent());
+    filesystem.writeContentsToPath("garbage", INDEX);
+    assertEquals(0, PersistentFileHashIndex.load(filesystem, INDEX).size());
+  }
+
+  @Test
+  public void indexWithCorruptLengthsIsIgnored() throws IOException {
+    Path path = Paths.get("Foo.java");
+    filesystem.writeContentsToPath("class Foo {}", path);
+    Files.setLastModifiedTime(filesystem.resolve(path), FileTime.fromMillis(1000));
+
+    PersistentFileHashIndex index = PersistentFileHashIndex.load(filesystem, INDEX);
+    index.get(path, source(path));
+    index.save();
+    byte[] contents = Files.readAllBytes(filesystem.resolve(INDEX));
+
+    // The length of the first path follows the magic number and the entry count.
+    assertIndexIsIgnored(withInt(contents, 8, -1));
+    assertIndexIsIgnored(withInt(contents, 8, Integer.MAX_VALUE));
+    // The length of the hash precedes the 20 bytes of the SHA-1 ending the only entry.
+    byte[] negativeHashLength = contents.clone();
+    negativeHashLength[contents.length - 21] = -1;
+    assertIndexIsIgnored(negativeHashLength);
+  }
+
+  private void assertIndexIsIgnored(byte[] contents) throws IOException {
+    Files.write(filesystem.resolve(INDEX), contents);
+    assertEquals(0, PersistentFileHashIndex.load(filesystem, INDEX).size());
+  }
+
+  private static byte[] withInt(byte[] contents, int offset, int value) {
+    byte[] modified = contents.clone();
+    ByteBuffer.wrap(modified).putInt(offset, value);
+    return modified;
+  }
+
+  private ByteSource source(final Path path) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return filesystem.newFileInputStream(path);
+      }
+    };
+  }
+
+  private static class FailingByteSource extends ByteSource {
+    @Override
+    public InputStream openStream() throws IOException {
+      throw new AssertionError("File contents should not have been read.");
+    }
+  }
+
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -23,11 +24,14 @@ import static org.junit.Assume.assumeThat;
 
 import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
@@ -41,6 +45,9 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 
 public class UnzipTest {
@@ -153,4 +160,68 @@ public class UnzipTest {
     assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
   }
 
+  @Test
+  public void testExtractZipFileInParallel() throws Exception {
+    try (Zip zip = new Zip(zipFile, true)) {
+      for (int i = 0; i < 50; i++) {
+        zip.add(String.format("dir%d/%d.bin", i % 5, i), DUMMY_FILE_CONTENTS);
+      }
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      ImmutableList<Path> result = Unzip.extractZipFile(
+          zipFile.toAbsolutePath(),
+          new ProjectFilesystem(extractFolder),
+          extractFolder.getFileSystem().getPath(""),
+          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+          executorService,
+          /* parallelism */ 4);
+      assertEquals(50, result.size());
+      for (int i = 0; i < 50; i++) {
+        Path file = extractFolder.resolve(String.format("dir%d/%d.bin", i % 5, i));
+        assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(file));
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void testExtractZipFileDoesNotWaitForBusyExecutor() throws Exception {
+    try (Zip zip = new Zip(zipFile, true)) {
+      zip.add("1.bin", DUMMY_FILE_CONTENTS);
+      zip.add("2.bin", DUMMY_FILE_CONTENTS);
+    }
+
+    // Occupy the only thread for the duration of the unzip, as a build thread would be.
+    final CountDownLatch unzipped = new CountDownLatch(1);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    try {
+      executorService.submit(
+          new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+              unzipped.await();
+              return null;
+            }
+          });
+      Path extractFolder = tmpFolder.newFolder();
+      ImmutableList<Path> result = Unzip.extractZipFile(
+          zipFile.toAbsolutePath(),
+          new ProjectFilesystem(extractFolder),
+          extractFolder.getFileSystem().getPath(""),
+          Unzip.ExistingFileMode.OVERWRITE,
+          executorService,
+          /* parallelism */ 2);
+      unzipped.countDown();
+      assertEquals(2, result.size());
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
 }